@@ -1,4 +1,15 @@
+import engine.BTreeDictionaryTest;
+import engine.CachingDictionaryTest;
+import engine.CompressedWordfileDictionaryTest;
+import engine.FenceIndexTest;
 import engine.InMemoryDictionaryTest;
+import engine.LogStructuredDictionaryTest;
+import engine.OffHeapDictionaryTest;
+import engine.SWPDBuilderTest;
+import engine.SharedDictionaryTest;
+import engine.SortedWordfileDictionaryTest;
+import engine.SortedWordfileDictionaryV1Test;
+import game.PlayerRegistryTest;
 import game.VerbosityGameTest;
 
 import org.junit.runner.RunWith;
@@ -6,10 +17,19 @@ import org.junit.runners.Suite;
 import org.junit.runners.Suite.SuiteClasses;
 
 import ui.ConsoleRunnerTest;
+import ui.EncodedUpdateTest;
+import ui.RoomServerTest;
+import ui.SelectorRoomServerTest;
+import ui.VirtualThreadRoomServerTest;
 
 
 @RunWith(Suite.class)
-@SuiteClasses({ConsoleRunnerTest.class, VerbosityGameTest.class, InMemoryDictionaryTest.class})
+@SuiteClasses({ConsoleRunnerTest.class, VerbosityGameTest.class, PlayerRegistryTest.class, InMemoryDictionaryTest.class,
+	SortedWordfileDictionaryTest.class, SortedWordfileDictionaryV1Test.class, LogStructuredDictionaryTest.class,
+	OffHeapDictionaryTest.class, CachingDictionaryTest.class, CompressedWordfileDictionaryTest.class,
+	SharedDictionaryTest.class, BTreeDictionaryTest.class,
+	SWPDBuilderTest.class, FenceIndexTest.class, RoomServerTest.class, SelectorRoomServerTest.class,
+	VirtualThreadRoomServerTest.class, EncodedUpdateTest.class})
 public class GameTestSuit {
 
 }
@@ -0,0 +1,1033 @@
+package engine;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Implements a persistent dictionary as a B+tree of fixed-size pages, for large dictionaries that change all the time.
+ *
+ * Unlike the other dictionaries, the entries are not loaded into memory: {@link #open()} only reads the header,
+ * and pages are read on demand into a bounded {@link BufferPool}. A {@link #put(String, String)} changes the leaf
+ * that holds the key in place (splitting it, and possibly its ancestors, when it's full), so updating an entry
+ * touches a few pages rather than the whole file. Deleted entries are not merged back: a leaf that becomes
+ * empty stays in the tree until it's filled again.
+ *
+ * The changes are written to the file when pages are evicted from the pool, and when the dictionary is closed;
+ * the original pages are saved in a rollback journal first, so the changes since the last {@link #close()}
+ * are undone by {@link #open()} (and after a crash).
+ *
+ * The file is a sequence of {@link #PAGE_SIZE} byte pages. Page 0 is the header:
+ * <table>
+ * <tr><th>Index</th><th>Length (bytes)</th><th>Desciption</th></tr>
+ * <tr><td>0</td><td>4</td><td>SWPB [constant "magic" to allow easy recognition]</td></tr>
+ * <tr><td>4</td><td>4</td><td>version (32 bit big-endian integer)</td></tr>
+ * <tr><td>8</td><td>4</td><td>pageSize (32 bit big-endian integer)</td></tr>
+ * <tr><td>12</td><td>4</td><td>root: the page number of the root</td></tr>
+ * <tr><td>16</td><td>4</td><td>pageCount: the number of pages in the file</td></tr>
+ * <tr><td>20</td><td>4</td><td>numWords: the number of entries</td></tr>
+ * <tr><td>24</td><td>4</td><td>freeList: the first free page (0 if there are none)</td></tr>
+ * </table>
+ * <p>A node (leaf or internal) page has the form:</p>
+ * <table>
+ * <tr><th>Index</th><th>Length (bytes)</th><th>Desciption</th></tr>
+ * <tr><td>0</td><td>1</td><td>type ({@link #LEAF} or {@link #INTERNAL})</td></tr>
+ * <tr><td>2</td><td>2</td><td>count: the number of cells</td></tr>
+ * <tr><td>4</td><td>4</td><td>link: the next leaf (0 for the last one), or the leftmost child of an internal node</td></tr>
+ * <tr><td>8</td><td>4</td><td>cellStart: the offset of the lowest cell (cells are allocated from the end of the page)</td></tr>
+ * <tr><td>12</td><td>4</td><td>fragmented: the number of bytes of deleted cells below cellStart's level</td></tr>
+ * <tr><td>16</td><td>2 * count</td><td>the offsets of the cells, in key order</td></tr>
+ * </table>
+ * <p>A leaf cell is keyLength (16 bit), a flag ({@link #INLINE}, {@link #NULL_VALUE} or {@link #OVERFLOW}),
+ * valueLength (32 bit), the key (UTF-8) and the definition (UTF-8); a definition that doesn't fit in a
+ * quarter of a page is stored in a chain of overflow pages, and the cell holds the number of the first one.
+ * An internal cell is keyLength (16 bit), the page number of the child that holds the keys from this key on
+ * (up to the next cell's key), and the key.</p>
+ * <p>An overflow page holds the type, the next overflow page (at 4; 0 for the last), the number of bytes
+ * in the page (at 8) and the bytes (from 12). A free page holds the type and the next free page (at 4).</p>
+ */
+public class BTreeDictionary implements PersistentDictionary {
+
+	static final Charset CHARSET = SWPDFile.CHARSET;
+
+	/**
+	 * The constant "magic" at the start of the file.
+	 */
+	static final byte[] MAGIC = { 'S', 'W', 'P', 'B' };
+
+	static final int VERSION = 1;
+
+	static final int PAGE_SIZE = 4096;
+
+	/**
+	 * The default number of pages in the buffer pool.
+	 */
+	static final int DEFAULT_POOL_PAGES = 256;
+
+	/**
+	 * The smallest buffer pool that can hold the pages pinned by a split.
+	 */
+	static final int MIN_POOL_PAGES = 8;
+
+	/**
+	 * Page types.
+	 */
+	static final byte LEAF = 1;
+	static final byte INTERNAL = 2;
+	static final byte OVERFLOW_PAGE = 3;
+	static final byte FREE = 4;
+
+	/**
+	 * Leaf cell flags.
+	 */
+	static final byte INLINE = 0;
+	static final byte NULL_VALUE = 1;
+	static final byte OVERFLOW = 2;
+
+	/*======= Page layout ======*/
+
+	static final int TYPE = 0;
+	static final int COUNT = 2;
+	static final int LINK = 4;
+	static final int CELL_START = 8;
+	static final int FRAGMENTED = 12;
+	static final int NODE_HEADER = 16;
+
+	static final int LEAF_CELL_HEADER = 7;
+	static final int INTERNAL_CELL_HEADER = 6;
+
+	static final int OVERFLOW_NEXT = 4;
+	static final int OVERFLOW_LENGTH = 8;
+	static final int OVERFLOW_HEADER = 12;
+
+	/**
+	 * The maximal size of a cell (with its offset): a node always has room for four cells, so a split
+	 * always makes room for a new one.
+	 */
+	static final int MAX_CELL = (PAGE_SIZE - NODE_HEADER) / 4 - 2;
+
+	/**
+	 * The maximal length of a key, in bytes.
+	 */
+	static final int MAX_KEY = PAGE_SIZE / 8;
+
+	/**
+	 * The maximal depth of the tree (far more than a file of 2^31 pages needs).
+	 */
+	static final int MAX_DEPTH = 32;
+
+	final File dictFile;
+
+	final File journalFile;
+
+	final int poolPages;
+
+	FileChannel channel;
+
+	BufferPool pool;
+
+	/*======= The header ======*/
+
+	int root;
+	int pageCount;
+	int size;
+	int freeList;
+
+	/**
+	 * Set when the header has changed since the last {@link #close()}.
+	 */
+	boolean modified;
+
+	/**
+	 * Counts the changes, so that iterators notice that the tree has changed.
+	 */
+	int modCount;
+
+	/**
+	 * The page numbers from the root to the last leaf found by {@link #findLeaf(ByteBuffer, int)}.
+	 */
+	final int[] path = new int[MAX_DEPTH];
+	int depth;
+
+	/**
+	 * A page-sized buffer for compacting pages.
+	 */
+	final byte[] scratch = new byte[PAGE_SIZE];
+
+	public BTreeDictionary(File dictFile) {
+		this(dictFile, DEFAULT_POOL_PAGES);
+	}
+
+	/**
+	 * A constructor.
+	 * @param dictFile the file.
+	 * @param poolPages the number of pages held in memory.
+	 */
+	public BTreeDictionary(File dictFile, int poolPages) {
+		this.dictFile = dictFile;
+		this.journalFile = new File(dictFile.getPath() + ".journal");
+		this.poolPages = Math.max(poolPages, MIN_POOL_PAGES);
+	}
+
+	@Override
+	public synchronized void open() throws IOException {
+		if (channel != null) {
+			// Discard the changes (they are rolled back below)
+			pool.close();
+			channel.close();
+			channel = null;
+			pool = null;
+		}
+		++modCount;
+
+		FileChannel file = new RandomAccessFile(dictFile, "rw").getChannel();
+		try {
+			BufferPool.rollback(file, journalFile, PAGE_SIZE);
+			boolean empty = (file.size() == 0);
+			if (!empty) {
+				readHeader(file);
+				// Pages allocated after the last commit (they weren't journaled, since they didn't exist)
+				if (file.size() > (long) pageCount * PAGE_SIZE)
+					file.truncate((long) pageCount * PAGE_SIZE);
+			}
+			pool = new BufferPool(file, journalFile, PAGE_SIZE, poolPages);
+			channel = file;
+
+			if (empty) {
+				// Commit an empty tree right away, so the file is always valid
+				root = 1;
+				pageCount = 2;
+				size = 0;
+				freeList = 0;
+				BufferPool.Page leaf = pool.allocate(root);
+				initNode(leaf.data, LEAF);
+				pool.release(leaf);
+				writeHeader();
+				pool.commit(pageCount);
+			}
+			modified = false;
+		} catch (IOException e) {
+			file.close();
+			channel = null;
+			pool = null;
+			throw e;
+		}
+	}
+
+	private void readHeader(FileChannel file) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(28);
+		while (header.hasRemaining()) {
+			if (file.read(header, header.position()) < 0)
+				throw new IOException(dictFile + " is too short to be a B+tree dictionary");
+		}
+		header.flip();
+		byte[] magic = new byte[MAGIC.length];
+		header.get(magic);
+		if (!Arrays.equals(magic, MAGIC))
+			throw new IOException(dictFile + " is not a B+tree dictionary");
+		int version = header.getInt();
+		int pageSize = header.getInt();
+		if (version != VERSION || pageSize != PAGE_SIZE)
+			throw new IOException(dictFile + " has an unsupported version or page size");
+		root = header.getInt();
+		pageCount = header.getInt();
+		size = header.getInt();
+		freeList = header.getInt();
+		if (root <= 0 || root >= pageCount || size < 0 || (long) pageCount * PAGE_SIZE > file.size())
+			throw new IOException(dictFile + " is corrupt: bad header");
+	}
+
+	private void writeHeader() throws IOException {
+		BufferPool.Page page = pool.allocate(0);
+		ByteBuffer data = page.data;
+		data.clear();
+		data.put(MAGIC);
+		data.putInt(VERSION);
+		data.putInt(PAGE_SIZE);
+		data.putInt(root);
+		data.putInt(pageCount);
+		data.putInt(size);
+		data.putInt(freeList);
+		pool.release(page);
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		checkOpen();
+		try {
+			if (modified)
+				writeHeader();
+			pool.commit(pageCount);
+			modified = false;
+		} finally {
+			pool.close();
+			channel.close();
+			channel = null;
+			pool = null;
+		}
+	}
+
+	private void checkOpen() {
+		if (channel == null)
+			throw new IllegalStateException("Dictionary " + dictFile + " is not open");
+	}
+
+	/**
+	 * Return the number of pages read from and written to the file since the dictionary was opened.
+	 */
+	synchronized long[] getPageIO() {
+		checkOpen();
+		return new long[] { pool.reads, pool.writes };
+	}
+
+	/*======= Map operations ======*/
+
+	@Override
+	public synchronized String get(Object key) {
+		ByteBuffer k = encode(key);
+		try {
+			BufferPool.Page leaf = findLeaf(k, k.remaining());
+			try {
+				int index = search(leaf.data, k, k.remaining());
+				return (index < 0) ? null : value(leaf.data, cellOffset(leaf.data, index));
+			} finally {
+				pool.release(leaf);
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * The pages in the pool are reused, so the definition is copied out of its page (but not decoded).
+	 */
+	@Override
+	public synchronized ByteBuffer getBytes(Object key) {
+		ByteBuffer k = encode(key);
+		try {
+			BufferPool.Page leaf = findLeaf(k, k.remaining());
+			try {
+				int index = search(leaf.data, k, k.remaining());
+				byte[] value = (index < 0) ? null : valueBytes(leaf.data, cellOffset(leaf.data, index));
+				return (value == null) ? null : ByteBuffer.wrap(value).asReadOnlyBuffer();
+			} finally {
+				pool.release(leaf);
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	@Override
+	public boolean storesBytes() {
+		return true;
+	}
+
+	@Override
+	public synchronized boolean containsKey(Object key) {
+		ByteBuffer k = encode(key);
+		try {
+			BufferPool.Page leaf = findLeaf(k, k.remaining());
+			try {
+				return search(leaf.data, k, k.remaining()) >= 0;
+			} finally {
+				pool.release(leaf);
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	@Override
+	public synchronized int size() {
+		return size;
+	}
+
+	@Override
+	public synchronized String put(String key, String value) {
+		ByteBuffer k = encode(key);
+		int keyLen = k.remaining();
+		if (keyLen > MAX_KEY)
+			throw new IllegalArgumentException("Key is longer than " + MAX_KEY + " bytes");
+		try {
+			BufferPool.Page leaf = findLeaf(k, keyLen);
+			try {
+				ByteBuffer data = leaf.data;
+				int index = search(data, k, keyLen);
+				String old = null;
+				int oldOffset = 0;
+				int oldSize = 0;
+				if (index >= 0) {
+					oldOffset = cellOffset(data, index);
+					oldSize = leafCellSize(data, oldOffset);
+					old = value(data, oldOffset);
+					if (data.get(oldOffset + 2) == OVERFLOW)
+						freeOverflow(data.getInt(oldOffset + LEAF_CELL_HEADER + keyLen));
+				}
+
+				byte[] cell = leafCell(k, value);
+				leaf.markDirty();
+				++modCount;
+				if (index >= 0 && cell.length <= oldSize) {
+					// The new cell fits in place of the old one
+					System.arraycopy(cell, 0, data.array(), oldOffset, cell.length);
+					data.putInt(FRAGMENTED, data.getInt(FRAGMENTED) + oldSize - cell.length);
+					return old;
+				}
+				if (index >= 0) {
+					removeCell(data, index, oldSize);
+				} else {
+					index = -(index + 1);
+					++size;
+					modified = true;
+				}
+				insertCell(leaf, depth - 1, index, cell);
+				return old;
+			} finally {
+				pool.release(leaf);
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	@Override
+	public synchronized String remove(Object key) {
+		ByteBuffer k = encode(key);
+		try {
+			BufferPool.Page leaf = findLeaf(k, k.remaining());
+			try {
+				ByteBuffer data = leaf.data;
+				int index = search(data, k, k.remaining());
+				if (index < 0)
+					return null;
+				int offset = cellOffset(data, index);
+				String old = value(data, offset);
+				if (data.get(offset + 2) == OVERFLOW)
+					freeOverflow(data.getInt(offset + LEAF_CELL_HEADER + k.remaining()));
+				leaf.markDirty();
+				removeCell(data, index, leafCellSize(data, offset));
+				--size;
+				modified = true;
+				++modCount;
+				return old;
+			} finally {
+				pool.release(leaf);
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	@Override
+	public synchronized void clear() {
+		checkOpen();
+		try {
+			pool.invalidate(1);
+			root = 1;
+			pageCount = 2;
+			size = 0;
+			freeList = 0;
+			BufferPool.Page leaf = pool.allocate(root);
+			initNode(leaf.data, LEAF);
+			pool.release(leaf);
+			modified = true;
+			++modCount;
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	@Override
+	public synchronized String update(String key, Remapping remapping) {
+		String value = remapping.remap(key, get(key));
+		if (value == null)
+			remove(key);
+		else
+			put(key, value);
+		return value;
+	}
+
+	private ByteBuffer encode(Object key) {
+		if (key == null)
+			throw new NullPointerException();
+		checkOpen();
+		return ByteBuffer.wrap(((String) key).getBytes(CHARSET));
+	}
+
+	/*======= Searching ======*/
+
+	/**
+	 * Return the leaf that should hold a key, pinned, and record the path to it in {@link #path}.
+	 */
+	private BufferPool.Page findLeaf(ByteBuffer key, int keyLen) throws IOException {
+		depth = 0;
+		BufferPool.Page page = pool.fetch(root);
+		path[depth++] = root;
+		while (page.data.get(TYPE) == INTERNAL) {
+			int child = child(page.data, key, keyLen);
+			pool.release(page);
+			page = pool.fetch(child);
+			path[depth++] = child;
+		}
+		return page;
+	}
+
+	/**
+	 * Return the child of an internal node that should hold a key.
+	 */
+	static int child(ByteBuffer data, ByteBuffer key, int keyLen) {
+		int index = search(data, key, keyLen);
+		if (index < 0)
+			index = -(index + 1) - 1;
+		if (index < 0)
+			return data.getInt(LINK);
+		return data.getInt(cellOffset(data, index) + 2);
+	}
+
+	/**
+	 * Binary search for a key in a node.
+	 * @return the index of the key's cell, or (-(insertion point) - 1) if there is no such cell.
+	 */
+	static int search(ByteBuffer data, ByteBuffer key, int keyLen) {
+		int keyStart = (data.get(TYPE) == LEAF) ? LEAF_CELL_HEADER : INTERNAL_CELL_HEADER;
+		int low = 0;
+		int high = count(data) - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int offset = cellOffset(data, mid);
+			int cmp = Utf8.compare(data, offset + keyStart, data.getChar(offset), key, 0, keyLen);
+			if (cmp < 0)
+				low = mid + 1;
+			else if (cmp > 0)
+				high = mid - 1;
+			else
+				return mid;
+		}
+		return -(low + 1);
+	}
+
+	/*======= Nodes ======*/
+
+	static int count(ByteBuffer data) {
+		return data.getChar(COUNT);
+	}
+
+	static int cellOffset(ByteBuffer data, int index) {
+		return data.getChar(NODE_HEADER + 2 * index);
+	}
+
+	static void initNode(ByteBuffer data, byte type) {
+		data.put(TYPE, type);
+		data.putChar(COUNT, (char) 0);
+		data.putInt(LINK, 0);
+		data.putInt(CELL_START, PAGE_SIZE);
+		data.putInt(FRAGMENTED, 0);
+	}
+
+	static int leafCellSize(ByteBuffer data, int offset) {
+		int size = LEAF_CELL_HEADER + data.getChar(offset);
+		byte flag = data.get(offset + 2);
+		if (flag == INLINE)
+			size += data.getInt(offset + 3);
+		else if (flag == OVERFLOW)
+			size += 4;
+		return size;
+	}
+
+	static int cellSize(ByteBuffer data, int offset) {
+		if (data.get(TYPE) == LEAF)
+			return leafCellSize(data, offset);
+		return INTERNAL_CELL_HEADER + data.getChar(offset);
+	}
+
+	static String key(ByteBuffer data, int offset) {
+		int keyStart = (data.get(TYPE) == LEAF) ? LEAF_CELL_HEADER : INTERNAL_CELL_HEADER;
+		return new String(data.array(), offset + keyStart, data.getChar(offset), CHARSET);
+	}
+
+	/**
+	 * Read the definition of a leaf cell.
+	 */
+	private String value(ByteBuffer data, int offset) throws IOException {
+		int keyLen = data.getChar(offset);
+		int valueLen = data.getInt(offset + 3);
+		switch (data.get(offset + 2)) {
+		case NULL_VALUE:
+			return null;
+		case OVERFLOW:
+			return new String(readOverflow(data.getInt(offset + LEAF_CELL_HEADER + keyLen), valueLen), CHARSET);
+		default:
+			return new String(data.array(), offset + LEAF_CELL_HEADER + keyLen, valueLen, CHARSET);
+		}
+	}
+
+	/**
+	 * Return a copy of the raw definition of a leaf cell, or null if it is null.
+	 */
+	private byte[] valueBytes(ByteBuffer data, int offset) throws IOException {
+		int keyLen = data.getChar(offset);
+		int valueLen = data.getInt(offset + 3);
+		int start = offset + LEAF_CELL_HEADER + keyLen;
+		switch (data.get(offset + 2)) {
+		case NULL_VALUE:
+			return null;
+		case OVERFLOW:
+			return readOverflow(data.getInt(start), valueLen);
+		default:
+			return Arrays.copyOfRange(data.array(), start, start + valueLen);
+		}
+	}
+
+	/**
+	 * Build a leaf cell (writing a long definition to overflow pages).
+	 */
+	private byte[] leafCell(ByteBuffer key, String value) throws IOException {
+		int keyLen = key.remaining();
+		byte[] v = (value == null) ? null : value.getBytes(CHARSET);
+		byte flag = (v == null) ? NULL_VALUE : INLINE;
+		int valueSize = (v == null) ? 0 : v.length;
+		if (LEAF_CELL_HEADER + keyLen + valueSize > MAX_CELL) {
+			flag = OVERFLOW;
+			valueSize = 4;
+		}
+
+		ByteBuffer cell = ByteBuffer.allocate(LEAF_CELL_HEADER + keyLen + valueSize);
+		cell.putChar((char) keyLen);
+		cell.put(flag);
+		cell.putInt((v == null) ? 0 : v.length);
+		cell.put(key.duplicate());
+		if (flag == OVERFLOW)
+			cell.putInt(writeOverflow(v));
+		else if (v != null)
+			cell.put(v);
+		return cell.array();
+	}
+
+	/**
+	 * Remove a cell from a node (the space it used is reclaimed when the node is compacted).
+	 */
+	static void removeCell(ByteBuffer data, int index, int cellSize) {
+		int count = count(data);
+		byte[] array = data.array();
+		int slot = NODE_HEADER + 2 * index;
+		System.arraycopy(array, slot + 2, array, slot, 2 * (count - index - 1));
+		data.putChar(COUNT, (char) (count - 1));
+		data.putInt(FRAGMENTED, data.getInt(FRAGMENTED) + cellSize);
+	}
+
+	/**
+	 * Return the free space of a node, between the cell offsets and the cells.
+	 */
+	static int freeSpace(ByteBuffer data) {
+		return data.getInt(CELL_START) - NODE_HEADER - 2 * count(data);
+	}
+
+	/**
+	 * Add a cell to a node that has room for it.
+	 */
+	static void addCell(ByteBuffer data, int index, byte[] cell) {
+		int count = count(data);
+		int offset = data.getInt(CELL_START) - cell.length;
+		byte[] array = data.array();
+		System.arraycopy(cell, 0, array, offset, cell.length);
+		int slot = NODE_HEADER + 2 * index;
+		System.arraycopy(array, slot, array, slot + 2, 2 * (count - index));
+		data.putChar(slot, (char) offset);
+		data.putChar(COUNT, (char) (count + 1));
+		data.putInt(CELL_START, offset);
+	}
+
+	/**
+	 * Move the cells of a node to the end of the page, to reclaim the space of removed cells.
+	 */
+	private void compact(ByteBuffer data) {
+		int count = count(data);
+		byte[] array = data.array();
+		int offset = PAGE_SIZE;
+		for (int i = 0; i < count; ++i) {
+			int cell = cellOffset(data, i);
+			int cellSize = cellSize(data, cell);
+			offset -= cellSize;
+			System.arraycopy(array, cell, scratch, offset, cellSize);
+			data.putChar(NODE_HEADER + 2 * i, (char) offset);
+		}
+		System.arraycopy(scratch, offset, array, offset, PAGE_SIZE - offset);
+		data.putInt(CELL_START, offset);
+		data.putInt(FRAGMENTED, 0);
+	}
+
+	/**
+	 * Insert a cell into a node, splitting the node if it's full.
+	 * @param page the node (pinned and dirty).
+	 * @param level the node's level in {@link #path}.
+	 */
+	private void insertCell(BufferPool.Page page, int level, int index, byte[] cell) throws IOException {
+		ByteBuffer data = page.data;
+		int needed = cell.length + 2;
+		if (freeSpace(data) < needed && freeSpace(data) + data.getInt(FRAGMENTED) >= needed)
+			compact(data);
+		if (freeSpace(data) >= needed) {
+			addCell(data, index, cell);
+			return;
+		}
+		split(page, level, index, cell);
+	}
+
+	/**
+	 * Split a full node in two, with a new cell, and insert the separator into its parent.
+	 */
+	private void split(BufferPool.Page page, int level, int index, byte[] cell) throws IOException {
+		ByteBuffer data = page.data;
+		boolean leaf = (data.get(TYPE) == LEAF);
+
+		// The cells, in order, with the new one
+		int count = count(data);
+		List<byte[]> cells = new ArrayList<byte[]>(count + 1);
+		int total = 0;
+		for (int i = 0; i < count; ++i) {
+			if (i == index)
+				cells.add(cell);
+			int offset = cellOffset(data, i);
+			cells.add(Arrays.copyOfRange(data.array(), offset, offset + cellSize(data, offset)));
+		}
+		if (index == count)
+			cells.add(cell);
+		for (byte[] c : cells)
+			total += c.length + 2;
+
+		// Split in the middle, by bytes
+		int mid = 0;
+		int leftBytes = 0;
+		while (mid < cells.size() - 1 && (leftBytes < total / 2 || mid == 0)) {
+			leftBytes += cells.get(mid).length + 2;
+			++mid;
+		}
+
+		int rightId = allocatePage();
+		BufferPool.Page right = pool.allocate(rightId);
+		try {
+			ByteBuffer rightData = right.data;
+			initNode(rightData, leaf ? LEAF : INTERNAL);
+			byte[] separator;
+			int link = data.getInt(LINK);
+			initNode(data, leaf ? LEAF : INTERNAL);
+			if (leaf) {
+				// The right leaf starts with the separator's entry, and comes after the left one.
+				for (int i = 0; i < mid; ++i)
+					addCell(data, i, cells.get(i));
+				for (int i = mid; i < cells.size(); ++i)
+					addCell(rightData, i - mid, cells.get(i));
+				rightData.putInt(LINK, link);
+				data.putInt(LINK, rightId);
+				byte[] first = cells.get(mid);
+				separator = Arrays.copyOfRange(first, LEAF_CELL_HEADER, LEAF_CELL_HEADER + ((first[0] & 0xFF) << 8 | (first[1] & 0xFF)));
+			} else {
+				// The separator moves up, and its child becomes the right node's leftmost child.
+				data.putInt(LINK, link);
+				for (int i = 0; i < mid; ++i)
+					addCell(data, i, cells.get(i));
+				ByteBuffer middle = ByteBuffer.wrap(cells.get(mid));
+				rightData.putInt(LINK, middle.getInt(2));
+				for (int i = mid + 1; i < cells.size(); ++i)
+					addCell(rightData, i - mid - 1, cells.get(i));
+				separator = Arrays.copyOfRange(cells.get(mid), INTERNAL_CELL_HEADER, cells.get(mid).length);
+			}
+
+			ByteBuffer parentCell = ByteBuffer.allocate(INTERNAL_CELL_HEADER + separator.length);
+			parentCell.putChar((char) separator.length);
+			parentCell.putInt(rightId);
+			parentCell.put(separator);
+
+			if (level == 0) {
+				// A new root, above the two halves
+				int rootId = allocatePage();
+				BufferPool.Page newRoot = pool.allocate(rootId);
+				initNode(newRoot.data, INTERNAL);
+				newRoot.data.putInt(LINK, page.id);
+				addCell(newRoot.data, 0, parentCell.array());
+				pool.release(newRoot);
+				root = rootId;
+				modified = true;
+				return;
+			}
+
+			BufferPool.Page parent = pool.fetch(path[level - 1]);
+			try {
+				parent.markDirty();
+				ByteBuffer key = ByteBuffer.wrap(separator);
+				int parentIndex = -(search(parent.data, key, separator.length) + 1);
+				insertCell(parent, level - 1, parentIndex, parentCell.array());
+			} finally {
+				pool.release(parent);
+			}
+		} finally {
+			pool.release(right);
+		}
+	}
+
+	/*======= Page allocation and overflow pages ======*/
+
+	/**
+	 * Return the number of an unused page (from the free list, or at the end of the file).
+	 */
+	private int allocatePage() throws IOException {
+		modified = true;
+		if (freeList == 0)
+			return pageCount++;
+		int id = freeList;
+		BufferPool.Page page = pool.fetch(id);
+		freeList = page.data.getInt(OVERFLOW_NEXT);
+		pool.release(page);
+		return id;
+	}
+
+	private void freePage(int id) throws IOException {
+		BufferPool.Page page = pool.allocate(id);
+		page.data.put(TYPE, FREE);
+		page.data.putInt(OVERFLOW_NEXT, freeList);
+		pool.release(page);
+		freeList = id;
+		modified = true;
+	}
+
+	/**
+	 * Write bytes to a chain of overflow pages.
+	 * @return the number of the first page.
+	 */
+	private int writeOverflow(byte[] bytes) throws IOException {
+		int capacity = PAGE_SIZE - OVERFLOW_HEADER;
+		int numPages = (bytes.length + capacity - 1) / capacity;
+		int[] ids = new int[numPages];
+		for (int i = 0; i < numPages; ++i)
+			ids[i] = allocatePage();
+		for (int i = 0; i < numPages; ++i) {
+			BufferPool.Page page = pool.allocate(ids[i]);
+			int length = Math.min(capacity, bytes.length - i * capacity);
+			page.data.put(TYPE, OVERFLOW_PAGE);
+			page.data.putInt(OVERFLOW_NEXT, (i + 1 < numPages) ? ids[i + 1] : 0);
+			page.data.putInt(OVERFLOW_LENGTH, length);
+			System.arraycopy(bytes, i * capacity, page.data.array(), OVERFLOW_HEADER, length);
+			pool.release(page);
+		}
+		return ids[0];
+	}
+
+	private byte[] readOverflow(int id, int length) throws IOException {
+		byte[] bytes = new byte[length];
+		int pos = 0;
+		while (id != 0 && pos < length) {
+			BufferPool.Page page = pool.fetch(id);
+			int n = Math.min(page.data.getInt(OVERFLOW_LENGTH), length - pos);
+			System.arraycopy(page.data.array(), OVERFLOW_HEADER, bytes, pos, n);
+			pos += n;
+			id = page.data.getInt(OVERFLOW_NEXT);
+			pool.release(page);
+		}
+		return bytes;
+	}
+
+	private void freeOverflow(int id) throws IOException {
+		while (id != 0) {
+			BufferPool.Page page = pool.fetch(id);
+			int next = page.data.getInt(OVERFLOW_NEXT);
+			pool.release(page);
+			freePage(id);
+			id = next;
+		}
+	}
+
+	/*======= Iteration ======*/
+
+	/**
+	 * Return a copy of a page: from the pool if the dictionary is open, or else from the file.
+	 */
+	synchronized ByteBuffer copyPage(int id) throws IOException {
+		ByteBuffer copy = ByteBuffer.allocate(PAGE_SIZE);
+		if (channel != null) {
+			BufferPool.Page page = pool.fetch(id);
+			copy.put(page.data.array());
+			pool.release(page);
+			return copy;
+		}
+		RandomAccessFile file = new RandomAccessFile(dictFile, "r");
+		try {
+			FileChannel fileChannel = file.getChannel();
+			while (copy.hasRemaining()) {
+				if (fileChannel.read(copy, (long) id * PAGE_SIZE + copy.position()) < 0)
+					throw new IOException(dictFile + " is corrupt: page " + id + " is missing");
+			}
+		} finally {
+			file.close();
+		}
+		return copy;
+	}
+
+	/**
+	 * Return the number of the leaf that should hold a key (the first leaf for null).
+	 */
+	synchronized int leafFor(String key) throws IOException {
+		ByteBuffer k = ByteBuffer.wrap((key == null) ? new byte[0] : key.getBytes(CHARSET));
+		int id = (channel != null) ? root : copyPage(0).getInt(12);
+		ByteBuffer data = copyPage(id);
+		while (data.get(TYPE) == INTERNAL) {
+			id = (key == null) ? data.getInt(LINK) : child(data, k, k.remaining());
+			data = copyPage(id);
+		}
+		return id;
+	}
+
+	/**
+	 * Read the definition of a cell of a copied leaf (reading overflow pages with {@link #copyPage(int)}).
+	 */
+	synchronized String copiedValue(ByteBuffer data, int offset) throws IOException {
+		if (data.get(offset + 2) != OVERFLOW || channel != null)
+			return value(data, offset);
+
+		byte[] bytes = new byte[data.getInt(offset + 3)];
+		int id = data.getInt(offset + LEAF_CELL_HEADER + data.getChar(offset));
+		int pos = 0;
+		while (id != 0 && pos < bytes.length) {
+			ByteBuffer page = copyPage(id);
+			int n = Math.min(page.getInt(OVERFLOW_LENGTH), bytes.length - pos);
+			System.arraycopy(page.array(), OVERFLOW_HEADER, bytes, pos, n);
+			pos += n;
+			id = page.getInt(OVERFLOW_NEXT);
+		}
+		return new String(bytes, CHARSET);
+	}
+
+	/**
+	 * Walks the leaves from left to right, copying the entries of one leaf at a time.
+	 * If the tree changes between leaves, the next leaf is found again from the root (after the last key returned),
+	 * so no key is returned twice. The iteration may continue after the dictionary is closed (it then reads the file).
+	 */
+	class LeafIterator implements Iterator<Map.Entry<String, String>> {
+		final String from;
+		final String to;
+
+		/**
+		 * Whether to read the definitions (or just the keys).
+		 */
+		final boolean values;
+
+		/**
+		 * The entries of the current leaf that are in the range and come after the last key returned.
+		 */
+		final List<Map.Entry<String, String>> entries = new ArrayList<Map.Entry<String, String>>();
+		int next = 0;
+
+		String lastKey;
+		int nextLeaf = -1;
+		int expectedModCount;
+		boolean done;
+
+		LeafIterator(String from, String to, boolean values) {
+			KeyRange.check(from, to);
+			this.from = from;
+			this.to = to;
+			this.values = values;
+		}
+
+		@Override
+		public boolean hasNext() {
+			try {
+				while (next == entries.size() && !done)
+					readLeaf();
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+			return next < entries.size();
+		}
+
+		/**
+		 * Read the entries of the next leaf.
+		 */
+		private void readLeaf() throws IOException {
+			synchronized (BTreeDictionary.this) {
+				if (nextLeaf < 0 || expectedModCount != modCount) {
+					nextLeaf = leafFor((lastKey != null) ? lastKey : from);
+					expectedModCount = modCount;
+				}
+				ByteBuffer data = copyPage(nextLeaf);
+				entries.clear();
+				next = 0;
+				for (int i = 0; i < count(data); ++i) {
+					int offset = cellOffset(data, i);
+					String key = key(data, offset);
+					if ((lastKey != null) ? key.compareTo(lastKey) <= 0 : (from != null && key.compareTo(from) < 0))
+						continue;
+					if (to != null && key.compareTo(to) >= 0) {
+						done = true;
+						return;
+					}
+					String value = values ? copiedValue(data, offset) : null;
+					entries.add(new AbstractMap.SimpleImmutableEntry<String, String>(key, value));
+				}
+				nextLeaf = data.getInt(LINK);
+				done = (nextLeaf == 0);
+			}
+		}
+
+		@Override
+		public Map.Entry<String, String> next() {
+			if (!hasNext())
+				throw new NoSuchElementException();
+			Map.Entry<String, String> entry = entries.get(next++);
+			lastKey = entry.getKey();
+			return entry;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	/**
+	 * Return the set of keys in alphabetical order (see {@link LeafIterator}).
+	 */
+	public Set<String> keySet() {
+		return new AbstractSet<String>() {
+			@Override
+			public Iterator<String> iterator() {
+				final LeafIterator entries = new LeafIterator(null, null, false);
+				return new Iterator<String>() {
+					@Override public boolean hasNext() { return entries.hasNext(); }
+					@Override public String next() { return entries.next().getKey(); }
+					@Override public void remove() { throw new UnsupportedOperationException(); }
+				};
+			}
+
+			@Override
+			public int size() {
+				return BTreeDictionary.this.size();
+			}
+		};
+	}
+
+	/**
+	 * The leaves are read one at a time (see {@link LeafIterator}).
+	 */
+	@Override
+	public Iterator<Map.Entry<String, String>> scan(String from, String to) {
+		return new LeafIterator(from, to, true);
+	}
+
+	@Override
+	public Iterator<Map.Entry<String, String>> prefix(String prefix) {
+		return scan(prefix, KeyRange.prefixEnd(prefix));
+	}
+}
@@ -0,0 +1,222 @@
+package engine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+public class BTreeDictionaryTest extends PersistentDictionaryTest {
+
+	@Override
+	PersistentDictionary getDictionary(File file) throws IOException {
+		return new BTreeDictionary(file);
+	}
+
+	/**
+	 * The smallest buffer pool, so the tests below evict pages all the time.
+	 */
+	static final int SMALL_POOL = BTreeDictionary.MIN_POOL_PAGES;
+
+	/**
+	 * A key long enough that a few thousand of them split internal nodes, not just leaves.
+	 */
+	static String longKey(int i) {
+		StringBuilder key = new StringBuilder("key").append(i);
+		while (key.length() < 100)
+			key.append('-');
+		return key.toString();
+	}
+
+	/**
+	 * Check the entries of a B+tree dictionary, by lookups and in key order.
+	 */
+	void checkEntries(String msg, TreeMap<String, String> entries, BTreeDictionary dict) {
+		assertEquals(msg + ": size", entries.size(), dict.size());
+		for (Map.Entry<String, String> entry : entries.entrySet())
+			assertEquals(msg + ": definition of " + entry.getKey(), entry.getValue(), dict.get(entry.getKey()));
+		Iterator<String> keys = dict.keySet().iterator();
+		for (String key : entries.keySet()) {
+			assertTrue(msg + ": keys ran out before " + key, keys.hasNext());
+			assertEquals(msg + ": key order", key, keys.next());
+		}
+		assertTrue(msg + ": extra keys", !keys.hasNext());
+	}
+
+	/**
+	 * Thousands of keys split leaves and internal nodes, through a pool that must evict (and write) pages.
+	 */
+	@Test
+	public void splitsAndEviction() throws IOException {
+		dictFile.delete();
+		BTreeDictionary dict = new BTreeDictionary(dictFile, SMALL_POOL);
+		dict.open();
+		TreeMap<String, String> entries = new TreeMap<String, String>();
+		// Insert out of order, so splits happen all over the tree
+		for (int i = 0; i < 5000; ++i) {
+			int k = (i * 7919) % 5000;
+			entries.put(longKey(k), "definition " + k);
+			dict.put(longKey(k), "definition " + k);
+		}
+		assertTrue("Dirty pages should have been evicted", dict.getPageIO()[1] > 0);
+		checkEntries("Before closing", entries, dict);
+
+		// A get leaves the path from the root to the leaf: the root, internal nodes and a leaf
+		dict.get(longKey(0));
+		assertTrue("The tree should have internal nodes below the root (depth " + dict.depth + ")", dict.depth >= 3);
+		dict.close();
+
+		dict = new BTreeDictionary(dictFile, SMALL_POOL);
+		dict.open();
+		checkEntries("After reopening", entries, dict);
+		assertTrue("Pages should have been read on demand", dict.getPageIO()[0] > SMALL_POOL);
+		dict.close();
+	}
+
+	/**
+	 * Definitions longer than a cell are stored in overflow pages, whose pages are reused once freed.
+	 */
+	@Test
+	public void overflowPages() throws IOException {
+		dictFile.delete();
+		BTreeDictionary dict = new BTreeDictionary(dictFile, SMALL_POOL);
+		dict.open();
+		TreeMap<String, String> entries = new TreeMap<String, String>();
+		for (int i = 0; i < 20; ++i) {
+			StringBuilder value = new StringBuilder();
+			while (value.length() < 1000 * (i + 2))
+				value.append("overflow ").append(i).append(' ');
+			entries.put("long" + i, value.toString());
+			dict.put("long" + i, value.toString());
+		}
+		checkEntries("Long definitions", entries, dict);
+		dict.close();
+		dict.open();
+		checkEntries("Long definitions after reopening", entries, dict);
+
+		// Freed overflow pages go to the free list, and new ones are taken from it
+		int pageCount = dict.pageCount;
+		for (String key : entries.keySet())
+			dict.remove(key);
+		assertTrue("The overflow pages should have been freed", dict.freeList != 0);
+		for (Map.Entry<String, String> entry : entries.entrySet())
+			dict.put(entry.getKey(), entry.getValue());
+		assertEquals("The freed pages should have been reused", pageCount, dict.pageCount);
+		checkEntries("Long definitions after reinserting", entries, dict);
+
+		// A long definition replaced by a short one, and the other way around
+		entries.put("long0", "short");
+		dict.put("long0", "short");
+		entries.put("short", entries.get("long19"));
+		dict.put("short", entries.get("long19"));
+		dict.close();
+		dict.open();
+		checkEntries("Replaced definitions", entries, dict);
+		dict.close();
+	}
+
+	/**
+	 * Removing entries and inserting them again (leaves that were emptied are filled again).
+	 */
+	@Test
+	public void removeAndReinsert() throws IOException {
+		dictFile.delete();
+		BTreeDictionary dict = new BTreeDictionary(dictFile, SMALL_POOL);
+		dict.open();
+		TreeMap<String, String> entries = new TreeMap<String, String>();
+		for (int i = 0; i < 3000; ++i) {
+			entries.put(longKey(i), "definition " + i);
+			dict.put(longKey(i), "definition " + i);
+		}
+		for (int i = 0; i < 3000; ++i) {
+			if (i % 3 != 0 || i < 1000) {
+				assertEquals("definition " + i, dict.remove(longKey(i)));
+				entries.remove(longKey(i));
+			}
+		}
+		checkEntries("After removing", entries, dict);
+		dict.close();
+		dict.open();
+		checkEntries("After removing and reopening", entries, dict);
+
+		for (int i = 0; i < 3000; i += 2) {
+			entries.put(longKey(i), "again " + i);
+			dict.put(longKey(i), "again " + i);
+		}
+		checkEntries("After reinserting", entries, dict);
+		dict.close();
+		dict.open();
+		checkEntries("After reinserting and reopening", entries, dict);
+		dict.close();
+	}
+
+	/**
+	 * Changes that were never committed by a close() are rolled back from the journal when the dictionary
+	 * is opened again, even once evicted pages have overwritten the file.
+	 */
+	@Test
+	public void rollbackWithoutClose() throws IOException {
+		dictFile.delete();
+		BTreeDictionary dict = new BTreeDictionary(dictFile, SMALL_POOL);
+		dict.open();
+		TreeMap<String, String> entries = new TreeMap<String, String>();
+		for (int i = 0; i < 1000; ++i) {
+			entries.put(longKey(i), "definition " + i);
+			dict.put(longKey(i), "definition " + i);
+		}
+		dict.close();
+
+		// Reopening the same dictionary discards its changes
+		dict.open();
+		for (int i = 0; i < 2000; ++i)
+			dict.put(longKey(i), "changed " + i);
+		dict.remove(longKey(0));
+		assertTrue("Dirty pages should have been written to the file", dict.getPageIO()[1] > 0);
+		dict.open();
+		checkEntries("After reopening without closing", entries, dict);
+
+		// A new dictionary over the file of one that was never closed (as after a crash)
+		for (int i = 0; i < 2000; ++i)
+			dict.put(longKey(i), "crashed " + i);
+		assertTrue("Dirty pages should have been written to the file", dict.getPageIO()[1] > 0);
+		BTreeDictionary recovered = new BTreeDictionary(dictFile, SMALL_POOL);
+		recovered.open();
+		checkEntries("After a crash", entries, recovered);
+		recovered.close();
+		dict.pool.close();
+		dict.channel.close();
+	}
+
+	/**
+	 * Keys longer than {@link BTreeDictionary#MAX_KEY} bytes are rejected.
+	 */
+	@Test
+	public void maxKey() throws IOException {
+		StringBuilder key = new StringBuilder();
+		while (key.length() < BTreeDictionary.MAX_KEY)
+			key.append('k');
+		dict.put(key.toString(), "longest key");
+		assertEquals("longest key", dict.get(key.toString()));
+		try {
+			dict.put(key + "k", "too long");
+			fail("A key longer than MAX_KEY was accepted");
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+		// The limit is in (UTF-8) bytes, not characters
+		try {
+			dict.put(key.substring(2) + "\u00e9\u00e9", "too long");
+			fail("A key longer than MAX_KEY bytes was accepted");
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+		assertEquals(null, dict.get(key + "k"));
+	}
+
+}
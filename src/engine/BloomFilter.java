@@ -0,0 +1,164 @@
+package engine;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A Bloom filter over UTF-8 encoded keys, stored as an extension block of a SWPD file
+ * (see {@link SortedWordfileDictionary}).
+ *
+ * A filter answers "definitely not present" or "maybe present"; with the default 10 bits per key,
+ * about 1% of the keys that are not present get a "maybe". Keys are hashed once into 64 bits,
+ * and the bit positions are derived from the hash by double hashing.
+ *
+ * The block has the form:
+ * <pre>numHashes (32 bit big-endian) | bits...</pre>
+ * where bit i is bit (i % 8) of byte (i / 8).
+ */
+class BloomFilter {
+
+	/**
+	 * The tag of the filter's block in a SWPD file.
+	 */
+	static final byte[] TAG = { 'B', 'L', 'O', 'M' };
+
+	/**
+	 * The default size of the filter.
+	 */
+	static final int DEFAULT_BITS_PER_KEY = 10;
+
+	static final int MAX_HASHES = 30;
+
+	// FNV-1a parameters
+	static final long HASH_INIT = 0xcbf29ce484222325L;
+	static final long HASH_PRIME = 0x100000001b3L;
+
+	/**
+	 * The filter's bits.
+	 */
+	final ByteBuffer bits;
+
+	final long numBits;
+
+	final int numHashes;
+
+	/**
+	 * Create an empty filter.
+	 * @param numKeys the number of keys that will be added.
+	 * @param bitsPerKey the size of the filter.
+	 */
+	BloomFilter(int numKeys, int bitsPerKey) {
+		long bytes = Math.max(8, ((long) numKeys * bitsPerKey + 7) / 8);
+		bytes = Math.min(bytes, Integer.MAX_VALUE - 8);
+		bits = ByteBuffer.allocate((int) bytes);
+		numBits = bytes * 8;
+		// The optimal number of hashes is bitsPerKey * ln(2)
+		numHashes = (int) Math.max(1, Math.min(MAX_HASHES, Math.round(bitsPerKey * 0.69)));
+	}
+
+	private BloomFilter(ByteBuffer bits, int numHashes) {
+		this.bits = bits;
+		this.numBits = (long) bits.capacity() * 8;
+		this.numHashes = numHashes;
+	}
+
+	/**
+	 * Read a filter from its block.
+	 * @throws IOException if the block is malformed.
+	 */
+	static BloomFilter read(ByteBuffer block) throws IOException {
+		if (block.remaining() <= 4)
+			throw new IOException("Bloom filter block is too short");
+		int numHashes = block.getInt(block.position());
+		if (numHashes < 1 || numHashes > MAX_HASHES)
+			throw new IOException("Bloom filter block is corrupt (numHashes = " + numHashes + ")");
+
+		ByteBuffer bits = block.duplicate();
+		bits.position(block.position() + 4);
+		return new BloomFilter(bits.slice(), numHashes);
+	}
+
+	/**
+	 * Return the filter's block.
+	 */
+	ByteBuffer toBlock() {
+		ByteBuffer block = ByteBuffer.allocate(4 + bits.capacity());
+		block.putInt(numHashes);
+		block.put((ByteBuffer) bits.duplicate().clear());
+		block.flip();
+		return block;
+	}
+
+	/*======= Hashing ======*/
+
+	/**
+	 * Add a byte to a hash (start with {@link #HASH_INIT}, end with {@link #finish(long)}).
+	 */
+	static long update(long hash, byte b) {
+		return (hash ^ (b & 0xFF)) * HASH_PRIME;
+	}
+
+	/**
+	 * Spread the bits of a hash (the finalizer of MurmurHash3).
+	 */
+	static long finish(long hash) {
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+
+	/**
+	 * Hash a UTF-8 encoded key.
+	 */
+	static long hash(byte[] key, int off, int len) {
+		long hash = HASH_INIT;
+		for (int i = off; i < off + len; ++i)
+			hash = update(hash, key[i]);
+		return finish(hash);
+	}
+
+	/**
+	 * Hash a UTF-8 encoded key (the buffer's remaining bytes).
+	 */
+	static long hash(ByteBuffer key) {
+		long hash = HASH_INIT;
+		for (int i = key.position(); i < key.limit(); ++i)
+			hash = update(hash, key.get(i));
+		return finish(hash);
+	}
+
+	static long hash(String key) {
+		byte[] bytes = key.getBytes(SWPDFile.CHARSET);
+		return hash(bytes, 0, bytes.length);
+	}
+
+	/*======= The filter ======*/
+
+	void add(long hash) {
+		long delta = (hash >>> 33) | 1;
+		for (int i = 0; i < numHashes; ++i) {
+			long bit = (hash & Long.MAX_VALUE) % numBits;
+			int index = (int) (bit >>> 3);
+			bits.put(index, (byte) (bits.get(index) | (1 << (bit & 7))));
+			hash += delta;
+		}
+	}
+
+	/**
+	 * Return false if a key is definitely not in the filter.
+	 * @param hash the hash of the key.
+	 */
+	boolean mightContain(long hash) {
+		long delta = (hash >>> 33) | 1;
+		for (int i = 0; i < numHashes; ++i) {
+			long bit = (hash & Long.MAX_VALUE) % numBits;
+			if ((bits.get((int) (bit >>> 3)) & (1 << (bit & 7))) == 0)
+				return false;
+			hash += delta;
+		}
+		return true;
+	}
+}
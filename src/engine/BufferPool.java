@@ -0,0 +1,362 @@
+package engine;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A bounded cache of the fixed-size pages of a file, with clock (second chance) eviction.
+ *
+ * Pages are fetched <i>pinned</i>, and must be released when the caller is done with them; only unpinned
+ * pages are evicted. Modified pages are marked dirty, and are written back when they are evicted or when
+ * the pool is committed.
+ *
+ * Writing pages back in place would make it impossible to undo the changes made since the last commit,
+ * so before a page that existed at the last commit is overwritten for the first time, its original contents
+ * are saved in a <i>rollback journal</i>. {@link #commit(int)} writes the remaining dirty pages and deletes
+ * the journal; {@link #rollback(FileChannel, File, int)} restores the file from the journal (after a crash,
+ * or to discard the changes). The journal has the form:
+ * <table>
+ * <tr><th>Index</th><th>Length (bytes)</th><th>Desciption</th></tr>
+ * <tr><td>0</td><td>4</td><td>SWPJ [constant "magic" to allow easy recognition]</td></tr>
+ * <tr><td>4</td><td>8</td><td>the length of the file at the last commit</td></tr>
+ * <tr><td>12</td><td>??</td><td>Pages: a page number (32 bit big-endian integer) and the page's original contents</td></tr>
+ * </table>
+ * An incomplete page at the end of the journal is ignored: the journal is forced to disk before any page
+ * it holds is overwritten.
+ */
+class BufferPool {
+
+	static final byte[] JOURNAL_MAGIC = { 'S', 'W', 'P', 'J' };
+
+	static final int JOURNAL_HEADER = 4 + 8;
+
+	/**
+	 * A page in the pool.
+	 */
+	static class Page {
+		int id;
+		final ByteBuffer data;
+
+		boolean dirty;
+
+		/**
+		 * The clock's "second chance" bit: set when the page is used, cleared when the clock passes it.
+		 */
+		boolean referenced;
+
+		int pins;
+
+		Page(int pageSize) {
+			data = ByteBuffer.allocate(pageSize);
+		}
+
+		void markDirty() {
+			dirty = true;
+		}
+	}
+
+	final FileChannel file;
+
+	final File journalFile;
+
+	final int pageSize;
+
+	/**
+	 * The frames of the pool (null until first used), and the clock's hand.
+	 */
+	final Page[] frames;
+	int hand;
+
+	/**
+	 * The pages in the pool, by number.
+	 */
+	final Map<Integer, Page> pages = new HashMap<Integer, Page>();
+
+	/**
+	 * The number of pages in the file at the last commit: only these pages need to be journaled.
+	 */
+	int committedPages;
+
+	/**
+	 * The pages that have been journaled since the last commit.
+	 */
+	final BitSet journaled = new BitSet();
+
+	/**
+	 * The open journal (null if nothing was journaled since the last commit).
+	 */
+	FileChannel journal;
+
+	/**
+	 * The number of pages read from and written to the file (for measuring).
+	 */
+	long reads;
+	long writes;
+
+	/**
+	 * A constructor.
+	 * @param file the file (which must have been rolled back, see {@link #rollback(FileChannel, File, int)}).
+	 * @param journalFile the file to hold the journal.
+	 * @param pageSize the size of a page.
+	 * @param capacity the number of pages in the pool.
+	 */
+	BufferPool(FileChannel file, File journalFile, int pageSize, int capacity) throws IOException {
+		this.file = file;
+		this.journalFile = journalFile;
+		this.pageSize = pageSize;
+		this.frames = new Page[capacity];
+		this.committedPages = (int) (file.size() / pageSize);
+	}
+
+	/**
+	 * Return a page of the file, pinned.
+	 */
+	Page fetch(int id) throws IOException {
+		Page page = pages.get(id);
+		if (page == null) {
+			page = frame(id);
+			ByteBuffer data = page.data;
+			data.clear();
+			long position = (long) id * pageSize;
+			while (data.hasRemaining()) {
+				if (file.read(data, position + data.position()) < 0)
+					break;
+			}
+			// A page beyond the end of the file reads as zeros
+			while (data.hasRemaining())
+				data.put((byte) 0);
+			++reads;
+		}
+		page.referenced = true;
+		++page.pins;
+		return page;
+	}
+
+	/**
+	 * Return a new page (filled with zeros, and dirty), pinned. Its previous contents aren't read.
+	 */
+	Page allocate(int id) throws IOException {
+		Page page = pages.get(id);
+		if (page == null)
+			page = frame(id);
+		page.data.clear();
+		while (page.data.hasRemaining())
+			page.data.put((byte) 0);
+		page.referenced = true;
+		page.dirty = true;
+		++page.pins;
+		return page;
+	}
+
+	/**
+	 * Unpin a page.
+	 */
+	void release(Page page) {
+		--page.pins;
+	}
+
+	/**
+	 * Drop the pages from the given number on, without writing them (their contents are no longer needed).
+	 */
+	void invalidate(int fromId) {
+		for (int i = 0; i < frames.length; ++i) {
+			Page page = frames[i];
+			if (page != null && page.id >= fromId && page.id >= 0) {
+				if (page.pins > 0)
+					throw new IllegalStateException("Invalidating a pinned page");
+				pages.remove(page.id);
+				page.id = -1;
+				page.dirty = false;
+			}
+		}
+	}
+
+	/**
+	 * Find a frame for a page (evicting another page if needed), and add it to the pool.
+	 */
+	private Page frame(int id) throws IOException {
+		Page page = null;
+		for (int scanned = 0; scanned < 2 * frames.length && page == null; ++scanned) {
+			Page candidate = frames[hand];
+			if (candidate == null) {
+				candidate = frames[hand] = new Page(pageSize);
+				candidate.id = -1;
+			}
+			if (candidate.pins == 0) {
+				if (candidate.referenced)
+					candidate.referenced = false;
+				else
+					page = candidate;
+			}
+			hand = (hand + 1) % frames.length;
+		}
+		if (page == null)
+			throw new IllegalStateException("All the pages in the buffer pool are pinned");
+
+		if (page.id >= 0) {
+			if (page.dirty) {
+				List<Page> evicted = new ArrayList<Page>(1);
+				evicted.add(page);
+				writeBack(evicted);
+			}
+			pages.remove(page.id);
+		}
+		page.id = id;
+		page.dirty = false;
+		pages.put(id, page);
+		return page;
+	}
+
+	/**
+	 * Write dirty pages to the file (journaling them first if needed).
+	 */
+	private void writeBack(List<Page> dirty) throws IOException {
+		journal(dirty);
+		for (Page page : dirty) {
+			ByteBuffer data = page.data.duplicate();
+			data.clear();
+			long position = (long) page.id * pageSize;
+			while (data.hasRemaining())
+				file.write(data, position + data.position());
+			page.dirty = false;
+			++writes;
+		}
+	}
+
+	/**
+	 * Save the original contents of the pages that existed at the last commit, and haven't been saved yet.
+	 */
+	private void journal(List<Page> dirty) throws IOException {
+		ByteBuffer originals = null;
+		for (Page page : dirty) {
+			if (page.id >= committedPages || journaled.get(page.id))
+				continue;
+			if (originals == null)
+				originals = ByteBuffer.allocate(dirty.size() * (4 + pageSize));
+			originals.putInt(page.id);
+			int start = originals.position();
+			originals.limit(start + pageSize);
+			while (originals.hasRemaining()) {
+				if (file.read(originals, (long) page.id * pageSize + originals.position() - start) < 0)
+					break;
+			}
+			while (originals.hasRemaining())
+				originals.put((byte) 0);
+			originals.limit(originals.capacity());
+			journaled.set(page.id);
+		}
+		if (originals == null)
+			return;
+
+		if (journal == null) {
+			journal = new RandomAccessFile(journalFile, "rw").getChannel();
+			ByteBuffer header = ByteBuffer.allocate(JOURNAL_HEADER);
+			header.put(JOURNAL_MAGIC);
+			header.putLong((long) committedPages * pageSize);
+			header.flip();
+			journal.truncate(0);
+			while (header.hasRemaining())
+				journal.write(header, header.position());
+		}
+		originals.flip();
+		long position = journal.size();
+		while (originals.hasRemaining())
+			journal.write(originals, position + originals.position());
+		journal.force(false);
+	}
+
+	/**
+	 * Make the pool's contents the committed contents of the file: write all the dirty pages, cut the file
+	 * to the given number of pages, and delete the journal.
+	 */
+	void commit(int numPages) throws IOException {
+		List<Page> dirty = new ArrayList<Page>();
+		for (Page page : frames) {
+			if (page != null && page.id >= 0 && page.dirty) {
+				if (page.id < numPages)
+					dirty.add(page);
+				else
+					page.dirty = false;
+			}
+		}
+		writeBack(dirty);
+		file.force(false);
+
+		// Deleting the journal is the commit point
+		if (journal != null) {
+			journal.close();
+			journal = null;
+		}
+		journalFile.delete();
+		journaled.clear();
+
+		// Pages beyond the end weren't journaled, so they can only be cut off once the journal is gone
+		if (file.size() > (long) numPages * pageSize)
+			file.truncate((long) numPages * pageSize);
+		committedPages = numPages;
+	}
+
+	/**
+	 * Close the journal, without committing (the changes are rolled back when the file is opened again).
+	 */
+	void close() throws IOException {
+		if (journal != null) {
+			journal.close();
+			journal = null;
+		}
+	}
+
+	/**
+	 * Restore a file to its contents at the last commit, from its journal (if there is one).
+	 */
+	static void rollback(FileChannel file, File journalFile, int pageSize) throws IOException {
+		if (!journalFile.exists())
+			return;
+		RandomAccessFile journal = new RandomAccessFile(journalFile, "r");
+		try {
+			FileChannel channel = journal.getChannel();
+			ByteBuffer header = ByteBuffer.allocate(JOURNAL_HEADER);
+			while (header.hasRemaining()) {
+				if (channel.read(header) < 0)
+					break;
+			}
+			if (!header.hasRemaining()) {
+				header.flip();
+				byte[] magic = new byte[JOURNAL_MAGIC.length];
+				header.get(magic);
+				if (!Arrays.equals(magic, JOURNAL_MAGIC))
+					throw new IOException(journalFile + " is not a rollback journal");
+				long committedLength = header.getLong();
+
+				ByteBuffer entry = ByteBuffer.allocate(4 + pageSize);
+				while (true) {
+					entry.clear();
+					while (entry.hasRemaining()) {
+						if (channel.read(entry) < 0)
+							break;
+					}
+					if (entry.hasRemaining())
+						break;
+					entry.flip();
+					long position = (long) entry.getInt() * pageSize;
+					while (entry.hasRemaining())
+						file.write(entry, position + entry.position() - 4);
+				}
+				file.truncate(committedLength);
+				file.force(false);
+			}
+		} finally {
+			journal.close();
+		}
+		journalFile.delete();
+	}
+}
@@ -0,0 +1,624 @@
+package engine;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.AbstractSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A read-through cache in front of another {@link PersistentDictionary}.
+ *
+ * Lookups ({@link #get(Object)} and {@link #containsKey(Object)}) are answered from the cache when possible;
+ * on a miss, the backing dictionary is consulted and the result (including the fact that a key is absent)
+ * is cached. Updates are written through to the backing dictionary, and update entries that are already cached.
+ *
+ * The cache is bounded by a number of entries, by an (estimated) number of bytes, or both, and
+ * evicts entries according to a {@link Policy}.
+ */
+public class CachingDictionary implements PersistentDictionary {
+
+	/**
+	 * Eviction policies.
+	 */
+	public enum Policy {
+		/**
+		 * Evict the least recently used entry.
+		 */
+		LRU,
+		/**
+		 * Evict the least frequently used entry (the least recently used among those with the same count).
+		 */
+		LFU,
+		/**
+		 * W-TinyLFU: new entries go to a small LRU "window"; an entry evicted from the window is only admitted to
+		 * the main LRU cache if it has been used more often (according to an approximate, aging frequency sketch)
+		 * than the entry it would replace. This keeps one-off lookups from flushing out popular entries.
+		 */
+		TINY_LFU
+	}
+
+	/**
+	 * Cached values for keys that are not in the dictionary, and for null definitions
+	 * (compared by reference).
+	 */
+	static final String ABSENT = new String("<absent>");
+	static final String NULL = new String("<null>");
+
+	/**
+	 * The dictionary being cached.
+	 */
+	final PersistentDictionary backing;
+
+	/**
+	 * The cache.
+	 */
+	final Cache cache;
+
+	/**
+	 * Lookup statistics.
+	 */
+	long hits;
+	long misses;
+
+	/**
+	 * A constructor.
+	 * @param backing the dictionary to cache.
+	 * @param policy the eviction policy.
+	 * @param maxEntries the maximal number of cached entries (0 for no limit).
+	 * @param maxBytes the maximal (estimated) size of the cached entries, in bytes (0 for no limit).
+	 */
+	public CachingDictionary(PersistentDictionary backing, Policy policy, int maxEntries, long maxBytes) {
+		if (maxEntries <= 0 && maxBytes <= 0)
+			throw new IllegalArgumentException("The cache must be bounded by entries or by bytes");
+
+		this.backing = backing;
+		switch (policy) {
+		case LRU:
+			cache = new LruCache(maxEntries, maxBytes);
+			break;
+		case LFU:
+			cache = new LfuCache(maxEntries, maxBytes);
+			break;
+		default:
+			cache = new TinyLfuCache(maxEntries, maxBytes);
+			break;
+		}
+	}
+
+	/**
+	 * Return the number of lookups answered from the cache.
+	 */
+	public long getHits() {
+		return hits;
+	}
+
+	/**
+	 * Return the number of lookups that went to the backing dictionary.
+	 */
+	public long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * Return the number of cached entries.
+	 */
+	public int getCachedEntries() {
+		return cache.count;
+	}
+
+	@Override
+	public void open() throws IOException {
+		cache.clear();
+		backing.open();
+	}
+
+	@Override
+	public void close() throws IOException {
+		cache.clear();
+		backing.close();
+	}
+
+	/**
+	 * Look up a key, through the cache.
+	 * @return the definition, {@link #NULL} or {@link #ABSENT}.
+	 */
+	private String lookup(Object key) {
+		if (key == null)
+			throw new NullPointerException();
+		String k = (String) key;
+
+		String value = cache.get(k);
+		if (value != null) {
+			++hits;
+			return value;
+		}
+
+		++misses;
+		value = backing.get(k);
+		if (value == null)
+			value = backing.containsKey(k) ? NULL : ABSENT;
+		cache.put(k, value);
+		return value;
+	}
+
+	@Override
+	public String get(Object key) {
+		String value = lookup(key);
+		return (value == NULL || value == ABSENT) ? null : value;
+	}
+
+	/**
+	 * A cached definition is encoded; on a miss, the backing dictionary's bytes are returned
+	 * (and not cached, since caching them would mean decoding them).
+	 */
+	@Override
+	public ByteBuffer getBytes(Object key) {
+		if (key == null)
+			throw new NullPointerException();
+		String k = (String) key;
+
+		String value = cache.get(k);
+		if (value != null) {
+			++hits;
+			return (value == NULL || value == ABSENT) ? null : Utf8.encode(value);
+		}
+
+		++misses;
+		return backing.getBytes(k);
+	}
+
+	/**
+	 * The cached definitions are kept as Strings.
+	 */
+	@Override
+	public boolean storesBytes() {
+		return false;
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return lookup(key) != ABSENT;
+	}
+
+	@Override
+	public String put(String key, String value) {
+		String old = backing.put(key, value);
+		cache.update(key, value == null ? NULL : value);
+		return old;
+	}
+
+	@Override
+	public String remove(Object key) {
+		String old = backing.remove(key);
+		cache.update((String) key, ABSENT);
+		return old;
+	}
+
+	@Override
+	public int size() {
+		return backing.size();
+	}
+
+	@Override
+	public void clear() {
+		cache.clear();
+		backing.clear();
+	}
+
+	@Override
+	public String update(String key, Remapping remapping) {
+		String value = backing.update(key, remapping);
+		cache.update(key, value == null ? ABSENT : value);
+		return value;
+	}
+
+	/**
+	 * Scans go straight to the backing dictionary: the entries they read are not cached, so a long scan
+	 * doesn't evict the entries that lookups use.
+	 */
+	@Override
+	public Iterator<Map.Entry<String, String>> scan(String from, String to) {
+		return backing.scan(from, to);
+	}
+
+	@Override
+	public Iterator<Map.Entry<String, String>> prefix(String prefix) {
+		return backing.prefix(prefix);
+	}
+
+	/**
+	 * Return the set of keys in alphabetical order (a full {@link #scan(String, String)} of the backing dictionary,
+	 * so the keys are not cached either).
+	 */
+	public Set<String> keySet() {
+		return new AbstractSet<String>() {
+			@Override
+			public Iterator<String> iterator() {
+				final Iterator<Map.Entry<String, String>> entries = backing.scan(null, null);
+				return new Iterator<String>() {
+					@Override public boolean hasNext() { return entries.hasNext(); }
+					@Override public String next() { return entries.next().getKey(); }
+					@Override public void remove() { throw new UnsupportedOperationException(); }
+				};
+			}
+
+			@Override
+			public int size() {
+				return backing.size();
+			}
+		};
+	}
+
+	/*======= Cache implementations ======*/
+
+	/**
+	 * Estimate the memory used by a cached entry.
+	 */
+	static long weight(String key, String value) {
+		return 64 + 2L * (key.length() + value.length());
+	}
+
+	/**
+	 * A bounded cache.
+	 */
+	abstract static class Cache {
+		final int maxEntries;
+		final long maxBytes;
+
+		// The current number of entries and their weight
+		int count;
+		long bytes;
+
+		Cache(int maxEntries, long maxBytes) {
+			this.maxEntries = maxEntries;
+			this.maxBytes = maxBytes;
+		}
+
+		/**
+		 * Is there room for another entry of the given weight?
+		 */
+		boolean fits(int entries, long weight) {
+			return (maxEntries <= 0 || count + entries <= maxEntries) && (maxBytes <= 0 || bytes + weight <= maxBytes);
+		}
+
+		/**
+		 * Can an entry of the given weight be cached at all?
+		 */
+		boolean cacheable(long weight) {
+			return maxBytes <= 0 || weight <= maxBytes;
+		}
+
+		/**
+		 * Return the cached value of a key (and record the access), or null if it is not cached.
+		 */
+		abstract String get(String key);
+
+		/**
+		 * Cache a value that is not in the cache (evicting entries as needed).
+		 */
+		abstract void put(String key, String value);
+
+		/**
+		 * Replace the value of a key, if it is cached.
+		 */
+		abstract void update(String key, String value);
+
+		abstract void clear();
+	}
+
+	/**
+	 * A least-recently-used cache.
+	 */
+	static class LruCache extends Cache {
+		final LinkedHashMap<String, String> map = new LinkedHashMap<String, String>(16, 0.75f, true);
+
+		LruCache(int maxEntries, long maxBytes) {
+			super(maxEntries, maxBytes);
+		}
+
+		@Override
+		String get(String key) {
+			return map.get(key);
+		}
+
+		@Override
+		void put(String key, String value) {
+			long weight = weight(key, value);
+			if (!cacheable(weight))
+				return;
+
+			Iterator<Map.Entry<String, String>> eldest = map.entrySet().iterator();
+			while (!fits(1, weight)) {
+				Map.Entry<String, String> entry = eldest.next();
+				bytes -= weight(entry.getKey(), entry.getValue());
+				--count;
+				eldest.remove();
+			}
+			map.put(key, value);
+			bytes += weight;
+			++count;
+		}
+
+		@Override
+		void update(String key, String value) {
+			String old = map.get(key);
+			if (old != null) {
+				map.remove(key);
+				bytes -= weight(key, old);
+				--count;
+				put(key, value);
+			}
+		}
+
+		@Override
+		void clear() {
+			map.clear();
+			count = 0;
+			bytes = 0;
+		}
+	}
+
+	/**
+	 * A least-frequently-used cache, with O(1) operations: entries are kept in buckets
+	 * by use count, and each bucket is kept in LRU order.
+	 */
+	static class LfuCache extends Cache {
+		static class Node {
+			String value;
+			int uses;
+
+			Node(String value) {
+				this.value = value;
+				this.uses = 1;
+			}
+		}
+
+		final HashMap<String, Node> map = new HashMap<String, Node>();
+		final HashMap<Integer, LinkedHashSet<String>> buckets = new HashMap<Integer, LinkedHashSet<String>>();
+		int minUses;
+
+		LfuCache(int maxEntries, long maxBytes) {
+			super(maxEntries, maxBytes);
+		}
+
+		private void addToBucket(String key, int uses) {
+			LinkedHashSet<String> bucket = buckets.get(uses);
+			if (bucket == null) {
+				bucket = new LinkedHashSet<String>();
+				buckets.put(uses, bucket);
+			}
+			bucket.add(key);
+		}
+
+		private void removeFromBucket(String key, int uses) {
+			LinkedHashSet<String> bucket = buckets.get(uses);
+			bucket.remove(key);
+			if (bucket.isEmpty()) {
+				buckets.remove(uses);
+				if (minUses == uses)
+					++minUses;
+			}
+		}
+
+		@Override
+		String get(String key) {
+			Node node = map.get(key);
+			if (node == null)
+				return null;
+			removeFromBucket(key, node.uses);
+			++node.uses;
+			addToBucket(key, node.uses);
+			return node.value;
+		}
+
+		/**
+		 * Evict entries until there is room for another entry of the given weight.
+		 */
+		private void makeRoom(long weight) {
+			while (!fits(1, weight)) {
+				// Evict the least recently used entry among the least frequently used ones
+				while (!buckets.containsKey(minUses))
+					++minUses;
+				String victim = buckets.get(minUses).iterator().next();
+				Node node = map.remove(victim);
+				removeFromBucket(victim, node.uses);
+				bytes -= weight(victim, node.value);
+				--count;
+			}
+		}
+
+		private void insert(String key, Node node, long weight) {
+			map.put(key, node);
+			addToBucket(key, node.uses);
+			minUses = Math.min(minUses, node.uses);
+			bytes += weight;
+			++count;
+		}
+
+		@Override
+		void put(String key, String value) {
+			long weight = weight(key, value);
+			if (!cacheable(weight))
+				return;
+
+			makeRoom(weight);
+			insert(key, new Node(value), weight);
+		}
+
+		@Override
+		void update(String key, String value) {
+			Node node = map.remove(key);
+			if (node == null)
+				return;
+			removeFromBucket(key, node.uses);
+			bytes -= weight(key, node.value);
+			--count;
+
+			// Reinsert it with its use count (the new value may be bigger)
+			long weight = weight(key, value);
+			if (!cacheable(weight))
+				return;
+			makeRoom(weight);
+			node.value = value;
+			insert(key, node, weight);
+		}
+
+		@Override
+		void clear() {
+			map.clear();
+			buckets.clear();
+			count = 0;
+			bytes = 0;
+			minUses = 1;
+		}
+	}
+
+	/**
+	 * A W-TinyLFU cache (see {@link Policy#TINY_LFU}).
+	 * The window holds about 1% of the capacity; the main cache holds the rest.
+	 */
+	static class TinyLfuCache extends Cache {
+		final LruCache window;
+		final LruCache main;
+		final FrequencySketch sketch;
+
+		TinyLfuCache(int maxEntries, long maxBytes) {
+			super(maxEntries, maxBytes);
+			int windowEntries = (maxEntries <= 0) ? 0 : Math.max(1, maxEntries / 100);
+			long windowBytes = (maxBytes <= 0) ? 0 : Math.max(1, maxBytes / 100);
+			window = new LruCache(windowEntries, windowBytes);
+			main = new LruCache((maxEntries <= 0) ? 0 : Math.max(1, maxEntries - windowEntries),
+					(maxBytes <= 0) ? 0 : Math.max(1, maxBytes - windowBytes));
+
+			// Size the sketch for the expected number of entries
+			long expected = (maxEntries > 0) ? maxEntries : maxBytes / 128;
+			sketch = new FrequencySketch((int) Math.min(Math.max(expected, 16), 1 << 24));
+		}
+
+		@Override
+		String get(String key) {
+			sketch.increment(key);
+			String value = window.get(key);
+			if (value == null)
+				value = main.get(key);
+			return value;
+		}
+
+		@Override
+		void put(String key, String value) {
+			long weight = weight(key, value);
+			if (!main.cacheable(weight))
+				return;
+
+			if (!window.cacheable(weight)) {
+				// Too big for the window; compete for admission directly
+				admit(key, value, weight);
+			} else {
+				// Make room in the window; the entries that leave it compete for admission to the main cache.
+				Iterator<Map.Entry<String, String>> eldest = window.map.entrySet().iterator();
+				while (!window.fits(1, weight)) {
+					Map.Entry<String, String> candidate = eldest.next();
+					eldest.remove();
+					window.bytes -= weight(candidate.getKey(), candidate.getValue());
+					--window.count;
+					admit(candidate.getKey(), candidate.getValue(), weight(candidate.getKey(), candidate.getValue()));
+				}
+				window.put(key, value);
+			}
+			updateTotals();
+		}
+
+		/**
+		 * Admit a candidate to the main cache if it is used more often than the entries it would evict.
+		 */
+		private void admit(String key, String value, long weight) {
+			int candidateFrequency = sketch.frequency(key);
+			Iterator<Map.Entry<String, String>> eldest = main.map.entrySet().iterator();
+			while (!main.fits(1, weight)) {
+				Map.Entry<String, String> victim = eldest.next();
+				if (sketch.frequency(victim.getKey()) >= candidateFrequency)
+					return; // The candidate is rejected
+				eldest.remove();
+				main.bytes -= weight(victim.getKey(), victim.getValue());
+				--main.count;
+			}
+			main.put(key, value);
+		}
+
+		@Override
+		void update(String key, String value) {
+			window.update(key, value);
+			main.update(key, value);
+			updateTotals();
+		}
+
+		@Override
+		void clear() {
+			window.clear();
+			main.clear();
+			updateTotals();
+		}
+
+		private void updateTotals() {
+			count = window.count + main.count;
+			bytes = window.bytes + main.bytes;
+		}
+	}
+
+	/**
+	 * An approximate frequency counter (a count-min sketch with 4 bit counters).
+	 * The counters are halved periodically, so old popularity fades.
+	 */
+	static class FrequencySketch {
+		static final int DEPTH = 4;
+		static final int MAX_COUNT = 15;
+		static final int[] SEEDS = { 0x97cb3127, 0xc2b2ae35, 0x85ebca6b, 0x27d4eb2f };
+
+		final byte[][] counters;
+		final int mask;
+		final int sampleSize;
+		int samples;
+
+		FrequencySketch(int expectedEntries) {
+			int width = Integer.highestOneBit(Math.max(expectedEntries, 16) * 2 - 1);
+			counters = new byte[DEPTH][width];
+			mask = width - 1;
+			sampleSize = 10 * width;
+		}
+
+		private int index(int hash, int row) {
+			int h = (hash ^ SEEDS[row]) * 0x9E3779B9;
+			return (h ^ (h >>> 16)) & mask;
+		}
+
+		void increment(String key) {
+			int hash = key.hashCode();
+			for (int row = 0; row < DEPTH; ++row) {
+				int i = index(hash, row);
+				if (counters[row][i] < MAX_COUNT)
+					++counters[row][i];
+			}
+
+			if (++samples >= sampleSize) {
+				// Age all the counters
+				for (byte[] row : counters)
+					for (int i = 0; i < row.length; ++i)
+						row[i] >>= 1;
+				samples /= 2;
+			}
+		}
+
+		int frequency(String key) {
+			int hash = key.hashCode();
+			int min = MAX_COUNT;
+			for (int row = 0; row < DEPTH; ++row)
+				min = Math.min(min, counters[row][index(hash, row)]);
+			return min;
+		}
+	}
+}
@@ -0,0 +1,149 @@
+package engine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Test;
+
+public class CachingDictionaryTest extends PersistentDictionaryTest {
+
+	@Override
+	PersistentDictionary getDictionary(File file) throws IOException {
+		return new CachingDictionary(new SortedWordfileDictionary(file), CachingDictionary.Policy.TINY_LFU, 4, 0);
+	}
+
+	/**
+	 * Replace the test dictionary with a cache of the given kind, over a dictionary of 1000 words.
+	 */
+	CachingDictionary cache(CachingDictionary.Policy policy, int maxEntries, long maxBytes) throws IOException {
+		dict.close();
+		dictFile.delete();
+		CachingDictionary cache = new CachingDictionary(new SortedWordfileDictionary(dictFile), policy, maxEntries,
+				maxBytes);
+		dict = cache;
+		cache.open();
+		for (int i = 0; i < 1000; ++i)
+			cache.put("word" + i, "definition " + i);
+		return cache;
+	}
+
+	/**
+	 * Look up keys, and return the number of lookups that were answered from the cache.
+	 */
+	static long hits(CachingDictionary cache, String... keys) {
+		long hits = cache.getHits();
+		for (String key : keys)
+			cache.get(key);
+		return cache.getHits() - hits;
+	}
+
+	@Test
+	public void hitsAndMisses() throws IOException {
+		CachingDictionary cache = cache(CachingDictionary.Policy.LRU, 10, 0);
+		assertEquals(0, cache.getHits());
+		assertEquals(0, cache.getMisses());
+
+		assertEquals("definition 1", cache.get("word1"));
+		assertEquals(0, cache.getHits());
+		assertEquals(1, cache.getMisses());
+		assertEquals("definition 1", cache.get("word1"));
+		assertTrue(cache.containsKey("word1"));
+		assertEquals(2, cache.getHits());
+		assertEquals(1, cache.getMisses());
+
+		// Absent keys are cached too
+		assertEquals(null, cache.get("missing"));
+		assertTrue(!cache.containsKey("missing"));
+		assertEquals(3, cache.getHits());
+		assertEquals(2, cache.getMisses());
+
+		// Updates are written through, and update the cached entry
+		cache.put("word1", "new definition");
+		assertEquals("new definition", cache.get("word1"));
+		cache.remove("word1");
+		assertEquals(null, cache.get("word1"));
+		assertEquals(5, cache.getHits());
+		assertEquals(2, cache.getMisses());
+		assertEquals(2, cache.getCachedEntries());
+	}
+
+	@Test
+	public void lruEviction() throws IOException {
+		CachingDictionary cache = cache(CachingDictionary.Policy.LRU, 3, 0);
+		assertEquals(0, hits(cache, "word1", "word2", "word3"));
+		assertEquals(1, hits(cache, "word1"));
+		// word2 is the least recently used
+		assertEquals(0, hits(cache, "word4"));
+		assertEquals(3, cache.getCachedEntries());
+		assertEquals(2, hits(cache, "word1", "word3"));
+		assertEquals(0, hits(cache, "word2"));
+	}
+
+	@Test
+	public void lfuEviction() throws IOException {
+		CachingDictionary cache = cache(CachingDictionary.Policy.LFU, 3, 0);
+		assertEquals(0, hits(cache, "word1", "word2", "word3"));
+		assertEquals(3, hits(cache, "word1", "word1", "word2"));
+		// word3 is the least frequently used (though word2 and word1 were used before it)
+		assertEquals(0, hits(cache, "word4"));
+		assertEquals(3, cache.getCachedEntries());
+		assertEquals(2, hits(cache, "word1", "word2"));
+		assertEquals(0, hits(cache, "word3"));
+		// Among the entries used least often, the least recently used one is evicted (word4)
+		assertEquals(1, hits(cache, "word1", "word4"));
+	}
+
+	/**
+	 * One-off lookups flush the popular entries out of an LRU cache, but not out of a TinyLFU one.
+	 */
+	@Test
+	public void tinyLfuResistsScans() throws IOException {
+		for (CachingDictionary.Policy policy : new CachingDictionary.Policy[] { CachingDictionary.Policy.LRU,
+				CachingDictionary.Policy.TINY_LFU }) {
+			CachingDictionary cache = cache(policy, 100, 0);
+			String[] popular = new String[50];
+			for (int i = 0; i < popular.length; ++i)
+				popular[i] = "word" + i;
+			for (int round = 0; round < 5; ++round)
+				hits(cache, popular);
+
+			for (int i = 100; i < 400; ++i)
+				cache.get("word" + i);
+
+			long hits = hits(cache, popular);
+			if (policy == CachingDictionary.Policy.LRU)
+				assertEquals("LRU hits after the scan", 0, hits);
+			else
+				assertTrue("Only " + hits + " TinyLFU hits after the scan", hits >= 40);
+		}
+	}
+
+	/**
+	 * The (estimated) size of the cached entries is bounded; entries bigger than the bound are not cached.
+	 */
+	@Test
+	public void byteBound() throws IOException {
+		long maxBytes = 10 * CachingDictionary.weight("word100", "definition 100");
+		for (CachingDictionary.Policy policy : CachingDictionary.Policy.values()) {
+			CachingDictionary cache = cache(policy, 0, maxBytes);
+			for (int i = 0; i < 1000; ++i) {
+				cache.get("word" + i);
+				cache.get("word" + (i / 2));
+				assertTrue(policy + ": " + cache.cache.bytes + " bytes cached", cache.cache.bytes <= maxBytes);
+			}
+			assertTrue(policy + ": " + cache.getCachedEntries() + " entries cached", cache.getCachedEntries() <= 10);
+
+			StringBuilder big = new StringBuilder();
+			while (CachingDictionary.weight("big", big.toString()) <= maxBytes)
+				big.append("a long definition ");
+			cache.put("big", big.toString());
+			assertEquals(big.toString(), cache.get("big"));
+			assertEquals(0, hits(cache, "big"));
+			assertTrue(cache.cache.bytes <= maxBytes);
+		}
+	}
+
+}
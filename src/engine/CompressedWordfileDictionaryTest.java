@@ -0,0 +1,79 @@
+package engine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+public class CompressedWordfileDictionaryTest extends PersistentDictionaryTest {
+
+	@Override
+	PersistentDictionary getDictionary(File file) throws IOException {
+		return new SortedWordfileDictionary(file, 2, BloomFilter.DEFAULT_BITS_PER_KEY, FenceIndex.DEFAULT_INTERVAL, true);
+	}
+
+	/**
+	 * Enough long definitions to fill many compressed value blocks: they read back, the file is smaller than
+	 * an uncompressed one, and inflated blocks are cached (up to {@link SWPDFileV2#BLOCK_CACHE_SIZE} of them).
+	 */
+	@Test
+	public void compressedBlocks() throws Exception {
+		TreeMap<String, String> entries = new TreeMap<String, String>();
+		for (int i = 0; i < 2000; ++i) {
+			StringBuilder def = new StringBuilder();
+			while (def.length() < 400)
+				def.append("definition number ").append(i).append(" of word ").append(i % 97).append(':');
+			entries.put("word" + i, def.toString());
+		}
+
+		File plainFile = File.createTempFile("DictTest", ".tmp");
+		try {
+			plainFile.delete();
+			SortedWordfileDictionary plain = new SortedWordfileDictionary(plainFile, 2, BloomFilter.DEFAULT_BITS_PER_KEY,
+					FenceIndex.DEFAULT_INTERVAL, false);
+			plain.open();
+			for (String key : entries.keySet())
+				plain.put(key, entries.get(key));
+			plain.close();
+
+			for (String key : entries.keySet())
+				dict.put(key, entries.get(key));
+			fillMap(entries, testWords, testDefs);
+			dict.close();
+			assertTrue("The compressed file (" + dictFile.length() + " bytes) should be much smaller than the "
+					+ plainFile.length() + " byte uncompressed one", dictFile.length() < plainFile.length() / 2);
+		} finally {
+			plainFile.delete();
+		}
+
+		dict.open();
+		SWPDFileV2 file = (SWPDFileV2) ((SortedWordfileDictionary) dict).base;
+		assertEquals(SWPDFileV2.CODEC_DEFLATE, file.codec);
+
+		// Count the compressed value blocks
+		int compressedBlocks = 0;
+		long firstBlock = -1;
+		for (long offset = SWPDFileV2.HEADER_SIZE; offset < file.keysOffset; ) {
+			long storedLength = file.getUnsignedInt(offset);
+			if (storedLength < file.getUnsignedInt(offset + 4)) {
+				++compressedBlocks;
+				if (firstBlock < 0)
+					firstBlock = offset;
+			}
+			offset += SWPDFileV2.VALUE_BLOCK_HEADER_SIZE + storedLength;
+		}
+		assertTrue("Only " + compressedBlocks + " compressed blocks", compressedBlocks > SWPDFileV2.BLOCK_CACHE_SIZE);
+
+		testEquality("Compressed definitions", entries, dict);
+		assertEquals(SWPDFileV2.BLOCK_CACHE_SIZE, file.blockCache.size());
+
+		// A cached block isn't inflated again
+		assertSame(file.valueBlock(firstBlock), file.valueBlock(firstBlock));
+	}
+
+}
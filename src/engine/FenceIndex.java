@@ -0,0 +1,157 @@
+package engine;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A sparse index of a SWPD file, kept on the heap: the keyword and offset of every Nth entry.
+ * (In a version 2 file, the fences are the first keys of the key blocks; see {@link SWPDFileV2}.)
+ *
+ * A lookup first searches the fence keys in memory, and then scans the single block of N
+ * entries that can contain the keyword, instead of probing the whole word index.
+ * On a cold page cache this means one or two page faults per lookup instead of about log2(numWords).
+ *
+ * The index is stored as an extension block of the file (see {@link SortedWordfileDictionary}):
+ * <pre>interval (32 bit) | count (32 bit) | count * (offset (32 bit) | keyLength (32 bit) | key)</pre>
+ * Files written without it get an index built when they are opened (see {@link SWPDFile#buildFence(int)}).
+ */
+class FenceIndex {
+
+	/**
+	 * The tag of the index's block in a SWPD file.
+	 */
+	static final byte[] TAG = { 'F', 'E', 'N', 'C' };
+
+	/**
+	 * The default number of entries per fence.
+	 */
+	static final int DEFAULT_INTERVAL = 64;
+
+	/**
+	 * The number of entries per fence.
+	 */
+	final int interval;
+
+	/**
+	 * The keyword of every interval'th entry (UTF-8 encoded, so lookups compare them without decoding).
+	 */
+	final byte[][] keys;
+
+	/**
+	 * The offset of every interval'th entry (in a version 2 file, relative to the start of the keys).
+	 */
+	final long[] offsets;
+
+	/**
+	 * True if the entries are known to be stored consecutively in index order
+	 * (as {@link SWPDWriter} writes them), so a block can be scanned without reading the word index.
+	 */
+	final boolean contiguous;
+
+	FenceIndex(int interval, byte[][] keys, long[] offsets, boolean contiguous) {
+		this.interval = interval;
+		this.keys = keys;
+		this.offsets = offsets;
+		this.contiguous = contiguous;
+	}
+
+	static int numFences(int numWords, int interval) {
+		return (int) (((long) numWords + interval - 1) / interval);
+	}
+
+	/**
+	 * Read an index from its block.
+	 * @throws IOException if the block is malformed.
+	 */
+	static FenceIndex read(ByteBuffer block, SWPDFile file) throws IOException {
+		try {
+			ByteBuffer buf = block.duplicate();
+			int interval = buf.getInt();
+			int count = buf.getInt();
+			if (interval <= 0 || count != numFences(file.numWords, interval))
+				throw new IOException(file.file + " has a corrupt fence index");
+
+			byte[][] keys = new byte[count][];
+			long[] offsets = new long[count];
+			for (int j = 0; j < count; ++j) {
+				offsets[j] = buf.getInt() & 0xFFFFFFFFL;
+				keys[j] = new byte[buf.getInt()];
+				buf.get(keys[j]);
+				if (offsets[j] >= file.length)
+					throw new IOException(file.file + " has a corrupt fence index");
+			}
+			return new FenceIndex(interval, keys, offsets, true);
+		} catch (RuntimeException e) {
+			throw new IOException(file.file + " has a corrupt fence index", e);
+		}
+	}
+
+	/**
+	 * Return the fence whose block may contain a keyword (the last fence not greater than the keyword),
+	 * or -1 if the keyword precedes all the entries.
+	 * @param key the UTF-8 encoded keyword.
+	 */
+	int floor(byte[] key) {
+		int low = 0;
+		int high = keys.length - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int cmp = Utf8.compare(keys[mid], 0, keys[mid].length, key, 0, key.length);
+			if (cmp < 0)
+				low = mid + 1;
+			else if (cmp > 0)
+				high = mid - 1;
+			else
+				return mid;
+		}
+		return low - 1;
+	}
+
+	/**
+	 * Collects the fences of a file as it is written.
+	 */
+	static class Builder {
+		final int interval;
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final DataOutputStream out = new DataOutputStream(bytes);
+
+		/**
+		 * A constructor.
+		 * @param interval the number of entries per fence.
+		 * @param numWords the number of entries in the file.
+		 */
+		Builder(int interval, int numWords) throws IOException {
+			this.interval = interval;
+			out.writeInt(interval);
+			out.writeInt(numFences(numWords, interval));
+		}
+
+		/**
+		 * Is the i'th entry a fence?
+		 */
+		boolean isFence(int i) {
+			return i % interval == 0;
+		}
+
+		/**
+		 * Add a fence.
+		 * @param offset the offset of the entry.
+		 * @param key the UTF-8 encoded keyword of the entry (the buffer's remaining bytes).
+		 */
+		void add(long offset, ByteBuffer key) throws IOException {
+			out.writeInt((int) offset);
+			out.writeInt(key.remaining());
+			for (int i = key.position(); i < key.limit(); ++i)
+				out.write(key.get(i));
+		}
+
+		/**
+		 * Return the index's block.
+		 */
+		ByteBuffer toBlock() {
+			return ByteBuffer.wrap(bytes.toByteArray());
+		}
+	}
+}
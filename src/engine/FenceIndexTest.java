@@ -0,0 +1,135 @@
+package engine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test lookups through the sparse index of a SWPD file ({@link FenceIndex}), stored or built when the file is
+ * opened, against a binary search of the whole file.
+ */
+public class FenceIndexTest {
+
+	static final int[] INTERVALS = { 1, 2, 7, 64, 500, 1000 };
+
+	File dictFile;
+
+	TreeMap<String, String> entries;
+
+	/**
+	 * Keywords that are not in the file: before, between and after the entries.
+	 */
+	List<String> missing;
+
+	@Before
+	public void initializing() throws IOException {
+		dictFile = File.createTempFile("FenceTest", ".swpd");
+		entries = new TreeMap<String, String>();
+		missing = new ArrayList<String>();
+		for (int i = 0; i < 700; ++i) {
+			String key = String.format("w%04d", i);
+			if (i % 2 == 0) {
+				// Keys that share long prefixes, and keys outside ASCII
+				entries.put((i % 10 == 0) ? key + "\u00e9\u4e2d" : key, "definition " + i);
+			} else {
+				missing.add(key);
+			}
+		}
+		missing.add("");
+		missing.add("a");
+		missing.add("w");
+		missing.add("w0000");
+		missing.add("w0000\u00e9");
+		missing.add("\u4e2d");
+	}
+
+	@After
+	public void closing() {
+		dictFile.delete();
+	}
+
+	/**
+	 * Write the entries.
+	 * @param fenceInterval the interval of the stored index (0 for none).
+	 */
+	void write(int version, int fenceInterval) throws IOException {
+		dictFile.delete();
+		SortedWordfileDictionary dict = new SortedWordfileDictionary(dictFile, version, BloomFilter.DEFAULT_BITS_PER_KEY,
+				fenceInterval);
+		dict.open();
+		for (Map.Entry<String, String> entry : entries.entrySet())
+			dict.put(entry.getKey(), entry.getValue());
+		dict.close();
+	}
+
+	/**
+	 * Check that every lookup through the fence index finds what a binary search of the whole file finds.
+	 */
+	void checkFind(String msg, SWPDFile file) throws IOException {
+		assertNotNull(msg + ": no fence index", file.fence);
+		SWPDFile plain = SWPDFile.open(dictFile, 0);
+		assertNull(plain.fence);
+
+		int i = 0;
+		for (String key : entries.keySet()) {
+			assertEquals(msg + ": index of " + key, i, file.find(key));
+			assertEquals(msg + ": definition of " + key, entries.get(key), file.lookup(key));
+			++i;
+		}
+		for (String key : missing) {
+			assertEquals(msg + ": insertion point of " + key, plain.find(key), file.find(key));
+			assertNull(msg + ": definition of " + key, file.lookup(key));
+		}
+	}
+
+	/**
+	 * Version 1 files store an index of the interval they were written with.
+	 */
+	@Test
+	public void storedIndex() throws IOException {
+		for (int interval : INTERVALS) {
+			write(1, interval);
+			SWPDFile file = SWPDFile.open(dictFile, FenceIndex.DEFAULT_INTERVAL);
+			assertNotNull(file.block(FenceIndex.TAG));
+			assertEquals("interval", interval, file.fence.interval);
+			assertEquals("fences", FenceIndex.numFences(entries.size(), interval), file.fence.keys.length);
+			checkFind("Stored interval " + interval, file);
+		}
+	}
+
+	/**
+	 * Files without a stored index get one built (by sampling the file) when they are opened.
+	 */
+	@Test
+	public void builtIndex() throws IOException {
+		write(1, 0);
+		for (int interval : INTERVALS) {
+			SWPDFile file = SWPDFile.open(dictFile, interval);
+			assertNull(file.block(FenceIndex.TAG));
+			assertEquals("interval", interval, file.fence.interval);
+			checkFind("Built interval " + interval, file);
+		}
+	}
+
+	/**
+	 * In version 2 files, the fences are the first keys of the key blocks, whatever the interval.
+	 */
+	@Test
+	public void keyBlockIndex() throws IOException {
+		for (int interval : INTERVALS) {
+			write(2, interval);
+			checkFind("Version 2, interval " + interval, SWPDFile.open(dictFile, interval));
+		}
+	}
+}
@@ -1,10 +1,15 @@
 package engine;
 
 
+import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Map;
 import java.util.TreeMap;
 
 
@@ -19,6 +24,9 @@ import java.util.TreeMap;
  * Note that an empty definition list is allowed (in which case the entry would 
  * have the form: <pre>word:</pre> 
  * 
+ * The file is encoded in UTF-8. Lines without a ':' (or that are not valid UTF-8) 
+ * are reported by {@link #open()} with a {@link MalformedDictionaryException}.
+ * 
  * @author talm
  *
  */
@@ -31,6 +39,9 @@ PersistentDictionary  {
 	// holds the file
 	private File savedFile = null;
 	
+	// the number of threads used to load the file
+	private int loadThreads = 1;
+	
 	/**
 	 * A constructor. receives as input a File.
 	 * 
@@ -41,56 +52,46 @@ PersistentDictionary  {
 		savedFile = dictFile;
 	}
 	
+	/**
+	 * A constructor that loads large files in parallel.
+	 * The file is split at line boundaries into chunks that are parsed and sorted on
+	 * separate threads, and then merged.
+	 * 
+	 * @param dictFile the dictionary file.
+	 * @param loadThreads the number of threads used to load the file.
+	 */
+	public InMemoryDictionary(File dictFile, int loadThreads) {
+		savedFile = dictFile;
+		this.loadThreads = loadThreads;
+	}
+	
 	@Override
 	public void open() throws IOException { 
-		RandomAccessFile in = null;
+		
+		// Undo any changes since the last close
+		this.clear();
 		if (!this.savedFile.exists()) {
 			return;
 		}
-		try {
-			
-			// Initializing random file access
-			in = new RandomAccessFile(savedFile, "rw");
-			
-			// Reads the first line in the file
-			String line = in.readLine();
-			
-			// as long as there are lines available
-			while (line != null) {
-				
-				// Made to separate key and value
-				int colon = line.indexOf(':');
-				
-				// adding key only if there is no definition.
-				if (line.substring(colon + 1) == null) {
-					this.put(line.substring(0, colon), null);
-
-				// adding key and value if there is a definition.
-				} else {
-					this.put(line.substring(0, colon),
-							 line.substring(colon + 1, line.length()));
-				}
-				
-				// read the next line
-				line = in.readLine();
-			}
-		} catch (Exception e) {
-			
-		} finally {
-			
-			// close random file access
-			in.close();
+		
+		// Parse the file (the entries are sorted, so the tree is built in linear time)
+		WordfileLoader loader = new WordfileLoader(savedFile, loadThreads);
+		this.putAll(new WordfileLoader.SortedEntries(loader.load()));
+		
+		// Report lines that couldn't be parsed
+		if (!loader.getMalformedLines().isEmpty()) {
+			throw new MalformedDictionaryException(savedFile, loader.getMalformedLines());
 		}
 	}
 
 	@Override
 	public void close() throws IOException {
-		FileWriter out = null;
+		Writer out = null;
 		
 		try {
 			
-			// initialize a writer
-			out = new FileWriter(savedFile);
+			// initialize a writer (in the encoding the loader expects)
+			out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(savedFile), "UTF-8"));
 			
 			// for each key in this dictionary
 			for (String key : this.keySet()) {
@@ -109,4 +110,37 @@ PersistentDictionary  {
 			}
 		}
 	}
+
+	/**
+	 * The definitions are kept as Strings, so they are encoded.
+	 */
+	@Override
+	public ByteBuffer getBytes(Object key) {
+		return Utf8.encode(get(key));
+	}
+
+	@Override
+	public boolean storesBytes() {
+		return false;
+	}
+
+	@Override
+	public String update(String key, Remapping remapping) {
+		String value = remapping.remap(key, get(key));
+		if (value == null)
+			remove(key);
+		else
+			put(key, value);
+		return value;
+	}
+
+	@Override
+	public Iterator<Map.Entry<String, String>> scan(String from, String to) {
+		return KeyRange.entries(this, from, to);
+	}
+
+	@Override
+	public Iterator<Map.Entry<String, String>> prefix(String prefix) {
+		return scan(prefix, KeyRange.prefixEnd(prefix));
+	}
 }
@@ -1,12 +1,160 @@
 package engine;
 
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import org.junit.Test;
 
 public class InMemoryDictionaryTest extends PersistentDictionaryTest {
 	@Override
 	PersistentDictionary getDictionary(File file) throws IOException {
 		return new InMemoryDictionary(dictFile);
 	}
+
+	void writeFile(String text) throws IOException {
+		writeFile(text, WordfileLoader.CHARSET);
+	}
+
+	void writeFile(String text, Charset charset) throws IOException {
+		Writer writer = new OutputStreamWriter(new FileOutputStream(dictFile), charset);
+		try {
+			writer.write(text);
+		} finally {
+			writer.close();
+		}
+	}
+
+	/**
+	 * Malformed lines (no ':', or not UTF-8) are reported with their line numbers; the rest are loaded.
+	 */
+	@Test
+	public void malformedLines() throws IOException {
+		// In ISO-8859-1, "\u00e9" is a single byte that is not valid UTF-8
+		writeFile("b:2\nno colon here\na:1\n\nc\n\u00e9:broken\nd:4", WordfileLoader.ASCII);
+		dict = getDictionary(dictFile);
+		try {
+			dict.open();
+			fail("Malformed lines were not reported");
+		} catch (MalformedDictionaryException e) {
+			assertEquals(Arrays.asList(2L, 5L, 6L), e.getLines());
+		}
+
+		TreeMap<String, String> loaded = new TreeMap<String, String>();
+		loaded.put("a", "1");
+		loaded.put("b", "2");
+		loaded.put("d", "4");
+		testEquality("Well-formed lines", loaded, dict);
+	}
+
+	/**
+	 * Lines may end with "\r\n"; the '\r' is not part of the definition.
+	 */
+	@Test
+	public void crlfLines() throws IOException {
+		writeFile("First:one\r\nSecond:two:2\r\n\r\nThird:\r\nFourth:four\r");
+		dict = getDictionary(dictFile);
+		dict.open();
+
+		TreeMap<String, String> loaded = new TreeMap<String, String>();
+		loaded.put("First", "one");
+		loaded.put("Second", "two:2");
+		loaded.put("Third", "");
+		loaded.put("Fourth", "four");
+		testEquality("CRLF lines", loaded, dict);
+	}
+
+	/**
+	 * A file large enough to be split into chunks that are loaded in parallel: the chunks are merged in order,
+	 * the last definition of a key wins (also across chunks), and malformed lines are numbered from the start
+	 * of the file.
+	 */
+	@Test
+	public void parallelLoad() throws IOException {
+		int threads = 3;
+		TreeMap<String, String> loaded = new TreeMap<String, String>();
+		StringBuilder text = new StringBuilder();
+		long lines = 0;
+		long malformed = -1;
+		while (text.length() < threads * WordfileLoader.MIN_CHUNK_SIZE + 1000) {
+			// Keys repeat every 50000 lines, so every key appears in more than one chunk
+			String key = "word" + (lines * 7919) % 50000;
+			String value = "definition " + lines + ":\u00e9";
+			loaded.put(key, value);
+			text.append(key).append(':').append(value).append('\n');
+			++lines;
+			if (malformed < 0 && text.length() > 2 * WordfileLoader.MIN_CHUNK_SIZE + 1000) {
+				text.append("malformed\n");
+				malformed = ++lines;
+			}
+		}
+		writeFile(text.toString());
+
+		dict = new InMemoryDictionary(dictFile, threads);
+		try {
+			dict.open();
+			fail("The malformed line was not reported");
+		} catch (MalformedDictionaryException e) {
+			assertEquals(Arrays.asList(malformed), e.getLines());
+		}
+		testEquality("Parallel load", loaded, dict);
+
+		// The same entries, loaded by a single thread
+		dict = new InMemoryDictionary(dictFile, 1);
+		try {
+			dict.open();
+			fail("The malformed line was not reported");
+		} catch (MalformedDictionaryException e) {
+			assertEquals(Arrays.asList(malformed), e.getLines());
+		}
+		testEquality("Serial load", loaded, dict);
+	}
+
+	/**
+	 * The sorted map view of the loaded entries behaves like a TreeMap of the same entries.
+	 */
+	@Test
+	public void sortedEntries() {
+		TreeMap<String, String> tree = new TreeMap<String, String>();
+		for (int i = 0; i < 100; i += 3)
+			tree.put("k" + (1000 + i), "v" + i);
+		List<Map.Entry<String, String>> list = new ArrayList<Map.Entry<String, String>>(tree.entrySet());
+		WordfileLoader.SortedEntries entries = new WordfileLoader.SortedEntries(list);
+
+		assertEquals(tree, entries);
+		assertEquals(tree.firstKey(), entries.firstKey());
+		assertEquals(tree.lastKey(), entries.lastKey());
+		for (int i = 0; i < 100; ++i) {
+			String key = "k" + (1000 + i);
+			assertEquals(key, tree.get(key), entries.get(key));
+			assertEquals(key, tree.containsKey(key), entries.containsKey(key));
+			assertEquals(key, tree.headMap(key), entries.headMap(key));
+			assertEquals(key, tree.tailMap(key), entries.tailMap(key));
+			if (key.compareTo("k1010") >= 0)
+				assertEquals(key, tree.subMap("k1010", key + "0"), entries.subMap("k1010", key + "0"));
+		}
+		assertEquals(0, entries.headMap("a").size());
+		assertEquals(0, entries.tailMap("z").size());
+
+		// Built from the view in linear time, but the same as by inserting the entries
+		assertEquals(tree, new TreeMap<String, String>(entries));
+		assertEquals(tree, new ConcurrentSkipListMap<String, String>(entries));
+		InMemoryDictionary copy = new InMemoryDictionary(dictFile);
+		copy.putAll(entries);
+		assertEquals(tree, copy);
+		assertEquals(tree.headMap("k1050"), copy.headMap("k1050"));
+	}
 }
@@ -0,0 +1,59 @@
+package engine;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+
+/**
+ * Helpers for the ordered scans of {@link PersistentDictionary#scan(String, String)} and
+ * {@link PersistentDictionary#prefix(String)}.
+ */
+class KeyRange {
+
+	private KeyRange() {
+	}
+
+	/**
+	 * Check the bounds of a scan (either may be null).
+	 * @throws IllegalArgumentException if from is greater than to.
+	 */
+	static void check(String from, String to) {
+		if (from != null && to != null && from.compareTo(to) > 0)
+			throw new IllegalArgumentException("fromKey > toKey");
+	}
+
+	/**
+	 * Return the least key that is greater than all the keys that start with a prefix (in {@link String#compareTo(String)}
+	 * order), or null if there is none (the prefix is empty, or all {@link Character#MAX_VALUE}).
+	 */
+	static String prefixEnd(String prefix) {
+		for (int i = prefix.length() - 1; i >= 0; --i) {
+			char c = prefix.charAt(i);
+			if (c != Character.MAX_VALUE)
+				return prefix.substring(0, i) + (char) (c + 1);
+		}
+		return null;
+	}
+
+	/**
+	 * Return the part of a map from a key (inclusive) to a key (exclusive); a null bound is unbounded.
+	 */
+	static <V> NavigableMap<String, V> subMap(NavigableMap<String, V> map, String from, String to) {
+		check(from, to);
+		if (from == null && to == null)
+			return map;
+		if (from == null)
+			return map.headMap(to, false);
+		if (to == null)
+			return map.tailMap(from, true);
+		return map.subMap(from, true, to, false);
+	}
+
+	/**
+	 * Return an iterator over the entries of part of a map, that can't change the map.
+	 */
+	static Iterator<Map.Entry<String, String>> entries(NavigableMap<String, String> map, String from, String to) {
+		return Collections.unmodifiableMap(subMap(map, from, to)).entrySet().iterator();
+	}
+}
@@ -0,0 +1,635 @@
+package engine;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Implements a persistent dictionary that is held in memory and persisted as an append-only log.
+ *
+ * Every {@link #put(String, String)}, {@link #remove(Object)} and {@link #clear()} appends a record
+ * to the log, so the cost of persisting is proportional to the number of changes rather than to
+ * the size of the dictionary. {@link #open()} rebuilds the dictionary by replaying the log.
+ *
+ * Records are made durable with <i>group commit</i>: they are collected in memory and written to the
+ * log with a single write and a single fsync, either every {@link #commitInterval} milliseconds (by a
+ * background thread), when {@link #commit()} is called or when the dictionary is closed.
+ *
+ * Since the log keeps every old version of an entry, it is compacted when it grows to more than
+ * {@link #COMPACTION_RATIO} times the size of the live entries: after {@link #close()}, a background
+ * thread rewrites the log with a single record per entry and atomically swaps it with the old one.
+ * Opening the dictionary waits for a compaction of the same file to finish.
+ *
+ * The file format is as follows:
+ * <table>
+ * <tr><th>Index</th><th>Length (bytes)</th><th>Desciption</th></tr>
+ * <tr><td>0</td><td>4</td><td>SWPL [constant "magic" to allow easy recognition]</td></tr>
+ * <tr><td>4</td><td>??</td><td>Records</td></tr>
+ * </table>
+ * <p>Each record has the form:</p>
+ * <table>
+ * <tr><th>Index</th><th>Length (bytes)</th><th>Desciption</th></tr>
+ * <tr><td>0</td><td>1</td><td>type ({@link #PUT}, {@link #REMOVE} or {@link #CLEAR})</td></tr>
+ * <tr><td>1</td><td>4</td><td>keyLength (32 bit big-endian integer)</td></tr>
+ * <tr><td>5</td><td>4</td><td>valueLength (32 bit big-endian integer, -1 for a null definition)</td></tr>
+ * <tr><td>9</td><td>keyLength</td><td>key (UTF-8)</td></tr>
+ * <tr><td>9+keyLength</td><td>valueLength</td><td>definition (UTF-8)</td></tr>
+ * <tr><td>9+keyLength+valueLength</td><td>4</td><td>CRC32 of the preceding bytes of the record</td></tr>
+ * </table>
+ * <p>A truncated or corrupt record at the end of the log (e.g., after a crash in the middle of
+ * a write) is discarded when the log is replayed.</p>
+ */
+public class LogStructuredDictionary implements PersistentDictionary {
+
+	/**
+	 * The constant "magic" at the start of the log.
+	 */
+	static final byte[] MAGIC = { 'S', 'W', 'P', 'L' };
+
+	/**
+	 * Record types.
+	 */
+	static final byte PUT = 1;
+	static final byte REMOVE = 2;
+	static final byte CLEAR = 3;
+
+	/**
+	 * The size of a record, not counting the key and definition.
+	 */
+	static final int RECORD_OVERHEAD = 1 + 4 + 4 + 4;
+
+	/**
+	 * The default interval between group commits (in milliseconds).
+	 */
+	public static final long DEFAULT_COMMIT_INTERVAL = 100;
+
+	/**
+	 * The log is compacted when it is larger than this many times the size of the live records...
+	 */
+	static final int COMPACTION_RATIO = 2;
+
+	/**
+	 * ...and larger than this many bytes.
+	 */
+	static final long COMPACTION_MIN_SIZE = 64 * 1024;
+
+	/**
+	 * Background compactions in progress, by (canonical) log file.
+	 */
+	static final Map<File, Future<?>> compactions = new ConcurrentHashMap<File, Future<?>>();
+
+	/**
+	 * The executor running background compactions.
+	 */
+	static final ExecutorService compactor = Executors.newSingleThreadExecutor(daemonThreads("log-compactor"));
+
+	/**
+	 * The log file.
+	 */
+	File logFile;
+
+	/**
+	 * The interval between group commits (in milliseconds).
+	 */
+	final long commitInterval;
+
+	/**
+	 * The contents of the dictionary.
+	 */
+	TreeMap<String, String> map;
+
+	/**
+	 * The open log (null when the dictionary is closed).
+	 */
+	FileChannel log;
+
+	/**
+	 * The length of the log when the dictionary was opened; {@link #open()} truncates
+	 * the log back to this length to undo changes made since then.
+	 */
+	long openLength;
+
+	/**
+	 * The length of the log, including records that haven't been committed yet.
+	 */
+	long logLength;
+
+	/**
+	 * The size of the records holding the live entries (i.e., the size of a compacted log).
+	 */
+	long liveBytes;
+
+	/**
+	 * Records that haven't been committed yet.
+	 */
+	RecordBuffer pending;
+
+	/**
+	 * Runs the periodic group commits.
+	 */
+	ScheduledExecutorService committer;
+
+	/**
+	 * An error that occurred during a background commit (to be reported by the next call that can throw it).
+	 */
+	IOException commitError;
+
+	/**
+	 * A constructor. receives as input a File.
+	 * @param logFile the log file.
+	 */
+	public LogStructuredDictionary(File logFile) {
+		this(logFile, DEFAULT_COMMIT_INTERVAL);
+	}
+
+	/**
+	 * A constructor.
+	 * @param logFile the log file.
+	 * @param commitInterval the interval between group commits (in milliseconds).
+	 * 	If 0, records are only committed by {@link #commit()} and {@link #close()}.
+	 */
+	public LogStructuredDictionary(File logFile, long commitInterval) {
+		this.logFile = logFile;
+		this.commitInterval = commitInterval;
+	}
+
+	@Override
+	public synchronized void open() throws IOException {
+		if (log != null) {
+			// Undo the changes since the last open
+			stopCommitter();
+			pending = null;
+			log.truncate(openLength);
+			log.close();
+			log = null;
+		}
+
+		awaitCompaction(logFile);
+
+		map = new TreeMap<String, String>();
+		liveBytes = MAGIC.length;
+		long validLength = replay();
+
+		log = FileChannel.open(logFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		if (validLength == 0) {
+			// A new log
+			log.truncate(0);
+			log.write(ByteBuffer.wrap(MAGIC), 0);
+			validLength = MAGIC.length;
+		} else if (log.size() > validLength) {
+			// Discard a torn record at the end of the log
+			log.truncate(validLength);
+		}
+		log.position(validLength);
+
+		openLength = validLength;
+		logLength = validLength;
+		pending = new RecordBuffer();
+		commitError = null;
+
+		if (commitInterval > 0) {
+			committer = Executors.newSingleThreadScheduledExecutor(daemonThreads("log-committer"));
+			committer.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					backgroundCommit();
+				}
+			}, commitInterval, commitInterval, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Replay the log into {@link #map}.
+	 * @return the length of the valid prefix of the log (0 if there is no log).
+	 * @throws IOException if the file can't be read or is not a log.
+	 */
+	long replay() throws IOException {
+		if (!logFile.exists() || logFile.length() == 0)
+			return 0;
+
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(logFile), 64 * 1024));
+		try {
+			byte[] magic = new byte[MAGIC.length];
+			in.readFully(magic);
+			if (!Arrays.equals(magic, MAGIC))
+				throw new IOException(logFile + " is not a dictionary log");
+
+			long fileLength = logFile.length();
+			long validLength = MAGIC.length;
+			CRC32 crc = new CRC32();
+			byte[] header = new byte[9];
+			while (true) {
+				// Read the next record; stop at the first incomplete or corrupt one.
+				if (!readFully(in, header))
+					break;
+				int keyLength = ByteBuffer.wrap(header, 1, 4).getInt();
+				int valueLength = ByteBuffer.wrap(header, 5, 4).getInt();
+				if (keyLength < 0 || valueLength < -1)
+					break;
+				// Lengths from a torn or garbage tail may be huge: don't allocate more than the file holds
+				long dataLength = (long) keyLength + Math.max(valueLength, 0) + 4;
+				if (dataLength > fileLength - validLength - header.length)
+					break;
+
+				byte[] data = new byte[(int) dataLength];
+				if (!readFully(in, data))
+					break;
+
+				crc.reset();
+				crc.update(header);
+				crc.update(data, 0, data.length - 4);
+				if ((int) crc.getValue() != ByteBuffer.wrap(data, data.length - 4, 4).getInt())
+					break;
+
+				String key = new String(data, 0, keyLength, SWPDFile.CHARSET);
+				String value = (valueLength < 0) ? null : new String(data, keyLength, valueLength, SWPDFile.CHARSET);
+				switch (header[0]) {
+				case PUT:
+					apply(key, value);
+					break;
+				case REMOVE:
+					unapply(key);
+					break;
+				case CLEAR:
+					map.clear();
+					liveBytes = MAGIC.length;
+					break;
+				default:
+					// Unknown record type: treat as corrupt.
+					return validLength;
+				}
+				validLength += header.length + data.length;
+			}
+			return validLength;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Read an array completely.
+	 * @return false if the stream ended first.
+	 */
+	private static boolean readFully(DataInputStream in, byte[] data) throws IOException {
+		try {
+			in.readFully(data);
+			return true;
+		} catch (EOFException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Update the map (and the size of the live records) with a new definition.
+	 * @return the previous definition.
+	 */
+	private String apply(String key, String value) {
+		boolean existed = map.containsKey(key);
+		String old = map.put(key, value);
+		if (existed)
+			liveBytes -= recordSize(key, old);
+		liveBytes += recordSize(key, value);
+		return old;
+	}
+
+	/**
+	 * Remove a key from the map (and update the size of the live records).
+	 * @return the previous definition.
+	 */
+	private String unapply(String key) {
+		if (!map.containsKey(key))
+			return null;
+		String old = map.remove(key);
+		liveBytes -= recordSize(key, old);
+		return old;
+	}
+
+	/**
+	 * Return the size of a record in the log.
+	 */
+	static long recordSize(String key, String value) {
+		return RECORD_OVERHEAD + utf8Length(key) + (value == null ? 0 : utf8Length(value));
+	}
+
+	/**
+	 * Return the number of bytes in the UTF-8 encoding of a string.
+	 */
+	static int utf8Length(String s) {
+		int len = 0;
+		for (int i = 0; i < s.length(); ++i) {
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				len += 1;
+			} else if (c < 0x800) {
+				len += 2;
+			} else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+				len += 4;
+				++i;
+			} else {
+				len += 3;
+			}
+		}
+		return len;
+	}
+
+	/**
+	 * Append a record to the pending records.
+	 */
+	private void append(byte type, String key, String value) {
+		checkOpen();
+		logLength += pending.append(type, key, value);
+	}
+
+	/**
+	 * Commit the pending records: write them to the log with a single write, and
+	 * force them to disk.
+	 * @throws IOException if this or an earlier (background) commit failed.
+	 */
+	public synchronized void commit() throws IOException {
+		checkOpen();
+		if (commitError != null)
+			throw commitError;
+		if (pending.size() == 0)
+			return;
+
+		ByteBuffer buf = pending.asByteBuffer();
+		while (buf.hasRemaining())
+			log.write(buf);
+		log.force(false);
+		pending.reset();
+	}
+
+	/**
+	 * A commit triggered by the committer thread.
+	 */
+	synchronized void backgroundCommit() {
+		if (log == null || commitError != null)
+			return;
+		try {
+			commit();
+		} catch (IOException e) {
+			commitError = e;
+		}
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		checkOpen();
+		stopCommitter();
+		try {
+			commit();
+		} finally {
+			log.close();
+			log = null;
+		}
+
+		if (logLength > COMPACTION_MIN_SIZE && logLength > COMPACTION_RATIO * liveBytes)
+			startCompaction(logFile, logLength, map);
+		map = null;
+	}
+
+	private void stopCommitter() {
+		if (committer != null) {
+			committer.shutdown();
+			committer = null;
+		}
+	}
+
+	private void checkOpen() {
+		if (log == null)
+			throw new IllegalStateException("Dictionary " + logFile + " is not open");
+	}
+
+	@Override
+	public synchronized String get(Object key) {
+		if (key == null)
+			throw new NullPointerException();
+		return map.get(key);
+	}
+
+	/**
+	 * The definitions are kept as Strings, so they are encoded.
+	 */
+	@Override
+	public ByteBuffer getBytes(Object key) {
+		return Utf8.encode(get(key));
+	}
+
+	@Override
+	public boolean storesBytes() {
+		return false;
+	}
+
+	@Override
+	public synchronized String put(String key, String value) {
+		if (key == null)
+			throw new NullPointerException();
+		append(PUT, key, value);
+		return apply(key, value);
+	}
+
+	@Override
+	public synchronized boolean containsKey(Object key) {
+		if (key == null)
+			throw new NullPointerException();
+		return map.containsKey(key);
+	}
+
+	@Override
+	public synchronized int size() {
+		return map.size();
+	}
+
+	@Override
+	public synchronized String remove(Object key) {
+		String k = (String) key;
+		if (!containsKey(k))
+			return null;
+		append(REMOVE, k, null);
+		return unapply(k);
+	}
+
+	@Override
+	public synchronized void clear() {
+		append(CLEAR, "", null);
+		map.clear();
+		liveBytes = MAGIC.length;
+	}
+
+	@Override
+	public synchronized String update(String key, Remapping remapping) {
+		String value = remapping.remap(key, get(key));
+		if (value == null)
+			remove(key);
+		else
+			put(key, value);
+		return value;
+	}
+
+	/**
+	 * Return the set of keys in alphabetical order.
+	 */
+	public synchronized Set<String> keySet() {
+		return Collections.unmodifiableSet(map.keySet());
+	}
+
+	@Override
+	public synchronized Iterator<Map.Entry<String, String>> scan(String from, String to) {
+		return KeyRange.entries(map, from, to);
+	}
+
+	@Override
+	public Iterator<Map.Entry<String, String>> prefix(String prefix) {
+		return scan(prefix, KeyRange.prefixEnd(prefix));
+	}
+
+	/*======= Background compaction ======*/
+
+	/**
+	 * Start compacting a log in the background.
+	 * @param file the log file.
+	 * @param length the length of the log.
+	 * @param contents the contents of the dictionary (must not be modified afterwards).
+	 */
+	static void startCompaction(File file, final long length, final TreeMap<String, String> contents)
+			throws IOException {
+		final File canonical = file.getCanonicalFile();
+		compactions.put(canonical, compactor.submit(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					compact(canonical, length, contents);
+				} catch (IOException e) {
+					// The old log is still valid; we'll try again after the next close.
+				}
+			}
+		}));
+	}
+
+	/**
+	 * Wait for a background compaction of a log to finish.
+	 */
+	static void awaitCompaction(File file) throws IOException {
+		Future<?> compaction = compactions.remove(file.getCanonicalFile());
+		if (compaction == null)
+			return;
+		try {
+			compaction.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for the compaction of " + file);
+		} catch (ExecutionException e) {
+			throw new IOException("Compaction of " + file + " failed", e.getCause());
+		}
+	}
+
+	/**
+	 * Rewrite a log so that it holds a single record for every entry, and
+	 * swap it with the old log. The old log is kept if it no longer has the expected length
+	 * (e.g., it was deleted in the meantime).
+	 */
+	static void compact(File file, long length, TreeMap<String, String> contents) throws IOException {
+		File tempFile = new File(file.getParentFile(), file.getName() + ".compact");
+		FileOutputStream fileOut = new FileOutputStream(tempFile);
+		try {
+			RecordBuffer record = new RecordBuffer();
+			OutputStream out = new BufferedOutputStream(fileOut, 64 * 1024);
+			out.write(MAGIC);
+			for (Map.Entry<String, String> entry : contents.entrySet()) {
+				record.reset();
+				record.append(PUT, entry.getKey(), entry.getValue());
+				record.writeTo(out);
+			}
+			out.flush();
+			fileOut.getFD().sync();
+		} catch (IOException e) {
+			fileOut.close();
+			tempFile.delete();
+			throw e;
+		}
+		fileOut.close();
+
+		if (file.length() != length) {
+			tempFile.delete();
+			return;
+		}
+		SortedWordfileDictionary.replace(tempFile, file);
+	}
+
+	static ThreadFactory daemonThreads(final String name) {
+		return new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, name);
+				t.setDaemon(true);
+				return t;
+			}
+		};
+	}
+
+	/**
+	 * A buffer of encoded records.
+	 */
+	static class RecordBuffer extends ByteArrayOutputStream {
+		final DataOutputStream data = new DataOutputStream(this);
+		final CRC32 crc = new CRC32();
+
+		/**
+		 * Encode a record into the buffer.
+		 * @return the size of the record.
+		 */
+		int append(byte type, String key, String value) {
+			byte[] keyBytes = key.getBytes(SWPDFile.CHARSET);
+			byte[] valueBytes = (value == null) ? null : value.getBytes(SWPDFile.CHARSET);
+
+			int start = count;
+			try {
+				data.writeByte(type);
+				data.writeInt(keyBytes.length);
+				data.writeInt(valueBytes == null ? -1 : valueBytes.length);
+				data.write(keyBytes);
+				if (valueBytes != null)
+					data.write(valueBytes);
+
+				crc.reset();
+				crc.update(buf, start, count - start);
+				data.writeInt((int) crc.getValue());
+			} catch (IOException e) {
+				// Can't happen when writing to memory
+				throw new IllegalStateException(e);
+			}
+			return count - start;
+		}
+
+		ByteBuffer asByteBuffer() {
+			return ByteBuffer.wrap(buf, 0, count);
+		}
+	}
+}
@@ -0,0 +1,195 @@
+package engine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.junit.Test;
+
+public class LogStructuredDictionaryTest extends PersistentDictionaryTest {
+
+	@Override
+	PersistentDictionary getDictionary(File file) throws IOException {
+		return new LogStructuredDictionary(file);
+	}
+
+	/**
+	 * Close the test dictionary, and add the test words to it (committed, and then closed).
+	 * @return the length of the log.
+	 */
+	long writeLog() throws Exception {
+		dict.close();
+		dict = new LogStructuredDictionary(dictFile, 0);
+		dict.open();
+		fillMap(dict, addWords, addDefs);
+		fillMap(expected, addWords, addDefs);
+		dict.close();
+		return dictFile.length();
+	}
+
+	/**
+	 * A record torn by a crash in the middle of a write is discarded, and the log continues after the records
+	 * before it.
+	 */
+	@Test
+	public void tornTailRecord() throws Exception {
+		long length = writeLog();
+		dict.open();
+		dict.put("torn", "record");
+		dict.close();
+
+		RandomAccessFile file = new RandomAccessFile(dictFile, "rw");
+		try {
+			file.setLength(dictFile.length() - 3);
+		} finally {
+			file.close();
+		}
+
+		dict.open();
+		assertNull("The torn record should have been discarded", dict.get("torn"));
+		testEquality("After a torn record", expected, dict);
+		assertEquals("The torn record should have been truncated", length, dictFile.length());
+
+		dict.put("after", "torn");
+		expected.put("after", "torn");
+		dict.close();
+		dict.open();
+		testEquality("Records after a torn one", expected, dict);
+	}
+
+	/**
+	 * Records after one whose checksum doesn't match are discarded with it.
+	 */
+	@Test
+	public void corruptTailRecord() throws Exception {
+		long length = writeLog();
+		dict.open();
+		dict.put("corrupt", "record");
+		dict.put("lost", "with it");
+		dict.close();
+
+		// Change a byte of the definition of the first of the new records
+		RandomAccessFile file = new RandomAccessFile(dictFile, "rw");
+		try {
+			long pos = length + LogStructuredDictionary.RECORD_OVERHEAD - 4 + "corrupt".length();
+			file.seek(pos);
+			int b = file.read();
+			file.seek(pos);
+			file.write(b ^ 1);
+		} finally {
+			file.close();
+		}
+
+		dict.open();
+		assertNull(dict.get("corrupt"));
+		assertNull(dict.get("lost"));
+		testEquality("After a corrupt record", expected, dict);
+		assertEquals(length, dictFile.length());
+
+		// Garbage after the last record: a full header whose lengths add up past the end of the file
+		// (and past Integer.MAX_VALUE), or to about 1 GB
+		byte[][] headers = {
+				{ LogStructuredDictionary.PUT, 0x7f, -1, -1, -1, 0x7f, -1, -1, -1 },
+				{ LogStructuredDictionary.PUT, 0x20, 0, 0, 0, 0x20, 0, 0, 0 },
+				{ LogStructuredDictionary.PUT, 0x7f, 0, 0, 0, 1, 2, 3 } };
+		for (byte[] garbage : headers) {
+			dict.close();
+			file = new RandomAccessFile(dictFile, "rw");
+			try {
+				file.seek(length);
+				file.write(garbage);
+				file.write(new byte[16]);
+			} finally {
+				file.close();
+			}
+			dict.open();
+			testEquality("After garbage", expected, dict);
+			assertEquals(length, dictFile.length());
+		}
+	}
+
+	/**
+	 * A log that grew with overwritten entries is compacted in the background after it is closed;
+	 * opening it again waits for the compaction.
+	 */
+	@Test
+	public void backgroundCompaction() throws Exception {
+		dict.close();
+		LogStructuredDictionary dict = new LogStructuredDictionary(dictFile, 0);
+		this.dict = dict;
+		dict.open();
+		StringBuilder def = new StringBuilder();
+		while (def.length() < 100)
+			def.append("definition ");
+		for (int round = 0; round < 50; ++round) {
+			for (int i = 0; i < 100; ++i) {
+				dict.put("word" + i, def + " " + round);
+				expected.put("word" + i, def + " " + round);
+			}
+			dict.remove("word" + round);
+			expected.remove("word" + round);
+		}
+		dict.commit();
+		long length = dict.logLength;
+		assertTrue(length > LogStructuredDictionary.COMPACTION_MIN_SIZE
+				&& length > LogStructuredDictionary.COMPACTION_RATIO * dict.liveBytes);
+		dict.close();
+
+		dict.open();
+		testEquality("After compaction", expected, dict);
+		assertEquals("The log should hold only the live entries", dict.liveBytes, dictFile.length());
+		assertTrue(dictFile.length() < length / LogStructuredDictionary.COMPACTION_RATIO);
+
+		dict.put("after", "compaction");
+		expected.put("after", "compaction");
+		dict.close();
+		dict.open();
+		testEquality("After compaction and an update", expected, dict);
+	}
+
+	/**
+	 * Records committed by the committer thread survive a crash (the log is opened by another
+	 * instance without the first being closed); records that were not committed yet don't.
+	 */
+	@Test
+	public void groupCommitWithoutClose() throws Exception {
+		long length = writeLog();
+
+		LogStructuredDictionary committed = new LogStructuredDictionary(dictFile, 10);
+		committed.open();
+		committed.put("committed", "by the committer");
+		expected.put("committed", "by the committer");
+		long deadline = System.currentTimeMillis() + 10000;
+		while (dictFile.length() == length && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+
+		LogStructuredDictionary recovered = new LogStructuredDictionary(dictFile, 0);
+		recovered.open();
+		testEquality("Group commit", expected, recovered);
+		recovered.close();
+		committed.close();
+
+		// Without a commit, nothing is written
+		LogStructuredDictionary uncommitted = new LogStructuredDictionary(dictFile, 0);
+		uncommitted.open();
+		uncommitted.put("not", "committed");
+		recovered = new LogStructuredDictionary(dictFile, 0);
+		recovered.open();
+		testEquality("No commit", expected, recovered);
+		recovered.close();
+
+		// An explicit commit
+		uncommitted.commit();
+		expected.put("not", "committed");
+		recovered = new LogStructuredDictionary(dictFile, 0);
+		recovered.open();
+		testEquality("Explicit commit", expected, recovered);
+		recovered.close();
+		uncommitted.close();
+		dict.open();
+	}
+}
@@ -0,0 +1,38 @@
+package engine;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Thrown when a dictionary file contains malformed lines.
+ * The well-formed lines are still loaded; the exception reports which lines were skipped.
+ */
+public class MalformedDictionaryException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * The maximal number of line numbers listed in the message.
+	 */
+	static final int MAX_REPORTED = 10;
+
+	/**
+	 * The (1-based) numbers of the malformed lines.
+	 */
+	final ArrayList<Long> lines;
+
+	public MalformedDictionaryException(File file, List<Long> lines) {
+		super(file + ": " + lines.size() + " malformed line(s) skipped: "
+				+ (lines.size() <= MAX_REPORTED ? lines : lines.subList(0, MAX_REPORTED) + "..."));
+		this.lines = new ArrayList<Long>(lines);
+	}
+
+	/**
+	 * Return the (1-based) numbers of the malformed lines.
+	 */
+	public List<Long> getLines() {
+		return lines;
+	}
+}
@@ -0,0 +1,690 @@
+package engine;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Implements a persistent dictionary that is held entirely in memory, but outside the Java heap.
+ *
+ * Keys and definitions are stored as UTF-8 bytes in off-heap ({@link ByteBuffer#allocateDirect(int) direct})
+ * arenas, and are located through an open-addressing hash table that is also held off-heap. A dictionary
+ * with millions of entries therefore adds only a handful of objects to the live heap, instead of a
+ * tree node and two {@link String}s per entry (as {@link InMemoryDictionary} does).
+ * Strings are only created when a definition is returned.
+ *
+ * The dictionary is saved in the SWPD format (see {@link SortedWordfileDictionary}); since the entries are held
+ * in the same encoding, they are copied to and from the file without being decoded.
+ *
+ * Each entry in an arena has the form:
+ * <table>
+ * <tr><th>Index</th><th>Length (bytes)</th><th>Desciption</th></tr>
+ * <tr><td>0</td><td>4</td><td>keyLength</td></tr>
+ * <tr><td>4</td><td>4</td><td>valueLength (-1 for a null definition)</td></tr>
+ * <tr><td>8</td><td>keyLength + 1 + valueLength</td><td>The SWPD entry <pre>keyword:def1:def2:...</pre></td></tr>
+ * </table>
+ * An entry is addressed by a long holding the arena number (high 32 bits) and the offset in the arena (low 32 bits).
+ * Entries that are replaced or removed become garbage; when there is more garbage than live data, the arenas
+ * are compacted.
+ *
+ * Like the SWPD format, null definitions become empty definitions when the dictionary is saved.
+ */
+public class OffHeapDictionary implements PersistentDictionary {
+
+	/**
+	 * Arena sizes: each arena is twice the size of the previous one, between these bounds
+	 * (an arena is never smaller than the entry it was allocated for).
+	 */
+	static final int MIN_ARENA_SIZE = 64 * 1024;
+	static final int MAX_ARENA_SIZE = 64 << 20;
+
+	/**
+	 * The size of an entry's header (keyLength and valueLength).
+	 */
+	static final int ENTRY_HEADER = 8;
+
+	/**
+	 * Hash table slots hold the address of an entry plus 1, or one of these values.
+	 */
+	static final long EMPTY = 0;
+	static final long DELETED = -1;
+
+	/**
+	 * The initial number of slots in the hash table (a power of 2).
+	 */
+	static final int MIN_CAPACITY = 16;
+
+	/**
+	 * The hash table grows when more than this fraction of its slots are used.
+	 */
+	static final double MAX_LOAD = 0.5;
+
+	/**
+	 * The dictionary file.
+	 */
+	File dictFile;
+
+	/**
+	 * The arenas holding the entries. New entries are appended to the last one
+	 * (the position of each arena is its allocation pointer).
+	 */
+	List<ByteBuffer> arenas;
+
+	/**
+	 * The hash table: the address (+1) of the entry in each slot, and the hash of its key.
+	 */
+	LongBuffer slots;
+	IntBuffer hashes;
+	int capacity;
+
+	/**
+	 * The number of slots that are not {@link #EMPTY} (live and deleted).
+	 */
+	int usedSlots;
+
+	/**
+	 * The number of entries.
+	 */
+	int size;
+
+	/**
+	 * The number of arena bytes held by live entries, and by replaced or removed ones.
+	 */
+	long liveBytes;
+	long garbageBytes;
+
+	/**
+	 * Was the dictionary changed since it was opened?
+	 */
+	boolean modified;
+
+	/**
+	 * The format version of the file the dictionary was read from; the file is written back in the same
+	 * version (a new file is written in the default version).
+	 */
+	int formatVersion;
+
+	/**
+	 * A constructor. receives as input a File.
+	 * @param dictFile the dictionary file.
+	 */
+	public OffHeapDictionary(File dictFile) {
+		this.dictFile = dictFile;
+	}
+
+	@Override
+	public void open() throws IOException {
+		reset(MIN_CAPACITY);
+		formatVersion = SWPDWriter.DEFAULT_VERSION;
+
+		// The entries are read sequentially, so there's no need for a sparse index
+		SWPDFile file = SWPDFile.open(dictFile, 0);
+		if (file == null)
+			return;
+
+		formatVersion = file.version();
+		reset(tableCapacity(file.numWords));
+		SWPDFile.Cursor cursor = file.cursor(0);
+		while (cursor.next()) {
+			// Copy the raw keyword and definitions into an arena.
+			ByteBuffer value = cursor.value();
+			int keyLen = cursor.keyLength;
+			int valueLen = value.remaining();
+			long address = allocate(ENTRY_HEADER + keyLen + 1 + valueLen);
+			ByteBuffer arena = arena(address);
+			int pos = (int) address;
+
+			arena.putInt(pos, keyLen);
+			arena.putInt(pos + 4, valueLen);
+			ByteBuffer dst = arena.duplicate();
+			dst.position(pos + ENTRY_HEADER);
+			dst.put(cursor.key, 0, keyLen);
+			dst.put(SWPDFile.SEPARATOR);
+			dst.put(value);
+
+			int hash = Utf8.hash(arena, pos + ENTRY_HEADER, keyLen);
+			int slot = findSlot(arena, pos + ENTRY_HEADER, keyLen, hash);
+			if (slot >= 0) {
+				// A duplicate key (not expected in a SWPD file); the last one wins.
+				garbageBytes += entrySize(slots.get(slot) - 1);
+				liveBytes -= entrySize(slots.get(slot) - 1);
+				slots.put(slot, address + 1);
+			} else {
+				insert(-(slot + 1), address, hash);
+			}
+			liveBytes += entrySize(address);
+		}
+		modified = false;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (modified || !dictFile.exists()) {
+			File tempFile = new File(dictFile.getAbsoluteFile().getParentFile(), dictFile.getName() + ".tmp");
+			SWPDWriter writer = SWPDWriter.create(tempFile, size, formatVersion, BloomFilter.DEFAULT_BITS_PER_KEY,
+					FenceIndex.DEFAULT_INTERVAL, false);
+			try {
+				for (long address : sortedAddresses()) {
+					ByteBuffer arena = arena(address);
+					int pos = (int) address;
+					ByteBuffer entry = arena.duplicate();
+					entry.position(pos + ENTRY_HEADER);
+					entry.limit(pos + ENTRY_HEADER + arena.getInt(pos) + 1 + Math.max(arena.getInt(pos + 4), 0));
+					writer.addEntry(entry);
+				}
+				writer.finish();
+			} catch (IOException e) {
+				writer.abort();
+				tempFile.delete();
+				throw e;
+			}
+			SortedWordfileDictionary.replace(tempFile, dictFile);
+		}
+
+		// Release the off-heap memory (it is freed when the buffers are garbage collected).
+		arenas = null;
+		slots = null;
+		hashes = null;
+	}
+
+	/**
+	 * Empty the dictionary, and allocate a new hash table.
+	 */
+	private void reset(int tableCapacity) {
+		arenas = new ArrayList<ByteBuffer>();
+		capacity = tableCapacity;
+		slots = ByteBuffer.allocateDirect(capacity * 8).asLongBuffer();
+		hashes = ByteBuffer.allocateDirect(capacity * 4).asIntBuffer();
+		usedSlots = 0;
+		size = 0;
+		liveBytes = 0;
+		garbageBytes = 0;
+		modified = true;
+	}
+
+	/**
+	 * Return a table capacity (a power of 2) that can hold a number of entries.
+	 */
+	static int tableCapacity(int entries) {
+		int capacity = MIN_CAPACITY;
+		while (capacity * MAX_LOAD < entries + 1)
+			capacity *= 2;
+		return capacity;
+	}
+
+	/*======= Arenas ======*/
+
+	/**
+	 * Allocate space for an entry.
+	 * @return the address of the entry.
+	 */
+	private long allocate(int len) {
+		ByteBuffer arena = arenas.isEmpty() ? null : arenas.get(arenas.size() - 1);
+		if (arena == null || arena.remaining() < len) {
+			int arenaSize = (arena == null) ? MIN_ARENA_SIZE : (int) Math.min(MAX_ARENA_SIZE, 2L * arena.capacity());
+			arena = ByteBuffer.allocateDirect(Math.max(arenaSize, len));
+			arenas.add(arena);
+		}
+		long address = ((long) (arenas.size() - 1) << 32) | arena.position();
+		arena.position(arena.position() + len);
+		return address;
+	}
+
+	/**
+	 * Write a new entry to an arena.
+	 * @return the address of the entry.
+	 */
+	private long write(byte[] key, byte[] value) {
+		int valueLen = (value == null) ? 0 : value.length;
+		long address = allocate(ENTRY_HEADER + key.length + 1 + valueLen);
+		ByteBuffer arena = arena(address);
+		int pos = (int) address;
+
+		arena.putInt(pos, key.length);
+		arena.putInt(pos + 4, (value == null) ? -1 : value.length);
+		ByteBuffer dst = arena.duplicate();
+		dst.position(pos + ENTRY_HEADER);
+		dst.put(key);
+		dst.put(SWPDFile.SEPARATOR);
+		if (value != null)
+			dst.put(value);
+
+		liveBytes += entrySize(address);
+		return address;
+	}
+
+	private ByteBuffer arena(long address) {
+		return arenas.get((int) (address >>> 32));
+	}
+
+	private int entrySize(long address) {
+		ByteBuffer arena = arena(address);
+		int pos = (int) address;
+		return ENTRY_HEADER + arena.getInt(pos) + 1 + Math.max(arena.getInt(pos + 4), 0);
+	}
+
+	private static String keyAt(List<ByteBuffer> arenas, long address) {
+		ByteBuffer arena = arenas.get((int) (address >>> 32));
+		int pos = (int) address;
+		return decode(arena, pos + ENTRY_HEADER, arena.getInt(pos));
+	}
+
+	private String valueAt(long address) {
+		return valueAt(arenas, address);
+	}
+
+	private static String valueAt(List<ByteBuffer> arenas, long address) {
+		ByteBuffer arena = arenas.get((int) (address >>> 32));
+		int pos = (int) address;
+		int keyLen = arena.getInt(pos);
+		int valueLen = arena.getInt(pos + 4);
+		if (valueLen < 0)
+			return null;
+		return decode(arena, pos + ENTRY_HEADER + keyLen + 1, valueLen);
+	}
+
+	private static String decode(ByteBuffer buf, int pos, int len) {
+		byte[] bytes = new byte[len];
+		ByteBuffer src = buf.duplicate();
+		src.position(pos);
+		src.get(bytes);
+		return new String(bytes, SWPDFile.CHARSET);
+	}
+
+	/**
+	 * Move the live entries to new arenas (dropping the garbage).
+	 */
+	private void compact() {
+		List<ByteBuffer> oldArenas = arenas;
+		arenas = new ArrayList<ByteBuffer>();
+		for (int i = 0; i < capacity; ++i) {
+			long s = slots.get(i);
+			if (s == EMPTY || s == DELETED)
+				continue;
+
+			long oldAddress = s - 1;
+			ByteBuffer src = oldArenas.get((int) (oldAddress >>> 32)).duplicate();
+			int pos = (int) oldAddress;
+			int len = ENTRY_HEADER + src.getInt(pos) + 1 + Math.max(src.getInt(pos + 4), 0);
+
+			long address = allocate(len);
+			src.position(pos);
+			src.limit(pos + len);
+			ByteBuffer dst = arena(address).duplicate();
+			dst.position((int) address);
+			dst.put(src);
+			slots.put(i, address + 1);
+		}
+		garbageBytes = 0;
+	}
+
+	/*======= The hash table ======*/
+
+	/**
+	 * Look for a key in the hash table.
+	 * @return the slot holding the key; otherwise (-(slot where it should be inserted) - 1).
+	 */
+	private int findSlot(ByteBuffer key, int keyPos, int keyLen, int hash) {
+		int mask = capacity - 1;
+		int insertAt = -1;
+		for (int i = hash & mask; ; i = (i + 1) & mask) {
+			long s = slots.get(i);
+			if (s == EMPTY)
+				return -((insertAt >= 0 ? insertAt : i) + 1);
+			if (s == DELETED) {
+				if (insertAt < 0)
+					insertAt = i;
+			} else if (hashes.get(i) == hash) {
+				ByteBuffer arena = arena(s - 1);
+				int pos = (int) (s - 1);
+				if (Utf8.compare(arena, pos + ENTRY_HEADER, arena.getInt(pos), key, keyPos, keyLen) == 0)
+					return i;
+			}
+		}
+	}
+
+	private int findSlot(byte[] key, int hash) {
+		return findSlot(ByteBuffer.wrap(key), 0, key.length, hash);
+	}
+
+	/**
+	 * Put an entry in a free slot.
+	 */
+	private void insert(int slot, long address, int hash) {
+		if (slots.get(slot) == EMPTY)
+			++usedSlots;
+		slots.put(slot, address + 1);
+		hashes.put(slot, hash);
+		++size;
+	}
+
+	/**
+	 * Grow (or just clean) the hash table if too many slots are used.
+	 */
+	private void maybeRehash() {
+		if (usedSlots <= capacity * MAX_LOAD)
+			return;
+
+		LongBuffer oldSlots = slots;
+		IntBuffer oldHashes = hashes;
+		int oldCapacity = capacity;
+
+		capacity = tableCapacity(size);
+		slots = ByteBuffer.allocateDirect(capacity * 8).asLongBuffer();
+		hashes = ByteBuffer.allocateDirect(capacity * 4).asIntBuffer();
+		usedSlots = size;
+
+		int mask = capacity - 1;
+		for (int i = 0; i < oldCapacity; ++i) {
+			long s = oldSlots.get(i);
+			if (s == EMPTY || s == DELETED)
+				continue;
+			int hash = oldHashes.get(i);
+			int j = hash & mask;
+			while (slots.get(j) != EMPTY)
+				j = (j + 1) & mask;
+			slots.put(j, s);
+			hashes.put(j, hash);
+		}
+	}
+
+	private static byte[] encode(Object key) {
+		if (key == null)
+			throw new NullPointerException();
+		return ((String) key).getBytes(SWPDFile.CHARSET);
+	}
+
+	private static int hash(byte[] key) {
+		return Utf8.hash(ByteBuffer.wrap(key), 0, key.length);
+	}
+
+	/*======= Map operations ======*/
+
+	@Override
+	public String get(Object key) {
+		byte[] k = encode(key);
+		int slot = findSlot(k, hash(k));
+		return (slot < 0) ? null : valueAt(slots.get(slot) - 1);
+	}
+
+	/**
+	 * Returns a view of the definition in its arena; an update of the entry may overwrite it in place,
+	 * and a compaction may reuse its space.
+	 */
+	@Override
+	public ByteBuffer getBytes(Object key) {
+		byte[] k = encode(key);
+		int slot = findSlot(k, hash(k));
+		if (slot < 0)
+			return null;
+		long address = slots.get(slot) - 1;
+		ByteBuffer arena = arena(address);
+		int pos = (int) address;
+		int valueLen = arena.getInt(pos + 4);
+		if (valueLen < 0)
+			return null;
+		ByteBuffer value = arena.duplicate();
+		value.position(pos + ENTRY_HEADER + arena.getInt(pos) + 1);
+		value.limit(value.position() + valueLen);
+		return value.slice().asReadOnlyBuffer();
+	}
+
+	@Override
+	public boolean storesBytes() {
+		return true;
+	}
+
+	@Override
+	public String put(String key, String value) {
+		byte[] k = encode(key);
+		byte[] v = (value == null) ? null : value.getBytes(SWPDFile.CHARSET);
+		int hash = hash(k);
+		int slot = findSlot(k, hash);
+		modified = true;
+
+		if (slot >= 0) {
+			long address = slots.get(slot) - 1;
+			String old = valueAt(address);
+			ByteBuffer arena = arena(address);
+			int pos = (int) address;
+			int oldLen = Math.max(arena.getInt(pos + 4), 0);
+
+			if (v != null && v.length <= oldLen) {
+				// The new definition fits in place
+				ByteBuffer dst = arena.duplicate();
+				dst.position(pos + ENTRY_HEADER + k.length + 1);
+				dst.put(v);
+				arena.putInt(pos + 4, v.length);
+				garbageBytes += oldLen - v.length;
+				liveBytes -= oldLen - v.length;
+			} else {
+				garbageBytes += entrySize(address);
+				liveBytes -= entrySize(address);
+				slots.put(slot, write(k, v) + 1);
+				maybeCompact();
+			}
+			return old;
+		}
+
+		insert(-(slot + 1), write(k, v), hash);
+		maybeRehash();
+		return null;
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		byte[] k = encode(key);
+		return findSlot(k, hash(k)) >= 0;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public String remove(Object key) {
+		byte[] k = encode(key);
+		int slot = findSlot(k, hash(k));
+		if (slot < 0)
+			return null;
+
+		long address = slots.get(slot) - 1;
+		String old = valueAt(address);
+		garbageBytes += entrySize(address);
+		liveBytes -= entrySize(address);
+		slots.put(slot, DELETED);
+		--size;
+		modified = true;
+		maybeCompact();
+		return old;
+	}
+
+	private void maybeCompact() {
+		if (garbageBytes > MIN_ARENA_SIZE && garbageBytes > liveBytes)
+			compact();
+	}
+
+	@Override
+	public void clear() {
+		reset(MIN_CAPACITY);
+	}
+
+	@Override
+	public String update(String key, Remapping remapping) {
+		String value = remapping.remap(key, get(key));
+		if (value == null)
+			remove(key);
+		else
+			put(key, value);
+		return value;
+	}
+
+	/*======= Sorted iteration ======*/
+
+	/**
+	 * Return the addresses of the entries, sorted by key.
+	 */
+	long[] sortedAddresses() {
+		return sortedAddresses(null, null);
+	}
+
+	/**
+	 * Return the addresses of the entries whose keys are in a range, sorted by key.
+	 * @param from the UTF-8 encoded least key (inclusive), or null for no lower bound.
+	 * @param to the UTF-8 encoded end of the range (exclusive), or null for no upper bound.
+	 */
+	long[] sortedAddresses(byte[] from, byte[] to) {
+		ByteBuffer fromKey = (from == null) ? null : ByteBuffer.wrap(from);
+		ByteBuffer toKey = (to == null) ? null : ByteBuffer.wrap(to);
+		long[] addresses = new long[(from == null && to == null) ? size : Math.min(size, 16)];
+		int n = 0;
+		for (int i = 0; i < capacity; ++i) {
+			long s = slots.get(i);
+			if (s == EMPTY || s == DELETED)
+				continue;
+			ByteBuffer arena = arena(s - 1);
+			int pos = (int) (s - 1);
+			int keyLen = arena.getInt(pos);
+			if (fromKey != null && Utf8.compare(arena, pos + ENTRY_HEADER, keyLen, fromKey, 0, from.length) < 0)
+				continue;
+			if (toKey != null && Utf8.compare(arena, pos + ENTRY_HEADER, keyLen, toKey, 0, to.length) >= 0)
+				continue;
+			if (n == addresses.length)
+				addresses = Arrays.copyOf(addresses, 2 * n);
+			addresses[n++] = s - 1;
+		}
+		if (n < addresses.length)
+			addresses = Arrays.copyOf(addresses, n);
+		heapSort(addresses);
+		return addresses;
+	}
+
+	private int compareKeys(long a, long b) {
+		ByteBuffer arenaA = arena(a);
+		ByteBuffer arenaB = arena(b);
+		int posA = (int) a;
+		int posB = (int) b;
+		return Utf8.compare(arenaA, posA + ENTRY_HEADER, arenaA.getInt(posA), arenaB, posB + ENTRY_HEADER, arenaB.getInt(posB));
+	}
+
+	/**
+	 * Sort addresses by key, in place.
+	 */
+	private void heapSort(long[] a) {
+		for (int i = a.length / 2 - 1; i >= 0; --i)
+			siftDown(a, i, a.length);
+		for (int end = a.length - 1; end > 0; --end) {
+			long t = a[0];
+			a[0] = a[end];
+			a[end] = t;
+			siftDown(a, 0, end);
+		}
+	}
+
+	private void siftDown(long[] a, int i, int n) {
+		while (2 * i + 1 < n) {
+			int child = 2 * i + 1;
+			if (child + 1 < n && compareKeys(a[child + 1], a[child]) > 0)
+				++child;
+			if (compareKeys(a[i], a[child]) >= 0)
+				return;
+			long t = a[i];
+			a[i] = a[child];
+			a[child] = t;
+			i = child;
+		}
+	}
+
+	/**
+	 * Return the set of keys in alphabetical order.
+	 * The keys are sorted when this method is called; later changes to the dictionary are not reflected.
+	 */
+	public Set<String> keySet() {
+		final long[] addresses = sortedAddresses();
+		
+		// Old arenas are never modified (compaction and clear() allocate new ones), so the keys
+		// can still be read after the dictionary changes or is closed.
+		final List<ByteBuffer> keyArenas = arenas;
+		return new AbstractSet<String>() {
+			@Override
+			public Iterator<String> iterator() {
+				return new Iterator<String>() {
+					int next = 0;
+
+					@Override
+					public boolean hasNext() {
+						return next < addresses.length;
+					}
+
+					@Override
+					public String next() {
+						if (next >= addresses.length)
+							throw new NoSuchElementException();
+						return keyAt(keyArenas, addresses[next++]);
+					}
+
+					@Override
+					public void remove() {
+						throw new UnsupportedOperationException();
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return addresses.length;
+			}
+		};
+	}
+
+	/**
+	 * The hash table has no order, so a scan first selects the entries in the range (comparing the encoded keys,
+	 * without decoding them) and sorts them; the keys and definitions are only decoded as the iterator reaches them.
+	 * Entries added after the scan starts are not reflected.
+	 */
+	@Override
+	public Iterator<Map.Entry<String, String>> scan(String from, String to) {
+		KeyRange.check(from, to);
+		final long[] addresses = sortedAddresses((from == null) ? null : encode(from), (to == null) ? null : encode(to));
+		final List<ByteBuffer> entryArenas = arenas;
+		return new Iterator<Map.Entry<String, String>>() {
+			int next = 0;
+
+			@Override
+			public boolean hasNext() {
+				return next < addresses.length;
+			}
+
+			@Override
+			public Map.Entry<String, String> next() {
+				if (next >= addresses.length)
+					throw new NoSuchElementException();
+				long address = addresses[next++];
+				return new AbstractMap.SimpleImmutableEntry<String, String>(keyAt(entryArenas, address),
+						valueAt(entryArenas, address));
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	@Override
+	public Iterator<Map.Entry<String, String>> prefix(String prefix) {
+		return scan(prefix, KeyRange.prefixEnd(prefix));
+	}
+}
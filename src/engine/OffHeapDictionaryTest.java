@@ -0,0 +1,285 @@
+package engine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+public class OffHeapDictionaryTest extends PersistentDictionaryTest {
+
+	@Override
+	PersistentDictionary getDictionary(File file) throws IOException {
+		return new OffHeapDictionary(file);
+	}
+
+	/**
+	 * A version 1 file is written back as version 1.
+	 */
+	@Test
+	public void keepVersion1() throws Exception {
+		dict.close();
+		dictFile.delete();
+		dict = new SortedWordfileDictionary(dictFile, 1, BloomFilter.DEFAULT_BITS_PER_KEY, FenceIndex.DEFAULT_INTERVAL);
+		dict.open();
+		fillMap(dict, testWords, testDefs);
+		dict.close();
+
+		dict = getDictionary(dictFile);
+		dict.open();
+		fillMap(dict, addWords, addDefs);
+		fillMap(expected, addWords, addDefs);
+		dict.close();
+		assertEquals(1, SWPDFile.open(dictFile, 0).version());
+
+		dict.open();
+		testEquality("Updated version 1 file", expected, dict);
+	}
+
+	/**
+	 * Return the number of arena bytes allocated so far (live and garbage).
+	 */
+	static long allocated(OffHeapDictionary dict) {
+		long bytes = 0;
+		for (ByteBuffer arena : dict.arenas)
+			bytes += arena.position();
+		return bytes;
+	}
+
+	/**
+	 * Check the entries of the dictionary, and its accounting of the arenas and the hash table.
+	 */
+	static void checkEntries(String msg, TreeMap<String, String> entries, OffHeapDictionary dict) {
+		assertEquals(msg + ": size", entries.size(), dict.size());
+		for (Map.Entry<String, String> entry : entries.entrySet())
+			assertEquals(msg + ": definition of " + entry.getKey(), entry.getValue(), dict.get(entry.getKey()));
+		Iterator<Map.Entry<String, String>> it = dict.scan(null, null);
+		for (Map.Entry<String, String> entry : entries.entrySet())
+			assertEquals(msg + ": scan", entry, it.next());
+		assertFalse(msg + ": extra entries", it.hasNext());
+		assertEquals(msg + ": arena bytes", allocated(dict), dict.liveBytes + dict.garbageBytes);
+		assertTrue(msg + ": load", dict.usedSlots <= dict.capacity * OffHeapDictionary.MAX_LOAD);
+	}
+
+	/**
+	 * Decode the remaining bytes of a buffer (without moving its position).
+	 */
+	static String decode(ByteBuffer buf) {
+		byte[] bytes = new byte[buf.remaining()];
+		buf.duplicate().get(bytes);
+		return new String(bytes, SWPDFile.CHARSET);
+	}
+
+	/**
+	 * Return a definition of about a hundred bytes that differs by a counter.
+	 */
+	static String definition(String key, int n) {
+		StringBuilder def = new StringBuilder(key).append(':').append(n);
+		while (def.length() < 100 + n % 7)
+			def.append(" definition");
+		return def.toString();
+	}
+
+	/**
+	 * Definitions that are replaced (by longer ones) and removed leave garbage in the arenas, which
+	 * is compacted away; key sets and scans taken before the compaction still read their entries.
+	 */
+	@Test
+	public void compaction() throws Exception {
+		OffHeapDictionary dict = (OffHeapDictionary) this.dict;
+		TreeMap<String, String> entries = new TreeMap<String, String>(expected);
+		for (int i = 0; i < 500; ++i) {
+			entries.put("word" + i, definition("word" + i, 0));
+			dict.put("word" + i, definition("word" + i, 0));
+		}
+		checkEntries("Before compaction", entries, dict);
+		assertEquals(0, dict.garbageBytes);
+
+		// Iterators over the dictionary as it is now, one of them half consumed
+		TreeMap<String, String> snapshot = new TreeMap<String, String>(entries);
+		Iterator<String> keys = dict.keySet().iterator();
+		Iterator<Map.Entry<String, String>> scan = dict.scan(null, null);
+		Iterator<Map.Entry<String, String>> started = dict.scan("word", "wordz");
+		Iterator<Map.Entry<String, String>> expectedStarted = snapshot.subMap("word", "wordz").entrySet().iterator();
+		for (int i = 0; i < 100; ++i)
+			assertEquals(expectedStarted.next(), started.next());
+
+		// Longer definitions don't fit in place, so every round leaves the old ones as garbage
+		List<ByteBuffer> arenas = dict.arenas;
+		int compactions = 0;
+		for (int round = 1; round <= 20; ++round) {
+			for (int i = 0; i < 500; ++i) {
+				String def = definition("word" + i, round) + " " + round;
+				entries.put("word" + i, def);
+				dict.put("word" + i, def);
+			}
+			dict.remove("word" + round);
+			entries.remove("word" + round);
+			if (dict.arenas != arenas) {
+				++compactions;
+				arenas = dict.arenas;
+			}
+			assertTrue("Garbage should have been compacted",
+					dict.garbageBytes <= OffHeapDictionary.MIN_ARENA_SIZE || dict.garbageBytes <= dict.liveBytes);
+		}
+		assertTrue("The arenas should have been compacted", compactions > 0);
+		checkEntries("After compaction", entries, dict);
+
+		// The iterators read the entries as they were
+		for (String key : snapshot.keySet())
+			assertEquals("Key set after compaction", key, keys.next());
+		assertFalse(keys.hasNext());
+		for (Map.Entry<String, String> entry : snapshot.entrySet())
+			assertEquals("Scan after compaction", entry, scan.next());
+		assertFalse(scan.hasNext());
+		while (expectedStarted.hasNext())
+			assertEquals("Scan started before compaction", expectedStarted.next(), started.next());
+		assertFalse(started.hasNext());
+
+		dict.close();
+		dict.open();
+		checkEntries("After reopening", entries, dict);
+	}
+
+	/**
+	 * Removed entries leave deleted slots, which are reused by later inserts and dropped when the table
+	 * is rehashed, so a dictionary of constant size doesn't grow its table.
+	 */
+	@Test
+	public void deletedSlots() throws Exception {
+		OffHeapDictionary dict = (OffHeapDictionary) this.dict;
+		TreeMap<String, String> entries = new TreeMap<String, String>(expected);
+
+		// Growing from the smallest table
+		dict.clear();
+		entries.clear();
+		assertEquals(OffHeapDictionary.MIN_CAPACITY, dict.capacity);
+		for (int i = 0; i < 1000; ++i) {
+			entries.put("key" + i, "value" + i);
+			dict.put("key" + i, "value" + i);
+		}
+		checkEntries("After growing", entries, dict);
+		assertEquals(OffHeapDictionary.tableCapacity(1000), dict.capacity);
+		int capacity = dict.capacity;
+
+		// A removed key put back reuses its deleted slot
+		int usedSlots = dict.usedSlots;
+		assertEquals("value7", dict.remove("key7"));
+		assertEquals(usedSlots, dict.usedSlots);
+		assertFalse(dict.containsKey("key7"));
+		assertNull(dict.put("key7", "again"));
+		entries.put("key7", "again");
+		assertEquals(usedSlots, dict.usedSlots);
+
+		// Removing and adding keys fills the table with deleted slots, which rehashing drops
+		LongBuffer slots = dict.slots;
+		int rehashes = 0;
+		for (int i = 0; i < 20000; ++i) {
+			String removed = "key" + (i * 7) % 1000;
+			if (i >= 1000)
+				removed = "new" + (i - 1000);
+			assertEquals(entries.remove(removed), dict.remove(removed));
+			entries.put("new" + i, "value" + i);
+			dict.put("new" + i, "value" + i);
+			assertTrue(dict.usedSlots <= dict.capacity * OffHeapDictionary.MAX_LOAD);
+			if (dict.slots != slots) {
+				++rehashes;
+				slots = dict.slots;
+				assertEquals("Deleted slots should have been dropped", dict.size(), dict.usedSlots);
+			}
+		}
+		assertEquals(1000, dict.size());
+		assertTrue("The table should have been rehashed", rehashes > 0);
+		assertEquals("The table shouldn't have grown", capacity, dict.capacity);
+		checkEntries("After removing and adding", entries, dict);
+
+		dict.close();
+		dict.open();
+		checkEntries("After reopening", entries, dict);
+	}
+
+	/**
+	 * A definition that is not longer than the old one is written over it, without allocating.
+	 */
+	@Test
+	public void overwriteInPlace() throws Exception {
+		OffHeapDictionary dict = (OffHeapDictionary) this.dict;
+		dict.put("word", "a long definition");
+		long allocated = allocated(dict);
+		long garbage = dict.garbageBytes;
+
+		assertEquals("a long definition", dict.put("word", "shorter"));
+		assertEquals("shorter", dict.get("word"));
+		assertEquals(allocated, allocated(dict));
+		assertEquals(garbage + "a long definition".length() - "shorter".length(), dict.garbageBytes);
+
+		assertEquals("shorter", dict.put("word", "shorten"));
+		assertEquals("shorten", dict.put("word", ""));
+		assertEquals(allocated, allocated(dict));
+
+		// A longer definition, or a null one, is written to a new entry
+		assertEquals("", dict.put("word", "longer than before"));
+		assertTrue(allocated(dict) > allocated);
+		assertEquals("longer than before", dict.put("word", null));
+		assertNull(dict.get("word"));
+		assertTrue(dict.containsKey("word"));
+
+		expected.put("word", "");
+		dict.close();
+		dict.open();
+		testEquality("After overwriting", expected, dict);
+	}
+
+	/**
+	 * getBytes returns a read-only view of the definition in its arena.
+	 */
+	@Test
+	public void bytesView() throws Exception {
+		OffHeapDictionary dict = (OffHeapDictionary) this.dict;
+		String def = "d\u00e9finition";
+		dict.put("word", def);
+		dict.put("null", null);
+
+		ByteBuffer view = dict.getBytes("word");
+		assertEquals(0, view.position());
+		assertEquals(def.getBytes(SWPDFile.CHARSET).length, view.remaining());
+		assertEquals(def, decode(view));
+		assertTrue(view.isReadOnly());
+		try {
+			view.put(0, (byte) 'x');
+			fail("The view of a definition should be read-only");
+		} catch (ReadOnlyBufferException e) {
+			// Expected
+		}
+
+		// Each call returns its own view, whose position is independent of the others
+		ByteBuffer other = dict.getBytes("word");
+		other.get();
+		assertEquals(0, dict.getBytes("word").position());
+		assertEquals(0, view.position());
+
+		assertNull(dict.getBytes("missing"));
+		assertNull(dict.getBytes("null"));
+		assertEquals(0, dict.getBytes("CAB").remaining());
+
+		// An update that fits in place writes over the viewed bytes
+		dict.put("word", "new");
+		ByteBuffer start = view.duplicate();
+		start.limit(3);
+		assertEquals("new", decode(start));
+		assertEquals("new", decode(dict.getBytes("word")));
+	}
+
+}
@@ -2,6 +2,9 @@ package engine;
 
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Map;
 
 /**
  * Stores a dictionary: a map of words to definitions.
@@ -47,6 +50,31 @@ public interface PersistentDictionary {
 	 * @throws NullPointerException if the specified key is null
 	 */
 	public String get(Object key);
+
+	/**
+	 * Returns the value to which the specified key is mapped as UTF-8 bytes, without decoding it
+	 * (see {@link #get(Object)}). A dictionary that keeps its values as bytes outside the heap (in a mapped file or
+	 * an off-heap arena) returns a view of the stored bytes, so callers that parse the value or forward it
+	 * don't copy it; other dictionaries return the encoded value. {@link Utf8Chars} reads the buffer as characters.
+	 *
+	 * A view is only valid until the dictionary is next modified or closed.
+	 *
+	 * @param key the key whose associated value is to be returned
+	 * @return a read-only buffer whose remaining bytes are the value, or null if this map contains no mapping for the key
+	 * 	(or maps it to null)
+	 * @throws ClassCastException if the key is of an inappropriate type for this map
+	 * @throws NullPointerException if the specified key is null
+	 */
+	public ByteBuffer getBytes(Object key);
+
+	/**
+	 * Returns true if this dictionary keeps its values as UTF-8 bytes, so {@link #getBytes(Object)} returns them
+	 * without encoding them (and {@link #get(Object)} decodes them). Otherwise, {@link #getBytes(Object)} encodes
+	 * the value that {@link #get(Object)} returns, and callers that only read the value should call get().
+	 *
+	 * @return true if getBytes returns the stored bytes
+	 */
+	public boolean storesBytes();
 	
 	/**
 	 * Associates the specified value with the specified key in this map. 
@@ -103,4 +131,60 @@ public interface PersistentDictionary {
 	 */
 	public void clear();
 
+
+	/*======= Read-modify-write ======*/
+
+	/**
+	 * Computes a new value for a key from its current value (see {@link PersistentDictionary#update(String, Remapping)}).
+	 */
+	public interface Remapping {
+		/**
+		 * @param key the key being updated.
+		 * @param value the current value of the key, or null if there is no mapping for the key.
+		 * @return the new value, or null to remove the mapping.
+		 */
+		public String remap(String key, String value);
+	}
+
+	/**
+	 * Replaces the value of a key with a value computed from the current one, atomically: in a dictionary
+	 * that may be updated concurrently, no other update of the key can come between reading the current value
+	 * and writing the new one. If the remapping returns null, the mapping is removed (if there is one).
+	 *
+	 * The remapping may be called more than once (when a concurrent update of the key forces a retry),
+	 * so it should not have side effects.
+	 *
+	 * @param key the key whose value is to be computed
+	 * @param remapping computes the new value from the current value
+	 * @return the new value associated with the key, or null if there is none
+	 * @throws NullPointerException if the specified key is null
+	 */
+	public String update(String key, Remapping remapping);
+
+
+	/*======= Ordered scans ======*/
+
+	/**
+	 * Returns the entries whose keys are in a range, in alphabetical order (the order of {@link String#compareTo(String)}).
+	 * The entries are produced lazily as the iterator advances, so a scan of a file-backed dictionary
+	 * doesn't load the dictionary into memory.
+	 * If the dictionary is modified during the scan, the iterator may or may not reflect the changes
+	 * (and may throw a {@link java.util.ConcurrentModificationException}).
+	 *
+	 * @param from the least key in the range (inclusive), or null to start at the first key
+	 * @param to the end of the range (exclusive), or null to scan to the last key
+	 * @return an iterator over the entries in the range; its entries are immutable, and it doesn't support remove()
+	 * @throws IllegalArgumentException if from is greater than to
+	 */
+	public Iterator<Map.Entry<String, String>> scan(String from, String to);
+
+	/**
+	 * Returns the entries whose keys start with a prefix, in alphabetical order (see {@link #scan(String, String)}).
+	 *
+	 * @param prefix the prefix of the keys
+	 * @return an iterator over the entries whose keys start with the prefix
+	 * @throws NullPointerException if the prefix is null
+	 */
+	public Iterator<Map.Entry<String, String>> prefix(String prefix);
+
 }
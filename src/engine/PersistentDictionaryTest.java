@@ -9,6 +9,7 @@ import static org.junit.Assert.fail;
 import java.io.File;
 import java.io.IOException;
 import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
@@ -380,4 +381,126 @@ public abstract class PersistentDictionaryTest {
 		testEquality("Persistent comparison after clear()", expected, dict);
 	}
 
+	/**
+	 * Check that update replaces, adds and removes elements, in memory and after reopening.
+	 * @throws Exception
+	 */
+	@Test
+	public void updateTest() throws Exception  {
+		PersistentDictionary.Remapping append = new PersistentDictionary.Remapping() {
+			@Override
+			public String remap(String key, String value) {
+				return (value == null) ? key : value + "+" + key;
+			}
+		};
+		PersistentDictionary.Remapping remove = new PersistentDictionary.Remapping() {
+			@Override
+			public String remap(String key, String value) {
+				return null;
+			}
+		};
+
+		assertEquals("Some definition+Second", dict.update("Second", append));
+		assertEquals("Third", dict.update("Third", append));
+		assertEquals(null, dict.update("CAB", remove));
+		assertEquals(null, dict.update("Fourth", remove));
+		expected.put("Second", "Some definition+Second");
+		expected.put("Third", "Third");
+		expected.remove("CAB");
+		testEquality("In-memory update", expected, dict);
+
+		// close and reopen dictionary
+		dict.close();
+		dict = getDictionary(dictFile);
+		dict.open();
+		testEquality("Persistent update", expected, dict);
+	}
+
+	/**
+	 * Check that getBytes returns the UTF-8 encoding of every definition, and null for missing keys.
+	 */
+	void testBytes(String msg, Map<String, String> map, PersistentDictionary dict) {
+		for (Map.Entry<String, String> entry : map.entrySet()) {
+			ByteBuffer bytes = dict.getBytes(entry.getKey());
+			assertNotNull(msg + ": no bytes for " + entry.getKey(), bytes);
+			assertTrue(msg + ": the bytes of " + entry.getKey() + " are writable", bytes.isReadOnly());
+			assertEquals(msg, entry.getValue(), SWPDFile.decode(bytes));
+			assertEquals(msg + ": view of " + entry.getKey(), entry.getValue(), new Utf8Chars(bytes).toString());
+		}
+		assertEquals(msg + ": bytes for a missing key", null, dict.getBytes("No such word"));
+	}
+
+	/**
+	 * Check zero-copy lookups of definitions that were saved to the file, and of definitions updated since.
+	 * @throws Exception
+	 */
+	@Test
+	public void getBytesTest() throws Exception {
+		dict.close();
+		dict = getDictionary(dictFile);
+		dict.open();
+		testBytes("Saved definitions", expected, dict);
+
+		fillMap(expected, addWords, addDefs);
+		fillMap(dict, addWords, addDefs);
+		expected.remove("BBA");
+		dict.remove("BBA");
+		expected.put("Caf\u00e9", "d\u00e9finition \ud83d\ude00");
+		dict.put("Caf\u00e9", "d\u00e9finition \ud83d\ude00");
+		testBytes("Updated definitions", expected, dict);
+
+		dict.close();
+		dict = getDictionary(dictFile);
+		dict.open();
+		testBytes("Reopened definitions", expected, dict);
+	}
+
+	/**
+	 * Compare the entries of a range of a Java map to the entries returned by a scan.
+	 */
+	void testScan(String msg, Map<String, String> range, Iterator<Map.Entry<String, String>> scan) {
+		for (Map.Entry<String, String> entry : range.entrySet()) {
+			assertTrue(msg + ": scan ran out of entries before " + entry.getKey(), scan.hasNext());
+			Map.Entry<String, String> scanned = scan.next();
+			assertEquals(msg, entry.getKey(), scanned.getKey());
+			assertEquals(msg + ": wrong definition for " + entry.getKey(), entry.getValue(), scanned.getValue());
+		}
+		assertTrue(msg + ": scan returned extra entries", !scan.hasNext());
+	}
+
+	/**
+	 * Check range and prefix scans, over entries that were saved to the file and entries that were updated since.
+	 * @throws Exception
+	 */
+	@Test
+	public void scanTest() throws Exception {
+		dict.close();
+		dict = getDictionary(dictFile);
+		dict.open();
+
+		fillMap(expected, addWords, addDefs);
+		fillMap(dict, addWords, addDefs);
+		expected.remove("BBA");
+		dict.remove("BBA");
+
+		testScan("Full scan", expected, dict.scan(null, null));
+		testScan("Range scan", expected.subMap("BBA", "Second"), dict.scan("BBA", "Second"));
+		testScan("Range scan from a missing key", expected.subMap("B", "T"), dict.scan("B", "T"));
+		testScan("Open-ended scan", expected.tailMap("CAB"), dict.scan("CAB", null));
+		testScan("Scan to a key", expected.headMap("First"), dict.scan(null, "First"));
+		testScan("Empty scan", expected.subMap("Q", "Q"), dict.scan("Q", "Q"));
+
+		testScan("Prefix scan", expected.subMap("S", "T"), dict.prefix("S"));
+		testScan("Prefix scan of a whole key", expected.subMap("Third", "Thire"), dict.prefix("Third"));
+		testScan("Prefix scan with no match", expected.subMap("x", "y"), dict.prefix("x"));
+		testScan("Empty prefix", expected, dict.prefix(""));
+
+		try {
+			dict.scan("Second", "First");
+			fail("A scan with from > to was accepted");
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+	}
+
 }
@@ -0,0 +1,444 @@
+package engine;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Builds a SWPD file (see {@link SortedWordfileDictionary}) from an unsorted text dictionary
+ * (<pre>word:def1:def2:...</pre>, one word per line) that may be much larger than the heap.
+ *
+ * The builder is an external merge sort. The input is split at line boundaries into runs of about
+ * {@link #runBytes} bytes; each run is parsed and sorted by a {@link WordfileLoader} chunk (on a pool of threads),
+ * and spilled to a temporary file as soon as it's sorted, so only the runs being sorted are held in memory.
+ * The runs are then merged: if there are more than {@link #fanIn} of them, groups of runs are merged into
+ * larger runs first, and the final merge streams the entries to a {@link SWPDWriter}. The final merge is done twice:
+ * once to count the distinct words (the writer must know the count in advance) and once to write them.
+ *
+ * As in {@link WordfileLoader}, if a word appears more than once, the last definition wins, and malformed lines
+ * are skipped and reported.
+ */
+public class SWPDBuilder {
+
+	/**
+	 * The default maximal number of runs merged at once.
+	 */
+	static final int DEFAULT_FAN_IN = 64;
+
+	/**
+	 * The bounds of the default run size.
+	 */
+	static final long MIN_RUN_BYTES = 1 << 20;
+	static final long MAX_RUN_BYTES = 64 << 20;
+
+	/**
+	 * The size of the buffer of each run file, when it is written or merged.
+	 */
+	static final int RUN_BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * The input file.
+	 */
+	final File input;
+
+	/**
+	 * The number of threads that sort runs.
+	 */
+	final int threads;
+
+	/**
+	 * The number of input bytes in a run.
+	 */
+	final long runBytes;
+
+	/**
+	 * The maximal number of runs merged at once.
+	 */
+	final int fanIn;
+
+	/**
+	 * The directory of the temporary run files.
+	 */
+	final File tempDir;
+
+	/**
+	 * The (1-based) numbers of the malformed lines found by the last {@link #build(File)}.
+	 */
+	List<Long> malformedLines = new ArrayList<Long>();
+
+	/**
+	 * A constructor, with a thread per core and runs sized to fit in the heap.
+	 */
+	public SWPDBuilder(File input) {
+		this(input, Runtime.getRuntime().availableProcessors(), defaultRunBytes(Runtime.getRuntime().availableProcessors()));
+	}
+
+	/**
+	 * A constructor.
+	 * @param input the text dictionary.
+	 * @param threads the number of threads that sort runs (each of them holds a parsed run in memory).
+	 * @param runBytes the number of input bytes in a run. A parsed run takes a few times as much heap.
+	 */
+	public SWPDBuilder(File input, int threads, long runBytes) {
+		this(input, threads, runBytes, DEFAULT_FAN_IN, null);
+	}
+
+	SWPDBuilder(File input, int threads, long runBytes, int fanIn, File tempDir) {
+		this.input = input;
+		this.threads = Math.max(1, threads);
+		this.runBytes = Math.max(1, runBytes);
+		this.fanIn = Math.max(2, fanIn);
+		this.tempDir = tempDir;
+	}
+
+	/**
+	 * Return a run size that lets the given number of threads hold their parsed runs in about half the heap.
+	 */
+	static long defaultRunBytes(int threads) {
+		long perThread = Runtime.getRuntime().maxMemory() / 2 / Math.max(1, threads);
+		// Parsed entries (Strings, in UTF-16, and their map entries) take about 4 times the bytes of the input
+		return Math.max(MIN_RUN_BYTES, Math.min(MAX_RUN_BYTES, perThread / 4));
+	}
+
+	/**
+	 * Return the (1-based) numbers of the malformed lines found by the last {@link #build(File)}.
+	 */
+	public List<Long> getMalformedLines() {
+		return malformedLines;
+	}
+
+	/**
+	 * Build a SWPD file. The file is written to a temporary file, and then renamed over the output file.
+	 * @param output the SWPD file to write.
+	 * @return the number of words in the file.
+	 * @throws MalformedDictionaryException if malformed lines were skipped (the file is built anyway).
+	 */
+	public int build(File output) throws IOException {
+		File dir = (tempDir != null) ? tempDir : output.getAbsoluteFile().getParentFile();
+		List<File> runs = new ArrayList<File>();
+		try {
+			sortRuns(dir, runs);
+			while (runs.size() > fanIn)
+				mergeRuns(dir, runs);
+
+			int numWords = count(runs);
+			File tempFile = new File(output.getAbsoluteFile().getParentFile(), output.getName() + ".tmp");
+			SWPDWriter writer = SWPDWriter.create(tempFile, numWords);
+			try {
+				Merger merger = new Merger(runs);
+				try {
+					while (merger.next())
+						writer.add(ByteBuffer.wrap(merger.key), ByteBuffer.wrap(merger.value));
+				} finally {
+					merger.close();
+				}
+				writer.finish();
+			} catch (IOException e) {
+				writer.abort();
+				tempFile.delete();
+				throw e;
+			}
+			SortedWordfileDictionary.replace(tempFile, output);
+
+			if (!malformedLines.isEmpty())
+				throw new MalformedDictionaryException(input, malformedLines);
+			return numWords;
+		} finally {
+			for (File run : runs)
+				run.delete();
+		}
+	}
+
+	/*======= Sorting runs ======*/
+
+	/**
+	 * Split the input into runs, and sort them on a pool of threads.
+	 * @param runs the sorted run files, in input order (filled in).
+	 */
+	private void sortRuns(final File dir, List<File> runs) throws IOException {
+		FileChannel channel = FileChannel.open(input.toPath(), StandardOpenOption.READ);
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		List<Future<WordfileLoader.Chunk>> results = new ArrayList<Future<WordfileLoader.Chunk>>();
+		try {
+			WordfileLoader loader = new WordfileLoader(input, 1);
+			long size = channel.size();
+			long start = 0;
+			while (start < size) {
+				long end = WordfileLoader.nextLineStart(channel, Math.min(start + runBytes, size), size);
+				final WordfileLoader.Chunk chunk = loader.new Chunk(channel, start, end);
+				final File run = File.createTempFile("run", ".tmp", dir);
+				runs.add(run);
+				results.add(executor.submit(new Callable<WordfileLoader.Chunk>() {
+					@Override
+					public WordfileLoader.Chunk call() throws IOException {
+						chunk.call();
+						writeRun(run, chunk.entries);
+						chunk.entries = null;
+						return chunk;
+					}
+				}));
+				start = end;
+			}
+
+			// Collect the malformed lines, numbered from the start of the file.
+			malformedLines = new ArrayList<Long>();
+			long firstLine = 1;
+			for (Future<WordfileLoader.Chunk> result : results) {
+				WordfileLoader.Chunk chunk = result.get();
+				for (int line : chunk.malformed)
+					malformedLines.add(firstLine + line);
+				firstLine += chunk.lines;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while sorting " + input);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new IOException("Failed to sort " + input, e.getCause());
+		} finally {
+			executor.shutdownNow();
+			channel.close();
+		}
+	}
+
+	/**
+	 * Write sorted entries to a run file.
+	 */
+	static void writeRun(File run, List<Map.Entry<String, String>> entries) throws IOException {
+		RunWriter writer = new RunWriter(run);
+		try {
+			for (Map.Entry<String, String> entry : entries) {
+				writer.write(entry.getKey().getBytes(SWPDFile.CHARSET), entry.getValue().getBytes(SWPDFile.CHARSET));
+			}
+		} finally {
+			writer.close();
+		}
+	}
+
+	/*======= Merging runs ======*/
+
+	/**
+	 * Merge groups of {@link #fanIn} consecutive runs, replacing them in the list by the merged runs.
+	 * Consecutive runs are merged, so a later definition of a word still comes from a later run.
+	 */
+	private void mergeRuns(File dir, List<File> runs) throws IOException {
+		List<File> merged = new ArrayList<File>();
+		try {
+			for (int i = 0; i < runs.size(); i += fanIn) {
+				List<File> group = runs.subList(i, Math.min(i + fanIn, runs.size()));
+				File run = File.createTempFile("run", ".tmp", dir);
+				merged.add(run);
+				RunWriter writer = new RunWriter(run);
+				try {
+					Merger merger = new Merger(group);
+					try {
+						while (merger.next())
+							writer.write(merger.key, merger.value);
+					} finally {
+						merger.close();
+					}
+				} finally {
+					writer.close();
+				}
+			}
+		} catch (IOException e) {
+			for (File run : merged)
+				run.delete();
+			throw e;
+		}
+
+		for (File run : runs)
+			run.delete();
+		runs.clear();
+		runs.addAll(merged);
+	}
+
+	/**
+	 * Return the number of distinct words in the runs.
+	 */
+	private static int count(List<File> runs) throws IOException {
+		int count = 0;
+		Merger merger = new Merger(runs);
+		try {
+			while (merger.next())
+				++count;
+		} finally {
+			merger.close();
+		}
+		return count;
+	}
+
+	/**
+	 * Writes a run file: a sequence of entries, each a key length (32 bits), a value length (32 bits), the key and
+	 * the value (UTF-8), ending with a key length of -1.
+	 */
+	static class RunWriter {
+		final DataOutputStream out;
+
+		RunWriter(File run) throws IOException {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), RUN_BUFFER_SIZE));
+		}
+
+		void write(byte[] key, byte[] value) throws IOException {
+			out.writeInt(key.length);
+			out.writeInt(value.length);
+			out.write(key);
+			out.write(value);
+		}
+
+		void close() throws IOException {
+			try {
+				out.writeInt(-1);
+			} finally {
+				out.close();
+			}
+		}
+	}
+
+	/**
+	 * Reads a run file, an entry at a time.
+	 */
+	static class RunReader implements Comparable<RunReader> {
+		final int run;
+		final DataInputStream in;
+		byte[] key;
+		byte[] value;
+
+		RunReader(int run, File file) throws IOException {
+			this.run = run;
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), RUN_BUFFER_SIZE));
+		}
+
+		/**
+		 * Read the next entry.
+		 * @return false at the end of the run.
+		 */
+		boolean advance() throws IOException {
+			int keyLength = in.readInt();
+			if (keyLength < 0) {
+				key = value = null;
+				return false;
+			}
+			key = new byte[keyLength];
+			value = new byte[in.readInt()];
+			in.readFully(key);
+			in.readFully(value);
+			return true;
+		}
+
+		@Override
+		public int compareTo(RunReader other) {
+			int cmp = compareKeys(key, other.key);
+			return (cmp != 0) ? cmp : (run - other.run);
+		}
+	}
+
+	static int compareKeys(byte[] a, byte[] b) {
+		return Utf8.compare(ByteBuffer.wrap(a), 0, a.length, ByteBuffer.wrap(b), 0, b.length);
+	}
+
+	/**
+	 * A k-way merge of sorted runs; the heap holds the next entry of each run (ordered by key, then by run).
+	 * If a key appears in more than one run, the entry from the last run wins.
+	 */
+	static class Merger {
+		final PriorityQueue<RunReader> heap;
+		final List<RunReader> readers = new ArrayList<RunReader>();
+
+		/**
+		 * The current entry.
+		 */
+		byte[] key;
+		byte[] value;
+
+		Merger(List<File> runs) throws IOException {
+			heap = new PriorityQueue<RunReader>(Math.max(1, runs.size()));
+			try {
+				for (int i = 0; i < runs.size(); ++i) {
+					RunReader reader = new RunReader(i, runs.get(i));
+					readers.add(reader);
+					if (reader.advance())
+						heap.add(reader);
+				}
+			} catch (IOException e) {
+				close();
+				throw e;
+			}
+		}
+
+		/**
+		 * Move to the next distinct key.
+		 * @return false when the runs are exhausted.
+		 */
+		boolean next() throws IOException {
+			if (heap.isEmpty())
+				return false;
+			RunReader reader = heap.poll();
+			key = reader.key;
+			value = reader.value;
+			if (reader.advance())
+				heap.add(reader);
+
+			// Later runs override earlier ones
+			while (!heap.isEmpty() && compareKeys(heap.peek().key, key) == 0) {
+				reader = heap.poll();
+				value = reader.value;
+				if (reader.advance())
+					heap.add(reader);
+			}
+			return true;
+		}
+
+		void close() throws IOException {
+			for (RunReader reader : readers)
+				reader.in.close();
+		}
+	}
+
+	/*======= Command line ======*/
+
+	/**
+	 * Build a SWPD file from a text dictionary.
+	 * Usage: <pre>SWPDBuilder input output [threads [runMegabytes]]</pre>
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.err.println("Usage: SWPDBuilder input output [threads [runMegabytes]]");
+			System.exit(1);
+		}
+		File input = new File(args[0]);
+		File output = new File(args[1]);
+		int threads = (args.length > 2) ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+		long runBytes = (args.length > 3) ? Long.parseLong(args[3]) << 20 : defaultRunBytes(threads);
+
+		long start = System.nanoTime();
+		SWPDBuilder builder = new SWPDBuilder(input, threads, runBytes);
+		int numWords;
+		try {
+			numWords = builder.build(output);
+		} catch (MalformedDictionaryException e) {
+			System.err.println(e.getMessage());
+			numWords = -1;
+		}
+		System.out.println("Built " + output + (numWords >= 0 ? " (" + numWords + " words)" : "") + " in "
+				+ (System.nanoTime() - start) / 1000000 + " ms");
+	}
+}
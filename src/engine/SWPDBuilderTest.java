@@ -0,0 +1,115 @@
+package engine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test building SWPD files with {@link SWPDBuilder}.
+ */
+public class SWPDBuilderTest {
+
+	File inputFile;
+	File outputFile;
+
+	@Before
+	public void initializing() throws IOException {
+		inputFile = File.createTempFile("BuilderTest", ".txt");
+		outputFile = File.createTempFile("BuilderTest", ".swpd");
+	}
+
+	@After
+	public void closing() {
+		inputFile.delete();
+		outputFile.delete();
+	}
+
+	void writeInput(String text) throws IOException {
+		Writer writer = new OutputStreamWriter(new FileOutputStream(inputFile), SWPDFile.CHARSET);
+		try {
+			writer.write(text);
+		} finally {
+			writer.close();
+		}
+	}
+
+	/**
+	 * Check that the SWPD file holds exactly the expected entries, in order.
+	 */
+	void checkOutput(TreeMap<String, String> expected) throws IOException {
+		SortedWordfileDictionary dict = new SortedWordfileDictionary(outputFile);
+		dict.open();
+		assertEquals(expected.size(), dict.size());
+		Iterator<String> keys = dict.keySet().iterator();
+		for (String key : expected.keySet()) {
+			assertTrue(keys.hasNext());
+			assertEquals(key, keys.next());
+			assertEquals(expected.get(key), dict.get(key));
+		}
+		assertTrue(!keys.hasNext());
+	}
+
+	/**
+	 * Many small runs, merged in several passes: later definitions win, and the keys are sorted
+	 * in String order (including characters outside the BMP).
+	 */
+	@Test
+	public void multiPassMerge() throws IOException {
+		String[] keys = { "dog", "cat", "Cat", "\u00e9clair", "\ud83d\ude00", "\uff21", "" };
+		TreeMap<String, String> expected = new TreeMap<String, String>();
+		StringBuilder input = new StringBuilder();
+		Random random = new Random(1);
+		for (int i = 0; i < 2000; ++i) {
+			String key = (i % 3 == 0) ? keys[random.nextInt(keys.length)] : "word" + random.nextInt(700);
+			String value = "def" + i + ":more";
+			expected.put(key, value);
+			input.append(key).append(':').append(value).append((i % 2 == 0) ? "\n" : "\r\n");
+		}
+		writeInput(input.toString());
+
+		SWPDBuilder builder = new SWPDBuilder(inputFile, 3, 512, 4, null);
+		assertEquals(expected.size(), builder.build(outputFile));
+		checkOutput(expected);
+	}
+
+	/**
+	 * Malformed lines are reported (with their line numbers), and the rest of the file is built.
+	 */
+	@Test
+	public void malformedLines() throws IOException {
+		writeInput("b:2\nno colon here\na:1\n\nc\n");
+		SWPDBuilder builder = new SWPDBuilder(inputFile, 2, 4, 2, null);
+		try {
+			builder.build(outputFile);
+			fail("Malformed lines were not reported");
+		} catch (MalformedDictionaryException e) {
+			assertEquals(Arrays.asList(2L, 5L), e.getLines());
+		}
+
+		TreeMap<String, String> expected = new TreeMap<String, String>();
+		expected.put("a", "1");
+		expected.put("b", "2");
+		checkOutput(expected);
+	}
+
+	@Test
+	public void emptyInput() throws IOException {
+		writeInput("");
+		assertEquals(0, new SWPDBuilder(inputFile).build(outputFile));
+		checkOutput(new TreeMap<String, String>());
+	}
+}
@@ -0,0 +1,537 @@
+package engine;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A read-only view of a SWPD file (see {@link SortedWordfileDictionary} for the formats).
+ *
+ * The file is mapped into memory with {@link FileChannel#map}, so opening it only reads the
+ * header: entries are paged in by the operating system when a lookup touches them.
+ * Since a single mapping is limited to 2GB, the file is mapped as a sequence of segments;
+ * reads that straddle a segment boundary are assembled byte by byte.
+ *
+ * This class handles what the format versions have in common (the mapping, and the trailer of
+ * extension blocks); {@link SWPDFileV1} and {@link SWPDFileV2} read the entries themselves.
+ * {@link #open(File, int)} picks the version by the file's magic.
+ *
+ * If a {@link FenceIndex} is kept on the heap, lookups start with a search of the fence keys and
+ * then only scan a single block of entries. If the file has a Bloom filter block, keys that are
+ * not in the file are usually rejected without touching the entries at all.
+ * Null definitions are not supported by the formats: they are stored (and read back)
+ * as empty definitions.
+ */
+abstract class SWPDFile {
+
+	/**
+	 * The character set used to encode word entries.
+	 */
+	static final Charset CHARSET = Charset.forName("UTF-8");
+
+	/**
+	 * The separator between a keyword and its definitions.
+	 */
+	static final byte SEPARATOR = ':';
+
+	/**
+	 * The constant "magic" at the end of a file that has extension blocks.
+	 */
+	static final byte[] TRAILER_MAGIC = { 'S', 'W', 'P', 'X' };
+
+	/**
+	 * The size of a block directory entry (tag + 64 bit offset + 32 bit length).
+	 */
+	static final int DIRECTORY_ENTRY_SIZE = 16;
+
+	/**
+	 * The size of the trailer's footer (numBlocks + magic).
+	 */
+	static final int FOOTER_SIZE = 8;
+
+	/**
+	 * Each mapped segment covers 2^SEGMENT_BITS bytes of the file.
+	 */
+	static final int SEGMENT_BITS = 30;
+	static final long SEGMENT_SIZE = 1L << SEGMENT_BITS;
+	static final int SEGMENT_MASK = (int) (SEGMENT_SIZE - 1);
+
+	/**
+	 * The mapped file.
+	 */
+	final File file;
+
+	/**
+	 * The length of the file in bytes.
+	 */
+	final long length;
+
+	/**
+	 * The mapped segments of the file.
+	 */
+	final MappedByteBuffer[] segments;
+
+	/**
+	 * The number of words in the file.
+	 */
+	int numWords;
+
+	/**
+	 * The extension blocks of the file: maps each tag to the block's offset and length.
+	 */
+	final Map<String, long[]> blocks = new HashMap<String, long[]>();
+
+	/**
+	 * The file's Bloom filter (null if it doesn't have one).
+	 */
+	BloomFilter bloom;
+
+	/**
+	 * The sparse index of the file (null if lookups search the whole file).
+	 */
+	FenceIndex fence;
+
+	SWPDFile(File file, long length, MappedByteBuffer[] segments) {
+		this.file = file;
+		this.length = length;
+		this.segments = segments;
+	}
+
+	/**
+	 * Map a SWPD file into memory, with a sparse index of the default interval.
+	 * @see #open(File, int)
+	 */
+	static SWPDFile open(File file) throws IOException {
+		return open(file, FenceIndex.DEFAULT_INTERVAL);
+	}
+
+	/**
+	 * Map a SWPD file (of any version) into memory.
+	 * @param file the file to map.
+	 * @param fenceInterval the interval of the sparse index to keep on the heap (0 for none).
+	 * 	The file's stored index is used if it has one; otherwise it is built by sampling the file.
+	 * @return the mapped file, or null if the file doesn't exist or is empty.
+	 * @throws IOException if the file can't be read or is not a SWPD file.
+	 */
+	static SWPDFile open(File file, int fenceInterval) throws IOException {
+		if (!file.exists() || file.length() == 0)
+			return null;
+
+		MappedByteBuffer[] segments;
+		long length;
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			length = channel.size();
+			if (length < 4)
+				throw new IOException(file + " is too short to be a SWPD file");
+
+			// Map the file in segments (a mapping remains valid after the channel is closed).
+			segments = new MappedByteBuffer[(int) ((length + SEGMENT_SIZE - 1) >>> SEGMENT_BITS)];
+			for (int i = 0; i < segments.length; ++i) {
+				long start = (long) i << SEGMENT_BITS;
+				segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_SIZE, length - start));
+			}
+		} finally {
+			raf.close();
+		}
+
+		SWPDFile swpd;
+		if (matches(segments[0], SWPDFileV1.MAGIC))
+			swpd = new SWPDFileV1(file, length, segments);
+		else if (matches(segments[0], SWPDFileV2.MAGIC))
+			swpd = new SWPDFileV2(file, length, segments);
+		else
+			throw new IOException(file + " is not a SWPD file");
+
+		swpd.init(fenceInterval);
+		return swpd;
+	}
+
+	private static boolean matches(ByteBuffer buf, byte[] magic) {
+		for (int i = 0; i < magic.length; ++i) {
+			if (buf.get(i) != magic[i])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Read the header and the trailer, and set up the Bloom filter and the sparse index.
+	 */
+	private void init(int fenceInterval) throws IOException {
+		readHeader();
+		readTrailer(dataEnd());
+
+		ByteBuffer bloomBlock = block(BloomFilter.TAG);
+		bloom = (bloomBlock == null) ? null : BloomFilter.read(bloomBlock);
+
+		ByteBuffer fenceBlock = block(FenceIndex.TAG);
+		if (fenceInterval <= 0 || numWords == 0)
+			fence = null;
+		else if (fenceBlock != null)
+			fence = FenceIndex.read(fenceBlock, this);
+		else
+			fence = buildFence(fenceInterval);
+	}
+
+	/**
+	 * Return the format version of the file (1 or 2).
+	 */
+	abstract int version();
+
+	/**
+	 * Read and check the version-specific header (and set {@link #numWords}).
+	 */
+	abstract void readHeader() throws IOException;
+
+	/**
+	 * Return the offset of the end of the entries (where the trailer starts, if there is one).
+	 */
+	abstract long dataEnd() throws IOException;
+
+	/**
+	 * Build a sparse index for a file that doesn't have one stored.
+	 */
+	abstract FenceIndex buildFence(int interval);
+
+	/**
+	 * Read the directory of extension blocks, if the file has one.
+	 * Anything after the entries is a trailer; files without one end with the entries.
+	 */
+	private void readTrailer(long dataEnd) throws IOException {
+		if (dataEnd == length)
+			return;
+
+		long numBlocks = (length - dataEnd < FOOTER_SIZE) ? -1 : getUnsignedInt(length - FOOTER_SIZE);
+		long directory = length - FOOTER_SIZE - numBlocks * DIRECTORY_ENTRY_SIZE;
+		if (numBlocks < 0 || !matches(length - TRAILER_MAGIC.length, TRAILER_MAGIC) || directory < dataEnd)
+			throw new IOException(file + " is corrupt: bad trailer");
+
+		for (int i = 0; i < numBlocks; ++i) {
+			long pos = directory + (long) i * DIRECTORY_ENTRY_SIZE;
+			byte[] tag = new byte[4];
+			getBytes(pos, tag, 0, tag.length);
+			long offset = getLong(pos + 4);
+			long len = getUnsignedInt(pos + 12);
+			if (offset < dataEnd || offset + len > directory)
+				throw new IOException(file + " is corrupt: bad offset for block " + tagName(tag));
+			blocks.put(tagName(tag), new long[] { offset, len });
+		}
+	}
+
+	private boolean matches(long pos, byte[] bytes) {
+		for (int i = 0; i < bytes.length; ++i) {
+			if (getByte(pos + i) != bytes[i])
+				return false;
+		}
+		return true;
+	}
+
+	static String tagName(byte[] tag) {
+		return new String(tag, CHARSET);
+	}
+
+	/**
+	 * Return the contents of an extension block as a read-only buffer, or null if the file doesn't have it.
+	 */
+	ByteBuffer block(byte[] tag) {
+		long[] block = blocks.get(tagName(tag));
+		if (block == null)
+			return null;
+		return slice(block[0], (int) block[1]);
+	}
+
+	/*======= Raw access to the mapped file ======*/
+
+	byte getByte(long pos) {
+		return segments[(int) (pos >>> SEGMENT_BITS)].get((int) pos & SEGMENT_MASK);
+	}
+
+	/**
+	 * Read a 32 bit unsigned big-endian integer.
+	 */
+	long getUnsignedInt(long pos) {
+		int offset = (int) pos & SEGMENT_MASK;
+		if (offset <= SEGMENT_SIZE - 4)
+			return segments[(int) (pos >>> SEGMENT_BITS)].getInt(offset) & 0xFFFFFFFFL;
+
+		// The integer straddles a segment boundary
+		long value = 0;
+		for (int i = 0; i < 4; ++i)
+			value = (value << 8) | (getByte(pos + i) & 0xFF);
+		return value;
+	}
+
+	/**
+	 * Read a 64 bit big-endian integer.
+	 */
+	long getLong(long pos) {
+		return (getUnsignedInt(pos) << 32) | getUnsignedInt(pos + 4);
+	}
+
+	/**
+	 * Copy bytes from the file into an array.
+	 */
+	void getBytes(long pos, byte[] dst, int off, int len) {
+		while (len > 0) {
+			MappedByteBuffer segment = segments[(int) (pos >>> SEGMENT_BITS)];
+			int offset = (int) pos & SEGMENT_MASK;
+			int chunk = Math.min(len, segment.limit() - offset);
+
+			// Use a duplicate so concurrent readers don't share a position
+			ByteBuffer dup = segment.duplicate();
+			dup.position(offset);
+			dup.get(dst, off, chunk);
+
+			pos += chunk;
+			off += chunk;
+			len -= chunk;
+		}
+	}
+
+	/**
+	 * Copy bytes from the file into a buffer (as many as the buffer has room for).
+	 */
+	void getBytes(long pos, ByteBuffer dst) {
+		while (dst.hasRemaining()) {
+			MappedByteBuffer segment = segments[(int) (pos >>> SEGMENT_BITS)];
+			int offset = (int) pos & SEGMENT_MASK;
+			int chunk = Math.min(dst.remaining(), segment.limit() - offset);
+
+			ByteBuffer dup = segment.duplicate();
+			dup.position(offset);
+			dup.limit(offset + chunk);
+			dst.put(dup);
+
+			pos += chunk;
+		}
+	}
+
+	/**
+	 * Return a read-only buffer with a range of the file.
+	 * The buffer is a view of the mapped file, unless the range straddles two segments.
+	 */
+	ByteBuffer slice(long pos, int len) {
+		int offset = (int) pos & SEGMENT_MASK;
+		if (offset + (long) len <= SEGMENT_SIZE) {
+			ByteBuffer dup = segments[(int) (pos >>> SEGMENT_BITS)].duplicate();
+			dup.position(offset);
+			dup.limit(offset + len);
+			return dup.slice().asReadOnlyBuffer();
+		}
+
+		ByteBuffer copy = ByteBuffer.allocate(len);
+		getBytes(pos, copy);
+		copy.flip();
+		return copy.asReadOnlyBuffer();
+	}
+
+	/**
+	 * Write a range of the file to a channel, straight from the mapped segments.
+	 * @param out the channel to write to.
+	 * @param pos the position of the range in this file.
+	 * @param len the length of the range.
+	 * @param outPos the position in the channel at which to write.
+	 */
+	void transferTo(FileChannel out, long pos, long len, long outPos) throws IOException {
+		while (len > 0) {
+			MappedByteBuffer segment = segments[(int) (pos >>> SEGMENT_BITS)];
+			int offset = (int) pos & SEGMENT_MASK;
+			int chunk = (int) Math.min(len, segment.limit() - offset);
+
+			ByteBuffer dup = segment.duplicate();
+			dup.position(offset);
+			dup.limit(offset + chunk);
+			while (dup.hasRemaining())
+				outPos += out.write(dup, outPos);
+
+			pos += chunk;
+			len -= chunk;
+		}
+	}
+
+	/*======= Word entries ======*/
+
+	/**
+	 * Return the position of the separator in an entry (or the entry length if there is none).
+	 */
+	static int separatorIndex(byte[] entry) {
+		for (int i = 0; i < entry.length; ++i) {
+			if (entry[i] == SEPARATOR)
+				return i;
+		}
+		return entry.length;
+	}
+
+	/**
+	 * Decode the remaining bytes of a buffer (without changing its position).
+	 */
+	static String decode(ByteBuffer buf) {
+		if (buf.hasArray())
+			return new String(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining(), CHARSET);
+		byte[] bytes = new byte[buf.remaining()];
+		buf.duplicate().get(bytes);
+		return new String(bytes, CHARSET);
+	}
+
+	/**
+	 * Return the keyword of the i'th entry.
+	 */
+	abstract String keyAt(int i);
+
+	/**
+	 * Return the definitions of the i'th entry.
+	 */
+	abstract String valueAt(int i);
+
+	/**
+	 * Search for a keyword.
+	 * @param key the keyword to search for.
+	 * @return the index of the keyword if it is in the file; otherwise (-(insertion point) - 1).
+	 */
+	int find(String key) {
+		return find(key.getBytes(CHARSET));
+	}
+
+	/**
+	 * Search for a UTF-8 encoded keyword. The keywords of the file are compared with it as raw bytes
+	 * (see {@link #compareKey(long, long, byte[])}), so the search doesn't decode or allocate anything.
+	 * @see #find(String)
+	 */
+	abstract int find(byte[] key);
+
+	/**
+	 * Compare a keyword in the file with a UTF-8 encoded keyword, in the order of
+	 * {@link String#compareTo(String)}, without decoding it.
+	 * @param pos the position of the keyword in the file.
+	 * @param end the end of the keyword.
+	 */
+	int compareKey(long pos, long end, byte[] key) {
+		for (int i = 0;; ++i, ++pos) {
+			if (pos >= end)
+				return (i == key.length) ? 0 : -1;
+			if (i == key.length)
+				return 1;
+			int x = getByte(pos) & 0xFF;
+			int y = key[i] & 0xFF;
+			if (x != y)
+				return Utf8.compareDifferingBytes(x, y);
+		}
+	}
+
+	/**
+	 * Return a cursor positioned before the i'th entry.
+	 */
+	abstract Cursor cursor(int i);
+
+	/**
+	 * Return false if a UTF-8 encoded keyword is definitely not in the file (according to its Bloom filter).
+	 */
+	boolean mightContain(byte[] key) {
+		return bloom == null || bloom.mightContain(BloomFilter.hash(key, 0, key.length));
+	}
+
+	/**
+	 * Look up the definitions of a keyword. The keyword is encoded once, and only the definitions
+	 * of the entry found are decoded.
+	 * @return the definitions, or null if the keyword is not in the file.
+	 */
+	String lookup(String key) {
+		byte[] k = key.getBytes(CHARSET);
+		if (!mightContain(k))
+			return null;
+		return lookup(k);
+	}
+
+	/**
+	 * Look up the definitions of a UTF-8 encoded keyword (without consulting the Bloom filter).
+	 * @return the definitions, or null if the keyword is not in the file.
+	 */
+	String lookup(byte[] key) {
+		int i = find(key);
+		if (i < 0)
+			return null;
+		return valueAt(i);
+	}
+
+	/**
+	 * Look up the definitions of a keyword, without decoding them.
+	 * @return a read-only buffer whose remaining bytes are the definitions (a view of the mapped file,
+	 * 	if they are stored uncompressed), or null if the keyword is not in the file.
+	 */
+	ByteBuffer lookupBytes(String key) {
+		byte[] k = key.getBytes(CHARSET);
+		if (!mightContain(k))
+			return null;
+		return lookupBytes(k);
+	}
+
+	/**
+	 * Look up the definitions of a UTF-8 encoded keyword, without decoding them (and without consulting
+	 * the Bloom filter).
+	 * @see #lookupBytes(String)
+	 */
+	ByteBuffer lookupBytes(byte[] key) {
+		int i = find(key);
+		if (i < 0)
+			return null;
+		Cursor cursor = cursor(i);
+		cursor.next();
+		return cursor.value().asReadOnlyBuffer();
+	}
+
+	/**
+	 * Reads consecutive entries of the file, as raw (undecoded) bytes.
+	 */
+	abstract static class Cursor {
+		/**
+		 * The index of the current entry.
+		 */
+		int index;
+
+		/**
+		 * The keyword of the current entry is in key[0..keyLength).
+		 */
+		byte[] key = new byte[64];
+		int keyLength;
+
+		/**
+		 * Move to the next entry.
+		 * @return false if there are no more entries.
+		 */
+		abstract boolean next();
+
+		/**
+		 * Return the definitions of the current entry (the buffer's remaining bytes).
+		 */
+		abstract ByteBuffer value();
+
+		/**
+		 * Return the keyword of the current entry as a buffer.
+		 */
+		ByteBuffer keyBuffer() {
+			return ByteBuffer.wrap(key, 0, keyLength);
+		}
+
+		/**
+		 * Return the decoded keyword of the current entry.
+		 */
+		String keyString() {
+			return new String(key, 0, keyLength, CHARSET);
+		}
+
+		/**
+		 * Return the decoded definitions of the current entry.
+		 */
+		String valueString() {
+			return decode(value());
+		}
+	}
+}
@@ -0,0 +1,272 @@
+package engine;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A read-only view of a version 1 SWPD file: a word index of 32 bit pointers, followed by
+ * the word entries (see {@link SortedWordfileDictionary} for the format).
+ *
+ * Lookups are a binary search over the word index, or a scan of a single block of
+ * entries if a {@link FenceIndex} is kept on the heap.
+ */
+class SWPDFileV1 extends SWPDFile {
+
+	/**
+	 * The constant "magic" at the start of every version 1 SWPD file.
+	 */
+	static final byte[] MAGIC = { 'S', 'W', 'P', 'D' };
+
+	/**
+	 * The size of the header (magic + numWords).
+	 */
+	static final int HEADER_SIZE = 8;
+
+	SWPDFileV1(File file, long length, MappedByteBuffer[] segments) {
+		super(file, length, segments);
+	}
+
+	@Override
+	int version() {
+		return 1;
+	}
+
+	@Override
+	void readHeader() throws IOException {
+		if (length < HEADER_SIZE)
+			throw new IOException(file + " is too short to be a SWPD file");
+
+		long words = getUnsignedInt(MAGIC.length);
+		if (words > Integer.MAX_VALUE || HEADER_SIZE + words * 4 > length)
+			throw new IOException(file + " has a corrupt header (numWords = " + words + ")");
+		numWords = (int) words;
+	}
+
+	/**
+	 * The entries end with the last one (the writer stores them in index order).
+	 */
+	@Override
+	long dataEnd() throws IOException {
+		long dataEnd = HEADER_SIZE + 4L * numWords;
+		if (numWords > 0) {
+			long last = entryOffset(numWords - 1);
+			if (last < dataEnd || last + 4 > length)
+				throw new IOException(file + " is corrupt: bad offset for entry " + (numWords - 1));
+			dataEnd = last + 4 + getUnsignedInt(last);
+			if (dataEnd > length)
+				throw new IOException(file + " is corrupt: entry " + (numWords - 1) + " runs past the end of the file");
+		}
+		return dataEnd;
+	}
+
+	/**
+	 * Build an index by sampling the entries of the file.
+	 * The sampled entries aren't known to be contiguous, so blocks are scanned through the word index.
+	 */
+	@Override
+	FenceIndex buildFence(int interval) {
+		int count = FenceIndex.numFences(numWords, interval);
+		byte[][] keys = new byte[count][];
+		long[] offsets = new long[count];
+		for (int j = 0; j < count; ++j) {
+			offsets[j] = entryOffset(j * interval);
+			keys[j] = keyBytes(j * interval);
+		}
+		return new FenceIndex(interval, keys, offsets, false);
+	}
+
+	/**
+	 * Return the file offset of the i'th word entry.
+	 */
+	long entryOffset(int i) {
+		return getUnsignedInt(HEADER_SIZE + 4L * i);
+	}
+
+	/**
+	 * Read the raw bytes of the i'th word entry (<pre>keyword:def1:def2:...</pre>).
+	 */
+	byte[] entryBytes(int i) {
+		long offset = entryOffset(i);
+		long len = getUnsignedInt(offset);
+		if (offset + 4 + len > length)
+			throw new IllegalStateException(file + " is corrupt: entry " + i + " runs past the end of the file");
+		byte[] entry = new byte[(int) len];
+		getBytes(offset + 4, entry, 0, entry.length);
+		return entry;
+	}
+
+	static String keyOf(byte[] entry) {
+		return new String(entry, 0, separatorIndex(entry), CHARSET);
+	}
+
+	static String valueOf(byte[] entry) {
+		int sep = separatorIndex(entry);
+		if (sep >= entry.length)
+			return "";
+		return new String(entry, sep + 1, entry.length - sep - 1, CHARSET);
+	}
+
+	/**
+	 * Return the {@link BloomFilter} hash of the keyword of the i'th entry (without decoding it).
+	 */
+	long keyHash(int i) {
+		long pos = entryOffset(i);
+		long end = pos + 4 + getUnsignedInt(pos);
+		long hash = BloomFilter.HASH_INIT;
+		for (pos += 4; pos < end; ++pos) {
+			byte b = getByte(pos);
+			if (b == SEPARATOR)
+				break;
+			hash = BloomFilter.update(hash, b);
+		}
+		return BloomFilter.finish(hash);
+	}
+
+	/**
+	 * Return the raw keyword of the i'th entry (without decoding it).
+	 */
+	byte[] keyBytes(int i) {
+		byte[] entry = entryBytes(i);
+		return Arrays.copyOf(entry, separatorIndex(entry));
+	}
+
+	/**
+	 * Return the length of the entry at a file offset (including the 32 bit length).
+	 */
+	private long entryLengthAt(long offset) {
+		long len = getUnsignedInt(offset);
+		if (offset + 4 + len > length)
+			throw new IllegalStateException(file + " is corrupt: entry at " + offset + " runs past the end of the file");
+		return 4 + len;
+	}
+
+	/**
+	 * Compare the keyword of the entry at a file offset with a UTF-8 encoded keyword (only reading as far as the separator,
+	 * which ends a version 1 keyword).
+	 */
+	private int compareKeyAt(long offset, byte[] key) {
+		long pos = offset + 4;
+		long end = offset + entryLengthAt(offset);
+		for (int i = 0;; ++i, ++pos) {
+			int x = (pos < end) ? getByte(pos) & 0xFF : SEPARATOR;
+			if (x == SEPARATOR)
+				return (i == key.length) ? 0 : -1;
+			if (i == key.length)
+				return 1;
+			int y = key[i] & 0xFF;
+			if (x != y)
+				return Utf8.compareDifferingBytes(x, y);
+		}
+	}
+
+	@Override
+	String keyAt(int i) {
+		return keyOf(entryBytes(i));
+	}
+
+	@Override
+	String valueAt(int i) {
+		return valueOf(entryBytes(i));
+	}
+
+	@Override
+	int find(byte[] key) {
+		if (fence == null)
+			return binarySearch(key);
+
+		int j = fence.floor(key);
+		if (j < 0)
+			return -1;
+
+		// Scan the fence's block
+		int from = j * fence.interval;
+		int to = (int) Math.min((long) from + fence.interval, numWords);
+		long offset = fence.offsets[j];
+		for (int i = from; i < to; ++i) {
+			if (!fence.contiguous)
+				offset = entryOffset(i);
+			int cmp = compareKeyAt(offset, key);
+			if (cmp == 0)
+				return i;
+			if (cmp > 0)
+				return -(i + 1);
+			offset += entryLengthAt(offset);
+		}
+		return -(to + 1);
+	}
+
+	/**
+	 * Return a view of the definitions in the mapped file (rather than of a copy of the entry, as the cursor does).
+	 */
+	@Override
+	ByteBuffer lookupBytes(byte[] key) {
+		int i = find(key);
+		if (i < 0)
+			return null;
+		long offset = entryOffset(i);
+		long end = offset + entryLengthAt(offset);
+		long pos = offset + 4;
+		while (pos < end && getByte(pos) != SEPARATOR)
+			++pos;
+		if (pos < end)
+			++pos;
+		return slice(pos, (int) (end - pos));
+	}
+
+	/**
+	 * Binary search for a keyword in the word index.
+	 * @see #find(byte[])
+	 */
+	int binarySearch(byte[] key) {
+		int low = 0;
+		int high = numWords - 1;
+
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int cmp = compareKeyAt(entryOffset(mid), key);
+
+			if (cmp < 0)
+				low = mid + 1;
+			else if (cmp > 0)
+				high = mid - 1;
+			else
+				return mid;
+		}
+		return -(low + 1);
+	}
+
+	@Override
+	Cursor cursor(final int i) {
+		return new Cursor() {
+			{
+				index = i - 1;
+			}
+
+			// The value of the current entry is entry[valueStart..valueEnd)
+			int valueStart;
+			int valueEnd;
+
+			@Override
+			boolean next() {
+				if (index + 1 >= numWords)
+					return false;
+				++index;
+
+				byte[] entry = entryBytes(index);
+				key = entry;
+				keyLength = separatorIndex(entry);
+				valueStart = Math.min(keyLength + 1, entry.length);
+				valueEnd = entry.length;
+				return true;
+			}
+
+			@Override
+			ByteBuffer value() {
+				return ByteBuffer.wrap(key, valueStart, valueEnd - valueStart);
+			}
+		};
+	}
+}
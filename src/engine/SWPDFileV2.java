@@ -0,0 +1,414 @@
+package engine;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * A read-only view of a version 2 SWPD file (see {@link SortedWordfileDictionary} for the format).
+ *
+ * Keywords are stored in front-coded key blocks: each keyword is stored as the length of the prefix
+ * it shares with the previous keyword, followed by the rest of it. Every block starts with a full keyword
+ * (a restart point), so a lookup finds the block by the first keywords of the blocks, and then decodes
+ * a single block. The definitions are kept apart, in value blocks, and are only read when they are needed.
+ *
+ * Value blocks may be compressed with {@link Inflater Deflate}. A compressed block is only inflated when one of
+ * its definitions is read, and the most recently inflated blocks are cached, so repeated lookups of popular
+ * words don't inflate the same block again.
+ */
+class SWPDFileV2 extends SWPDFile {
+
+	/**
+	 * The constant "magic" at the start of every version 2 SWPD file.
+	 */
+	static final byte[] MAGIC = { 'S', 'W', 'P', '2' };
+
+	/**
+	 * The size of the header.
+	 */
+	static final int HEADER_SIZE = 40;
+
+	/**
+	 * The size of a key block's header (value block offset + offset of the first value in the block).
+	 */
+	static final int KEY_BLOCK_HEADER_SIZE = 12;
+
+	/**
+	 * The size of a value block's header (stored length + raw length).
+	 */
+	static final int VALUE_BLOCK_HEADER_SIZE = 8;
+
+	/**
+	 * Value block codecs.
+	 */
+	static final int CODEC_STORED = 0;
+	static final int CODEC_DEFLATE = 1;
+
+	/**
+	 * The number of inflated value blocks to cache.
+	 */
+	static final int BLOCK_CACHE_SIZE = 32;
+
+	/**
+	 * The number of keywords in a key block.
+	 */
+	int blockSize;
+
+	/**
+	 * The number of key blocks.
+	 */
+	int numBlocks;
+
+	/**
+	 * How the value blocks are stored.
+	 */
+	int codec;
+
+	/**
+	 * The offsets of the key region, the key block index and the end of the data.
+	 */
+	long keysOffset;
+	long keyIndexOffset;
+	long dataEnd;
+
+	/**
+	 * Recently inflated value blocks, by file offset (in LRU order).
+	 */
+	final Map<Long, ByteBuffer> blockCache = new LinkedHashMap<Long, ByteBuffer>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Long, ByteBuffer> eldest) {
+			return size() > BLOCK_CACHE_SIZE;
+		}
+	};
+
+	SWPDFileV2(File file, long length, MappedByteBuffer[] segments) {
+		super(file, length, segments);
+	}
+
+	@Override
+	int version() {
+		return 2;
+	}
+
+	@Override
+	void readHeader() throws IOException {
+		if (length < HEADER_SIZE)
+			throw new IOException(file + " is too short to be a SWPD file");
+
+		long words = getUnsignedInt(4);
+		blockSize = (int) getUnsignedInt(8);
+		codec = (int) getUnsignedInt(12);
+		keysOffset = getLong(16);
+		keyIndexOffset = getLong(24);
+		dataEnd = getLong(32);
+		if (words > Integer.MAX_VALUE || blockSize <= 0)
+			throw new IOException(file + " has a corrupt header (numWords = " + words + ", blockSize = " + blockSize + ")");
+		numWords = (int) words;
+		numBlocks = (int) ((words + blockSize - 1) / blockSize);
+
+		if (keysOffset < HEADER_SIZE || keyIndexOffset < keysOffset || dataEnd > length
+				|| keyIndexOffset + 8L * numBlocks > dataEnd)
+			throw new IOException(file + " has a corrupt header");
+		if (codec != CODEC_STORED && codec != CODEC_DEFLATE)
+			throw new IOException(file + " uses an unknown codec (" + codec + ")");
+	}
+
+	@Override
+	long dataEnd() {
+		return dataEnd;
+	}
+
+	/**
+	 * The fences are the first keywords of the key blocks.
+	 */
+	@Override
+	FenceIndex buildFence(int interval) {
+		byte[][] keys = new byte[numBlocks][];
+		long[] offsets = new long[numBlocks];
+		BlockCursor cursor = new BlockCursor(0);
+		for (int b = 0; b < numBlocks; ++b) {
+			offsets[b] = getLong(keyIndexOffset + 8L * b);
+			cursor.index = b * blockSize - 1;
+			cursor.next();
+			keys[b] = Arrays.copyOf(cursor.key, cursor.keyLength);
+		}
+		return new FenceIndex(blockSize, keys, offsets, true);
+	}
+
+	/**
+	 * Return the file offset of a key block.
+	 */
+	long keyBlockOffset(int b) {
+		return keysOffset + getLong(keyIndexOffset + 8L * b);
+	}
+
+	/**
+	 * Return the raw contents of the value block at a file offset.
+	 * A block whose stored length equals its raw length is not compressed.
+	 */
+	ByteBuffer valueBlock(long offset) {
+		long storedLength = getUnsignedInt(offset);
+		long rawLength = getUnsignedInt(offset + 4);
+		if (offset + VALUE_BLOCK_HEADER_SIZE + storedLength > keysOffset)
+			throw new IllegalStateException(file + " is corrupt: value block at " + offset + " runs past the value region");
+		if (storedLength == rawLength)
+			return slice(offset + VALUE_BLOCK_HEADER_SIZE, (int) rawLength);
+
+		synchronized (blockCache) {
+			ByteBuffer block = blockCache.get(offset);
+			if (block != null)
+				return block;
+		}
+
+		ByteBuffer block = inflate(offset + VALUE_BLOCK_HEADER_SIZE, (int) storedLength, (int) rawLength);
+		synchronized (blockCache) {
+			blockCache.put(offset, block);
+		}
+		return block;
+	}
+
+	/**
+	 * Inflate a compressed value block.
+	 */
+	private ByteBuffer inflate(long pos, int storedLength, int rawLength) {
+		byte[] stored = new byte[storedLength];
+		getBytes(pos, stored, 0, storedLength);
+		byte[] raw = new byte[rawLength];
+
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(stored);
+			int len = 0;
+			while (len < rawLength && !inflater.finished() && !inflater.needsInput())
+				len += inflater.inflate(raw, len, rawLength - len);
+			if (len != rawLength || !inflater.finished())
+				throw new IllegalStateException(file + " is corrupt: bad compressed value block at " + pos);
+		} catch (DataFormatException e) {
+			throw new IllegalStateException(file + " is corrupt: bad compressed value block at " + pos, e);
+		} finally {
+			inflater.end();
+		}
+		return ByteBuffer.wrap(raw).asReadOnlyBuffer();
+	}
+
+	@Override
+	String keyAt(int i) {
+		Cursor cursor = cursor(i);
+		cursor.next();
+		return cursor.keyString();
+	}
+
+	@Override
+	String valueAt(int i) {
+		Cursor cursor = cursor(i);
+		cursor.next();
+		return cursor.valueString();
+	}
+
+	/**
+	 * Compare the first keyword of a key block (which is stored whole, at the restart point)
+	 * with a UTF-8 encoded keyword, without decoding it.
+	 */
+	int compareFirstKey(int b, byte[] key) {
+		long pos = keyBlockOffset(b) + KEY_BLOCK_HEADER_SIZE;
+		// The shared length of a restart point is 0 (a single byte)
+		if (getByte(pos++) != 0)
+			throw new IllegalStateException(file + " is corrupt: bad key entry " + (long) b * blockSize);
+		int suffix = 0;
+		for (int shift = 0;; shift += 7) {
+			byte v = getByte(pos++);
+			suffix |= (v & 0x7F) << shift;
+			if (v >= 0)
+				break;
+			if (shift > 28)
+				throw new IllegalStateException(file + " is corrupt: bad varint at " + (pos - 1));
+		}
+		if (pos + suffix > keyIndexOffset)
+			throw new IllegalStateException(file + " is corrupt: bad key entry " + (long) b * blockSize);
+		return compareKey(pos, pos + suffix, key);
+	}
+
+	/**
+	 * Return the last key block whose first keyword is not greater than a UTF-8 encoded keyword
+	 * (-1 if the keyword precedes all the entries).
+	 */
+	int floorBlock(byte[] key) {
+		int low = 0;
+		int high = numBlocks - 1;
+
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int cmp = compareFirstKey(mid, key);
+
+			if (cmp < 0)
+				low = mid + 1;
+			else if (cmp > 0)
+				high = mid - 1;
+			else
+				return mid;
+		}
+		return low - 1;
+	}
+
+	@Override
+	int find(byte[] key) {
+		return seek(new BlockCursor(0), key);
+	}
+
+	/**
+	 * Decode only the definitions of the entry found, from the cursor that found it
+	 * (rather than walking its block again, as {@link #valueAt(int)} would).
+	 */
+	@Override
+	String lookup(byte[] key) {
+		BlockCursor cursor = new BlockCursor(0);
+		if (seek(cursor, key) < 0)
+			return null;
+		return cursor.valueString();
+	}
+
+	/**
+	 * Return the definitions from the cursor that found the entry: a view of the value block
+	 * (of the mapped file, or of the cached inflated block).
+	 */
+	@Override
+	ByteBuffer lookupBytes(byte[] key) {
+		BlockCursor cursor = new BlockCursor(0);
+		if (seek(cursor, key) < 0)
+			return null;
+		return cursor.value().asReadOnlyBuffer();
+	}
+
+	/**
+	 * Search for a UTF-8 encoded keyword, leaving the cursor at the entry if it is found.
+	 * The keys are front coded, so the block is decoded into the cursor's buffer, but they are
+	 * compared as raw bytes.
+	 * @see #find(String)
+	 */
+	private int seek(BlockCursor cursor, byte[] key) {
+		int b = (fence != null) ? fence.floor(key) : floorBlock(key);
+		if (b < 0)
+			return -1;
+
+		// Scan the block
+		cursor.index = b * blockSize - 1;
+		if (fence != null)
+			cursor.blockOffset = keysOffset + fence.offsets[b];
+		int end = (int) Math.min((long) (b + 1) * blockSize, numWords);
+		while (cursor.index + 1 < end) {
+			cursor.next();
+			int cmp = Utf8.compare(cursor.key, 0, cursor.keyLength, key, 0, key.length);
+			if (cmp == 0)
+				return cursor.index;
+			if (cmp > 0)
+				return -(cursor.index + 1);
+		}
+		return -(end + 1);
+	}
+
+	@Override
+	Cursor cursor(int i) {
+		BlockCursor cursor = new BlockCursor(i - i % blockSize);
+		while (cursor.index + 1 < i && cursor.next()) {
+			// Skip to the i'th entry
+		}
+		return cursor;
+	}
+
+	/**
+	 * Decodes the entries of the key blocks, starting at a block boundary.
+	 */
+	class BlockCursor extends Cursor {
+		// The file offset of the next key block to start (-1 to look it up in the key block index)
+		long blockOffset = -1;
+
+		// The file offset of the next key entry
+		long pos;
+
+		// The file offset of the current value block, and its contents (read lazily)
+		long valueBlockOffset;
+		ByteBuffer values;
+
+		// The offset of the next value in the value block, and the current value
+		int valuePos;
+		int valueStart;
+		int valueLength;
+
+		BlockCursor(int i) {
+			index = i - 1;
+		}
+
+		private int readVarint() {
+			int value = 0;
+			for (int shift = 0;; shift += 7) {
+				byte b = getByte(pos++);
+				value |= (b & 0x7F) << shift;
+				if (b >= 0)
+					return value;
+				if (shift > 28)
+					throw new IllegalStateException(file + " is corrupt: bad varint at " + (pos - 1));
+			}
+		}
+
+		@Override
+		boolean next() {
+			if (index + 1 >= numWords)
+				return false;
+			++index;
+
+			if (index % blockSize == 0) {
+				// A restart point
+				pos = (blockOffset >= 0) ? blockOffset : keyBlockOffset(index / blockSize);
+				blockOffset = -1;
+				valueBlockOffset = getLong(pos);
+				valuePos = (int) getUnsignedInt(pos + 8);
+				values = null;
+				pos += KEY_BLOCK_HEADER_SIZE;
+				keyLength = 0;
+			}
+
+			int shared = readVarint();
+			int suffix = readVarint();
+			if (shared > keyLength || pos + suffix > keyIndexOffset)
+				throw new IllegalStateException(file + " is corrupt: bad key entry " + index);
+			if (key.length < shared + suffix) {
+				byte[] newKey = new byte[Math.max(shared + suffix, 2 * key.length)];
+				System.arraycopy(key, 0, newKey, 0, shared);
+				key = newKey;
+			}
+			getBytes(pos, key, shared, suffix);
+			pos += suffix;
+			keyLength = shared + suffix;
+
+			valueLength = readVarint();
+			valueStart = valuePos;
+			valuePos += valueLength;
+			return true;
+		}
+
+		@Override
+		ByteBuffer value() {
+			// Empty values may refer to a value block that was never written
+			if (valueLength == 0)
+				return ByteBuffer.allocate(0);
+
+			if (values == null)
+				values = valueBlock(valueBlockOffset);
+			if (valueStart + valueLength > values.capacity())
+				throw new IllegalStateException(file + " is corrupt: bad value for entry " + index);
+
+			ByteBuffer value = values.duplicate();
+			value.limit(valueStart + valueLength);
+			value.position(valueStart);
+			return value;
+		}
+	}
+}
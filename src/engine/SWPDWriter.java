@@ -0,0 +1,246 @@
+package engine;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes a SWPD file (see {@link SortedWordfileDictionary} for the formats) in a single sequential pass.
+ * Entries must be added in alphabetical order, and the number of entries must be known in advance.
+ *
+ * This class handles what the format versions have in common; {@link SWPDWriterV1} and
+ * {@link SWPDWriterV2} lay out the entries. Unless it is disabled, a {@link BloomFilter} of
+ * the keys is built as the entries are added, and written to the file's trailer by {@link #finish()}
+ * along with any other extension blocks.
+ */
+abstract class SWPDWriter {
+
+	/**
+	 * The size of the write buffers.
+	 */
+	static final int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * The format version written by default.
+	 */
+	static final int DEFAULT_VERSION = 2;
+
+	final File file;
+	final FileChannel channel;
+	final int numWords;
+
+	// The number of entries written so far
+	int count;
+
+	/**
+	 * The Bloom filter of the keys (null if disabled).
+	 */
+	final BloomFilter bloom;
+
+	/**
+	 * Extension blocks to write to the trailer: their tags and contents.
+	 */
+	final List<byte[]> blockTags = new ArrayList<byte[]>();
+	final List<ByteBuffer> blockContents = new ArrayList<ByteBuffer>();
+
+	/**
+	 * Create (or truncate) a SWPD file.
+	 * @param file the file to write.
+	 * @param numWords the exact number of entries that will be added.
+	 * @param bloomBitsPerKey the size of the Bloom filter (0 for no filter).
+	 */
+	SWPDWriter(File file, int numWords, int bloomBitsPerKey) throws IOException {
+		this.file = file;
+		this.numWords = numWords;
+		this.bloom = (bloomBitsPerKey > 0 && numWords > 0) ? new BloomFilter(numWords, bloomBitsPerKey) : null;
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+		count = 0;
+	}
+
+	/**
+	 * Create a writer for the default format version, with the default extension blocks.
+	 * @param file the file to write.
+	 * @param numWords the exact number of entries that will be added.
+	 */
+	static SWPDWriter create(File file, int numWords) throws IOException {
+		return create(file, numWords, DEFAULT_VERSION, BloomFilter.DEFAULT_BITS_PER_KEY, FenceIndex.DEFAULT_INTERVAL,
+				false);
+	}
+
+	/**
+	 * Create a writer.
+	 * @param file the file to write.
+	 * @param numWords the exact number of entries that will be added.
+	 * @param version the format version (1 or 2).
+	 * @param bloomBitsPerKey the size of the Bloom filter (0 for no filter).
+	 * @param fenceInterval the interval of the stored sparse index (0 for no index).
+	 * 	In version 2 files, the index always has one fence per key block.
+	 * @param compressValues whether to compress the definitions (only supported by version 2).
+	 */
+	static SWPDWriter create(File file, int numWords, int version, int bloomBitsPerKey, int fenceInterval,
+			boolean compressValues) throws IOException {
+		switch (version) {
+		case 1:
+			if (compressValues)
+				throw new IllegalArgumentException("SWPD version 1 doesn't support compression");
+			return new SWPDWriterV1(file, numWords, bloomBitsPerKey, fenceInterval);
+		case 2:
+			return new SWPDWriterV2(file, numWords, bloomBitsPerKey, fenceInterval > 0,
+					SWPDWriterV2.DEFAULT_BLOCK_SIZE, compressValues);
+		default:
+			throw new IllegalArgumentException("Unknown SWPD version " + version);
+		}
+	}
+
+	/**
+	 * Write the contents of a buffer at a position in the file, and clear it.
+	 */
+	void flush(ByteBuffer buf, long pos) throws IOException {
+		buf.flip();
+		while (buf.hasRemaining())
+			pos += channel.write(buf, pos);
+		buf.clear();
+	}
+
+	/**
+	 * Check that another entry may be added, and add its key to the Bloom filter.
+	 */
+	void addKey(ByteBuffer key) {
+		if (count >= numWords)
+			throw new IllegalStateException("More than " + numWords + " entries written to " + file);
+		if (bloom != null)
+			bloom.add(BloomFilter.hash(key));
+	}
+
+	/**
+	 * Add an entry.
+	 * @param key the UTF-8 encoded keyword (the buffer's remaining bytes).
+	 * @param value the UTF-8 encoded definitions (the buffer's remaining bytes).
+	 */
+	abstract void add(ByteBuffer key, ByteBuffer value) throws IOException;
+
+	/**
+	 * Add an entry.
+	 */
+	void add(String key, String value) throws IOException {
+		if (value == null)
+			value = "";
+		add(ByteBuffer.wrap(key.getBytes(SWPDFile.CHARSET)), ByteBuffer.wrap(value.getBytes(SWPDFile.CHARSET)));
+	}
+
+	/**
+	 * Add an entry.
+	 * @param entry the encoded entry (<pre>keyword:def1:def2:...</pre>, the buffer's remaining bytes).
+	 */
+	void addEntry(ByteBuffer entry) throws IOException {
+		int sep = entry.position();
+		while (sep < entry.limit() && entry.get(sep) != SWPDFile.SEPARATOR)
+			++sep;
+
+		ByteBuffer key = entry.duplicate();
+		key.limit(sep);
+		ByteBuffer value = entry.duplicate();
+		value.position(Math.min(sep + 1, entry.limit()));
+		add(key, value);
+	}
+
+	/**
+	 * Copy a run of entries from another SWPD file, without decoding them.
+	 * @param src the file to copy from.
+	 * @param from the first entry to copy.
+	 * @param to one past the last entry to copy.
+	 */
+	void copyEntries(SWPDFile src, int from, int to) throws IOException {
+		if (from >= to)
+			return;
+		SWPDFile.Cursor cursor = src.cursor(from);
+		while (cursor.index + 1 < to && cursor.next())
+			add(cursor.keyBuffer(), cursor.value());
+	}
+
+	/**
+	 * Add an extension block, to be written to the trailer by {@link #finish()}.
+	 * @param tag the block's 4 byte tag.
+	 * @param contents the block (the buffer's remaining bytes).
+	 */
+	void addBlock(byte[] tag, ByteBuffer contents) {
+		blockTags.add(tag);
+		blockContents.add(contents);
+	}
+
+	/**
+	 * Write the extension blocks, followed by their directory and the footer.
+	 * Nothing is written if there are no blocks, so the file ends with its entries.
+	 * @param pos the position of the end of the entries.
+	 */
+	private void writeTrailer(long pos) throws IOException {
+		if (blockTags.isEmpty())
+			return;
+
+		ByteBuffer directory = ByteBuffer.allocate(blockTags.size() * SWPDFile.DIRECTORY_ENTRY_SIZE
+				+ SWPDFile.FOOTER_SIZE);
+		for (int i = 0; i < blockTags.size(); ++i) {
+			ByteBuffer contents = blockContents.get(i);
+			directory.put(blockTags.get(i));
+			directory.putLong(pos);
+			directory.putInt(contents.remaining());
+			while (contents.hasRemaining())
+				pos += channel.write(contents, pos);
+		}
+		directory.putInt(blockTags.size());
+		directory.put(SWPDFile.TRAILER_MAGIC);
+		directory.flip();
+		while (directory.hasRemaining())
+			pos += channel.write(directory, pos);
+	}
+
+	/**
+	 * Write everything that is still buffered (including the header, if it is written last).
+	 * Version-specific extension blocks are added here.
+	 * @return the position of the end of the entries.
+	 */
+	abstract long finishEntries() throws IOException;
+
+	/**
+	 * Release any resources other than the file (called when the writer is finished or aborted).
+	 */
+	void cleanup() {
+	}
+
+	/**
+	 * Flush everything to disk and close the file.
+	 * @throws IOException if the number of entries added differs from the number promised.
+	 */
+	void finish() throws IOException {
+		try {
+			if (count != numWords)
+				throw new IOException(file + ": expected " + numWords + " entries, but " + count + " were written");
+
+			long end = finishEntries();
+			if (bloom != null)
+				addBlock(BloomFilter.TAG, bloom.toBlock());
+			writeTrailer(end);
+			channel.force(true);
+		} finally {
+			channel.close();
+			cleanup();
+		}
+	}
+
+	/**
+	 * Close the file without completing it.
+	 */
+	void abort() {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// Ignore; the file is discarded anyway.
+		}
+		cleanup();
+	}
+}
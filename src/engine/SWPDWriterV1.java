@@ -0,0 +1,176 @@
+package engine;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Writes a version 1 SWPD file (see {@link SortedWordfileDictionary} for the format).
+ *
+ * Since the number of words is known in advance, the size of the word index is known too, so
+ * the index and the entries can be written at the same time: the writer keeps two buffered
+ * "cursors" into the file, one advancing through the index and one through the entries.
+ *
+ * Entries copied from another version 1 file are transferred as raw bytes,
+ * without being decoded.
+ */
+class SWPDWriterV1 extends SWPDWriter {
+
+	/**
+	 * The largest file offset a (32 bit unsigned) index pointer can hold.
+	 */
+	static final long MAX_OFFSET = 0xFFFFFFFFL;
+
+	// The index cursor: the buffer, and the file position of its first byte.
+	final ByteBuffer indexBuf;
+	long indexPos;
+
+	// The entries cursor
+	final ByteBuffer entryBuf;
+	long entryPos;
+
+	/**
+	 * The sparse index of the file (null if disabled).
+	 */
+	final FenceIndex.Builder fence;
+
+	/**
+	 * Create (or truncate) a SWPD file.
+	 * @param file the file to write.
+	 * @param numWords the exact number of entries that will be added.
+	 * @param bloomBitsPerKey the size of the Bloom filter (0 for no filter).
+	 * @param fenceInterval the interval of the sparse index (0 for no index).
+	 */
+	SWPDWriterV1(File file, int numWords, int bloomBitsPerKey, int fenceInterval) throws IOException {
+		super(file, numWords, bloomBitsPerKey);
+		this.fence = (fenceInterval > 0 && numWords > 0) ? new FenceIndex.Builder(fenceInterval, numWords) : null;
+
+		indexBuf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		entryBuf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+		// The header is written through the index buffer
+		indexPos = 0;
+		indexBuf.put(SWPDFileV1.MAGIC);
+		indexBuf.putInt(numWords);
+
+		entryPos = SWPDFileV1.HEADER_SIZE + 4L * numWords;
+	}
+
+	/**
+	 * Return the file position of the next entry.
+	 */
+	private long nextEntryOffset() {
+		return entryPos + entryBuf.position();
+	}
+
+	/**
+	 * Add a pointer to the index.
+	 */
+	private void addPointer(long offset) throws IOException {
+		if (count >= numWords)
+			throw new IllegalStateException("More than " + numWords + " entries written to " + file);
+		if (offset > MAX_OFFSET)
+			throw new IOException(file + ": dictionary is too large for the SWPD format");
+
+		if (indexBuf.remaining() < 4) {
+			long written = indexBuf.position();
+			flush(indexBuf, indexPos);
+			indexPos += written;
+		}
+		indexBuf.putInt((int) offset);
+		++count;
+	}
+
+	/**
+	 * Start writing an entry: add its pointer to the index, and return a buffer with room for it.
+	 * The caller writes the entry (including its length) to the buffer, and then calls {@link #endEntry(ByteBuffer)}.
+	 * @param len the length of the entry (not including the 32 bit length itself).
+	 */
+	private ByteBuffer beginEntry(int len) throws IOException {
+		addPointer(nextEntryOffset());
+
+		if (entryBuf.remaining() < 4 + len) {
+			long written = entryBuf.position();
+			flush(entryBuf, entryPos);
+			entryPos += written;
+		}
+
+		if (entryBuf.remaining() < 4 + len) {
+			// Too big to buffer; it will be written directly
+			return ByteBuffer.allocate(4 + len);
+		}
+		return entryBuf;
+	}
+
+	private void endEntry(ByteBuffer buf) throws IOException {
+		if (buf != entryBuf) {
+			long len = buf.position();
+			flush(buf, entryPos);
+			entryPos += len;
+		}
+	}
+
+	@Override
+	void add(ByteBuffer key, ByteBuffer value) throws IOException {
+		addKey(key);
+		if (fence != null && fence.isFence(count))
+			fence.add(nextEntryOffset(), key);
+
+		int len = key.remaining() + 1 + value.remaining();
+		ByteBuffer buf = beginEntry(len);
+		buf.putInt(len);
+		buf.put(key.duplicate());
+		buf.put(SWPDFile.SEPARATOR);
+		buf.put(value.duplicate());
+		endEntry(buf);
+	}
+
+	/**
+	 * Copy a run of entries from another SWPD file.
+	 * Entries of a version 1 file are not decoded: entries that are contiguous in the source file
+	 * are copied with a single write straight from the mapped source.
+	 */
+	@Override
+	void copyEntries(SWPDFile file, int from, int to) throws IOException {
+		if (!(file instanceof SWPDFileV1)) {
+			super.copyEntries(file, from, to);
+			return;
+		}
+		SWPDFileV1 src = (SWPDFileV1) file;
+
+		// Flush the buffered entries; the copied bytes are written directly after them.
+		long written = entryBuf.position();
+		flush(entryBuf, entryPos);
+		entryPos += written;
+
+		int i = from;
+		while (i < to) {
+			// Find the longest run of contiguous entries starting at i
+			long runStart = src.entryOffset(i);
+			long runEnd = runStart;
+			while (i < to && src.entryOffset(i) == runEnd) {
+				if (fence != null && fence.isFence(count))
+					fence.add(entryPos + (runEnd - runStart), ByteBuffer.wrap(src.keyBytes(i)));
+				addPointer(entryPos + (runEnd - runStart));
+				if (bloom != null)
+					bloom.add(src.keyHash(i));
+				runEnd += 4 + src.getUnsignedInt(runEnd);
+				++i;
+			}
+
+			src.transferTo(channel, runStart, runEnd - runStart, entryPos);
+			entryPos += runEnd - runStart;
+		}
+	}
+
+	@Override
+	long finishEntries() throws IOException {
+		flush(indexBuf, indexPos);
+		long end = nextEntryOffset();
+		flush(entryBuf, entryPos);
+
+		if (fence != null)
+			addBlock(FenceIndex.TAG, fence.toBlock());
+		return end;
+	}
+}
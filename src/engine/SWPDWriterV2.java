@@ -0,0 +1,310 @@
+package engine;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a version 2 SWPD file (see {@link SortedWordfileDictionary} for the format).
+ *
+ * The definitions are written to the file as they are added, one value block at a time. The key blocks
+ * are written to a temporary file next to it, and appended after the values when the file is finished
+ * (the keys are front-coded, so they are usually much smaller than the values), followed by the key block index.
+ * The header is written last.
+ *
+ * If compression is enabled, each value block is compressed with {@link Deflater} (unless that
+ * doesn't make it smaller, in which case it is stored as is).
+ */
+class SWPDWriterV2 extends SWPDWriter {
+
+	/**
+	 * The default number of keywords per key block.
+	 */
+	static final int DEFAULT_BLOCK_SIZE = 16;
+
+	/**
+	 * Value blocks are closed (at the next key block boundary) once they reach this size.
+	 */
+	static final int VALUE_BLOCK_SIZE = 4096;
+
+	/**
+	 * The size of compressed value blocks (larger blocks compress better, but take longer to inflate).
+	 */
+	static final int COMPRESSED_VALUE_BLOCK_SIZE = 16 * 1024;
+
+	/**
+	 * The largest offset a (32 bit) fence offset can hold.
+	 */
+	static final long MAX_FENCE_OFFSET = 0xFFFFFFFFL;
+
+	/**
+	 * The number of keywords per key block.
+	 */
+	final int blockSize;
+
+	/**
+	 * The compressor of the value blocks (null if they are stored uncompressed), and its output buffer.
+	 */
+	final Deflater deflater;
+	byte[] compressed;
+
+	/**
+	 * Value blocks are closed once they reach this size.
+	 */
+	final int valueBlockSize;
+
+	// The values of the current value block, and the file position at which it will be written
+	byte[] values = new byte[2 * VALUE_BLOCK_SIZE];
+	int valuesLength;
+	long valueBlockPos;
+
+	// The key blocks: written through a buffer to a temporary file.
+	// keysPos is the position (in the temporary file) of the first byte in the buffer.
+	final File keysFile;
+	final FileChannel keysChannel;
+	final ByteBuffer keyBuf;
+	long keysPos;
+
+	/**
+	 * The offset of each key block, relative to the start of the keys.
+	 */
+	final long[] keyIndex;
+
+	// The previous keyword (for front coding)
+	byte[] prevKey = new byte[64];
+	int prevKeyLength;
+
+	/**
+	 * The sparse index of the file (null if disabled).
+	 */
+	FenceIndex.Builder fence;
+
+	/**
+	 * Create (or truncate) a SWPD file.
+	 * @param file the file to write.
+	 * @param numWords the exact number of entries that will be added.
+	 * @param bloomBitsPerKey the size of the Bloom filter (0 for no filter).
+	 * @param storeFences whether to store the first keyword of each key block as a {@link FenceIndex}.
+	 * @param blockSize the number of keywords per key block.
+	 * @param compressValues whether to compress the value blocks.
+	 */
+	SWPDWriterV2(File file, int numWords, int bloomBitsPerKey, boolean storeFences, int blockSize,
+			boolean compressValues) throws IOException {
+		super(file, numWords, bloomBitsPerKey);
+		this.blockSize = blockSize;
+		this.deflater = compressValues ? new Deflater() : null;
+		this.valueBlockSize = compressValues ? COMPRESSED_VALUE_BLOCK_SIZE : VALUE_BLOCK_SIZE;
+		this.keyIndex = new long[FenceIndex.numFences(numWords, blockSize)];
+		this.fence = (storeFences && numWords > 0) ? new FenceIndex.Builder(blockSize, numWords) : null;
+
+		keysFile = new File(file.getPath() + ".keys");
+		keysChannel = FileChannel.open(keysFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		keyBuf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		keysPos = 0;
+
+		valueBlockPos = SWPDFileV2.HEADER_SIZE;
+	}
+
+	/*======= Keys ======*/
+
+	private void flushKeys() throws IOException {
+		long written = keyBuf.position();
+		keyBuf.flip();
+		long pos = keysPos;
+		while (keyBuf.hasRemaining())
+			pos += keysChannel.write(keyBuf, pos);
+		keyBuf.clear();
+		keysPos += written;
+	}
+
+	private void putKeyVarint(int value) throws IOException {
+		if (keyBuf.remaining() < 5)
+			flushKeys();
+		while ((value & ~0x7F) != 0) {
+			keyBuf.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		keyBuf.put((byte) value);
+	}
+
+	private void putKeyBytes(ByteBuffer src) throws IOException {
+		src = src.duplicate();
+		while (src.hasRemaining()) {
+			if (!keyBuf.hasRemaining())
+				flushKeys();
+			int chunk = Math.min(src.remaining(), keyBuf.remaining());
+			ByteBuffer part = src.duplicate();
+			part.limit(part.position() + chunk);
+			keyBuf.put(part);
+			src.position(src.position() + chunk);
+		}
+	}
+
+	/*======= Values ======*/
+
+	/**
+	 * Compress the current value block.
+	 * @return the compressed block, or null if it doesn't get any smaller.
+	 */
+	private ByteBuffer compressValues() {
+		if (compressed == null || compressed.length < valuesLength)
+			compressed = new byte[Math.max(valuesLength, COMPRESSED_VALUE_BLOCK_SIZE)];
+
+		deflater.reset();
+		deflater.setInput(values, 0, valuesLength);
+		deflater.finish();
+		int len = 0;
+		while (!deflater.finished() && len < valuesLength - 1)
+			len += deflater.deflate(compressed, len, valuesLength - 1 - len);
+		return deflater.finished() ? ByteBuffer.wrap(compressed, 0, len) : null;
+	}
+
+	/**
+	 * Write the current value block to the file.
+	 */
+	void flushValues() throws IOException {
+		if (valuesLength == 0)
+			return;
+
+		ByteBuffer data = (deflater == null) ? null : compressValues();
+		if (data == null)
+			data = ByteBuffer.wrap(values, 0, valuesLength);
+
+		ByteBuffer header = ByteBuffer.allocate(SWPDFileV2.VALUE_BLOCK_HEADER_SIZE);
+		header.putInt(data.remaining());
+		header.putInt(valuesLength);
+		header.flip();
+
+		long pos = valueBlockPos;
+		while (header.hasRemaining())
+			pos += channel.write(header, pos);
+		while (data.hasRemaining())
+			pos += channel.write(data, pos);
+
+		valueBlockPos = pos;
+		valuesLength = 0;
+	}
+
+	private void appendValue(ByteBuffer value) throws IOException {
+		int len = value.remaining();
+		if ((long) valuesLength + len > Integer.MAX_VALUE - 8)
+			throw new IOException(file + ": value block is too large");
+		if (valuesLength + len > values.length) {
+			byte[] newValues = new byte[(int) Math.min(Math.max(valuesLength + len, 2L * values.length),
+					Integer.MAX_VALUE - 8)];
+			System.arraycopy(values, 0, newValues, 0, valuesLength);
+			values = newValues;
+		}
+		value.duplicate().get(values, valuesLength, len);
+		valuesLength += len;
+	}
+
+	/*======= Entries ======*/
+
+	@Override
+	void add(ByteBuffer key, ByteBuffer value) throws IOException {
+		addKey(key);
+		int keyLen = key.remaining();
+
+		int shared = 0;
+		if (count % blockSize == 0) {
+			// Start a new key block (a restart point). Value blocks are only closed between key blocks,
+			// so all the values of a key block are in the same value block.
+			if (valuesLength >= valueBlockSize)
+				flushValues();
+
+			long offset = keysPos + keyBuf.position();
+			keyIndex[count / blockSize] = offset;
+			if (fence != null) {
+				if (offset > MAX_FENCE_OFFSET)
+					fence = null; // The keys are too large for a stored index; it will be built when the file is opened
+				else
+					fence.add(offset, key);
+			}
+
+			if (keyBuf.remaining() < SWPDFileV2.KEY_BLOCK_HEADER_SIZE)
+				flushKeys();
+			keyBuf.putLong(valueBlockPos);
+			keyBuf.putInt(valuesLength);
+		} else {
+			int max = Math.min(prevKeyLength, keyLen);
+			int start = key.position();
+			while (shared < max && prevKey[shared] == key.get(start + shared))
+				++shared;
+		}
+
+		putKeyVarint(shared);
+		putKeyVarint(keyLen - shared);
+		ByteBuffer suffix = key.duplicate();
+		suffix.position(key.position() + shared);
+		putKeyBytes(suffix);
+		putKeyVarint(value.remaining());
+		appendValue(value);
+
+		if (prevKey.length < keyLen)
+			prevKey = new byte[Math.max(keyLen, 2 * prevKey.length)];
+		key.duplicate().get(prevKey, 0, keyLen);
+		prevKeyLength = keyLen;
+
+		++count;
+	}
+
+	@Override
+	long finishEntries() throws IOException {
+		flushValues();
+		flushKeys();
+
+		// Append the keys after the values
+		long keysOffset = valueBlockPos;
+		long pos = 0;
+		while (pos < keysPos)
+			pos += keysChannel.transferTo(pos, keysPos - pos, channel.position(keysOffset + pos));
+
+		// The key block index
+		long keyIndexOffset = keysOffset + keysPos;
+		ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		long indexPos = keyIndexOffset;
+		for (long offset : keyIndex) {
+			if (!buf.hasRemaining()) {
+				long written = buf.position();
+				flush(buf, indexPos);
+				indexPos += written;
+			}
+			buf.putLong(offset);
+		}
+		long written = buf.position();
+		flush(buf, indexPos);
+		long dataEnd = indexPos + written;
+
+		// The header
+		ByteBuffer header = ByteBuffer.allocate(SWPDFileV2.HEADER_SIZE);
+		header.put(SWPDFileV2.MAGIC);
+		header.putInt(numWords);
+		header.putInt(blockSize);
+		header.putInt((deflater == null) ? SWPDFileV2.CODEC_STORED : SWPDFileV2.CODEC_DEFLATE);
+		header.putLong(keysOffset);
+		header.putLong(keyIndexOffset);
+		header.putLong(dataEnd);
+		flush(header, 0);
+
+		if (fence != null)
+			addBlock(FenceIndex.TAG, fence.toBlock());
+		return dataEnd;
+	}
+
+	@Override
+	void cleanup() {
+		if (deflater != null)
+			deflater.end();
+		try {
+			keysChannel.close();
+		} catch (IOException e) {
+			// Ignore; the file is deleted anyway.
+		}
+		keysFile.delete();
+	}
+}
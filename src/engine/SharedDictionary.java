@@ -0,0 +1,258 @@
+package engine;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * A thread-safe in-memory dictionary that can be shared by many games at once
+ * (in the text format of {@link InMemoryDictionary}).
+ *
+ * The dictionary is reference counted: every {@link #open()} must be matched by a {@link #close()}.
+ * Only the first open loads the file, and only the last close writes it back (and only if something
+ * changed), so a server running many games over one dictionary loads and writes it once rather than once per game.
+ * Opening a dictionary that is already open does not undo the changes made by the other users.
+ *
+ * The entries are kept in a {@link ConcurrentSkipListMap}: lookups never lock, and updates from
+ * different threads proceed in parallel. Only opening and closing are serialized.
+ * Definitions may not be null.
+ */
+public class SharedDictionary implements PersistentDictionary {
+
+	final File dictFile;
+
+	/**
+	 * The number of threads used to load the file.
+	 */
+	final int loadThreads;
+
+	/**
+	 * The entries. A new map is created whenever the file is loaded, so iterators over the old
+	 * map remain valid after the dictionary is closed.
+	 */
+	volatile ConcurrentSkipListMap<String, String> map = new ConcurrentSkipListMap<String, String>();
+
+	/**
+	 * Whether the entries changed since the file was loaded.
+	 */
+	volatile boolean modified;
+
+	/**
+	 * The number of users that opened the dictionary and haven't closed it yet (guarded by this).
+	 */
+	int openCount;
+
+	/**
+	 * A constructor.
+	 * @param dictFile the dictionary file.
+	 */
+	public SharedDictionary(File dictFile) {
+		this(dictFile, 1);
+	}
+
+	/**
+	 * A constructor.
+	 * @param dictFile the dictionary file.
+	 * @param loadThreads the number of threads used to load the file (see {@link InMemoryDictionary#InMemoryDictionary(File, int)}).
+	 */
+	public SharedDictionary(File dictFile, int loadThreads) {
+		this.dictFile = dictFile;
+		this.loadThreads = loadThreads;
+	}
+
+	/**
+	 * Open the dictionary. The file is only loaded if no one else has the dictionary open.
+	 */
+	@Override
+	public synchronized void open() throws IOException {
+		if (openCount == 0) {
+			ConcurrentSkipListMap<String, String> loaded;
+			if (dictFile.exists()) {
+				WordfileLoader loader = new WordfileLoader(dictFile, loadThreads);
+				// The entries are sorted, so the skip list is built in linear time
+				loaded = new ConcurrentSkipListMap<String, String>(new WordfileLoader.SortedEntries(loader.load()));
+				if (!loader.getMalformedLines().isEmpty())
+					throw new MalformedDictionaryException(dictFile, loader.getMalformedLines());
+			} else {
+				loaded = new ConcurrentSkipListMap<String, String>();
+			}
+			map = loaded;
+			modified = false;
+		}
+		++openCount;
+	}
+
+	/**
+	 * Close the dictionary. The last user to close it writes it to disk.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (openCount == 0)
+			throw new IllegalStateException("The dictionary " + dictFile + " is not open");
+		if (--openCount > 0)
+			return;
+
+		if (modified || !dictFile.exists()) {
+			// Clear the flag first: an update that races with the write marks the dictionary modified
+			// again (updates set the flag after changing the map, so a change the write missed is written by the
+			// next last close).
+			modified = false;
+			try {
+				write();
+			} catch (IOException e) {
+				modified = true;
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Write the entries to a new file, then swap it with the old one.
+	 */
+	void write() throws IOException {
+		File tempFile = new File(dictFile.getAbsoluteFile().getParentFile(), dictFile.getName() + ".tmp");
+		Writer out = null;
+		try {
+			out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tempFile), "UTF-8"));
+			for (Map.Entry<String, String> entry : map.entrySet()) {
+				out.write(entry.getKey());
+				out.write(':');
+				out.write(entry.getValue());
+				out.write('\n');
+			}
+			out.close();
+			out = null;
+			SortedWordfileDictionary.replace(tempFile, dictFile);
+		} catch (IOException e) {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e2) {
+					// Ignore; the original exception is more interesting.
+				}
+			}
+			tempFile.delete();
+			throw e;
+		}
+	}
+
+	/**
+	 * Return the number of users that have the dictionary open.
+	 */
+	public synchronized int getOpenCount() {
+		return openCount;
+	}
+
+	/*======= Map methods ======*/
+
+	@Override
+	public String get(Object key) {
+		return map.get(key);
+	}
+
+	/**
+	 * The definitions are kept as Strings, so they are encoded.
+	 */
+	@Override
+	public ByteBuffer getBytes(Object key) {
+		return Utf8.encode(map.get(key));
+	}
+
+	@Override
+	public boolean storesBytes() {
+		return false;
+	}
+
+	@Override
+	public String put(String key, String value) {
+		String old = map.put(key, value);
+		modified = true;
+		return old;
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return map.containsKey(key);
+	}
+
+	/**
+	 * Returns the number of entries. Unlike the other methods, this takes time linear in the size of the dictionary.
+	 */
+	@Override
+	public int size() {
+		return map.size();
+	}
+
+	@Override
+	public String remove(Object key) {
+		String old = map.remove(key);
+		if (old != null)
+			modified = true;
+		return old;
+	}
+
+	@Override
+	public void clear() {
+		map.clear();
+		modified = true;
+	}
+
+	/**
+	 * Computes the new value without locking: if the key is updated concurrently,
+	 * the remapping is applied again to the new value.
+	 */
+	@Override
+	public String update(String key, Remapping remapping) {
+		ConcurrentSkipListMap<String, String> map = this.map;
+		for (;;) {
+			String old = map.get(key);
+			String value = remapping.remap(key, old);
+			if (old == null) {
+				if (value == null)
+					return null;
+				if (map.putIfAbsent(key, value) == null) {
+					modified = true;
+					return value;
+				}
+			} else if (value == null) {
+				if (map.remove(key, old)) {
+					modified = true;
+					return null;
+				}
+			} else if (map.replace(key, old, value)) {
+				modified = true;
+				return value;
+			}
+		}
+	}
+
+	/**
+	 * Return the keywords in alphabetical order.
+	 * The set is a (weakly consistent) view of the dictionary, and cannot be modified.
+	 */
+	public Set<String> keySet() {
+		return Collections.unmodifiableSet(map.keySet());
+	}
+
+	/**
+	 * The iterator is a (weakly consistent) view of the dictionary, like {@link #keySet()}.
+	 */
+	@Override
+	public Iterator<Map.Entry<String, String>> scan(String from, String to) {
+		return KeyRange.entries(map, from, to);
+	}
+
+	@Override
+	public Iterator<Map.Entry<String, String>> prefix(String prefix) {
+		return scan(prefix, KeyRange.prefixEnd(prefix));
+	}
+}
@@ -0,0 +1,185 @@
+package engine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+public class SharedDictionaryTest extends PersistentDictionaryTest {
+
+	@Override
+	PersistentDictionary getDictionary(File file) throws IOException {
+		return new SharedDictionary(file);
+	}
+
+	/**
+	 * Replace the dictionary file behind the dictionary's back.
+	 */
+	void writeFile(String text) throws IOException {
+		Writer out = new OutputStreamWriter(new FileOutputStream(dictFile), "UTF-8");
+		try {
+			out.write(text);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * A second open neither reloads the file nor undoes the changes of the first user, and only the
+	 * last close writes the dictionary.
+	 */
+	@Test
+	public void sharedOpen() throws Exception {
+		SharedDictionary dict = (SharedDictionary) this.dict;
+		assertEquals(1, dict.getOpenCount());
+		dict.put("Shared", "change");
+		expected.put("Shared", "change");
+
+		dict.open();
+		assertEquals(2, dict.getOpenCount());
+		testEquality("After a second open", expected, dict);
+
+		// The file isn't loaded again while the dictionary is open
+		dict.close();
+		writeFile("other:file\n");
+		dict.open();
+		assertEquals(2, dict.getOpenCount());
+		assertNull(dict.get("other"));
+		testEquality("After opening again", expected, dict);
+
+		// Only the last close writes the file
+		dict.put("Later", "change");
+		expected.put("Later", "change");
+		dict.close();
+		assertEquals(1, dict.getOpenCount());
+		SharedDictionary reader = new SharedDictionary(dictFile);
+		reader.open();
+		assertEquals("file", reader.get("other"));
+		reader.close();
+
+		dict.close();
+		assertEquals(0, dict.getOpenCount());
+		reader.open();
+		testEquality("After the last close", expected, reader);
+		reader.close();
+
+		dict.open();
+	}
+
+	/**
+	 * The last close doesn't write a dictionary that wasn't changed.
+	 */
+	@Test
+	public void closeUnchanged() throws Exception {
+		dict.close();
+		writeFile("external:definition\n");
+		dict.open();
+		assertEquals("definition", dict.get("external"));
+		assertTrue(dictFile.setLastModified(0));
+		dict.close();
+		assertEquals("The unchanged dictionary was written", 0, dictFile.lastModified());
+
+		// Nor after removing a missing keyword
+		dict.open();
+		assertNull(dict.remove("missing"));
+		dict.close();
+		assertEquals("The unchanged dictionary was written", 0, dictFile.lastModified());
+
+		dict.open();
+		dict.put("external", "changed");
+		dict.close();
+		assertTrue("The changed dictionary wasn't written", dictFile.lastModified() != 0);
+		dict.open();
+		assertEquals("changed", dict.get("external"));
+	}
+
+	/**
+	 * Closing a dictionary that no one has open is an error.
+	 */
+	@Test
+	public void closeWithoutOpen() throws Exception {
+		SharedDictionary dict = (SharedDictionary) this.dict;
+		dict.open();
+		dict.close();
+		dict.close();
+		assertEquals(0, dict.getOpenCount());
+		try {
+			dict.close();
+			fail("Closing a closed dictionary should fail");
+		} catch (IllegalStateException e) {
+			// Expected
+		}
+		assertEquals(0, dict.getOpenCount());
+
+		dict.open();
+		assertEquals(1, dict.getOpenCount());
+		testEquality("After a failed close", expected, dict);
+	}
+
+	/**
+	 * Updates and puts from many threads at once are all applied, and written by the last close.
+	 */
+	@Test
+	public void concurrentUpdates() throws Exception {
+		final int threads = 8;
+		final int updates = 2000;
+		final PersistentDictionary.Remapping increment = new PersistentDictionary.Remapping() {
+			@Override
+			public String remap(String key, String value) {
+				return Integer.toString((value == null) ? 1 : Integer.parseInt(value) + 1);
+			}
+		};
+
+		final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+		List<Thread> workers = new ArrayList<Thread>();
+		for (int t = 0; t < threads; ++t) {
+			final int id = t;
+			dict.open();
+			Thread worker = new Thread() {
+				@Override
+				public void run() {
+					try {
+						for (int i = 0; i < updates; ++i) {
+							dict.update("counter", increment);
+							dict.update("counter" + i % 10, increment);
+							dict.put("thread" + id + "-" + i, Integer.toString(i));
+						}
+						dict.close();
+					} catch (Throwable e) {
+						errors.add(e);
+					}
+				}
+			};
+			workers.add(worker);
+			worker.start();
+		}
+		for (Thread worker : workers)
+			worker.join();
+		assertEquals(errors.toString(), 0, errors.size());
+
+		expected.put("counter", Integer.toString(threads * updates));
+		for (int i = 0; i < 10; ++i)
+			expected.put("counter" + i, Integer.toString(threads * updates / 10));
+		for (int t = 0; t < threads; ++t) {
+			for (int i = 0; i < updates; ++i)
+				expected.put("thread" + t + "-" + i, Integer.toString(i));
+		}
+		testEquality("After concurrent updates", expected, dict);
+
+		dict.close();
+		dict.open();
+		testEquality("After concurrent updates and reopening", expected, dict);
+	}
+
+}
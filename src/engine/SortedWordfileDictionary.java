@@ -2,84 +2,518 @@ package engine;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
 
 /**
  * This class implements a file-backed dictionary.
- * 
+ *
  * We do not assume the entire dictionary can fit in memory. Instead,
  * the file contains the words in a sorted list. Words can be located using a binary search.
- * Updates to the dictionary are stored entirely in memory. 
- * 
+ * Updates to the dictionary are stored entirely in memory.
+ *
  * When the dictionary is flushed, a new file is created and the old one removed.
- * 
- * The file format is as follows:
+ * The new file is written by a streaming merge of the old file with the updates (see
+ * {@link #writeMerged(File)}), and then atomically renamed over the old one. If nothing
+ * was updated, the file is left as is.
+ *
+ * There are two versions of the file format; both can be read. By default, an existing file is written
+ * in its own version, and a new file in version 2 (see {@link #KEEP_VERSION}).
+ * Version 1 is as follows:
  * <table>
  * <tr><th>Index</th><th>Length (bytes)</th><th>Desciption</th></tr>
  * <tr><td>0</td><td>4</td><td>SWPD [constant "magic" to allow easy recognition]</td></tr>
  * <tr><td>4</td><td>4</td><td>numWords (32 bit unsigned integer in big-endian order [MSB first])</td></tr>
  * <tr><td>8</td><td>numWords * 4</td><td>Word Index</td></tr>
  * <tr><td>8+numWords * 4</td><td>??</td><td>Word Entries</td></tr>
- * </table>  
+ * <tr><td>??</td><td>??</td><td>Trailer (optional)</td></tr>
+ * </table>
  * <p>The word index is composed of pointers to word entries (in alphabetical order). Each pointer is a 32 bit unsigned
  * integer in big-endian order that holds the file index of the corresponding word entry.</p>
  * <p>A word entry is a 32 bit length, followed by that many bytes. The string has the form:
  * 		<pre>keyword:def1:def2:...</pre>
- * </p> 
+ * </p>
+ * <p>Version 2 stores the keywords and the definitions separately, and compresses the keywords by
+ * front coding (neighbouring keywords share long prefixes). All integers are big-endian:</p>
+ * <table>
+ * <tr><th>Index</th><th>Length (bytes)</th><th>Desciption</th></tr>
+ * <tr><td>0</td><td>4</td><td>SWP2 [constant "magic"]</td></tr>
+ * <tr><td>4</td><td>4</td><td>numWords</td></tr>
+ * <tr><td>8</td><td>4</td><td>blockSize (the number of keywords per key block)</td></tr>
+ * <tr><td>12</td><td>4</td><td>codec (how value blocks are stored; 0 = uncompressed, 1 = Deflate)</td></tr>
+ * <tr><td>16</td><td>8</td><td>keysOffset (the offset of the key blocks)</td></tr>
+ * <tr><td>24</td><td>8</td><td>keyIndexOffset (the offset of the key block index)</td></tr>
+ * <tr><td>32</td><td>8</td><td>dataEnd (the offset of the trailer, or the file length if there is none)</td></tr>
+ * <tr><td>40</td><td>??</td><td>Value Blocks</td></tr>
+ * <tr><td>keysOffset</td><td>??</td><td>Key Blocks</td></tr>
+ * <tr><td>keyIndexOffset</td><td>numBlocks * 8</td><td>Key Block Index</td></tr>
+ * <tr><td>dataEnd</td><td>??</td><td>Trailer (optional)</td></tr>
+ * </table>
+ * <p>The key block index holds the offset of each key block, relative to keysOffset. A key block starts with
+ * the 64 bit offset of the value block that holds its definitions and the 32 bit offset of its first definition
+ * in that block, followed by blockSize (or, in the last block, fewer) keywords. Each keyword is stored as three
+ * unsigned LEB128 varints and some bytes: the length of the prefix it shares with the previous keyword in the
+ * block (0 for the first one, which is a restart point), the length of the rest of the keyword, the rest of the
+ * keyword, and the length of its definitions. The definitions of a key block follow each other in its value block.</p>
+ * <p>A value block is its stored length (32 bits) and raw length (32 bits), followed by the stored bytes.
+ * A value block holds the definitions of one or more whole key blocks. If the codec is Deflate, each value block
+ * is compressed independently, unless its stored length equals its raw length (compressing it didn't help).</p>
+ * <p>The file is memory-mapped when the dictionary is opened (see {@link SWPDFile}), so opening costs
+ * the same regardless of the size of the file, and lookups only touch the pages they need.
+ * Strings are encoded in UTF-8. The format cannot distinguish between a null definition
+ * and an empty one, so null definitions are read back as empty strings after a flush.</p>
+ * <p>The trailer holds extension blocks, such as a {@link BloomFilter} of the keywords, which lets lookups
+ * of missing words return without searching the file, and a sparse {@link FenceIndex}, which is loaded
+ * to the heap so that a lookup only has to scan a small block of entries. It consists of the blocks, followed by a directory with a
+ * 16 byte entry for each block (a 4 byte tag, a 64 bit offset and a 32 bit length), the number of blocks
+ * (32 bits) and the constant "SWPX". Files without a trailer end with the entries; readers
+ * that don't know about the trailer (or about some of the blocks) can ignore it.</p>
  * @author talm
  *
  */
 public class SortedWordfileDictionary implements PersistentDictionary {
-	
+
+	/**
+	 * A marker for keys that were removed from the file.
+	 * (compared by reference, so it can't be confused with a real definition).
+	 */
+	static final String REMOVED = new String("<removed>");
+
+	/**
+	 * The dictionary file.
+	 */
+	File dictFile;
+
+	/**
+	 * The mapped file (null if there is no file or the dictionary was cleared).
+	 */
+	SWPDFile base;
+
+	/**
+	 * Updates since the last flush. Maps each updated key to its new definition,
+	 * or to {@link #REMOVED} if it was removed.
+	 */
+	TreeMap<String, String> updates;
+
+	/**
+	 * The number of words in the dictionary (including updates).
+	 */
+	int size;
+
+	/**
+	 * The size of the Bloom filter written to the file (0 for none).
+	 */
+	final int bloomBitsPerKey;
+
+	/**
+	 * The interval of the sparse index (0 for none).
+	 */
+	final int fenceInterval;
+
+	/**
+	 * A format version that keeps the version of the existing file (or writes the default version,
+	 * {@link SWPDWriter#DEFAULT_VERSION}, if there is no file yet).
+	 */
+	public static final int KEEP_VERSION = 0;
+
+	/**
+	 * The format version written when the dictionary is flushed (or {@link #KEEP_VERSION}).
+	 */
+	final int formatVersion;
+
+	/**
+	 * Whether the definitions are compressed when the dictionary is flushed.
+	 */
+	final boolean compressValues;
+
 	public SortedWordfileDictionary(File dictFile) {
-		// TODO Auto-generated constructor stub
+		this(dictFile, KEEP_VERSION, BloomFilter.DEFAULT_BITS_PER_KEY, FenceIndex.DEFAULT_INTERVAL);
+	}
+
+	/**
+	 * A constructor (the dictionary is written in the version of its file, see {@link #KEEP_VERSION}).
+	 * @see #SortedWordfileDictionary(File, int, int, int)
+	 */
+	public SortedWordfileDictionary(File dictFile, int bloomBitsPerKey, int fenceInterval) {
+		this(dictFile, KEEP_VERSION, bloomBitsPerKey, fenceInterval);
+	}
+
+	/**
+	 * A constructor (the definitions are not compressed).
+	 * @see #SortedWordfileDictionary(File, int, int, int, boolean)
+	 */
+	public SortedWordfileDictionary(File dictFile, int formatVersion, int bloomBitsPerKey, int fenceInterval) {
+		this(dictFile, formatVersion, bloomBitsPerKey, fenceInterval, false);
 	}
-	
+
+	/**
+	 * A constructor.
+	 * @param dictFile the dictionary file.
+	 * @param formatVersion the format version (1 or 2) written when the dictionary is flushed, or
+	 * 	{@link #KEEP_VERSION} to keep the version of the existing file. Files of either version can be read.
+	 * @param bloomBitsPerKey the size of the Bloom filter written when the dictionary is flushed
+	 * 	(0 to write the file without a filter).
+	 * @param fenceInterval the number of entries per key of the sparse index kept on the heap
+	 * 	(0 to binary search the file's word index instead). Version 2 files have one fence per key block.
+	 * @param compressValues whether to compress the definitions in blocks (version 2 only). Compressed
+	 * 	blocks are inflated when a definition in them is read, and recently inflated blocks are cached.
+	 */
+	public SortedWordfileDictionary(File dictFile, int formatVersion, int bloomBitsPerKey, int fenceInterval,
+			boolean compressValues) {
+		if (formatVersion != KEEP_VERSION && formatVersion != 1 && formatVersion != 2)
+			throw new IllegalArgumentException("Unknown SWPD version " + formatVersion);
+		if (compressValues && formatVersion != 2)
+			throw new IllegalArgumentException("Compression needs SWPD version 2");
+		this.dictFile = dictFile;
+		this.formatVersion = formatVersion;
+		this.bloomBitsPerKey = bloomBitsPerKey;
+		this.fenceInterval = fenceInterval;
+		this.compressValues = compressValues;
+	}
+
 	@Override
 	public void open() throws IOException {
-		// TODO Auto-generated method stub
-		
+		base = SWPDFile.open(dictFile, fenceInterval);
+		updates = new TreeMap<String, String>();
+		size = (base == null) ? 0 : base.numWords;
 	}
 
 	@Override
 	public void close() throws IOException {
-		// TODO Auto-generated method stub
-		
+		if (base == null || !updates.isEmpty()) {
+			// Write the merged dictionary to a new file, then swap it with the old one.
+			File tempFile = new File(dictFile.getAbsoluteFile().getParentFile(), dictFile.getName() + ".tmp");
+			try {
+				writeMerged(tempFile);
+				replace(tempFile, dictFile);
+			} catch (IOException e) {
+				tempFile.delete();
+				throw e;
+			}
+		}
+
+		base = null;
+		updates = new TreeMap<String, String>();
+		size = 0;
+	}
+
+	/**
+	 * Write the file merged with the in-memory updates to a new file.
+	 * This is a streaming merge: only the updated entries are encoded; runs of entries between
+	 * updates are copied from the old file as raw bytes. Memory use is proportional to
+	 * the number of updates, not to the size of the dictionary.
+	 * @param out the file to write.
+	 */
+	void writeMerged(File out) throws IOException {
+		SWPDWriter writer = SWPDWriter.create(out, size, writeVersion(), bloomBitsPerKey, fenceInterval,
+				compressValues);
+		try {
+			// The next entry of the old file that hasn't been written yet
+			int fileIndex = 0;
+
+			for (Map.Entry<String, String> update : updates.entrySet()) {
+				if (base != null) {
+					// Copy the untouched entries before this update
+					int pos = base.find(update.getKey());
+					int end = (pos >= 0) ? pos : -(pos + 1);
+					writer.copyEntries(base, fileIndex, end);
+
+					// Skip the old version of an updated entry
+					fileIndex = (pos >= 0) ? pos + 1 : end;
+				}
+
+				if (update.getValue() != REMOVED)
+					writer.add(update.getKey(), update.getValue());
+			}
+
+			if (base != null)
+				writer.copyEntries(base, fileIndex, base.numWords);
+
+			writer.finish();
+		} catch (IOException e) {
+			writer.abort();
+			throw e;
+		} catch (RuntimeException e) {
+			writer.abort();
+			throw e;
+		}
+	}
+
+	/**
+	 * Return the format version to write: the requested one, or that of the file if it is to be kept.
+	 */
+	int writeVersion() {
+		if (formatVersion != KEEP_VERSION)
+			return formatVersion;
+		return (base != null) ? base.version() : SWPDWriter.DEFAULT_VERSION;
+	}
+
+	/**
+	 * Atomically replace a file with a new one (if the file system supports it).
+	 */
+	static void replace(File newFile, File oldFile) throws IOException {
+		try {
+			Files.move(newFile.toPath(), oldFile.toPath(), StandardCopyOption.ATOMIC_MOVE,
+					StandardCopyOption.REPLACE_EXISTING);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(newFile.toPath(), oldFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * Return the current definition of a key, or {@link #REMOVED} if it is not in the dictionary.
+	 */
+	private String current(String key) {
+		if (key == null)
+			throw new NullPointerException();
+
+		if (updates.containsKey(key))
+			return updates.get(key);
+		if (base == null)
+			return REMOVED;
+
+		String value = base.lookup(key);
+		return value == null ? REMOVED : value;
 	}
 
 	@Override
 	public String get(Object key) {
-		// TODO Auto-generated method stub
-		return null;
+		String value = current((String) key);
+		return value == REMOVED ? null : value;
+	}
+
+	/**
+	 * A definition that was saved to the file is a view of the mapped file; one that was updated since
+	 * (and is held in memory) is encoded.
+	 */
+	@Override
+	public ByteBuffer getBytes(Object key) {
+		String k = (String) key;
+		if (k == null)
+			throw new NullPointerException();
+
+		if (updates.containsKey(k)) {
+			String value = updates.get(k);
+			return value == REMOVED ? null : Utf8.encode(value);
+		}
+		if (base == null)
+			return null;
+		return base.lookupBytes(k);
+	}
+
+	@Override
+	public boolean storesBytes() {
+		return true;
 	}
 
 	@Override
 	public String put(String key, String value) {
-		// TODO Auto-generated method stub
-		return null;
+		String old = current(key);
+		updates.put(key, value);
+		if (old == REMOVED) {
+			++size;
+			return null;
+		}
+		return old;
 	}
 
 	@Override
 	public boolean containsKey(Object key) {
-		// TODO Auto-generated method stub
-		return false;
+		return current((String) key) != REMOVED;
 	}
 
 	@Override
 	public int size() {
-		// TODO Auto-generated method stub
-		return 0;
+		return size;
 	}
 
 	@Override
 	public String remove(Object key) {
-		// TODO Auto-generated method stub
-		return null;
+		String k = (String) key;
+		String old = current(k);
+		if (old == REMOVED)
+			return null;
+
+		if (base != null)
+			updates.put(k, REMOVED);
+		else
+			updates.remove(k);
+		--size;
+		return old;
 	}
 
 	@Override
 	public void clear() {
-		// TODO Auto-generated method stub
-		
+		base = null;
+		updates = new TreeMap<String, String>();
+		size = 0;
+	}
+
+	@Override
+	public String update(String key, Remapping remapping) {
+		String value = remapping.remap(key, get(key));
+		if (value == null)
+			remove(key);
+		else
+			put(key, value);
+		return value;
+	}
+
+	/**
+	 * Return the set of keys in alphabetical order.
+	 * The set is a live view that is read from the file as it is iterated.
+	 */
+	public Set<String> keySet() {
+		return new AbstractSet<String>() {
+			@Override
+			public Iterator<String> iterator() {
+				final Iterator<Map.Entry<String, String>> entries = entryIterator();
+				return new Iterator<String>() {
+					@Override public boolean hasNext() { return entries.hasNext(); }
+					@Override public String next() { return entries.next().getKey(); }
+					@Override public void remove() { throw new UnsupportedOperationException(); }
+				};
+			}
+
+			@Override
+			public int size() {
+				return size;
+			}
+		};
+	}
+
+	/**
+	 * Return an iterator over the entries of the dictionary, in alphabetical order.
+	 * The iterator merges the entries of the file with the in-memory updates.
+	 */
+	Iterator<Map.Entry<String, String>> entryIterator() {
+		return scan(null, null);
+	}
+
+	/**
+	 * The entries of the file are read sequentially with a cursor, starting from a binary search for the
+	 * first key, and merged with the in-memory updates in the range.
+	 */
+	@Override
+	public Iterator<Map.Entry<String, String>> scan(String from, String to) {
+		NavigableMap<String, String> rangeUpdates = KeyRange.subMap(updates, from, to);
+		int fromIndex = 0;
+		int toIndex = 0;
+		if (base != null) {
+			fromIndex = (from == null) ? 0 : insertionPoint(base.find(from));
+			toIndex = (to == null) ? base.numWords : insertionPoint(base.find(to));
+		}
+		return new MergeIterator(base, fromIndex, toIndex, rangeUpdates);
+	}
+
+	@Override
+	public Iterator<Map.Entry<String, String>> prefix(String prefix) {
+		return scan(prefix, KeyRange.prefixEnd(prefix));
+	}
+
+	/**
+	 * Return the index of the first entry that is not less than a key, given the result of {@link SWPDFile#find(String)}.
+	 */
+	private static int insertionPoint(int found) {
+		return (found >= 0) ? found : -(found + 1);
+	}
+
+	/**
+	 * Merges the (sorted) entries of a range of a SWPD file with the (sorted) in-memory updates.
+	 */
+	static class MergeIterator implements Iterator<Map.Entry<String, String>> {
+		final SWPDFile.Cursor fileCursor;
+		final Iterator<Map.Entry<String, String>> updateIt;
+
+		// One past the last entry of the file to read
+		final int toIndex;
+
+		// The keyword at the file cursor (null if none)
+		String fileKey;
+
+		// The next update (null if none)
+		Map.Entry<String, String> update;
+
+		// The next entry to return (null if there are no more entries)
+		Map.Entry<String, String> next;
+
+		/**
+		 * @param file the file (null if there is none).
+		 * @param fromIndex the first entry of the file to read.
+		 * @param toIndex one past the last entry of the file to read.
+		 * @param updates the updates in the range.
+		 */
+		MergeIterator(SWPDFile file, int fromIndex, int toIndex, SortedMap<String, String> updates) {
+			this.fileCursor = (file == null || fromIndex >= toIndex) ? null : file.cursor(fromIndex);
+			this.toIndex = toIndex;
+			this.updateIt = updates.entrySet().iterator();
+			fileKey = nextFileKey();
+			update = updateIt.hasNext() ? updateIt.next() : null;
+			advance();
+		}
+
+		private String nextFileKey() {
+			if (fileCursor == null || fileCursor.index + 1 >= toIndex || !fileCursor.next())
+				return null;
+			return fileCursor.keyString();
+		}
+
+		/**
+		 * Find the next entry that hasn't been removed.
+		 */
+		private void advance() {
+			next = null;
+			while (next == null && (fileKey != null || update != null)) {
+				int cmp;
+				if (fileKey == null)
+					cmp = 1;
+				else if (update == null)
+					cmp = -1;
+				else
+					cmp = fileKey.compareTo(update.getKey());
+
+				if (cmp < 0) {
+					// The file entry wasn't updated
+					next = new AbstractMap.SimpleImmutableEntry<String, String>(fileKey, fileCursor.valueString());
+				} else if (update.getValue() != REMOVED) {
+					next = new AbstractMap.SimpleImmutableEntry<String, String>(update);
+				}
+
+				if (cmp <= 0)
+					fileKey = nextFileKey();
+				if (cmp >= 0)
+					update = updateIt.hasNext() ? updateIt.next() : null;
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			return next != null;
+		}
+
+		@Override
+		public Map.Entry<String, String> next() {
+			if (next == null)
+				throw new NoSuchElementException();
+			Map.Entry<String, String> result = next;
+			advance();
+			return result;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
 	}
-	
 }
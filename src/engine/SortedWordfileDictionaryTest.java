@@ -1,7 +1,16 @@
 package engine;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
 import java.io.File;
 import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.Test;
 
 public class SortedWordfileDictionaryTest extends PersistentDictionaryTest {
 
@@ -10,4 +19,200 @@ public class SortedWordfileDictionaryTest extends PersistentDictionaryTest {
 		return new SortedWordfileDictionary(file);
 	}
 
+	/**
+	 * Version 2 keywords are stored with their length, so they may contain the separator; lookups
+	 * (through the key blocks, with and without a fence index) must not stop comparing at it.
+	 */
+	@Test
+	public void separatorInKeys() throws IOException {
+		TreeMap<String, String> entries = new TreeMap<String, String>();
+		for (int i = 0; i < 500; ++i) {
+			String key = (i % 2 == 0) ? "k" + i % 37 + ":" + i : "k" + i % 37 + i;
+			entries.put(key, "def:" + i);
+		}
+		entries.put(":", "colon");
+		entries.put("k1:", "trailing colon");
+
+		for (int fenceInterval : new int[] { 0, FenceIndex.DEFAULT_INTERVAL }) {
+			dictFile.delete();
+			SortedWordfileDictionary dict = new SortedWordfileDictionary(dictFile, 2, BloomFilter.DEFAULT_BITS_PER_KEY,
+					fenceInterval);
+			dict.open();
+			for (Map.Entry<String, String> entry : entries.entrySet())
+				dict.put(entry.getKey(), entry.getValue());
+			dict.close();
+
+			dict.open();
+			for (Map.Entry<String, String> entry : entries.entrySet())
+				assertEquals("fence interval " + fenceInterval, entry.getValue(), dict.get(entry.getKey()));
+			assertEquals(null, dict.get("k1"));
+			assertEquals(null, dict.get("k1::"));
+			dict.close();
+		}
+	}
+
+	/**
+	 * Write the test words to a version 1 file.
+	 */
+	void writeVersion1() throws Exception {
+		dict.close();
+		dictFile.delete();
+		dict = new SortedWordfileDictionary(dictFile, 1, BloomFilter.DEFAULT_BITS_PER_KEY, FenceIndex.DEFAULT_INTERVAL);
+		dict.open();
+		fillMap(dict, testWords, testDefs);
+		dict.close();
+		assertEquals(1, fileVersion());
+	}
+
+	/**
+	 * Return the format version of the dictionary file.
+	 */
+	int fileVersion() throws IOException {
+		return SWPDFile.open(dictFile, 0).version();
+	}
+
+	/**
+	 * By default, an existing version 1 file is read, and written back, as version 1.
+	 */
+	@Test
+	public void keepVersion1() throws Exception {
+		writeVersion1();
+
+		dict = getDictionary(dictFile);
+		dict.open();
+		testEquality("Version 1 file", expected, dict);
+		fillMap(dict, addWords, addDefs);
+		fillMap(expected, addWords, addDefs);
+		dict.remove("First");
+		expected.remove("First");
+		dict.close();
+		assertEquals("The file should have kept its version", 1, fileVersion());
+
+		dict.open();
+		testEquality("Updated version 1 file", expected, dict);
+		dict.close();
+
+		// A new file is written in the default version
+		dictFile.delete();
+		dict.open();
+		dict.put("new", "file");
+		dict.close();
+		assertEquals(SWPDWriter.DEFAULT_VERSION, fileVersion());
+		dict.open();
+	}
+
+	/**
+	 * A version 1 file is merged with the updates into a version 2 file when version 2 is asked for.
+	 */
+	@Test
+	public void upgradeToVersion2() throws Exception {
+		writeVersion1();
+
+		dict = new SortedWordfileDictionary(dictFile, 2, BloomFilter.DEFAULT_BITS_PER_KEY, FenceIndex.DEFAULT_INTERVAL);
+		dict.open();
+		testEquality("Version 1 file", expected, dict);
+		fillMap(dict, addWords, addDefs);
+		fillMap(expected, addWords, addDefs);
+		dict.remove("4");
+		expected.remove("4");
+		dict.close();
+		assertEquals("The file should have been upgraded", 2, fileVersion());
+
+		dict = getDictionary(dictFile);
+		dict.open();
+		testEquality("Upgraded file", expected, dict);
+	}
+
+	/**
+	 * A fence index that counts its searches.
+	 */
+	static class CountingFenceIndex extends FenceIndex {
+		int searches;
+
+		CountingFenceIndex(FenceIndex fence) {
+			super(fence.interval, fence.keys, fence.offsets, fence.contiguous);
+		}
+
+		@Override
+		int floor(byte[] key) {
+			++searches;
+			return super.floor(key);
+		}
+	}
+
+	/**
+	 * A keyword that the Bloom filter rules out is not searched for in the file (nor in the fence index).
+	 */
+	@Test
+	public void bloomFilterMisses() throws IOException {
+		for (int version = 1; version <= 2; ++version) {
+			dictFile.delete();
+			SortedWordfileDictionary dict = new SortedWordfileDictionary(dictFile, version,
+					BloomFilter.DEFAULT_BITS_PER_KEY, FenceIndex.DEFAULT_INTERVAL);
+			dict.open();
+			for (int i = 0; i < 1000; ++i)
+				dict.put("word" + i, "def" + i);
+			dict.close();
+
+			dict.open();
+			assertNotNull(dict.base.bloom);
+			CountingFenceIndex fence = new CountingFenceIndex(dict.base.fence);
+			dict.base.fence = fence;
+
+			for (int i = 0; i < 1000; ++i)
+				assertEquals("def" + i, dict.get("word" + i));
+			assertEquals("Every hit should be searched for", 1000, fence.searches);
+
+			int misses = 0;
+			for (int i = 0; i < 1000; ++i) {
+				String key = "other" + i;
+				boolean filtered = !dict.base.mightContain(key.getBytes(SWPDFile.CHARSET));
+				int searches = fence.searches;
+				assertNull(dict.get(key));
+				assertNull(dict.getBytes(key));
+				if (filtered) {
+					assertEquals("A filtered miss was searched for", searches, fence.searches);
+					++misses;
+				}
+			}
+			// With 10 bits per key, about 1% of the misses get through the filter
+			assertTrue("Only " + misses + " of 1000 misses were filtered (version " + version + ")", misses > 950);
+			dict.close();
+		}
+	}
+
+	/**
+	 * A version 1 file written before files had a trailer (and so has no Bloom filter or stored
+	 * fence index) can be read, and gets a trailer when it is written back.
+	 */
+	@Test
+	public void fileWithoutTrailer() throws Exception {
+		dict.close();
+		dictFile.delete();
+		dict = new SortedWordfileDictionary(dictFile, 1, 0, 0);
+		dict.open();
+		fillMap(dict, testWords, testDefs);
+		dict.close();
+
+		SWPDFile file = SWPDFile.open(dictFile, 0);
+		assertEquals("The file shouldn't have a trailer", file.length, file.dataEnd());
+		assertNull(file.bloom);
+
+		SortedWordfileDictionary dict = new SortedWordfileDictionary(dictFile);
+		this.dict = dict;
+		dict.open();
+		assertNull(dict.base.bloom);
+		assertNotNull("A fence index should have been built", dict.base.fence);
+		testEquality("File without a trailer", expected, dict);
+		assertNull(dict.get("missing"));
+
+		fillMap(dict, addWords, addDefs);
+		fillMap(expected, addWords, addDefs);
+		dict.close();
+		dict.open();
+		assertNotNull(dict.base.bloom);
+		assertNotNull(dict.base.block(FenceIndex.TAG));
+		testEquality("File rewritten with a trailer", expected, dict);
+	}
+
 }
@@ -0,0 +1,13 @@
+package engine;
+
+import java.io.File;
+import java.io.IOException;
+
+public class SortedWordfileDictionaryV1Test extends PersistentDictionaryTest {
+
+	@Override
+	PersistentDictionary getDictionary(File file) throws IOException {
+		return new SortedWordfileDictionary(file, 1, BloomFilter.DEFAULT_BITS_PER_KEY, FenceIndex.DEFAULT_INTERVAL);
+	}
+
+}
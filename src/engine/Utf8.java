@@ -0,0 +1,94 @@
+package engine;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Helpers for working with UTF-8 encoded strings without decoding them.
+ */
+class Utf8 {
+
+	private Utf8() {
+	}
+
+	/**
+	 * Compare two UTF-8 encoded strings, in the same order as {@link String#compareTo(String)}
+	 * would compare the decoded strings.
+	 *
+	 * Comparing UTF-8 bytes as unsigned values orders strings by code point. This is the same as the
+	 * UTF-16 order of {@link String#compareTo(String)}, except that supplementary characters (encoded
+	 * as surrogates in UTF-16) sort after U+E000..U+FFFF by code point, but before them in UTF-16.
+	 * Since the strings are identical up to the first differing byte, that byte is either the lead
+	 * byte of a character in both strings or a continuation byte in both. Only the first case can
+	 * involve a supplementary character and a character of U+E000..U+FFFF, and it is told apart by
+	 * the lead bytes; differing continuation bytes belong to characters of the same length and the
+	 * same lead byte, which sort by code point in UTF-16 too.
+	 *
+	 * @return a negative number, zero or a positive number if the first string is less than,
+	 * 	equal to or greater than the second.
+	 */
+	static int compare(ByteBuffer a, int aOff, int aLen, ByteBuffer b, int bOff, int bLen) {
+		int len = Math.min(aLen, bLen);
+		for (int i = 0; i < len; ++i) {
+			int x = a.get(aOff + i) & 0xFF;
+			int y = b.get(bOff + i) & 0xFF;
+			if (x != y)
+				return compareDifferingBytes(x, y);
+		}
+		return aLen - bLen;
+	}
+
+	/**
+	 * Compare two UTF-8 encoded strings held in arrays (see {@link #compare(ByteBuffer, int, int, ByteBuffer, int, int)}).
+	 */
+	static int compare(byte[] a, int aOff, int aLen, byte[] b, int bOff, int bLen) {
+		int len = Math.min(aLen, bLen);
+		for (int i = 0; i < len; ++i) {
+			int x = a[aOff + i] & 0xFF;
+			int y = b[bOff + i] & 0xFF;
+			if (x != y)
+				return compareDifferingBytes(x, y);
+		}
+		return aLen - bLen;
+	}
+
+	/**
+	 * Compare the first differing bytes of two UTF-8 strings (in UTF-16 order): two lead bytes or two
+	 * continuation bytes.
+	 */
+	static int compareDifferingBytes(int x, int y) {
+		// 0xF0-0xF4 start a supplementary character; 0xEE-0xEF start U+E000..U+FFFF. Continuation
+		// bytes (0x80-0xBF) match neither case.
+		if (x >= 0xF0 && (y == 0xEE || y == 0xEF))
+			return -1;
+		if (y >= 0xF0 && (x == 0xEE || x == 0xEF))
+			return 1;
+		return x - y;
+	}
+
+	/**
+	 * Return a read-only buffer with the UTF-8 encoding of a string, or null if the string is null
+	 * (see {@link PersistentDictionary#getBytes(Object)}).
+	 */
+	static ByteBuffer encode(String value) {
+		if (value == null)
+			return null;
+		return ByteBuffer.wrap(value.getBytes(SWPDFile.CHARSET)).asReadOnlyBuffer();
+	}
+
+	/**
+	 * Hash a UTF-8 encoded string.
+	 */
+	static int hash(ByteBuffer buf, int off, int len) {
+		int h = 0;
+		for (int i = 0; i < len; ++i)
+			h = 31 * h + buf.get(off + i);
+
+		// Spread the bits (the finalizer of MurmurHash3)
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+}
@@ -0,0 +1,78 @@
+package engine;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A read-only {@link CharSequence} view of UTF-8 bytes (such as a value returned by
+ * {@link PersistentDictionary#getBytes(Object)}), so the value can be parsed without building a String.
+ *
+ * If the bytes are all ASCII, every character is a single byte, and the characters are read straight from
+ * the buffer (subsequences are views too). Otherwise the bytes are decoded once, when the view is created.
+ * Only {@link #toString()} copies the characters.
+ */
+public final class Utf8Chars implements CharSequence {
+
+	/**
+	 * The bytes, if they are all ASCII (their remaining bytes are the characters); otherwise null.
+	 */
+	private final ByteBuffer ascii;
+
+	/**
+	 * The decoded characters, if the bytes aren't all ASCII; otherwise null.
+	 */
+	private final String decoded;
+
+	/**
+	 * A constructor.
+	 * @param bytes the UTF-8 bytes (the buffer's remaining bytes); the buffer's position and limit aren't changed.
+	 */
+	public Utf8Chars(ByteBuffer bytes) {
+		int pos = bytes.position();
+		int limit = bytes.limit();
+		for (int i = pos; i < limit; ++i) {
+			if (bytes.get(i) < 0) {
+				ascii = null;
+				decoded = SWPDFile.decode(bytes);
+				return;
+			}
+		}
+		ascii = bytes.slice();
+		decoded = null;
+	}
+
+	@Override
+	public int length() {
+		return (ascii != null) ? ascii.remaining() : decoded.length();
+	}
+
+	@Override
+	public char charAt(int index) {
+		if (ascii == null)
+			return decoded.charAt(index);
+		if (index < 0 || index >= ascii.remaining())
+			throw new IndexOutOfBoundsException("index " + index + ", length " + ascii.remaining());
+		return (char) ascii.get(index);
+	}
+
+	@Override
+	public CharSequence subSequence(int start, int end) {
+		if (ascii == null)
+			return decoded.subSequence(start, end);
+		if (start < 0 || end > ascii.remaining() || start > end)
+			throw new IndexOutOfBoundsException("start " + start + ", end " + end + ", length " + ascii.remaining());
+		ByteBuffer sub = ascii.duplicate();
+		sub.limit(end);
+		sub.position(start);
+		return new Utf8Chars(sub);
+	}
+
+	@Override
+	public String toString() {
+		if (ascii == null)
+			return decoded;
+		char[] chars = new char[ascii.remaining()];
+		for (int i = 0; i < chars.length; ++i)
+			chars[i] = (char) ascii.get(i);
+		return new String(chars);
+	}
+}
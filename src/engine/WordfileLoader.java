@@ -0,0 +1,495 @@
+package engine;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Loads a text dictionary file with one keyword per line:
+ * <pre>word:def1:def2:def3,...</pre>
+ * (the format written by {@link InMemoryDictionary}).
+ *
+ * The file is read through a {@link FileChannel} into large byte buffers and split into lines and
+ * keywords directly on the bytes: in UTF-8, the bytes of '\n' and ':' never occur inside the encoding
+ * of another character, so only the keyword and definition themselves need to be decoded.
+ * Lines that have no ':' or are not valid UTF-8 are skipped and reported (see {@link #getMalformedLines()}).
+ * Blank lines are ignored. If a keyword appears more than once, the last definition wins.
+ *
+ * The loader can split the file at line boundaries into several chunks that are parsed and sorted in parallel,
+ * and then merged. Either way, the result is a list of the entries, sorted by keyword (with no duplicates),
+ * which {@link SortedEntries} presents as a sorted map that a {@link java.util.TreeMap} (or a
+ * {@link java.util.concurrent.ConcurrentSkipListMap}) can be built from in linear time.
+ */
+class WordfileLoader {
+
+	/**
+	 * The initial size of each read buffer (the buffer grows if a line doesn't fit).
+	 */
+	static final int BUFFER_SIZE = 1 << 20;
+
+	/**
+	 * Files are not split into chunks smaller than this.
+	 */
+	static final long MIN_CHUNK_SIZE = 4 << 20;
+
+	static final Charset CHARSET = SWPDFile.CHARSET;
+	static final Charset ASCII = Charset.forName("ISO-8859-1");
+
+	static final Comparator<Map.Entry<String, String>> KEY_ORDER = new Comparator<Map.Entry<String, String>>() {
+		@Override
+		public int compare(Map.Entry<String, String> e1, Map.Entry<String, String> e2) {
+			return e1.getKey().compareTo(e2.getKey());
+		}
+	};
+
+	/**
+	 * The file to load.
+	 */
+	final File file;
+
+	/**
+	 * The number of threads used to parse the file.
+	 */
+	final int threads;
+
+	/**
+	 * The (1-based) numbers of the malformed lines found by the last {@link #load()}.
+	 */
+	List<Long> malformedLines;
+
+	/**
+	 * A constructor.
+	 * @param file the file to load.
+	 * @param threads the number of threads used to parse the file (1 to parse it on the calling thread).
+	 */
+	WordfileLoader(File file, int threads) {
+		this.file = file;
+		this.threads = Math.max(1, threads);
+		malformedLines = Collections.emptyList();
+	}
+
+	/**
+	 * Return the (1-based) numbers of the malformed lines found by the last {@link #load()}.
+	 */
+	List<Long> getMalformedLines() {
+		return malformedLines;
+	}
+
+	/**
+	 * Load the file.
+	 * @return the entries of the file, sorted by keyword.
+	 */
+	List<Map.Entry<String, String>> load() throws IOException {
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			List<Chunk> chunks = split(channel);
+
+			if (chunks.size() == 1) {
+				chunks.get(0).call();
+			} else {
+				ExecutorService executor = Executors.newFixedThreadPool(chunks.size());
+				try {
+					List<Future<Chunk>> results = executor.invokeAll(chunks);
+					for (Future<Chunk> result : results)
+						result.get();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while loading " + file);
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof IOException)
+						throw (IOException) e.getCause();
+					throw new IOException("Failed to load " + file, e.getCause());
+				} finally {
+					executor.shutdown();
+				}
+			}
+
+			// Collect the malformed lines, numbered from the start of the file.
+			malformedLines = new ArrayList<Long>();
+			long firstLine = 1;
+			for (Chunk chunk : chunks) {
+				for (int line : chunk.malformed)
+					malformedLines.add(firstLine + line);
+				firstLine += chunk.lines;
+			}
+
+			return merge(chunks);
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Split the file into chunks that start at line boundaries.
+	 */
+	List<Chunk> split(FileChannel channel) throws IOException {
+		long size = channel.size();
+		int numChunks = (int) Math.max(1, Math.min(threads, size / MIN_CHUNK_SIZE));
+
+		List<Chunk> chunks = new ArrayList<Chunk>(numChunks);
+		long start = 0;
+		for (int i = 1; i <= numChunks; ++i) {
+			long end = (i == numChunks) ? size : Math.max(start, nextLineStart(channel, size * i / numChunks, size));
+			chunks.add(new Chunk(channel, start, end));
+			start = end;
+		}
+		return chunks;
+	}
+
+	/**
+	 * Return the position of the first line that starts at or after a position.
+	 */
+	static long nextLineStart(FileChannel channel, long pos, long size) throws IOException {
+		if (pos == 0)
+			return 0;
+
+		// Look for a '\n' starting from the byte before pos
+		ByteBuffer buf = ByteBuffer.allocate(4096);
+		pos -= 1;
+		while (pos < size) {
+			buf.clear();
+			int n = channel.read(buf, pos);
+			if (n <= 0)
+				break;
+			for (int i = 0; i < n; ++i) {
+				if (buf.get(i) == '\n')
+					return pos + i + 1;
+			}
+			pos += n;
+		}
+		return size;
+	}
+
+	/**
+	 * Merge the (sorted) entries of the chunks. If a key appears in more than one chunk,
+	 * the entry from the last chunk wins.
+	 */
+	static List<Map.Entry<String, String>> merge(List<Chunk> chunks) {
+		if (chunks.size() == 1)
+			return chunks.get(0).entries;
+
+		int total = 0;
+		for (Chunk chunk : chunks)
+			total += chunk.entries.size();
+		List<Map.Entry<String, String>> merged = new ArrayList<Map.Entry<String, String>>(total);
+
+		// A k-way merge; the heap holds the next entry of each chunk (ordered by key, then by chunk)
+		PriorityQueue<Cursor> heap = new PriorityQueue<Cursor>(chunks.size());
+		for (int i = 0; i < chunks.size(); ++i) {
+			Cursor cursor = new Cursor(i, chunks.get(i).entries.iterator());
+			if (cursor.advance())
+				heap.add(cursor);
+		}
+
+		while (!heap.isEmpty()) {
+			Cursor cursor = heap.poll();
+			Map.Entry<String, String> entry = cursor.current;
+			if (!merged.isEmpty() && merged.get(merged.size() - 1).getKey().equals(entry.getKey()))
+				merged.set(merged.size() - 1, entry);
+			else
+				merged.add(entry);
+
+			if (cursor.advance())
+				heap.add(cursor);
+		}
+		return merged;
+	}
+
+	/**
+	 * The current position in the entries of a chunk.
+	 */
+	static class Cursor implements Comparable<Cursor> {
+		final int chunk;
+		final Iterator<Map.Entry<String, String>> it;
+		Map.Entry<String, String> current;
+
+		Cursor(int chunk, Iterator<Map.Entry<String, String>> it) {
+			this.chunk = chunk;
+			this.it = it;
+		}
+
+		boolean advance() {
+			current = it.hasNext() ? it.next() : null;
+			return current != null;
+		}
+
+		@Override
+		public int compareTo(Cursor other) {
+			int cmp = current.getKey().compareTo(other.current.getKey());
+			return (cmp != 0) ? cmp : (chunk - other.chunk);
+		}
+	}
+
+	/**
+	 * A range of the file that is parsed (and sorted) by a single thread.
+	 */
+	class Chunk implements Callable<Chunk> {
+		final FileChannel channel;
+		final long start;
+		final long end;
+
+		// The results
+		List<Map.Entry<String, String>> entries;
+		int lines;
+		List<Integer> malformed;
+
+		// Is the list of entries sorted (with no duplicates) so far?
+		boolean sorted;
+
+		final CharsetDecoder decoder = CHARSET.newDecoder()
+				.onMalformedInput(CodingErrorAction.REPORT)
+				.onUnmappableCharacter(CodingErrorAction.REPORT);
+
+		Chunk(FileChannel channel, long start, long end) {
+			this.channel = channel;
+			this.start = start;
+			this.end = end;
+		}
+
+		/**
+		 * Parse the chunk, and sort its entries.
+		 */
+		@Override
+		public Chunk call() throws IOException {
+			entries = new ArrayList<Map.Entry<String, String>>();
+			malformed = new ArrayList<Integer>();
+			lines = 0;
+			sorted = true;
+
+			ByteBuffer buf = ByteBuffer.allocate((int) Math.min(BUFFER_SIZE, Math.max(end - start, 1)));
+			long pos = start;
+			while (pos < end) {
+				// Fill the buffer (using positional reads, so chunks can share the channel).
+				int limit = (int) Math.min(buf.remaining(), end - pos);
+				ByteBuffer window = buf.duplicate();
+				window.limit(buf.position() + limit);
+				int n = channel.read(window, pos);
+				if (n < 0)
+					break;
+				pos += n;
+				buf.position(buf.position() + n);
+
+				// Parse the complete lines in the buffer
+				byte[] data = buf.array();
+				int lineStart = 0;
+				for (int i = 0; i < buf.position(); ++i) {
+					if (data[i] == '\n') {
+						parseLine(data, lineStart, i);
+						lineStart = i + 1;
+					}
+				}
+
+				// Keep the incomplete last line; grow the buffer if it holds a single incomplete line.
+				buf.flip();
+				buf.position(lineStart);
+				buf.compact();
+				if (!buf.hasRemaining() && pos < end) {
+					ByteBuffer bigger = ByteBuffer.allocate(buf.capacity() * 2);
+					buf.flip();
+					bigger.put(buf);
+					buf = bigger;
+				}
+			}
+
+			// The last line may not end with a newline
+			if (buf.position() > 0)
+				parseLine(buf.array(), 0, buf.position());
+
+			if (!sorted) {
+				// Sort (stably, so the last definition of a key comes last), then drop duplicates.
+				Collections.sort(entries, KEY_ORDER);
+				List<Map.Entry<String, String>> unique = new ArrayList<Map.Entry<String, String>>(entries.size());
+				for (Map.Entry<String, String> entry : entries) {
+					if (!unique.isEmpty() && unique.get(unique.size() - 1).getKey().equals(entry.getKey()))
+						unique.set(unique.size() - 1, entry);
+					else
+						unique.add(entry);
+				}
+				entries = unique;
+			}
+			return this;
+		}
+
+		/**
+		 * Parse a single line (not including the '\n').
+		 */
+		void parseLine(byte[] data, int from, int to) {
+			++lines;
+			if (to > from && data[to - 1] == '\r')
+				--to;
+			if (to == from)
+				return;
+
+			int colon = from;
+			while (colon < to && data[colon] != ':')
+				++colon;
+			if (colon == to) {
+				malformed.add(lines - 1);
+				return;
+			}
+
+			String key = decode(data, from, colon);
+			String value = decode(data, colon + 1, to);
+			if (key == null || value == null) {
+				malformed.add(lines - 1);
+				return;
+			}
+
+			if (sorted && !entries.isEmpty() && entries.get(entries.size() - 1).getKey().compareTo(key) >= 0)
+				sorted = false;
+			entries.add(new AbstractMap.SimpleEntry<String, String>(key, value));
+		}
+
+		/**
+		 * Decode UTF-8 bytes.
+		 * @return the decoded string, or null if the bytes are not valid UTF-8.
+		 */
+		String decode(byte[] data, int from, int to) {
+			boolean ascii = true;
+			for (int i = from; i < to && ascii; ++i)
+				ascii = data[i] >= 0;
+			if (ascii)
+				return new String(data, from, to - from, ASCII);
+
+			try {
+				CharBuffer chars = decoder.decode(ByteBuffer.wrap(data, from, to - from));
+				return chars.toString();
+			} catch (CharacterCodingException e) {
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * A read-only sorted map backed by a sorted list of entries (with no duplicate keys), such as the list
+	 * returned by {@link WordfileLoader#load()}. Building a {@link java.util.TreeMap} or a
+	 * {@link java.util.concurrent.ConcurrentSkipListMap} from a sorted map takes linear time, rather than
+	 * the O(n log n) of inserting the entries one by one.
+	 *
+	 * Lookups are binary searches, and sub maps are views of ranges of the list.
+	 */
+	static class SortedEntries extends AbstractMap<String, String> implements SortedMap<String, String> {
+		final List<Map.Entry<String, String>> entries;
+
+		SortedEntries(List<Map.Entry<String, String>> entries) {
+			this.entries = entries;
+		}
+
+		/**
+		 * Return the index of the first entry whose key is not less than a key (the size if there is none).
+		 */
+		int lowerBound(String key) {
+			int low = 0;
+			int high = entries.size();
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (entries.get(mid).getKey().compareTo(key) < 0)
+					low = mid + 1;
+				else
+					high = mid;
+			}
+			return low;
+		}
+
+		/**
+		 * Return the entry of a key, or null if there is none.
+		 */
+		Map.Entry<String, String> find(Object key) {
+			int i = lowerBound((String) key);
+			if (i < entries.size() && entries.get(i).getKey().equals(key))
+				return entries.get(i);
+			return null;
+		}
+
+		@Override
+		public String get(Object key) {
+			Map.Entry<String, String> entry = find(key);
+			return (entry == null) ? null : entry.getValue();
+		}
+
+		@Override
+		public boolean containsKey(Object key) {
+			return find(key) != null;
+		}
+
+		@Override
+		public int size() {
+			return entries.size();
+		}
+
+		@Override
+		public Set<Map.Entry<String, String>> entrySet() {
+			return new AbstractSet<Map.Entry<String, String>>() {
+				@Override
+				public Iterator<Map.Entry<String, String>> iterator() {
+					return Collections.unmodifiableList(entries).iterator();
+				}
+
+				@Override
+				public int size() {
+					return entries.size();
+				}
+			};
+		}
+
+		@Override
+		public Comparator<? super String> comparator() {
+			return null;
+		}
+
+		@Override
+		public String firstKey() {
+			if (entries.isEmpty())
+				throw new NoSuchElementException();
+			return entries.get(0).getKey();
+		}
+
+		@Override
+		public String lastKey() {
+			if (entries.isEmpty())
+				throw new NoSuchElementException();
+			return entries.get(entries.size() - 1).getKey();
+		}
+
+		@Override
+		public SortedMap<String, String> subMap(String fromKey, String toKey) {
+			if (fromKey.compareTo(toKey) > 0)
+				throw new IllegalArgumentException("fromKey > toKey");
+			return new SortedEntries(entries.subList(lowerBound(fromKey), lowerBound(toKey)));
+		}
+
+		@Override
+		public SortedMap<String, String> headMap(String toKey) {
+			return new SortedEntries(entries.subList(0, lowerBound(toKey)));
+		}
+
+		@Override
+		public SortedMap<String, String> tailMap(String fromKey) {
+			return new SortedEntries(entries.subList(lowerBound(fromKey), entries.size()));
+		}
+	}
+}
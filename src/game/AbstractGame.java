@@ -2,7 +2,6 @@ package game;
 
 import java.util.Collection;
 import java.util.LinkedHashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 
@@ -27,7 +26,12 @@ public abstract class AbstractGame implements Game {
 	Map<Player,PlayerStatus> players;
 	
 	/**
-	 * Players that remain active.
+	 * The players' slots, active players and turn order.
+	 */
+	PlayerRegistry registry;
+	
+	/**
+	 * Players that remain active, in the order they joined (a read-only view of the registry).
 	 */
 	List<Player> activePlayers;
 
@@ -41,7 +45,8 @@ public abstract class AbstractGame implements Game {
 	 */
 	AbstractGame() {
 		players = new LinkedHashMap<Player, PlayerStatus>();
-		activePlayers = new LinkedList<Player>();
+		registry = new PlayerRegistry();
+		activePlayers = registry.activePlayers;
 		gameEnded = false;
 	}
 	
@@ -70,7 +75,7 @@ public abstract class AbstractGame implements Game {
 		status.numMoves = 0;
 		
 		players.put(player,status);
-		activePlayers.add(player);
+		registry.add(status);
 		return status;
 	}
 	
@@ -86,7 +91,7 @@ public abstract class AbstractGame implements Game {
 				PlayerStatus status = players.get(activePlayer);
 				status.active = false;
 			}
-			activePlayers.clear();
+			registry.deactivateAll();
 			gameEnded = true;
 			return null;
 		} else {
@@ -94,7 +99,7 @@ public abstract class AbstractGame implements Game {
 			if (status != null) {
 				// this is a valid player
 				status.active = false;
-				activePlayers.remove(player);
+				registry.deactivate(status.slot);
 				if (activePlayers.size() == 0)
 					gameEnded = true;
 			}
@@ -141,6 +146,26 @@ public abstract class AbstractGame implements Game {
 	}
 
 	
+	/**
+	 * Is a player active? (false for players that never joined the game)
+	 */
+	public boolean isActive(Player player) {
+		PlayerStatus status = players.get(player);
+		return status != null && registry.isActive(status.slot);
+	}
+	
+	/**
+	 * Return the active player whose turn follows a player's turn, in the order the players joined
+	 * (wrapping around to the first active player).
+	 * @param player an active player, or null for the first active player.
+	 * @return the next active player (null if there are no active players).
+	 */
+	protected Player nextActivePlayer(Player player) {
+		PlayerStatus status = (player == null) ? null : players.get(player);
+		int slot = registry.nextActive(status == null ? -1 : status.slot);
+		return (slot < 0) ? null : registry.statuses[slot].player;
+	}
+	
 	/**
 	 * Get the status of a player. 
 	 * @return a set of PlayerInfo
@@ -170,6 +195,6 @@ public abstract class AbstractGame implements Game {
 	
 	@Override
 	public int getNumActivePlayers() {
-		return activePlayers.size();
+		return registry.numActive;
 	}
 }
@@ -0,0 +1,82 @@
+package game;
+
+import java.util.AbstractSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * A set of words that ignores case: a word is in the set if it equals one of the words in
+ * the set ignoring case (in the sense of {@link String#equalsIgnoreCase(String)}).
+ *
+ * Words are indexed by their case-folded form (see {@link #fold(String)}), so a lookup is a
+ * single hash probe. The set iterates over the words as they were added (the first spelling of each word).
+ */
+class CaseInsensitiveSet extends AbstractSet<String> {
+
+	/**
+	 * The words, by their folded form.
+	 */
+	final Map<String, String> words = new HashMap<String, String>();
+
+	/**
+	 * Fold a character's case: two characters are equal ignoring case iff their folded forms are equal.
+	 * The folding doesn't depend on the default locale.
+	 */
+	static char fold(char c) {
+		if (c < 0x80)
+			return (c >= 'A' && c <= 'Z') ? (char) (c + ('a' - 'A')) : c;
+		return Character.toLowerCase(Character.toUpperCase(c));
+	}
+
+	/**
+	 * Fold a word's case: two words are equal ignoring case iff their folded forms are equal.
+	 * A word that is already folded is returned as is.
+	 */
+	static String fold(String word) {
+		for (int i = 0; i < word.length(); ++i) {
+			char c = word.charAt(i);
+			if (fold(c) != c) {
+				char[] chars = word.toCharArray();
+				for (int j = i; j < chars.length; ++j)
+					chars[j] = fold(chars[j]);
+				return new String(chars);
+			}
+		}
+		return word;
+	}
+
+	@Override
+	public boolean add(String word) {
+		String key = fold(word);
+		if (words.containsKey(key))
+			return false;
+		words.put(key, word);
+		return true;
+	}
+
+	@Override
+	public boolean contains(Object o) {
+		return (o instanceof String) && words.containsKey(fold((String) o));
+	}
+
+	@Override
+	public boolean remove(Object o) {
+		return (o instanceof String) && words.remove(fold((String) o)) != null;
+	}
+
+	@Override
+	public void clear() {
+		words.clear();
+	}
+
+	@Override
+	public int size() {
+		return words.size();
+	}
+
+	@Override
+	public Iterator<String> iterator() {
+		return words.values().iterator();
+	}
+}
@@ -0,0 +1,234 @@
+package game;
+
+/**
+ * A map from description words to their counters, specialized for int counters: an open-addressing
+ * hash table over parallel arrays, so there are no boxed counters and no entry objects.
+ *
+ * This is also the codec of descriptions as they are stored in the dictionary. A stored description is
+ * the marker {@link #MARKER}, followed by the entries, each of which is:
+ * <pre>word length (varint) | word | counter (varint)</pre>
+ * Each varint digit is a single character holding 5 bits, least significant first: the last digit is in the
+ * range 0x20-0x3F and the others in 0x40-0x5F. Definitions are strings that the dictionaries store as lines of
+ * UTF-8, so the digits are printable ASCII (a single byte each) and never a line break. Since the words are
+ * length-prefixed, they may contain any character.
+ *
+ * Descriptions stored in the old textual format (<pre>word|counter,word|counter,...</pre>) are still decoded;
+ * they are written back in the new format.
+ */
+final class DescriptionCounts {
+
+	/**
+	 * The first character of a description in the binary format.
+	 */
+	static final char MARKER = '\u0001';
+
+	static final int DIGIT_BITS = 5;
+	static final int DIGIT_MASK = (1 << DIGIT_BITS) - 1;
+	static final char LAST_DIGIT = 0x20;
+	static final char MORE_DIGIT = 0x40;
+
+	static final int MIN_CAPACITY = 8;
+
+	/**
+	 * The hash table: the word in each slot (null if the slot is empty), and its counter.
+	 */
+	String[] words;
+	int[] counts;
+
+	int size;
+
+	/**
+	 * Create an empty map.
+	 */
+	DescriptionCounts() {
+		this(0);
+	}
+
+	/**
+	 * Create an empty map.
+	 * @param expectedSize the number of words the map will hold (it grows if there are more).
+	 */
+	DescriptionCounts(int expectedSize) {
+		int capacity = MIN_CAPACITY;
+		while (capacity < expectedSize * 2)
+			capacity <<= 1;
+		words = new String[capacity];
+		counts = new int[capacity];
+	}
+
+	int size() {
+		return size;
+	}
+
+	/*======= The hash table ======*/
+
+	/**
+	 * Return the slot of a word, or -(the empty slot where it would be inserted) - 1.
+	 */
+	private int findSlot(String word) {
+		int mask = words.length - 1;
+		int h = word.hashCode();
+		int slot = (h ^ (h >>> 16)) & mask;
+		while (words[slot] != null) {
+			if (words[slot].equals(word))
+				return slot;
+			slot = (slot + 1) & mask;
+		}
+		return -(slot + 1);
+	}
+
+	/**
+	 * Return the counter of a word (0 if it is not in the map).
+	 */
+	int get(String word) {
+		int slot = findSlot(word);
+		return (slot < 0) ? 0 : counts[slot];
+	}
+
+	boolean containsKey(String word) {
+		return findSlot(word) >= 0;
+	}
+
+	/**
+	 * Add to the counter of a word (adding the word, if it isn't in the map).
+	 */
+	void add(String word, int delta) {
+		int slot = findSlot(word);
+		if (slot >= 0) {
+			counts[slot] += delta;
+			return;
+		}
+
+		if (2 * (size + 1) > words.length) {
+			rehash(2 * words.length);
+			slot = findSlot(word);
+		}
+		slot = -(slot + 1);
+		words[slot] = word;
+		counts[slot] = delta;
+		++size;
+	}
+
+	/**
+	 * Add the counters of another map to this one.
+	 */
+	void addAll(DescriptionCounts other) {
+		for (int i = 0; i < other.words.length; ++i) {
+			if (other.words[i] != null)
+				add(other.words[i], other.counts[i]);
+		}
+	}
+
+	private void rehash(int capacity) {
+		String[] oldWords = words;
+		int[] oldCounts = counts;
+		words = new String[capacity];
+		counts = new int[capacity];
+		for (int i = 0; i < oldWords.length; ++i) {
+			if (oldWords[i] == null)
+				continue;
+			int slot = -(findSlot(oldWords[i]) + 1);
+			words[slot] = oldWords[i];
+			counts[slot] = oldCounts[i];
+		}
+	}
+
+	/*======= Encoding ======*/
+
+	private static void appendVarint(StringBuilder str, int value) {
+		while ((value & ~DIGIT_MASK) != 0) {
+			str.append((char) (MORE_DIGIT + (value & DIGIT_MASK)));
+			value >>>= DIGIT_BITS;
+		}
+		str.append((char) (LAST_DIGIT + value));
+	}
+
+	/**
+	 * Encode the map in the binary format (the empty map is encoded as an empty string).
+	 */
+	String encode() {
+		if (size == 0)
+			return "";
+
+		StringBuilder str = new StringBuilder(1 + size * 12);
+		str.append(MARKER);
+		for (int i = 0; i < words.length; ++i) {
+			String word = words[i];
+			if (word == null)
+				continue;
+			appendVarint(str, word.length());
+			str.append(word);
+			appendVarint(str, counts[i]);
+		}
+		return str.toString();
+	}
+
+	/**
+	 * Read a varint.
+	 * @return the value (in the high 32 bits) and the position after it (in the low 32 bits).
+	 */
+	private static long readVarint(CharSequence description, int pos) {
+		int value = 0;
+		for (int shift = 0;; shift += DIGIT_BITS) {
+			if (pos >= description.length() || shift > 30)
+				throw new IllegalArgumentException("Malformed description: bad number at " + pos);
+			char c = description.charAt(pos++);
+			if (c >= LAST_DIGIT && c < LAST_DIGIT + (1 << DIGIT_BITS))
+				return ((long) (value | (c - LAST_DIGIT) << shift) << 32) | pos;
+			if (c < MORE_DIGIT || c >= MORE_DIGIT + (1 << DIGIT_BITS))
+				throw new IllegalArgumentException("Malformed description: bad number at " + (pos - 1));
+			value |= (c - MORE_DIGIT) << shift;
+		}
+	}
+
+	/**
+	 * Decode a stored description, in either format. The description may be a view of the stored bytes
+	 * (see {@link engine.Utf8Chars}): only the words are copied out of it.
+	 * @throws IllegalArgumentException if the description is malformed.
+	 */
+	static DescriptionCounts decode(CharSequence description) {
+		if (description.length() == 0 || description.charAt(0) != MARKER)
+			return decodeText(description.toString());
+
+		// Most words and counters take a few characters each
+		DescriptionCounts counts = new DescriptionCounts(description.length() / 8);
+		int pos = 1;
+		while (pos < description.length()) {
+			long len = readVarint(description, pos);
+			int start = (int) len;
+			int end = start + (int) (len >>> 32);
+			if (end < start || end > description.length())
+				throw new IllegalArgumentException("Malformed description: word at " + start + " is too long");
+			String word = description.subSequence(start, end).toString();
+
+			long count = readVarint(description, end);
+			counts.add(word, (int) (count >>> 32));
+			pos = (int) count;
+		}
+		return counts;
+	}
+
+	/**
+	 * Decode a description in the old textual format: "word|counter,word|counter,...".
+	 */
+	static DescriptionCounts decodeText(String description) {
+		DescriptionCounts counts = new DescriptionCounts();
+		int pos = 0;
+		while (pos < description.length()) {
+			int bar = description.indexOf('|', pos);
+			if (bar < 0)
+				break;
+
+			// The textual format can't hold a word with a ','; it was dropped from the word
+			String word = description.substring(pos, bar);
+			if (word.indexOf(',') >= 0)
+				word = word.replace(",", "");
+			int end = description.indexOf(',', bar + 1);
+			if (end < 0)
+				end = description.length();
+			counts.add(word, Integer.parseInt(description.substring(bar + 1, end)));
+			pos = end + 1;
+		}
+		return counts;
+	}
+}
@@ -0,0 +1,180 @@
+package game;
+
+import java.util.AbstractList;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * The players of a game, indexed by dense integer slots (assigned in the order the players joined).
+ *
+ * Which players are active is tracked in a {@link BitSet}. The turn order is a ring of the active slots,
+ * kept in two arrays (the next and the previous active slot of each slot), so that checking whether a player
+ * is active, finding the next active player and deactivating a player all take constant time.
+ * The ring keeps the active players in the order they joined.
+ */
+class PlayerRegistry {
+
+	static final int INITIAL_CAPACITY = 8;
+
+	/**
+	 * The status of the player in each slot.
+	 */
+	PlayerStatus[] statuses = new PlayerStatus[INITIAL_CAPACITY];
+
+	/**
+	 * The ring of active slots: the next and the previous active slot of each active slot.
+	 */
+	int[] next = new int[INITIAL_CAPACITY];
+	int[] prev = new int[INITIAL_CAPACITY];
+
+	/**
+	 * The number of slots in use.
+	 */
+	int numPlayers;
+
+	/**
+	 * The active slots.
+	 */
+	final BitSet active = new BitSet();
+
+	int numActive;
+
+	/**
+	 * The active slot that joined first (-1 if there are no active players).
+	 */
+	int first = -1;
+
+	/**
+	 * A read-only view of the active players, in the order they joined.
+	 */
+	final List<Player> activePlayers = new AbstractList<Player>() {
+		/**
+		 * Returns the i'th active player (this takes time linear in i).
+		 */
+		@Override
+		public Player get(int index) {
+			if (index < 0 || index >= numActive)
+				throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + numActive);
+			int slot = first;
+			for (int i = 0; i < index; ++i)
+				slot = next[slot];
+			return statuses[slot].player;
+		}
+
+		@Override
+		public int size() {
+			return numActive;
+		}
+
+		@Override
+		public Iterator<Player> iterator() {
+			return new Iterator<Player>() {
+				int slot = first;
+				int remaining = numActive;
+
+				@Override
+				public boolean hasNext() {
+					return remaining > 0;
+				}
+
+				@Override
+				public Player next() {
+					if (remaining == 0)
+						throw new NoSuchElementException();
+					Player player = statuses[slot].player;
+					slot = next[slot];
+					--remaining;
+					return player;
+				}
+
+				@Override
+				public void remove() {
+					throw new UnsupportedOperationException();
+				}
+			};
+		}
+	};
+
+	/**
+	 * Add an active player, after all the other active players in the turn order.
+	 * @return the player's slot.
+	 */
+	int add(PlayerStatus status) {
+		int slot = numPlayers++;
+		if (slot == statuses.length) {
+			int capacity = 2 * statuses.length;
+			PlayerStatus[] newStatuses = new PlayerStatus[capacity];
+			System.arraycopy(statuses, 0, newStatuses, 0, slot);
+			statuses = newStatuses;
+			int[] newNext = new int[capacity];
+			System.arraycopy(next, 0, newNext, 0, slot);
+			next = newNext;
+			int[] newPrev = new int[capacity];
+			System.arraycopy(prev, 0, newPrev, 0, slot);
+			prev = newPrev;
+		}
+		statuses[slot] = status;
+		status.slot = slot;
+
+		// Link the slot in before the first slot, which is the end of the ring
+		if (first < 0) {
+			first = slot;
+			next[slot] = slot;
+			prev[slot] = slot;
+		} else {
+			int last = prev[first];
+			next[last] = slot;
+			prev[slot] = last;
+			next[slot] = first;
+			prev[first] = slot;
+		}
+		active.set(slot);
+		++numActive;
+		return slot;
+	}
+
+	boolean isActive(int slot) {
+		return active.get(slot);
+	}
+
+	/**
+	 * Remove a slot from the active players (if it is active).
+	 */
+	void deactivate(int slot) {
+		if (!active.get(slot))
+			return;
+		active.clear(slot);
+		--numActive;
+
+		if (numActive == 0) {
+			first = -1;
+			return;
+		}
+		next[prev[slot]] = next[slot];
+		prev[next[slot]] = prev[slot];
+		if (first == slot)
+			first = next[slot];
+	}
+
+	/**
+	 * Remove all the players from the active players.
+	 */
+	void deactivateAll() {
+		active.clear();
+		numActive = 0;
+		first = -1;
+	}
+
+	/**
+	 * Return the active slot that follows a slot in the turn order (wrapping around to the first).
+	 * @param slot an active slot, or -1 for the first active slot.
+	 * @return the next active slot (-1 if there are no active players).
+	 */
+	int nextActive(int slot) {
+		if (slot < 0 || !active.get(slot))
+			return first;
+		return next[slot];
+	}
+}
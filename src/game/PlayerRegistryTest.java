@@ -0,0 +1,200 @@
+package game;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test the slots and the turn ring of {@link PlayerRegistry}.
+ */
+public class PlayerRegistryTest {
+
+	PlayerRegistry registry;
+
+	List<Player> players;
+
+	@Before
+	public void setUp() {
+		registry = new PlayerRegistry();
+		players = new ArrayList<Player>();
+	}
+
+	/**
+	 * Add players, and return their slots.
+	 */
+	int[] addPlayers(int count) {
+		int[] slots = new int[count];
+		for (int i = 0; i < count; ++i) {
+			final String id = Integer.toString(players.size());
+			Player player = new Player() {
+				@Override
+				public String getId() {
+					return id;
+				}
+
+				@Override
+				public String getName() {
+					return "player" + id;
+				}
+			};
+			PlayerStatus status = new PlayerStatus();
+			status.player = player;
+			players.add(player);
+			slots[i] = registry.add(status);
+			assertEquals(slots[i], status.slot);
+		}
+		return slots;
+	}
+
+	/**
+	 * Return the active slots in turn order, starting from the first active slot.
+	 */
+	List<Integer> ring() {
+		List<Integer> ring = new ArrayList<Integer>();
+		int slot = registry.nextActive(-1);
+		for (int i = 0; i < registry.numActive; ++i) {
+			ring.add(slot);
+			slot = registry.nextActive(slot);
+		}
+		assertEquals("The ring should wrap around to the first active slot", registry.nextActive(-1), slot);
+		return ring;
+	}
+
+	/**
+	 * Check the active slots, in turn order, against the ring and the view of the active players.
+	 */
+	void checkActive(Integer... slots) {
+		assertEquals(Arrays.asList(slots), ring());
+		assertEquals(slots.length, registry.activePlayers.size());
+		List<Player> expected = new ArrayList<Player>();
+		for (int slot : slots) {
+			assertTrue(registry.isActive(slot));
+			expected.add(players.get(slot));
+		}
+		assertEquals(expected, new ArrayList<Player>(registry.activePlayers));
+		for (int i = 0; i < slots.length; ++i)
+			assertEquals(expected.get(i), registry.activePlayers.get(i));
+	}
+
+	@Test
+	public void slotsInJoinOrder() {
+		int[] slots = addPlayers(3);
+		assertTrue(Arrays.equals(new int[] { 0, 1, 2 }, slots));
+		checkActive(0, 1, 2);
+	}
+
+	@Test
+	public void wrapAround() {
+		addPlayers(3);
+		assertEquals(1, registry.nextActive(0));
+		assertEquals(2, registry.nextActive(1));
+		assertEquals(0, registry.nextActive(2));
+	}
+
+	@Test
+	public void deactivateFirst() {
+		addPlayers(4);
+		registry.deactivate(0);
+		assertFalse(registry.isActive(0));
+		checkActive(1, 2, 3);
+		assertEquals(1, registry.nextActive(3));
+	}
+
+	@Test
+	public void deactivateLast() {
+		addPlayers(4);
+		registry.deactivate(3);
+		assertFalse(registry.isActive(3));
+		checkActive(0, 1, 2);
+		assertEquals(0, registry.nextActive(2));
+
+		// A player that joins later goes after the remaining players
+		addPlayers(1);
+		checkActive(0, 1, 2, 4);
+	}
+
+	@Test
+	public void deactivateTwice() {
+		addPlayers(3);
+		registry.deactivate(1);
+		registry.deactivate(1);
+		assertEquals(2, registry.numActive);
+		checkActive(0, 2);
+	}
+
+	/**
+	 * The next player after a slot that is no longer active is the first active player (as when the
+	 * turn order was a list of the active players).
+	 */
+	@Test
+	public void nextAfterDeactivated() {
+		addPlayers(4);
+		registry.deactivate(2);
+		assertEquals(0, registry.nextActive(2));
+		registry.deactivate(0);
+		assertEquals(1, registry.nextActive(0));
+		assertEquals(1, registry.nextActive(2));
+		checkActive(1, 3);
+	}
+
+	@Test
+	public void lastActivePlayer() {
+		addPlayers(2);
+		registry.deactivate(0);
+		checkActive(1);
+		assertEquals(1, registry.nextActive(1));
+		registry.deactivate(1);
+		assertEquals(0, registry.numActive);
+		assertEquals(-1, registry.nextActive(-1));
+		assertEquals(-1, registry.nextActive(1));
+		assertTrue(registry.activePlayers.isEmpty());
+
+		// Players can still join
+		addPlayers(1);
+		checkActive(2);
+	}
+
+	@Test
+	public void deactivateAll() {
+		addPlayers(5);
+		registry.deactivateAll();
+		assertEquals(0, registry.numActive);
+		assertEquals(-1, registry.nextActive(-1));
+		assertEquals(-1, registry.nextActive(3));
+		for (int slot = 0; slot < 5; ++slot)
+			assertFalse(registry.isActive(slot));
+		assertTrue(registry.activePlayers.isEmpty());
+
+		addPlayers(2);
+		checkActive(5, 6);
+	}
+
+	/**
+	 * The arrays grow past their initial capacity, keeping the ring intact.
+	 */
+	@Test
+	public void growth() {
+		int count = 4 * PlayerRegistry.INITIAL_CAPACITY + 3;
+		addPlayers(count);
+		registry.deactivate(0);
+		registry.deactivate(PlayerRegistry.INITIAL_CAPACITY - 1);
+		registry.deactivate(PlayerRegistry.INITIAL_CAPACITY);
+		registry.deactivate(count - 1);
+
+		List<Integer> expected = new ArrayList<Integer>();
+		for (int slot = 0; slot < count; ++slot) {
+			if (registry.isActive(slot))
+				expected.add(slot);
+		}
+		assertEquals(count - 4, expected.size());
+		checkActive(expected.toArray(new Integer[expected.size()]));
+		assertEquals(PlayerRegistry.INITIAL_CAPACITY + 1, registry.nextActive(PlayerRegistry.INITIAL_CAPACITY - 2));
+	}
+}
@@ -25,6 +25,11 @@ public class PlayerStatus {
 	 * The number of moves made so far by this player in this game.
 	 */
 	public int numMoves;
+	
+	/**
+	 * The player's slot in the game (see {@link PlayerRegistry}).
+	 */
+	int slot;
 
 	@Override
 	public int hashCode() {
@@ -1,6 +1,7 @@
 package game;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
@@ -10,6 +11,7 @@ import java.util.Map;
 import java.util.Set;
 
 import engine.PersistentDictionary;
+import engine.Utf8Chars;
 import game.VerbosityGame.VerbosityPlayerStatus.ROLE;
 
 
@@ -42,9 +44,21 @@ public class VerbosityGame extends AbstractGame {
 	/**
 	 * The set of words used to describe the secret word, with counters.
 	 * The map maps each description word to the corresponding WordDescription structure.
+	 * Words are compared ignoring case: the keys are case-folded (see {@link CaseInsensitiveSet#fold(String)}),
+	 * and each WordDescription holds the first spelling of its word.
+	 * (The stored description is decoded into a {@link DescriptionCounts}, and copied into this map once,
+	 * when the game starts.)
 	 */
 	Map<String,WordDescription> descriptions;
 	
+	/**
+	 * The description counters as they were read from the dictionary when the game started
+	 * (by the keys of {@link #descriptions}).
+	 * When the game is closed, only the difference is added to the stored counters, since other
+	 * games on the same secret word may have updated them in the meantime.
+	 */
+	DescriptionCounts storedCounts;
+	
 	/**
 	 * The maximum number of different players that can use a descriptor before it becomes taboo.
 	 */
@@ -52,7 +66,7 @@ public class VerbosityGame extends AbstractGame {
 	
 	/**
 	 * The set of description words it is no longer permissible to use.
-	 * We keep a separate set for this to make lookup quick.
+	 * We keep a separate set for this to make lookup quick (it ignores case, like the check in {@link #playerMove}).
 	 */
 	Set<String> tabooWords;
 	
@@ -85,18 +99,31 @@ public class VerbosityGame extends AbstractGame {
 		this.dict = dict;
 		this.nextPlayer = null;
 		describers = new HashSet<VerbosityGame.VerbosityPlayerStatus>();
-		tabooWords = new HashSet<String>();
-		descriptions = new HashMap<String, WordDescription>();
+		tabooWords = new CaseInsensitiveSet();
 		dict.open();
 		
-		String descriptionString = dict.get(secretWord);
+		// The stored description is parsed straight from the dictionary's bytes, if it keeps them
+		// (otherwise they would be encoded just to be decoded again)
+		CharSequence description;
+		if (dict.storesBytes()) {
+			ByteBuffer descriptionBytes = dict.getBytes(secretWord);
+			description = (descriptionBytes == null) ? null : new Utf8Chars(descriptionBytes);
+		} else {
+			description = dict.get(secretWord);
+		}
 		
-		if (descriptionString != null && descriptionString.length() > 0)
-			deserializeDescription(descriptionString);
+		// Descriptions in the old textual format are migrated when the game is closed
+		DescriptionCounts stored = (description == null) ? null : DescriptionCounts.decode(description);
+		descriptions = new HashMap<String, WordDescription>((stored == null) ? 16 : 2 * stored.size());
+		if (stored != null)
+			addDescriptions(stored);
 		
-		// Go over all describing words and add to the taboo list those
-		// that have been used more than the threshold.
-		for (WordDescription desc : descriptions.values()) {
+		// Go over all describing words: remember their stored counters, and add to the taboo list
+		// those that have been used more than the threshold.
+		storedCounts = new DescriptionCounts(descriptions.size());
+		for (Map.Entry<String,WordDescription> entry : descriptions.entrySet()) {
+			WordDescription desc = entry.getValue();
+			storedCounts.add(entry.getKey(), desc.count);
 			if (desc.count > tabooThreshold)
 				tabooWords.add(desc.word);
 		}
@@ -131,20 +158,8 @@ public class VerbosityGame extends AbstractGame {
 	 * Skip to the next active player.
 	 */
 	protected void nextPlayer() {
-		if (nextPlayer == null) {
-			nextPlayer = activePlayers.get(0);
-			return;
-		}
-		
-		Iterator<Player> it = activePlayers.iterator();
-		while (it.hasNext() && it.next() != nextPlayer)
-			// iterate until we reach player or the end of the list
-			;
-		
-		if (it.hasNext())
-			nextPlayer = it.next();
-		else // we reached the end of the list, we'll take the first player
-			nextPlayer = activePlayers.get(0);
+		// Once we reach the last player, we'll take the first player
+		nextPlayer = nextActivePlayer(nextPlayer);
 	}
 	
 
@@ -225,27 +240,13 @@ public class VerbosityGame extends AbstractGame {
 		}
 		
 		// Deals with the case a player try to play when he hasn't joined the game
-		boolean playerIsValid = false;
-		for (Player validPlayer : this.getPlayers()) {
-			if (validPlayer == player) {
-				playerIsValid = true;
-				break;
-			}
-		}
-		if (!playerIsValid) {
+		if (getPlayerStatus(player) == null) {
 			status.addMessage(player, "You have not yet joined the game!");
 			return status;
 		}
 		
 		// Deals with the case a player try to play when he's not an active player
-		boolean playerIsActive = false;
-		for (Player activePlayer : activePlayers) {
-			if (activePlayer == player) {
-				playerIsActive = true;
-				break;
-			}
-		}
-		if (!playerIsActive) {
+		if (!isActive(player)) {
 			status.addMessage(player, "You are no longer an active player!");
 			return status;
 		}
@@ -262,12 +263,10 @@ public class VerbosityGame extends AbstractGame {
 			// Keeps track if the word is valid
 			Boolean validWord = true;
 			
-			// In case the word is part of the taboo words
-			for (String tabooWord : tabooWords) {
-				if (word.equalsIgnoreCase(tabooWord)) {
-					status.addMessage(player, word + " is a taboo word!");
-					validWord = false;
-				}
+			// In case the word is part of the taboo words (ignoring case)
+			if (tabooWords.contains(word)) {
+				status.addMessage(player, word + " is a taboo word!");
+				validWord = false;
 			}
 			
 			// In case the word is the secret word
@@ -276,18 +275,21 @@ public class VerbosityGame extends AbstractGame {
 				validWord = false;
 			}
 			
-			// If the word is already in the descriptions, count +1
-			if (descriptions.containsKey(word)) {
-				descriptions.get(word).count++;
+			// If the word is already in the descriptions (ignoring case), count +1
+			String key = CaseInsensitiveSet.fold(word);
+			WordDescription desc = descriptions.get(key);
+			if (desc != null) {
+				desc.count++;
 			
 			// Otherwise add it to the descriptions with count 1
 			} else {
-				descriptions.put(word, new WordDescription(word, 1));
+				desc = new WordDescription(word, 1);
+				descriptions.put(key, desc);
 			}
 			
 			// Check if count is over taboo trash hold and if it does, put it in tabooWords
-			if (descriptions.get(word).count > tabooThreshold) {
-				tabooWords.add(word);
+			if (desc.count > tabooThreshold) {
+				tabooWords.add(desc.word);
 			}
 			
 			// In case the word is valid
@@ -468,78 +470,72 @@ public class VerbosityGame extends AbstractGame {
 	
 	
 	/**
-	 * Serialize the descriptions into a single string of the form "word|counter,word|counter,...".
+	 * Serialize the descriptions into a single string, in the binary format of {@link DescriptionCounts}:
+	 * each word is prefixed by its length, and the lengths and counters are variable-length numbers.
 	 * @return
 	 */
 	String serializeDescriptions() {
-		StringBuilder str = new StringBuilder();
-		
-		for (WordDescription desc : descriptions.values()) {
-			str.append(desc.word);
-			str.append('|');
-			str.append(Integer.toString(desc.count));
-			str.append(',');
-		}
-		return str.toString();
+		DescriptionCounts counts = new DescriptionCounts(descriptions.size());
+		for (WordDescription desc : descriptions.values())
+			counts.add(desc.word, desc.count);
+		return counts.encode();
 	}
 	
 	/**
 	 * Parse a description string (as stored in the dictionary) to a list of 
 	 * word:counter pairs and generate the corresponding {@link WordDescription} structures.
-	 * Look at the {@link #serializeDescriptions()} method to see the precise format. This method
-	 * should do the exact opposite of  {@link #serializeDescriptions()}: given a string that was
-	 * generated by the serialize method, it should create the same map that existed in {@link #descriptions}.
+	 * This method does the exact opposite of {@link #serializeDescriptions()}: given a string that was
+	 * generated by the serialize method, it creates the same map that existed in {@link #descriptions}.
+	 * Descriptions in the old textual format are accepted too.
 	 *   
-	 * @param description The format of this string is "word|counter,word|counter,..."
+	 * @param description The format of this string is described in {@link DescriptionCounts}; the old
+	 * 	format is "word|counter,word|counter,...". It may be a view of the stored bytes ({@link Utf8Chars}).
 	 */
-	void deserializeDescription(String description) {
-		
-		// The strings which will be added to the map later.
-		StringBuilder tempWord = new StringBuilder();
-		StringBuilder tempCounter = new StringBuilder();
-		
-		// Go over the whole string
-		for (int i = 0; i < description.length(); i++) {
-			
-			// Store the current character
-			char current = description.charAt(i);
-			
-			// As long it isn't the end of the word, append the char to the string
-			if (current != '|' && current != ',') {
-				tempWord.append(current);
-				
-			// If it's the end of the word start appending the numbers
-			} else if (current == '|') {
-				i++;
-				current = description.charAt(i);
-				
-				// If the number isn't over yet, append the digit to the counter string 
-				while ((current != ',') && (i < description.length()))  {
-					tempCounter.append(current);
-					i++;
-					if (i < description.length()) {
-						current = description.charAt(i);
-					}
-				}
-				
-				// after the two strings were created, add them to a WordDescrription
-				// and put it in the descriptions map
-				descriptions.put(tempWord.toString(), 
-						new WordDescription(tempWord.toString(), Integer.parseInt(tempCounter.toString())));
-				
-				// delete the temporary strings so they'll be ready for the next ones
-				tempWord.delete(0, tempWord.length());
-				tempCounter.delete(0, tempCounter.length());
-			}
+	void deserializeDescription(CharSequence description) {
+		addDescriptions(DescriptionCounts.decode(description));
+	}
+	
+	/**
+	 * Add the words of a decoded description to {@link #descriptions}.
+	 * Words that differ only in case (stored before words were compared ignoring case) are counted together.
+	 */
+	private void addDescriptions(DescriptionCounts counts) {
+		for (int i = 0; i < counts.words.length; ++i) {
+			String word = counts.words[i];
+			if (word == null)
+				continue;
+			String key = CaseInsensitiveSet.fold(word);
+			WordDescription desc = descriptions.get(key);
+			if (desc == null)
+				descriptions.put(key, new WordDescription(word, counts.counts[i]));
+			else
+				desc.count += counts.counts[i];
 		}
 	}
 
 	/**
 	 * Save persistent game state and close.
+	 * The counters this game added are merged into the stored description atomically (with
+	 * {@link PersistentDictionary#update(String, PersistentDictionary.Remapping)}), so games on the same
+	 * secret word that end at the same time don't overwrite each other's counts.
 	 */
 	public void close() throws IOException {
-		String descriptionString = serializeDescriptions();
-		dict.put(secretWord, descriptionString);
+		// The counters added by this game
+		final DescriptionCounts added = new DescriptionCounts(descriptions.size());
+		for (Map.Entry<String,WordDescription> entry : descriptions.entrySet()) {
+			WordDescription desc = entry.getValue();
+			added.add(desc.word, desc.count - storedCounts.get(entry.getKey()));
+		}
+		
+		dict.update(secretWord, new PersistentDictionary.Remapping() {
+			@Override
+			public String remap(String key, String value) {
+				DescriptionCounts merged = (value == null) ? new DescriptionCounts(added.size())
+						: DescriptionCounts.decode(value);
+				merged.addAll(added);
+				return merged.encode();
+			}
+		});
 		dict.close();
 	}
 
@@ -12,6 +12,7 @@ import org.junit.Test;
 
 import engine.InMemoryDictionary;
 import engine.PersistentDictionary;
+import engine.SortedWordfileDictionary;
 import game.VerbosityGame.VerbosityPlayerStatus.ROLE;
 
 public class VerbosityGameTest {
@@ -130,6 +131,81 @@ public class VerbosityGameTest {
 		assertEquals(expected, game.descriptions);
 	}
 	
+	/**
+	 * Test that serializeDescriptions and deserializeDescription are inverses, including the counters
+	 * and words that the old textual format couldn't hold.
+	 */
+	@Test
+	public void SerializeDeserializeDescriptions() {
+		String[] words = {"book", "a|b", "c,d", "", "\u05e1\u05e4\u05e8", "x"};
+		int[] counts = {1, 31, 32, 0, 1000000, Integer.MAX_VALUE};
+		for (int i = 0; i < words.length; ++i)
+			game.descriptions.put(words[i], new WordDescription(words[i], counts[i]));
+		
+		String description = game.serializeDescriptions();
+		assertEquals(-1, description.indexOf('\n'));
+		game.descriptions.clear();
+		game.deserializeDescription(description);
+		
+		assertEquals(words.length, game.descriptions.size());
+		for (int i = 0; i < words.length; ++i)
+			assertEquals(counts[i], game.descriptions.get(words[i]).count);
+	}
+	
+	/**
+	 * Test that a description stored in the old textual format is read, and written back in the new format.
+	 */
+	@Test
+	public void MigrateTextualDescription() throws Exception {
+		File dictFile = File.createTempFile("DictTest", ".tmp");
+		dictFile.delete();
+		PersistentDictionary dict = new InMemoryDictionary(dictFile);
+		dict.open();
+		dict.put("Encyclopedia", "book|5,wikipedia|1,");
+		dict.close();
+		
+		VerbosityGame migrated = new VerbosityGame(2, "Encyclopedia", dict);
+		assertEquals(5, migrated.descriptions.get("book").count);
+		assertEquals(1, migrated.descriptions.get("wikipedia").count);
+		migrated.close();
+		
+		dict.open();
+		DescriptionCounts stored = DescriptionCounts.decode(dict.get("Encyclopedia"));
+		assertEquals(DescriptionCounts.MARKER, dict.get("Encyclopedia").charAt(0));
+		assertEquals(2, stored.size());
+		assertEquals(5, stored.get("book"));
+		assertEquals(1, stored.get("wikipedia"));
+		dict.close();
+		dictFile.delete();
+	}
+	
+	/**
+	 * Test that a stored description is read both from a dictionary that stores bytes (parsed in place)
+	 * and from one that stores Strings.
+	 */
+	@Test
+	public void ReadStoredDescription() throws Exception {
+		DescriptionCounts counts = new DescriptionCounts();
+		counts.add("book", 5);
+		counts.add("wikip\u00e9dia", 1);
+		
+		File dictFile = File.createTempFile("DictTest", ".tmp");
+		PersistentDictionary[] dicts = { new InMemoryDictionary(dictFile), new SortedWordfileDictionary(dictFile) };
+		for (PersistentDictionary dict : dicts) {
+			dictFile.delete();
+			dict.open();
+			dict.put("Encyclopedia", counts.encode());
+			dict.close();
+			
+			VerbosityGame stored = new VerbosityGame(2, "Encyclopedia", dict);
+			assertEquals(5, stored.descriptions.get("book").count);
+			assertEquals(1, stored.descriptions.get("wikip\u00e9dia").count);
+			assertTrue(stored.tabooWords.contains("book"));
+			stored.close();
+		}
+		dictFile.delete();
+	}
+	
 	// A player made for the tests of the PlayerMove method
 	private class MockPlayer implements Player {
 
@@ -268,6 +344,29 @@ public class VerbosityGameTest {
 		game.tabooWords.clear();
 	}
 	
+	/**
+	 * Test PlayerMove method for counting words and checking taboo words ignoring case
+	 */
+	@Test
+	public void MoveIgnoresCase() {
+		game.playerJoin(player, 0);
+		game.getPlayerStatus(player).role = ROLE.DESCRIBER;
+		game.playerMove(player, "Computer", time);
+		game.playerMove(player, "computer", time);
+		game.playerMove(player, "COMPUTER", time);
+		
+		// All three moves count for the same description (under its first spelling)
+		assertEquals(1, game.descriptions.size());
+		assertEquals("Computer", game.descriptions.get("computer").word);
+		assertEquals(3, game.descriptions.get("computer").count);
+		
+		// And the word is now taboo in any case
+		status.addMessage(player, "cOmPuTeR is a taboo word!");
+		assertEquals(status.getMessages(player), 
+				game.playerMove(player, "cOmPuTeR", time).getMessages(player));
+		game.tabooWords.clear();
+	}
+	
 	/**
 	 * Test PlayerMove method for trying to make a move with the secret word
 	 */
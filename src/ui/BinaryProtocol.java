@@ -0,0 +1,238 @@
+package ui;
+
+import java.io.ByteArrayOutputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The binary protocol of a {@link RoomServer}: a compact alternative to the text protocol, for clients
+ * (typically bots) that play many moves.
+ *
+ * A connection starts in the text protocol. A client that answers the {@link TCPRunner#ID_QUERY} with
+ * {@link #BINARY_MODE} switches both directions to binary frames, and the server answers with
+ * {@link #HELLO}. Only the {@link RoomServer} negotiates the binary protocol; {@link TCPRunner}'s single game
+ * is played in the text protocol.
+ *
+ * A frame is its length (of the opcode and payload), an opcode byte, and the payload. Integers are unsigned
+ * varints (7 bits per byte, least significant first, the high bit set on all but the last byte); strings are
+ * a varint length followed by that many bytes of UTF-8.
+ * <ul>
+ * <li>Client to server: {@link #IDENT} (ID string, name string) and {@link #MOVE} (the word: the rest of the payload, in UTF-8).</li>
+ * <li>Server to client: {@link #HELLO} (version), {@link #ROOM} (room id, the client's slot, the number of players,
+ * and each player's slot and name), {@link #DEFINE} (index, string), {@link #MESSAGE} (index), {@link #TEXT} (string)
+ * and {@link #TURN} (the slot of the player whose turn it is).</li>
+ * </ul>
+ * Players are referred to by their slot in the room rather than by name. Messages are sent through a string table
+ * of the connection's own: the first time a message is sent, it is defined, and from then on it is only
+ * referred to by its index (so repeated messages, e.g. taboo lists, cost a few bytes). Once the table has
+ * {@link #TABLE_SIZE} strings, new messages are sent as text.
+ */
+class BinaryProtocol {
+
+	static final int VERSION = 1;
+
+	/**
+	 * The answer to {@link TCPRunner#ID_QUERY} with which a client switches to the binary protocol.
+	 */
+	static final String BINARY_MODE = "#binary";
+
+	/**
+	 * The maximal length of a frame sent by a client.
+	 */
+	static final int MAX_FRAME = 64 * 1024;
+
+	/**
+	 * The maximal number of strings in a connection's table.
+	 */
+	static final int TABLE_SIZE = 1024;
+
+	/*======= Client to server ======*/
+
+	static final int IDENT = 0x01;
+	static final int MOVE = 0x02;
+
+	/*======= Server to client ======*/
+
+	static final int HELLO = 0x41;
+	static final int ROOM = 0x42;
+	static final int DEFINE = 0x43;
+	static final int MESSAGE = 0x44;
+	static final int TEXT = 0x45;
+	static final int TURN = 0x46;
+
+	/**
+	 * The strings sent to the client so far, and their indices (guarded by the connection's
+	 * {@link PlayerConnection#sendLock}).
+	 */
+	final Map<String, Integer> table = new HashMap<String, Integer>();
+
+	/**
+	 * Encode messages as frames, through the connection's string table. The frames must be sent in the order
+	 * they were encoded, so callers hold the connection's {@link PlayerConnection#sendLock} until the frames
+	 * are queued.
+	 */
+	ByteBuffer encodeMessages(List<String> messages) {
+		FrameWriter frames = new FrameWriter();
+		for (String message : messages) {
+			Integer index = table.get(message);
+			if (index == null && table.size() < TABLE_SIZE) {
+				index = table.size();
+				table.put(message, index);
+				frames.begin(DEFINE).varint(index).string(message).end();
+			}
+			if (index != null)
+				frames.begin(MESSAGE).varint(index).end();
+			else
+				frames.begin(TEXT).string(message).end();
+		}
+		return frames.toBuffer();
+	}
+
+	static ByteBuffer hello() {
+		return new FrameWriter().begin(HELLO).varint(VERSION).end().toBuffer();
+	}
+
+	static ByteBuffer turn(int slot) {
+		return new FrameWriter().begin(TURN).varint(slot).end().toBuffer();
+	}
+
+	static ByteBuffer room(int roomId, int slot, List<PlayerConnection> players) {
+		FrameWriter frames = new FrameWriter().begin(ROOM).varint(roomId).varint(slot).varint(players.size());
+		for (PlayerConnection player : players)
+			frames.varint(player.slot).string(player.getName());
+		return frames.end().toBuffer();
+	}
+
+	/**
+	 * Return the length of the frame that starts at the offset (including its length prefix),
+	 * or 0 if the frame is incomplete.
+	 * @throws ProtocolException if the length is invalid.
+	 */
+	static int frameLength(byte[] bytes, int offset, int end) throws ProtocolException {
+		int length = 0;
+		int pos = offset;
+		for (int shift = 0;; shift += 7) {
+			if (pos == end)
+				return 0;
+			int b = bytes[pos++] & 0xFF;
+			length |= (b & 0x7F) << shift;
+			if (b < 0x80)
+				break;
+			if (shift > 14)
+				throw new ProtocolException("Frame length too long");
+		}
+		if (length == 0 || length > MAX_FRAME)
+			throw new ProtocolException("Invalid frame length " + length);
+		if (end - pos < length)
+			return 0;
+		return pos - offset + length;
+	}
+
+	static void writeVarint(ByteArrayOutputStream out, int value) {
+		while ((value & ~0x7F) != 0) {
+			out.write((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.write(value);
+	}
+
+	/**
+	 * Writes frames into a byte array.
+	 */
+	static class FrameWriter {
+		final ByteArrayOutputStream frames = new ByteArrayOutputStream();
+		final ByteArrayOutputStream payload = new ByteArrayOutputStream();
+		int opcode;
+
+		FrameWriter begin(int opcode) {
+			this.opcode = opcode;
+			payload.reset();
+			return this;
+		}
+
+		FrameWriter varint(int value) {
+			writeVarint(payload, value);
+			return this;
+		}
+
+		FrameWriter string(String value) {
+			byte[] bytes = value.getBytes(PlayerConnection.CHARSET);
+			writeVarint(payload, bytes.length);
+			payload.write(bytes, 0, bytes.length);
+			return this;
+		}
+
+		/**
+		 * Write the rest of the payload as raw UTF-8 (e.g. the word of a {@link BinaryProtocol#MOVE}).
+		 */
+		FrameWriter text(String value) {
+			byte[] bytes = value.getBytes(PlayerConnection.CHARSET);
+			payload.write(bytes, 0, bytes.length);
+			return this;
+		}
+
+		FrameWriter end() {
+			writeVarint(frames, payload.size() + 1);
+			frames.write(opcode);
+			byte[] bytes = payload.toByteArray();
+			frames.write(bytes, 0, bytes.length);
+			return this;
+		}
+
+		byte[] toByteArray() {
+			return frames.toByteArray();
+		}
+
+		ByteBuffer toBuffer() {
+			return ByteBuffer.wrap(frames.toByteArray());
+		}
+	}
+
+	/**
+	 * Reads the payload of a frame.
+	 */
+	static class FrameReader {
+		final byte[] bytes;
+		int pos;
+		final int end;
+
+		FrameReader(byte[] bytes, int offset, int length) {
+			this.bytes = bytes;
+			this.pos = offset;
+			this.end = offset + length;
+		}
+
+		int varint() throws ProtocolException {
+			int value = 0;
+			for (int shift = 0;; shift += 7) {
+				if (pos == end || shift > 28)
+					throw new ProtocolException("Malformed integer");
+				int b = bytes[pos++] & 0xFF;
+				value |= (b & 0x7F) << shift;
+				if (b < 0x80)
+					return value;
+			}
+		}
+
+		String string() throws ProtocolException {
+			int length = varint();
+			if (length > end - pos)
+				throw new ProtocolException("Malformed string");
+			String value = new String(bytes, pos, length, PlayerConnection.CHARSET);
+			pos += length;
+			return value;
+		}
+
+		/**
+		 * Read the rest of the payload as UTF-8.
+		 */
+		String text() {
+			String value = new String(bytes, pos, end - pos, PlayerConnection.CHARSET);
+			pos = end;
+			return value;
+		}
+	}
+}
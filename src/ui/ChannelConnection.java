@@ -0,0 +1,207 @@
+package ui;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A player connection over a non-blocking {@link SocketChannel}, served by an {@link EventLoop}.
+ *
+ * Lines (or binary frames) are framed in place in the connection's read buffer: the only allocation
+ * per line is the line's String. Buffers sent from other threads are queued as they are (a broadcast's shared buffer
+ * isn't copied), and the loop writes everything queued with one gathering write, so the messages of
+ * a whole update are flushed together.
+ */
+class ChannelConnection extends PlayerConnection {
+
+	final SocketChannel channel;
+
+	final EventLoop loop;
+
+	/*======= Confined to the loop ======*/
+
+	SelectionKey key;
+
+	ByteBuffer input = ByteBuffer.allocate(BUFFER_SIZE);
+
+	/**
+	 * Buffers taken from the output queue that haven't been completely written yet.
+	 */
+	final ArrayDeque<ByteBuffer> unwritten = new ArrayDeque<ByteBuffer>();
+
+	boolean closing;
+	boolean closed;
+
+	/*======= Shared with other threads ======*/
+
+	/**
+	 * Buffers sent and not yet taken by the loop. The bytes queued here and in {@link #unwritten} are bounded
+	 * by {@link RoomServer#maxOutput}.
+	 */
+	final Queue<ByteBuffer> output = new ConcurrentLinkedQueue<ByteBuffer>();
+
+	/**
+	 * Whether a flush of the output queue is scheduled on the loop.
+	 */
+	final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+	final Runnable flushTask = new Runnable() {
+		@Override
+		public void run() {
+			flush();
+		}
+	};
+
+	final Runnable closeTask = new Runnable() {
+		@Override
+		public void run() {
+			closing = true;
+			flush();
+		}
+	};
+
+	final Runnable closeNowTask = new Runnable() {
+		@Override
+		public void run() {
+			closeNow();
+		}
+	};
+
+	ChannelConnection(RoomServer server, SocketChannel channel, EventLoop loop) {
+		super(server);
+		this.channel = channel;
+		this.loop = loop;
+	}
+
+	/**
+	 * Queue bytes for the loop to write. If too much is queued already, the connection is dropped, and
+	 * later output is ignored.
+	 */
+	@Override
+	void send(ByteBuffer data) {
+		if (dropped.get())
+			return;
+		if (!queued(data.remaining())) {
+			loop.execute(closeNowTask);
+			return;
+		}
+		output.add(data);
+		if (flushScheduled.compareAndSet(false, true))
+			loop.execute(flushTask);
+	}
+
+	/**
+	 * Close the connection once everything sent so far has been written.
+	 */
+	@Override
+	void close() {
+		loop.execute(closeTask);
+	}
+
+	/**
+	 * Read what's available, and pass it to {@link #receivedBytes(byte[], int, int)}.
+	 */
+	void read() {
+		int n;
+		try {
+			n = channel.read(input);
+		} catch (IOException e) {
+			n = -1;
+		}
+		if (n < 0) {
+			closeNow();
+			return;
+		}
+
+		byte[] bytes = input.array();
+		int end = input.position();
+		int start = receivedBytes(bytes, 0, end);
+		if (closed)
+			return;
+
+		// Keep the incomplete line at the start of the buffer
+		if (start > 0) {
+			System.arraycopy(bytes, start, bytes, 0, end - start);
+			input.position(end - start);
+		}
+		if (!input.hasRemaining()) {
+			if (input.capacity() >= MAX_INPUT) {
+				closeNow();
+				return;
+			}
+			ByteBuffer larger = ByteBuffer.allocate(Math.min(2 * input.capacity(), MAX_INPUT));
+			input.flip();
+			larger.put(input);
+			input = larger;
+		}
+	}
+
+	/**
+	 * Write as much of the queued output as the channel takes. If some remains, wait until the
+	 * channel is writable again.
+	 */
+	void flush() {
+		if (closed)
+			return;
+		flushScheduled.set(false);
+		ByteBuffer buffer;
+		while ((buffer = output.poll()) != null)
+			unwritten.add(buffer);
+
+		ByteBuffer[] gather = loop.gather;
+		try {
+			while (!unwritten.isEmpty()) {
+				int count = 0;
+				for (ByteBuffer b : unwritten) {
+					gather[count++] = b;
+					if (count == gather.length)
+						break;
+				}
+				written(channel.write(gather, 0, count));
+				while (!unwritten.isEmpty() && !unwritten.peekFirst().hasRemaining())
+					unwritten.removeFirst();
+				if (gather[count - 1].hasRemaining())
+					break;
+			}
+		} catch (IOException e) {
+			closeNow();
+			return;
+		} finally {
+			for (int i = 0; i < gather.length; ++i)
+				gather[i] = null;
+		}
+
+		if (unwritten.isEmpty()) {
+			if (closing)
+				closeNow();
+			else if (key != null && key.isValid())
+				key.interestOps(SelectionKey.OP_READ);
+		} else if (key != null && key.isValid()) {
+			key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+		}
+	}
+
+	/**
+	 * Close the channel right away (on the loop), and report the player disconnected.
+	 */
+	void closeNow() {
+		if (closed)
+			return;
+		closed = true;
+		if (key != null)
+			key.cancel();
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// Ignore; the channel is closed anyway.
+		}
+		unwritten.clear();
+		output.clear();
+		disconnected();
+	}
+}
@@ -0,0 +1,67 @@
+package ui;
+
+import game.Player;
+import game.StatusUpdate;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * The bytes of a {@link StatusUpdate}, as sent to the players (one message per line).
+ *
+ * The default messages are encoded at most once, however many players receive them, and shared by all
+ * of them; only player-specific messages are encoded per player. Broadcasting an update thus costs
+ * O(message + players) rather than O(message * players).
+ */
+class EncodedUpdate {
+
+	final StatusUpdate update;
+
+	/**
+	 * The encoded default messages (null until first needed).
+	 */
+	byte[] shared;
+
+	EncodedUpdate(StatusUpdate update) {
+		this.update = update;
+	}
+
+	/**
+	 * Return the messages the player should receive (see {@link StatusUpdate#getMessages(Player)}), or null if there are none.
+	 */
+	List<String> getMessages(Player player) {
+		return update.getMessages(player);
+	}
+
+	/**
+	 * Return the bytes of messages returned by {@link #getMessages(Player)}. The bytes of the default messages are shared,
+	 * and must not be modified.
+	 */
+	byte[] getBytes(List<String> messages) {
+		if (messages != update.getMessages())
+			return encode(messages);
+		if (shared == null)
+			shared = encode(messages);
+		return shared;
+	}
+
+	/**
+	 * Return a read-only buffer over the bytes of the messages (see {@link #getBytes(List)}). Each call returns a buffer of
+	 * its own, so the buffers can be written independently (e.g. by different connections).
+	 */
+	ByteBuffer getBuffer(List<String> messages) {
+		return ByteBuffer.wrap(getBytes(messages)).asReadOnlyBuffer();
+	}
+
+	/**
+	 * Encode messages, one per line.
+	 */
+	static byte[] encode(List<String> messages) {
+		StringBuilder text = new StringBuilder();
+		for (String message : messages) {
+			text.append(message);
+			text.append('\n');
+		}
+		return text.toString().getBytes(PlayerConnection.CHARSET);
+	}
+}
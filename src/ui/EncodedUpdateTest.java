@@ -0,0 +1,83 @@
+package ui;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import game.Player;
+import game.StatusUpdate;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class EncodedUpdateTest {
+
+	private class MockPlayer implements Player {
+
+		String id;
+		String name;
+
+		MockPlayer(String id, String name) {
+			this.id = id;
+			this.name = name;
+		}
+
+		@Override
+		public String getId() {
+			return this.id;
+		}
+
+		@Override
+		public String getName() {
+			return this.name;
+		}
+	}
+
+	static String decode(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.remaining()];
+		buffer.get(bytes);
+		return new String(bytes, PlayerConnection.CHARSET);
+	}
+
+	/**
+	 * The default messages are encoded once and shared; specific messages are encoded per player.
+	 */
+	@Test
+	public void sharedDefaultMessages() {
+		Player player1 = new MockPlayer("1", "Or");
+		Player player2 = new MockPlayer("2", "Tal");
+		Player player3 = new MockPlayer("3", "Yair");
+
+		StatusUpdate update = new StatusUpdate("Player Or hints: book");
+		update.addMessage("Next!");
+		update.addMessage(player1, "");
+		update.addMessage(player2, "Sh\u00e9lom");
+		EncodedUpdate encoded = new EncodedUpdate(update);
+
+		assertEquals("\n", decode(encoded.getBuffer(encoded.getMessages(player1))));
+		assertEquals("Sh\u00e9lom\n", decode(encoded.getBuffer(encoded.getMessages(player2))));
+		assertEquals("Player Or hints: book\nNext!\n", decode(encoded.getBuffer(encoded.getMessages(player3))));
+		assertSame(encoded.getBytes(encoded.getMessages(player3)), encoded.getBytes(update.getMessages()));
+
+		// Each buffer has a position of its own, and can't change the shared bytes
+		ByteBuffer first = encoded.getBuffer(update.getMessages());
+		ByteBuffer second = encoded.getBuffer(update.getMessages());
+		first.get();
+		assertEquals(update.getMessages().get(0).length() + "Next!".length() + 2, second.remaining());
+		assertTrue(first.isReadOnly());
+	}
+
+	/**
+	 * A player with an "empty" message gets nothing.
+	 */
+	@Test
+	public void noMessages() {
+		Player player1 = new MockPlayer("1", "Or");
+		StatusUpdate update = new StatusUpdate();
+		update.addMessage(player1, null);
+		EncodedUpdate encoded = new EncodedUpdate(update);
+		assertNull(encoded.getMessages(player1));
+		assertNull(encoded.getMessages(new MockPlayer("2", "Tal")));
+	}
+}
@@ -0,0 +1,134 @@
+package ui;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A thread that serves many {@link ChannelConnection}s with a single {@link Selector}.
+ *
+ * All the I/O of a connection (reading, framing lines, and writing) happens on its loop's thread; other threads
+ * hand work to the loop with {@link #execute(Runnable)}. A {@link RoomServer} has a few loops (about one per core),
+ * so idle connections cost only their buffers, not a thread each.
+ */
+class EventLoop implements Runnable {
+
+	/**
+	 * The maximal number of buffers written by one gathering write.
+	 */
+	static final int MAX_GATHER = 16;
+
+	final Selector selector;
+
+	final Thread thread;
+
+	/**
+	 * Tasks submitted by other threads, run by the loop between selects.
+	 */
+	final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+	/**
+	 * The array passed to gathering writes (reused by all of the loop's connections).
+	 */
+	final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+
+	volatile boolean running = true;
+
+	EventLoop(String name) throws IOException {
+		selector = Selector.open();
+		thread = new Thread(this, name);
+		thread.setDaemon(true);
+	}
+
+	void start() {
+		thread.start();
+	}
+
+	/**
+	 * Stop the loop, and close all its connections.
+	 */
+	void shutdown() {
+		running = false;
+		selector.wakeup();
+	}
+
+	boolean inLoop() {
+		return Thread.currentThread() == thread;
+	}
+
+	/**
+	 * Run a task on the loop's thread.
+	 */
+	void execute(Runnable task) {
+		tasks.add(task);
+		if (!inLoop())
+			selector.wakeup();
+	}
+
+	/**
+	 * Start serving a connection.
+	 */
+	void register(final ChannelConnection conn) {
+		execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					conn.key = conn.channel.register(selector, SelectionKey.OP_READ, conn);
+				} catch (IOException e) {
+					conn.closeNow();
+					return;
+				}
+				conn.start();
+			}
+		});
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (running) {
+				selector.select();
+				runTasks();
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					ChannelConnection conn = (ChannelConnection) key.attachment();
+					if (key.isValid() && key.isReadable())
+						conn.read();
+					if (key.isValid() && key.isWritable())
+						conn.flush();
+				}
+				// Flush what the connections sent while handling their input
+				runTasks();
+			}
+		} catch (IOException e) {
+			System.err.println("Event loop " + thread.getName() + " failed: " + e.getMessage());
+		} finally {
+			for (SelectionKey key : selector.keys())
+				((ChannelConnection) key.attachment()).closeNow();
+			try {
+				selector.close();
+			} catch (IOException e) {
+				// Ignore; the loop is done anyway.
+			}
+		}
+	}
+
+	private void runTasks() {
+		Runnable task;
+		while ((task = tasks.poll()) != null) {
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				// Don't let one failed task stop the loop
+				e.printStackTrace();
+			}
+		}
+	}
+}
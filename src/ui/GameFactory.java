@@ -0,0 +1,24 @@
+package ui;
+
+import game.Game;
+
+import java.io.IOException;
+
+/**
+ * Creates the games played in the rooms of a {@link RoomServer}.
+ * The methods are called on the room's thread, so they may block (e.g. to open a dictionary),
+ * but they are called concurrently for different rooms.
+ */
+public interface GameFactory {
+
+	/**
+	 * Create the game for a new room.
+	 * @param roomId the room's id.
+	 */
+	public Game newGame(int roomId) throws IOException;
+
+	/**
+	 * Called once a room's game has ended (e.g. to save its state).
+	 */
+	public void gameOver(Game game) throws IOException;
+}
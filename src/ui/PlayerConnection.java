@@ -0,0 +1,327 @@
+package ui;
+
+import game.Player;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A player connected to a {@link RoomServer}.
+ *
+ * This class implements the protocols, independently of how bytes are read and written.
+ * In the text protocol, the server asks for the player's ID ({@link TCPRunner#ID_QUERY}) and name ({@link TCPRunner#NAME_QUERY}),
+ * one line each, and then assigns the player to a room; every following line is a move.
+ * A client may instead switch to the {@link BinaryProtocol}.
+ * Subclasses pass the bytes they read to {@link #receivedBytes(byte[], int, int)} (always from the same
+ * thread, or at least one at a time), and call {@link #disconnected()} when the connection is lost.
+ */
+abstract class PlayerConnection implements Player {
+
+	static final Charset CHARSET = Charset.forName("UTF-8");
+
+	/**
+	 * The initial size of a connection's read buffer; it grows (up to {@link #MAX_INPUT}) if a line or frame doesn't fit.
+	 */
+	static final int BUFFER_SIZE = 256;
+
+	/**
+	 * The maximal length of a line or frame, in bytes; a player that sends longer ones is disconnected.
+	 */
+	static final int MAX_INPUT = 2 * BinaryProtocol.MAX_FRAME;
+
+	/**
+	 * The default maximal number of bytes sent to a player and not yet written (see {@link RoomServer#maxOutput}).
+	 * A player that doesn't read what it's sent is disconnected once this much is waiting, rather than
+	 * holding the server's memory.
+	 */
+	static final int MAX_OUTPUT = 1 << 20;
+
+	/**
+	 * The states of the protocol.
+	 */
+	enum State {
+		ID,
+		NAME,
+		PLAYING,
+		CLOSED
+	}
+
+	final RoomServer server;
+
+	State state = State.ID;
+
+	String id;
+	String name;
+
+	/**
+	 * The binary protocol's state, or null if the connection uses the text protocol.
+	 */
+	volatile BinaryProtocol binary;
+
+	/**
+	 * Set when the player has violated the protocol; the rest of the input is ignored.
+	 */
+	boolean failed;
+
+	/**
+	 * The room the player was assigned to (null until the player has been identified).
+	 */
+	volatile Room room;
+
+	/**
+	 * The player's slot in the room (set by the room when the game starts).
+	 */
+	int slot;
+
+	/**
+	 * The number of bytes sent that haven't been written yet.
+	 */
+	final AtomicLong pendingBytes = new AtomicLong();
+
+	/**
+	 * Set once the connection is dropped for not reading its output; later output is ignored.
+	 */
+	final AtomicBoolean dropped = new AtomicBoolean();
+
+	/**
+	 * Serializes encoding in the binary protocol with sending, so the string table's definitions are sent
+	 * in the order they are made. This is a lock rather than a monitor, since a virtual thread that blocks
+	 * while holding a monitor also blocks the platform thread that carries it.
+	 */
+	final Lock sendLock = new ReentrantLock();
+
+	PlayerConnection(RoomServer server) {
+		this.server = server;
+	}
+
+	@Override
+	public String getId() {
+		return id;
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Start the protocol.
+	 */
+	void start() {
+		send(TCPRunner.ID_QUERY + "\n");
+	}
+
+	/**
+	 * Handle bytes received from the player: complete lines (or frames, in the binary protocol).
+	 * @return the number of bytes consumed; the rest (an incomplete line or frame) should be passed again
+	 * once more bytes have been read.
+	 */
+	int receivedBytes(byte[] bytes, int offset, int length) {
+		int start = offset;
+		int end = offset + length;
+		try {
+			while (start < end && !failed) {
+				if (binary == null) {
+					int newline = start;
+					while (newline < end && bytes[newline] != '\n')
+						++newline;
+					if (newline == end)
+						break;
+					int lineLength = newline - start;
+					if (lineLength > 0 && bytes[newline - 1] == '\r')
+						--lineLength;
+					received(new String(bytes, start, lineLength, CHARSET));
+					start = newline + 1;
+				} else {
+					int frameLength = BinaryProtocol.frameLength(bytes, start, end);
+					if (frameLength == 0)
+						break;
+					receivedFrame(bytes, start, frameLength);
+					start += frameLength;
+				}
+			}
+		} catch (ProtocolException e) {
+			fail(e.getMessage());
+		}
+		return failed ? length : start - offset;
+	}
+
+	/**
+	 * Handle a line received from the player.
+	 */
+	void received(String line) {
+		switch (state) {
+		case ID:
+			if (line.equals(BinaryProtocol.BINARY_MODE)) {
+				binary = new BinaryProtocol();
+				send(BinaryProtocol.hello());
+				break;
+			}
+			id = line;
+			state = State.NAME;
+			send(TCPRunner.NAME_QUERY + "\n");
+			break;
+		case NAME:
+			name = line;
+			state = State.PLAYING;
+			server.assign(this);
+			break;
+		case PLAYING:
+			room.move(this, line);
+			break;
+		case CLOSED:
+			break;
+		}
+	}
+
+	/**
+	 * Handle a frame (including its length prefix) received from the player.
+	 */
+	void receivedFrame(byte[] bytes, int offset, int length) throws ProtocolException {
+		// Skip the length prefix
+		int header = 1;
+		while ((bytes[offset + header - 1] & 0x80) != 0)
+			++header;
+		int opcode = bytes[offset + header] & 0xFF;
+		BinaryProtocol.FrameReader payload = new BinaryProtocol.FrameReader(bytes, offset + header + 1, length - header - 1);
+
+		if (opcode == BinaryProtocol.IDENT && state == State.ID) {
+			id = payload.string();
+			name = payload.string();
+			state = State.PLAYING;
+			server.assign(this);
+		} else if (opcode == BinaryProtocol.MOVE && state == State.PLAYING) {
+			room.move(this, payload.text());
+		} else if (state != State.CLOSED) {
+			throw new ProtocolException("Unexpected opcode " + opcode);
+		}
+	}
+
+	/**
+	 * The player has violated the protocol: tell it why (in the text protocol) and close the connection.
+	 */
+	void fail(String reason) {
+		failed = true;
+		if (binary == null)
+			send("Protocol error: " + reason + "\n");
+		close();
+	}
+
+	/**
+	 * Handle the loss of the connection (called once).
+	 */
+	void disconnected() {
+		boolean playing = (state == State.PLAYING);
+		state = State.CLOSED;
+		server.metrics.connectionsOpen.decrementAndGet();
+		if (playing)
+			room.abort(this);
+		else
+			close();
+	}
+
+	/*======= Sending, in the connection's protocol ======*/
+
+	/**
+	 * Send a single message.
+	 */
+	void sendMessage(String message) {
+		BinaryProtocol protocol = binary;
+		if (protocol == null) {
+			send(message + "\n");
+			return;
+		}
+		sendLock.lock();
+		try {
+			send(protocol.encodeMessages(Collections.singletonList(message)));
+		} finally {
+			sendLock.unlock();
+		}
+	}
+
+	/**
+	 * Send the messages of an update.
+	 * @param messages the player's messages ({@link EncodedUpdate#getMessages(Player)}).
+	 */
+	void sendMessages(EncodedUpdate update, List<String> messages) {
+		BinaryProtocol protocol = binary;
+		if (protocol == null) {
+			send(update.getBuffer(messages));
+			return;
+		}
+		sendLock.lock();
+		try {
+			send(protocol.encodeMessages(messages));
+		} finally {
+			sendLock.unlock();
+		}
+	}
+
+	/**
+	 * Tell the player that it's the player's turn.
+	 */
+	void sendTurn() {
+		if (binary == null)
+			send("Next input for player " + name + "-> \n");
+		else
+			send(BinaryProtocol.turn(slot));
+	}
+
+	/**
+	 * Tell the player the game has started, with the given players (only in the binary protocol; in the text
+	 * protocol, the game's messages introduce the players).
+	 */
+	void sendRoom(int roomId, List<PlayerConnection> players) {
+		if (binary != null)
+			send(BinaryProtocol.room(roomId, slot, players));
+	}
+
+	/**
+	 * Send text to the player.
+	 */
+	void send(String text) {
+		send(ByteBuffer.wrap(text.getBytes(CHARSET)));
+	}
+
+	/**
+	 * Send bytes to the player. The buffer may be read-only, and shared with other connections
+	 * (see {@link EncodedUpdate}); the connection only moves the buffer's position.
+	 * The bytes are queued, and written by another thread, so sending never blocks.
+	 * Errors are not reported; a connection that fails is closed, and its reader reports it as disconnected.
+	 */
+	abstract void send(ByteBuffer data);
+
+	/**
+	 * Count bytes queued to be written.
+	 * @return false if too much output is waiting (the player isn't reading it), and the connection must be dropped.
+	 * 	The connection is counted as a slow consumer once, by the call that drops it (output written after
+	 * 	that may bring the count under the limit again, so the count alone can't tell).
+	 */
+	boolean queued(int bytes) {
+		long waiting = pendingBytes.addAndGet(bytes);
+		if (waiting <= server.maxOutput)
+			return true;
+		if (dropped.compareAndSet(false, true))
+			server.metrics.slowConsumers.incrementAndGet();
+		return false;
+	}
+
+	/**
+	 * Count bytes written.
+	 */
+	void written(long bytes) {
+		pendingBytes.addAndGet(-bytes);
+	}
+
+	/**
+	 * Close the connection.
+	 */
+	abstract void close();
+}
@@ -0,0 +1,213 @@
+package ui;
+
+import game.Game;
+import game.Player;
+import game.StatusUpdate;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * A room of a {@link RoomServer}: a game and the players connected to it.
+ *
+ * A room waits until it has {@link #capacity} players, and then creates its game and adds the players to it.
+ * Everything a room does (including all the calls to its game) runs on its {@link SerialExecutor},
+ * so the room's state and the game are confined to one thread at a time, and need no locks.
+ * The other threads only submit tasks: {@link #join(PlayerConnection)}, {@link #move(PlayerConnection, String)}
+ * and {@link #abort(PlayerConnection)}.
+ */
+class Room {
+
+	final int id;
+
+	final RoomServer server;
+
+	/**
+	 * The number of players the game starts with.
+	 */
+	final int capacity;
+
+	final SerialExecutor executor;
+
+	final RoomMetrics metrics;
+
+	/**
+	 * The number of players assigned to the room (guarded by the server).
+	 * This may be ahead of {@link #connections}, since joining is asynchronous.
+	 */
+	int assigned;
+
+	/*======= Confined to the room's executor ======*/
+
+	final List<PlayerConnection> connections = new ArrayList<PlayerConnection>();
+
+	Game game;
+
+	boolean started;
+
+	/**
+	 * Set when the game has ended (written by the room's thread; read by the server when assigning players).
+	 */
+	volatile boolean ended;
+
+	Room(int id, RoomServer server, int capacity) {
+		this.id = id;
+		this.server = server;
+		this.capacity = capacity;
+		this.executor = new SerialExecutor(server.roomThreads);
+		this.metrics = new RoomMetrics(id, capacity);
+	}
+
+	/*======= Tasks submitted by other threads ======*/
+
+	/**
+	 * A player has been assigned to the room.
+	 */
+	void join(final PlayerConnection conn) {
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				if (ended) {
+					// The game couldn't be started
+					conn.sendMessage("The game has already ended!");
+					conn.close();
+					return;
+				}
+				connections.add(conn);
+				metrics.players = connections.size();
+				if (connections.size() == capacity)
+					startGame();
+				else
+					conn.sendMessage("Waiting for " + (capacity - connections.size()) + " more players...");
+			}
+		});
+	}
+
+	/**
+	 * A player has sent a move.
+	 */
+	void move(final PlayerConnection conn, final String word) {
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				if (ended)
+					return;
+				if (!started) {
+					conn.sendMessage("Waiting for " + (capacity - connections.size()) + " more players...");
+					return;
+				}
+
+				long start = System.nanoTime();
+				StatusUpdate update = game.playerMove(conn, word, System.currentTimeMillis());
+				metrics.move(System.nanoTime() - start);
+				server.metrics.moves.incrementAndGet();
+
+				deliver(update);
+				afterUpdate();
+			}
+		});
+	}
+
+	/**
+	 * A player has disconnected.
+	 */
+	void abort(final PlayerConnection conn) {
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				if (!connections.remove(conn) || ended) {
+					conn.close();
+					return;
+				}
+				metrics.players = connections.size();
+
+				if (!started) {
+					// The player never joined the game; make room for another one.
+					server.leave(Room.this);
+					return;
+				}
+				StatusUpdate update = game.playerAbort(conn, System.currentTimeMillis());
+				deliver(update);
+				afterUpdate();
+			}
+		});
+	}
+
+	/*======= The room's logic ======*/
+
+	private void startGame() {
+		try {
+			game = server.factory.newGame(id);
+		} catch (IOException e) {
+			for (PlayerConnection conn : connections)
+				conn.sendMessage("The game could not be started: " + e.getMessage());
+			endGame();
+			return;
+		}
+		started = true;
+		metrics.startedMillis = System.currentTimeMillis();
+		server.metrics.roomsStarted.incrementAndGet();
+
+		for (int slot = 0; slot < connections.size(); ++slot)
+			connections.get(slot).slot = slot;
+		for (PlayerConnection conn : connections)
+			conn.sendRoom(id, connections);
+
+		for (PlayerConnection conn : connections)
+			deliver(game.playerJoin(conn, System.currentTimeMillis()));
+		afterUpdate();
+	}
+
+	/**
+	 * Send a status update to the room's players (encoding the default messages only once).
+	 */
+	void deliver(StatusUpdate update) {
+		if (update == null)
+			return;
+		EncodedUpdate encoded = new EncodedUpdate(update);
+		for (PlayerConnection conn : connections) {
+			List<String> messages = encoded.getMessages(conn);
+			if (messages != null) {
+				conn.sendMessages(encoded, messages);
+				metrics.messagesSent += messages.size();
+			}
+		}
+	}
+
+	/**
+	 * End the game if it is over, or ask the next players for their moves.
+	 */
+	private void afterUpdate() {
+		if (game.hasEnded()) {
+			endGame();
+			return;
+		}
+		Collection<Player> next = game.getNextPlayers();
+		if (next == null)
+			return;
+		for (Player player : next) {
+			if (player instanceof PlayerConnection)
+				((PlayerConnection) player).sendTurn();
+		}
+	}
+
+	private void endGame() {
+		ended = true;
+		metrics.endedMillis = System.currentTimeMillis();
+		for (PlayerConnection conn : connections)
+			conn.close();
+		connections.clear();
+		metrics.players = 0;
+
+		if (game != null) {
+			try {
+				server.factory.gameOver(game);
+			} catch (IOException e) {
+				System.err.println("Room " + id + ": saving the game failed: " + e.getMessage());
+			}
+		}
+		server.roomEnded(this);
+	}
+}
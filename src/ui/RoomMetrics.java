@@ -0,0 +1,101 @@
+package ui;
+
+/**
+ * Metrics of a single room of a {@link RoomServer}.
+ * The counters are only updated by the room's thread, and may be read from any thread.
+ */
+public class RoomMetrics {
+
+	final int roomId;
+
+	final int capacity;
+
+	final long createdMillis;
+
+	volatile long startedMillis;
+	volatile long endedMillis;
+
+	volatile int players;
+
+	volatile long moves;
+
+	/**
+	 * The number of messages (lines) sent to the room's players.
+	 */
+	volatile long messagesSent;
+
+	/**
+	 * The time spent in the game logic, and the longest time a single move took.
+	 */
+	volatile long gameNanos;
+	volatile long maxMoveNanos;
+
+	RoomMetrics(int roomId, int capacity) {
+		this.roomId = roomId;
+		this.capacity = capacity;
+		this.createdMillis = System.currentTimeMillis();
+	}
+
+	void move(long nanos) {
+		++moves;
+		gameNanos += nanos;
+		if (nanos > maxMoveNanos)
+			maxMoveNanos = nanos;
+	}
+
+	public int getRoomId() {
+		return roomId;
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Return the number of players currently connected to the room.
+	 */
+	public int getPlayers() {
+		return players;
+	}
+
+	public long getMoves() {
+		return moves;
+	}
+
+	public long getMessagesSent() {
+		return messagesSent;
+	}
+
+	public long getGameNanos() {
+		return gameNanos;
+	}
+
+	public long getMaxMoveNanos() {
+		return maxMoveNanos;
+	}
+
+	public long getCreatedMillis() {
+		return createdMillis;
+	}
+
+	/**
+	 * Return the time the game started (0 if it is still waiting for players).
+	 */
+	public long getStartedMillis() {
+		return startedMillis;
+	}
+
+	/**
+	 * Return the time the game ended (0 if it hasn't).
+	 */
+	public long getEndedMillis() {
+		return endedMillis;
+	}
+
+	@Override
+	public String toString() {
+		return "Room " + roomId + ": " + players + "/" + capacity + " players, " + moves + " moves, "
+				+ messagesSent + " messages, " + (gameNanos / 1000) + "us in game logic (max move "
+				+ (maxMoveNanos / 1000) + "us)" + (endedMillis > 0 ? ", ended" : startedMillis > 0 ? ", playing" : ", waiting");
+	}
+}
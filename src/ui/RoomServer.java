@@ -0,0 +1,405 @@
+package ui;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A game server: unlike {@link TCPRunner}, which runs a single game over a single connection,
+ * the server keeps listening, and matches the players that connect into rooms of a fixed size,
+ * each with a game of its own (created by a {@link GameFactory}). Any number of rooms play at once.
+ *
+ * How connections are served depends on the {@link Transport}: each connection is either read by a thread
+ * (or virtual thread) of its own, or served by one of a few {@link EventLoop}s. The rooms don't have threads: each room runs its
+ * tasks on a small pool shared by all the rooms, one task at a time (see {@link Room}).
+ *
+ * The server keeps {@link ServerMetrics} and a {@link RoomMetrics} for each room.
+ */
+public class RoomServer {
+
+	/**
+	 * The ways the server can serve connections.
+	 */
+	public enum Transport {
+		/**
+		 * A blocking socket per connection, read by a thread of its own.
+		 */
+		THREADS,
+		/**
+		 * Non-blocking channels, served by a few selector threads.
+		 */
+		SELECTOR,
+		/**
+		 * A blocking socket per connection, read by a virtual thread of its own (the JVM must have virtual
+		 * threads, see {@link RoomServer#hasVirtualThreads()}).
+		 */
+		VIRTUAL_THREADS
+	}
+
+	/**
+	 * The default number of threads that run the rooms' games.
+	 */
+	public static final int DEFAULT_ROOM_THREADS = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * The number of event loops of the {@link Transport#SELECTOR} transport.
+	 */
+	public static final int DEFAULT_EVENT_LOOPS = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+
+	/**
+	 * The number of pending connections the operating system may queue (bursts of players connecting at once).
+	 */
+	static final int BACKLOG = 1024;
+
+	/**
+	 * How long to wait after accepting a connection failed.
+	 */
+	static final long ACCEPT_BACKOFF_MILLIS = 100;
+
+	final GameFactory factory;
+
+	/**
+	 * The number of players in a room.
+	 */
+	final int playersPerRoom;
+
+	final Transport transport;
+
+	int port;
+
+	ServerSocketChannel serverChannel;
+
+	Thread acceptor;
+
+	/**
+	 * The threads that run the rooms, and the threads that read the connections.
+	 */
+	final ExecutorService roomThreads;
+	final ExecutorService connectionThreads;
+
+	/**
+	 * The event loops (for {@link Transport#SELECTOR}), and the next one to get a connection.
+	 */
+	EventLoop[] eventLoops;
+	int nextLoop;
+
+	final ServerMetrics metrics = new ServerMetrics();
+
+	/**
+	 * The maximal number of bytes waiting to be written to a connection (see {@link PlayerConnection#MAX_OUTPUT}).
+	 */
+	int maxOutput = PlayerConnection.MAX_OUTPUT;
+
+	/**
+	 * The rooms that haven't ended.
+	 */
+	final Set<Room> rooms = Collections.newSetFromMap(new ConcurrentHashMap<Room, Boolean>());
+
+	/**
+	 * The rooms that are waiting for more players, in the order they were opened (guarded by this).
+	 */
+	final Deque<Room> openRooms = new ArrayDeque<Room>();
+
+	int nextRoomId;
+
+	/**
+	 * A constructor.
+	 * @param factory creates the rooms' games.
+	 * @param playersPerRoom the number of players in each room.
+	 * @param basePort the port to listen at (see {@link #start()}).
+	 */
+	public RoomServer(GameFactory factory, int playersPerRoom, int basePort) {
+		this(factory, playersPerRoom, basePort, DEFAULT_ROOM_THREADS, Transport.THREADS);
+	}
+
+	/**
+	 * A constructor.
+	 * @param factory creates the rooms' games.
+	 * @param playersPerRoom the number of players in each room.
+	 * @param basePort the port to listen at (see {@link #start()}).
+	 * @param roomThreads the number of threads that run the rooms.
+	 * @param transport how connections are served.
+	 * @throws UnsupportedOperationException if the transport is {@link Transport#VIRTUAL_THREADS}, and the JVM
+	 * 	has no virtual threads.
+	 */
+	public RoomServer(GameFactory factory, int playersPerRoom, int basePort, int roomThreads, Transport transport) {
+		if (playersPerRoom < 1)
+			throw new IllegalArgumentException("A room needs at least one player");
+		ExecutorService connectionThreads;
+		if (transport == Transport.VIRTUAL_THREADS) {
+			connectionThreads = newVirtualThreadExecutor();
+			if (connectionThreads == null)
+				throw new UnsupportedOperationException("This JVM has no virtual threads; use the THREADS transport");
+		} else {
+			connectionThreads = Executors.newCachedThreadPool(daemonThreads("connection"));
+		}
+		this.factory = factory;
+		this.playersPerRoom = playersPerRoom;
+		this.transport = transport;
+		this.port = basePort;
+		this.roomThreads = Executors.newFixedThreadPool(roomThreads, daemonThreads("room"));
+		this.connectionThreads = connectionThreads;
+	}
+
+	/**
+	 * Return an executor that runs each task in a new virtual thread, or null if the JVM doesn't have virtual threads
+	 * (they are looked up by reflection, so the server still runs on older JVMs).
+	 */
+	static ExecutorService newVirtualThreadExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Return true if the JVM has virtual threads (which the {@link Transport#VIRTUAL_THREADS} transport needs).
+	 */
+	public static boolean hasVirtualThreads() {
+		ExecutorService executor = newVirtualThreadExecutor();
+		if (executor == null)
+			return false;
+		executor.shutdown();
+		return true;
+	}
+
+	static ThreadFactory daemonThreads(final String name) {
+		return new ThreadFactory() {
+			final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+
+	/**
+	 * Return the port at which the server is listening.
+	 */
+	public int getServerPort() {
+		return port;
+	}
+
+	public ServerMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Return the metrics of the rooms that haven't ended.
+	 */
+	public List<RoomMetrics> getRoomMetrics() {
+		List<RoomMetrics> result = new ArrayList<RoomMetrics>();
+		for (Room room : rooms)
+			result.add(room.metrics);
+		return result;
+	}
+
+	/**
+	 * Start listening and accepting players. As in {@link TCPRunner#startListening()}, if listening at the
+	 * port fails, the next port is tried, up to {@link TCPRunner#NETWORK_TRIES} times.
+	 * @throws IOException if all the attempts failed.
+	 */
+	public void start() throws IOException {
+		IOException error = null;
+		for (int tries = 0; tries < TCPRunner.NETWORK_TRIES; ++tries) {
+			try {
+				serverChannel = ServerSocketChannel.open();
+				serverChannel.socket().bind(new InetSocketAddress(port), BACKLOG);
+				error = null;
+				break;
+			} catch (IOException e) {
+				serverChannel.close();
+				error = e;
+				++port;
+			}
+		}
+		if (error != null)
+			throw new IOException("Listening failed at ports " + (port - TCPRunner.NETWORK_TRIES) + "-" + (port - 1), error);
+
+		if (transport == Transport.SELECTOR) {
+			eventLoops = new EventLoop[DEFAULT_EVENT_LOOPS];
+			for (int i = 0; i < eventLoops.length; ++i) {
+				eventLoops[i] = new EventLoop("event-loop-" + (i + 1));
+				eventLoops[i].start();
+			}
+		}
+
+		acceptor = daemonThreads("acceptor").newThread(new Runnable() {
+			@Override
+			public void run() {
+				acceptConnections();
+			}
+		});
+		acceptor.start();
+	}
+
+	/**
+	 * Stop accepting players. Rooms that are playing are not interrupted.
+	 */
+	public void stop() {
+		try {
+			serverChannel.close();
+		} catch (IOException e) {
+			// Ignore; we're not listening anymore anyway.
+		}
+	}
+
+	/**
+	 * Stop accepting players, and close the connections served by event loops
+	 * (their players are aborted, as if they had disconnected).
+	 */
+	public void shutdown() {
+		stop();
+		// Readers that are still running finish when their sockets are closed
+		connectionThreads.shutdown();
+		if (eventLoops != null) {
+			for (EventLoop loop : eventLoops)
+				loop.shutdown();
+		}
+	}
+
+	void acceptConnections() {
+		while (serverChannel.isOpen()) {
+			SocketChannel channel;
+			try {
+				channel = serverChannel.accept();
+			} catch (ClosedChannelException e) {
+				return;
+			} catch (IOException e) {
+				// Usually out of file descriptors; back off until connections are closed
+				System.err.println("Accepting connections failed: " + e.getMessage());
+				try {
+					Thread.sleep(ACCEPT_BACKOFF_MILLIS);
+				} catch (InterruptedException e1) {
+					return;
+				}
+				continue;
+			}
+			metrics.connectionsAccepted.incrementAndGet();
+			metrics.connectionsOpen.incrementAndGet();
+			try {
+				serve(channel);
+			} catch (IOException e) {
+				metrics.connectionsOpen.decrementAndGet();
+				try {
+					channel.close();
+				} catch (IOException e1) {
+					// Ignore; the connection is lost anyway.
+				}
+			}
+		}
+	}
+
+	private void serve(SocketChannel channel) throws IOException {
+		switch (transport) {
+		case THREADS:
+		case VIRTUAL_THREADS:
+			connectionThreads.execute(new SocketConnection(this, channel.socket()));
+			break;
+		case SELECTOR:
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+			EventLoop loop = eventLoops[nextLoop++ % eventLoops.length];
+			loop.register(new ChannelConnection(this, channel, loop));
+			break;
+		}
+	}
+
+	/*======= Matching players into rooms ======*/
+
+	/**
+	 * Assign an identified player to the first room that is waiting for players (opening a new room if there is none).
+	 */
+	synchronized void assign(PlayerConnection conn) {
+		Room room = openRooms.peekFirst();
+		if (room == null) {
+			room = new Room(nextRoomId++, this, playersPerRoom);
+			openRooms.addLast(room);
+			rooms.add(room);
+			metrics.roomsCreated.incrementAndGet();
+		}
+		if (++room.assigned == room.capacity)
+			openRooms.removeFirst();
+
+		conn.room = room;
+		room.join(conn);
+	}
+
+	/**
+	 * A player has left a room before its game started.
+	 */
+	synchronized void leave(Room room) {
+		if (room.assigned-- == room.capacity && !room.ended)
+			openRooms.addFirst(room);
+	}
+
+	/**
+	 * A room's game has ended.
+	 */
+	synchronized void roomEnded(Room room) {
+		openRooms.remove(room);
+		rooms.remove(room);
+		metrics.roomsEnded.incrementAndGet();
+	}
+
+	/*======= Command line ======*/
+
+	/**
+	 * The interval at which {@link #main(String[])} prints the server's metrics.
+	 */
+	static final long METRICS_INTERVAL_MILLIS = 60000;
+
+	/**
+	 * Run a server of {@link game.VerbosityGame}s over a shared dictionary, until the process is stopped
+	 * (the dictionary is then written).
+	 * Usage: <pre>RoomServer dictionary port playersPerRoom transport secretWord...</pre>
+	 * where transport is one of {@link Transport} (e.g. SELECTOR).
+	 */
+	public static void main(String[] args) throws IOException, InterruptedException {
+		if (args.length < 5) {
+			System.err.println("Usage: RoomServer dictionary port playersPerRoom THREADS|SELECTOR|VIRTUAL_THREADS secretWord...");
+			System.exit(1);
+		}
+		final VerbosityGameFactory factory = new VerbosityGameFactory(new File(args[0]),
+				Arrays.asList(args).subList(4, args.length), VerbosityGameFactory.DEFAULT_TABOO_THRESHOLD);
+		final RoomServer server = new RoomServer(factory, Integer.parseInt(args[2]), Integer.parseInt(args[1]),
+				DEFAULT_ROOM_THREADS, Transport.valueOf(args[3]));
+		server.start();
+		System.out.println("Listening at port " + server.getServerPort() + " (" + server.transport + ")");
+
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				server.shutdown();
+				try {
+					factory.close();
+				} catch (IOException e) {
+					System.err.println("Saving the dictionary failed: " + e.getMessage());
+				}
+			}
+		});
+		while (true) {
+			Thread.sleep(METRICS_INTERVAL_MILLIS);
+			System.out.println(server.getMetrics());
+		}
+	}
+}
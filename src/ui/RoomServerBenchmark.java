@@ -0,0 +1,187 @@
+package ui;
+
+import engine.SharedDictionary;
+import game.Game;
+import game.VerbosityGame;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the {@link RoomServer.Transport}s at increasing numbers of connections.
+ *
+ * For each transport and number of connections, the benchmark connects all the players (two per room),
+ * waits until every game has started, and then has every describer play one move and waits until every
+ * guesser has seen it. It reports the time of each phase, the number of platform threads and the heap in use.
+ *
+ * The clients run in the same process, on a single thread, so the process needs about two file descriptors
+ * per connection (see ulimit -n); a run that fails (e.g. out of descriptors) is reported and skipped.
+ * Client sockets are spread over several loopback addresses so that there are enough ephemeral ports.
+ *
+ * Usage: RoomServerBenchmark [connections...]   (default: 1000 10000 50000)
+ */
+public class RoomServerBenchmark {
+
+	static final int BASEPORT = 4401;
+
+	/**
+	 * The number of client sockets bound to each loopback address.
+	 */
+	static final int CLIENTS_PER_ADDRESS = 20000;
+
+	/**
+	 * A client of the text protocol, with a small buffer of its own.
+	 */
+	static class Client {
+		final SocketChannel channel;
+		final ByteBuffer input = ByteBuffer.allocate(512);
+		boolean describer;
+
+		Client(int index, int port) throws IOException {
+			channel = SocketChannel.open();
+			channel.bind(new InetSocketAddress("127.0.0." + (1 + index / CLIENTS_PER_ADDRESS), 0));
+			channel.connect(new InetSocketAddress("127.0.0.1", port));
+			input.flip();
+		}
+
+		void send(String text) throws IOException {
+			ByteBuffer buffer = ByteBuffer.wrap(text.getBytes(SocketConnection.CHARSET));
+			while (buffer.hasRemaining())
+				channel.write(buffer);
+		}
+
+		String readLine() throws IOException {
+			while (true) {
+				for (int i = input.position(); i < input.limit(); ++i) {
+					if (input.get(i) == '\n') {
+						String line = new String(input.array(), input.position(), i - input.position(), SocketConnection.CHARSET);
+						input.position(i + 1);
+						return line;
+					}
+				}
+				input.compact();
+				if (channel.read(input) < 0)
+					throw new EOFException("Connection closed by the server");
+				input.flip();
+			}
+		}
+
+		String readUntil(String prefix) throws IOException {
+			String line;
+			while (!(line = readLine()).startsWith(prefix))
+				;
+			return line;
+		}
+
+		void close() {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// Ignore; the benchmark is done with this client.
+			}
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		int[] counts = { 1000, 10000, 50000 };
+		if (args.length > 0) {
+			counts = new int[args.length];
+			for (int i = 0; i < args.length; ++i)
+				counts[i] = Integer.parseInt(args[i]);
+		}
+		boolean virtualThreads = RoomServer.hasVirtualThreads();
+		if (!virtualThreads)
+			System.out.println("This JVM has no virtual threads; VIRTUAL_THREADS is skipped.");
+
+		int port = BASEPORT;
+		for (int count : counts) {
+			for (RoomServer.Transport transport : RoomServer.Transport.values()) {
+				if (transport == RoomServer.Transport.VIRTUAL_THREADS && !virtualThreads)
+					continue;
+				try {
+					System.out.println(run(transport, count, port));
+				} catch (IOException e) {
+					System.out.println(transport + " " + count + ": failed: " + e);
+				}
+				// Don't wait for the previous server's port to be released
+				port += TCPRunner.NETWORK_TRIES;
+				System.gc();
+			}
+		}
+	}
+
+	static String run(RoomServer.Transport transport, int count, int port) throws IOException {
+		File dictFile = File.createTempFile("Benchmark", ".dct");
+		dictFile.delete();
+		final SharedDictionary dict = new SharedDictionary(dictFile);
+		dict.open();
+		RoomServer server = new RoomServer(new GameFactory() {
+			@Override
+			public Game newGame(int roomId) throws IOException {
+				return new VerbosityGame(5, "secret", dict);
+			}
+
+			@Override
+			public void gameOver(Game game) throws IOException {
+				((VerbosityGame) game).close();
+			}
+		}, 2, port, RoomServer.DEFAULT_ROOM_THREADS, transport);
+		server.start();
+
+		List<Client> clients = new ArrayList<Client>(count);
+		try {
+			// Connect and identify all the players, and wait until all the games have started
+			long start = System.nanoTime();
+			for (int i = 0; i < count; ++i) {
+				Client client = new Client(i, server.getServerPort());
+				clients.add(client);
+				client.send(i + "\nplayer" + i + "\n");
+			}
+			for (Client client : clients)
+				client.describer = client.readUntil("Welcome").endsWith("DESCRIBER role.");
+			long joined = System.nanoTime();
+			int threads = ManagementFactory.getThreadMXBean().getThreadCount();
+			Runtime runtime = Runtime.getRuntime();
+			System.gc();
+			long heap = runtime.totalMemory() - runtime.freeMemory();
+
+			// One move in every room
+			for (Client client : clients) {
+				if (client.describer) {
+					client.readUntil("Next input for player");
+					client.send("book\n");
+				}
+			}
+			for (Client client : clients) {
+				if (!client.describer) {
+					while (!client.readLine().contains(" hints: "))
+						;
+				}
+			}
+			long moved = System.nanoTime();
+
+			return String.format("%-15s %6d connections: join %6d ms, move %6d ms, %5d threads, %5d MB heap",
+					transport, count, (joined - start) / 1000000, (moved - joined) / 1000000, threads, heap >> 20);
+		} finally {
+			for (Client client : clients)
+				client.close();
+			server.shutdown();
+			try {
+				// Let the readers exit, so they aren't counted in the next run
+				server.connectionThreads.awaitTermination(10, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			dict.close();
+			dictFile.delete();
+		}
+	}
+}
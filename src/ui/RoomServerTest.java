@@ -0,0 +1,490 @@
+package ui;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import engine.PersistentDictionary;
+import engine.SharedDictionary;
+import game.Game;
+import game.VerbosityGame;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RoomServerTest {
+	final static int BASEPORT = 4101;
+
+	final static int TIMEOUT = 5000;
+
+	File dictFile;
+	PersistentDictionary dict;
+	RoomServer server;
+
+	/**
+	 * A simple client of the text protocol.
+	 */
+	static class Client {
+		final Socket socket;
+		final BufferedReader in;
+		final OutputStream out;
+
+		Client(int port, String id, String name) throws IOException {
+			socket = new Socket("localhost", port);
+			socket.setSoTimeout(TIMEOUT);
+			in = new BufferedReader(new InputStreamReader(socket.getInputStream(), SocketConnection.CHARSET));
+			out = socket.getOutputStream();
+			assertEquals(TCPRunner.ID_QUERY, in.readLine());
+			send(id);
+			assertEquals(TCPRunner.NAME_QUERY, in.readLine());
+			send(name);
+		}
+
+		void send(String line) throws IOException {
+			out.write((line + "\n").getBytes(SocketConnection.CHARSET));
+			out.flush();
+		}
+
+		/**
+		 * Read lines until one that starts with the prefix.
+		 */
+		String readUntil(String prefix) throws IOException {
+			String line;
+			while ((line = in.readLine()) != null) {
+				if (line.startsWith(prefix))
+					return line;
+			}
+			fail("Connection closed while waiting for: " + prefix);
+			return null;
+		}
+
+		void close() throws IOException {
+			socket.close();
+		}
+	}
+
+	/**
+	 * The transport tested (overridden by the tests of the other transports).
+	 */
+	RoomServer.Transport getTransport() {
+		return RoomServer.Transport.THREADS;
+	}
+
+	@Before
+	public void setup() throws IOException {
+		dictFile = File.createTempFile("DictTest", ".tmp");
+		dictFile.delete();
+		dict = new SharedDictionary(dictFile);
+
+		server = new RoomServer(new GameFactory() {
+			@Override
+			public Game newGame(int roomId) throws IOException {
+				return new VerbosityGame(5, "secret", dict);
+			}
+
+			@Override
+			public void gameOver(Game game) throws IOException {
+				((VerbosityGame) game).close();
+			}
+		}, 2, BASEPORT, RoomServer.DEFAULT_ROOM_THREADS, getTransport());
+		server.start();
+	}
+
+	@After
+	public void tearDown() {
+		// The server isn't created if the transport isn't available (see VirtualThreadRoomServerTest)
+		if (server != null)
+			server.shutdown();
+		if (dictFile != null)
+			dictFile.delete();
+	}
+
+	/**
+	 * Wait (a limited time) until the number of ended rooms reaches the expected number.
+	 */
+	void waitForRoomsEnded(long expected) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		while (server.getMetrics().getRoomsEnded() < expected && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		assertEquals(expected, server.getMetrics().getRoomsEnded());
+	}
+
+	/**
+	 * Play a short game in one room: a move, and then the guesser disconnects.
+	 */
+	@Test
+	public void playInRoom() throws Exception {
+		int port = server.getServerPort();
+
+		Client describer = new Client(port, "1", "alice");
+		assertEquals("Waiting for 1 more players...", describer.in.readLine());
+		Client guesser = new Client(port, "2", "bob");
+
+		describer.readUntil("The secret word you must describe is: secret");
+		describer.readUntil("Next input for player alice-> ");
+		guesser.readUntil("Welcome bob!");
+
+		describer.send("book");
+		guesser.readUntil("Player alice hints: book");
+		guesser.readUntil("Next input for player bob-> ");
+
+		// The last guesser leaves, which ends the game
+		guesser.close();
+		describer.readUntil("Game over!");
+		assertNull(describer.in.readLine());
+		describer.close();
+
+		waitForRoomsEnded(1);
+		ServerMetrics metrics = server.getMetrics();
+		assertEquals(1, metrics.getRoomsCreated());
+		assertEquals(1, metrics.getRoomsStarted());
+		assertEquals(1, metrics.getMoves());
+		assertTrue(server.getRoomMetrics().isEmpty());
+
+		// The game's descriptions were saved when it ended
+		dict.open();
+		String descriptions = dict.get("secret");
+		assertNotNull(descriptions);
+		assertTrue(descriptions.contains("book"));
+		dict.close();
+	}
+
+	/**
+	 * A player that leaves before the room is full is replaced by the next one.
+	 */
+	@Test
+	public void leaveBeforeStart() throws Exception {
+		int port = server.getServerPort();
+
+		Client first = new Client(port, "1", "alice");
+		assertEquals("Waiting for 1 more players...", first.in.readLine());
+		first.close();
+		RoomMetrics room = server.getRoomMetrics().get(0);
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		while (room.getPlayers() > 0 && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		assertEquals(0, room.getPlayers());
+
+		Client second = new Client(port, "2", "bob");
+		Client third = new Client(port, "3", "carol");
+		second.readUntil("Welcome bob!");
+		third.readUntil("Welcome carol!");
+		assertEquals(1, server.getMetrics().getRoomsCreated());
+		assertEquals(1, server.getMetrics().getRoomsStarted());
+
+		second.close();
+		third.close();
+		waitForRoomsEnded(1);
+	}
+
+	/**
+	 * Players beyond a room's capacity are assigned to a new room.
+	 */
+	@Test
+	public void multipleRooms() throws Exception {
+		int port = server.getServerPort();
+		Client[] clients = new Client[6];
+		for (int i = 0; i < clients.length; ++i)
+			clients[i] = new Client(port, "" + i, "player" + i);
+		for (int i = 0; i < clients.length; ++i)
+			clients[i].readUntil("Welcome player" + i + "!");
+
+		assertEquals(3, server.getMetrics().getRoomsStarted());
+		assertEquals(3, server.getRoomMetrics().size());
+
+		for (Client client : clients)
+			client.close();
+		waitForRoomsEnded(3);
+	}
+
+	/**
+	 * Lines may arrive split over several packets, several in one packet, and end with "\r\n".
+	 */
+	@Test
+	public void lineFraming() throws Exception {
+		Socket socket = new Socket("localhost", server.getServerPort());
+		socket.setSoTimeout(TIMEOUT);
+		BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), SocketConnection.CHARSET));
+		OutputStream out = socket.getOutputStream();
+
+		assertEquals(TCPRunner.ID_QUERY, in.readLine());
+		out.write("1\r\nal".getBytes(SocketConnection.CHARSET));
+		out.flush();
+		assertEquals(TCPRunner.NAME_QUERY, in.readLine());
+		Thread.sleep(50);
+		out.write("ice\n".getBytes(SocketConnection.CHARSET));
+		out.flush();
+		assertEquals("Waiting for 1 more players...", in.readLine());
+
+		Client guesser = new Client(port(), "2", "bob");
+		guesser.readUntil("Player alice is a DESCRIBER");
+		socket.close();
+		guesser.close();
+		waitForRoomsEnded(1);
+	}
+
+	/**
+	 * Many players can wait at once.
+	 */
+	@Test
+	public void manyConnections() throws Exception {
+		Client[] clients = new Client[200];
+		for (int i = 0; i < clients.length; ++i)
+			clients[i] = new Client(port(), "" + i, "player" + i);
+		for (int i = 0; i < clients.length; ++i)
+			clients[i].readUntil("Welcome player" + i + "!");
+		assertEquals(clients.length, server.getMetrics().getConnectionsOpen());
+		assertEquals(clients.length / 2, server.getMetrics().getRoomsStarted());
+
+		for (Client client : clients)
+			client.close();
+		waitForRoomsEnded(clients.length / 2);
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		while (server.getMetrics().getConnectionsOpen() > 0 && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		assertEquals(0, server.getMetrics().getConnectionsOpen());
+	}
+
+	/**
+	 * A player that doesn't read its output is disconnected once too much of it is waiting,
+	 * and the other rooms keep playing meanwhile.
+	 */
+	@Test
+	public void slowConsumer() throws Exception {
+		server.maxOutput = 16 * 1024;
+		Client describer = new Client(port(), "1", "alice");
+		Client guesser = new Client(port(), "2", "bob");
+		describer.readUntil("Next input for player alice-> ");
+
+		Socket socket = new Socket();
+		socket.setReceiveBufferSize(4096);
+		socket.connect(new InetSocketAddress("localhost", port()));
+		OutputStream out = socket.getOutputStream();
+		out.write("3\ncarol\n".getBytes(SocketConnection.CHARSET));
+
+		// Every move in a room that is waiting for players is answered; never read the answers
+		byte[] moves = new byte[8192];
+		for (int i = 0; i < moves.length; i += 2) {
+			moves[i] = 'x';
+			moves[i + 1] = '\n';
+		}
+		long deadline = System.currentTimeMillis() + 4 * TIMEOUT;
+		try {
+			while (server.getMetrics().getSlowConsumers() == 0 && System.currentTimeMillis() < deadline)
+				out.write(moves);
+		} catch (IOException e) {
+			// The server dropped the connection
+		}
+		assertEquals(1, server.getMetrics().getSlowConsumers());
+
+		describer.send("book");
+		guesser.readUntil("Player alice hints: book");
+		describer.close();
+		guesser.close();
+		socket.close();
+		waitForRoomsEnded(1);
+	}
+
+	/**
+	 * The factory of the command-line server keeps its dictionary open while the rooms play,
+	 * and writes it when it is closed.
+	 */
+	@Test
+	public void verbosityGameFactory() throws Exception {
+		server.shutdown();
+		VerbosityGameFactory factory = new VerbosityGameFactory(dictFile, Arrays.asList("secret"),
+				VerbosityGameFactory.DEFAULT_TABOO_THRESHOLD);
+		server = new RoomServer(factory, 2, BASEPORT, RoomServer.DEFAULT_ROOM_THREADS, getTransport());
+		server.start();
+
+		Client describer = new Client(port(), "1", "alice");
+		Client guesser = new Client(port(), "2", "bob");
+		describer.readUntil("The secret word you must describe is: secret");
+		describer.readUntil("Next input for player alice-> ");
+		describer.send("book");
+		guesser.readUntil("Player alice hints: book");
+		guesser.close();
+		describer.close();
+		waitForRoomsEnded(1);
+		assertTrue("The dictionary was written before the factory was closed", !dictFile.exists());
+
+		factory.close();
+		dict.open();
+		assertTrue(dict.get("secret").contains("book"));
+		dict.close();
+	}
+
+	int port() {
+		return server.getServerPort();
+	}
+
+	/**
+	 * A simple client of the binary protocol.
+	 */
+	static class BinaryClient {
+		final Socket socket;
+		final DataInputStream in;
+		final OutputStream out;
+
+		/**
+		 * The strings defined by the server.
+		 */
+		final List<String> table = new ArrayList<String>();
+
+		BinaryClient(int port, String id, String name) throws IOException {
+			socket = new Socket("localhost", port);
+			socket.setSoTimeout(TIMEOUT);
+			in = new DataInputStream(socket.getInputStream());
+			out = socket.getOutputStream();
+
+			byte[] query = new byte[TCPRunner.ID_QUERY.length() + 1];
+			in.readFully(query);
+			assertEquals(TCPRunner.ID_QUERY + "\n", new String(query, SocketConnection.CHARSET));
+			out.write((BinaryProtocol.BINARY_MODE + "\n").getBytes(SocketConnection.CHARSET));
+
+			BinaryProtocol.FrameReader hello = readFrame(BinaryProtocol.HELLO);
+			assertEquals(BinaryProtocol.VERSION, hello.varint());
+			send(new BinaryProtocol.FrameWriter().begin(BinaryProtocol.IDENT).string(id).string(name).end());
+		}
+
+		void send(BinaryProtocol.FrameWriter frames) throws IOException {
+			out.write(frames.toByteArray());
+			out.flush();
+		}
+
+		/**
+		 * Read frames until one with the opcode (recording the strings defined on the way).
+		 */
+		BinaryProtocol.FrameReader readFrame(int opcode) throws IOException {
+			while (true) {
+				int length = 0;
+				for (int shift = 0;; shift += 7) {
+					int b = in.readUnsignedByte();
+					length |= (b & 0x7F) << shift;
+					if (b < 0x80)
+						break;
+				}
+				byte[] frame = new byte[length];
+				in.readFully(frame);
+				BinaryProtocol.FrameReader payload = new BinaryProtocol.FrameReader(frame, 1, length - 1);
+				if (frame[0] == opcode)
+					return payload;
+				if (frame[0] == BinaryProtocol.DEFINE) {
+					assertEquals(table.size(), payload.varint());
+					table.add(payload.string());
+				}
+			}
+		}
+
+		/**
+		 * Read the next message, through the string table.
+		 */
+		String readMessage() throws IOException {
+			while (true) {
+				int length = 0;
+				for (int shift = 0;; shift += 7) {
+					int b = in.readUnsignedByte();
+					length |= (b & 0x7F) << shift;
+					if (b < 0x80)
+						break;
+				}
+				byte[] frame = new byte[length];
+				in.readFully(frame);
+				BinaryProtocol.FrameReader payload = new BinaryProtocol.FrameReader(frame, 1, length - 1);
+				switch (frame[0]) {
+				case BinaryProtocol.DEFINE:
+					assertEquals(table.size(), payload.varint());
+					table.add(payload.string());
+					break;
+				case BinaryProtocol.MESSAGE:
+					return table.get(payload.varint());
+				case BinaryProtocol.TEXT:
+					return payload.string();
+				default:
+					fail("Unexpected opcode " + frame[0]);
+				}
+			}
+		}
+
+		void close() throws IOException {
+			socket.close();
+		}
+	}
+
+	/**
+	 * A binary client and a text client play in the same room.
+	 */
+	@Test
+	public void binaryProtocol() throws Exception {
+		BinaryClient describer = new BinaryClient(port(), "1", "alice");
+		assertEquals("Waiting for 1 more players...", describer.readMessage());
+		Client guesser = new Client(port(), "2", "bob");
+
+		BinaryProtocol.FrameReader room = describer.readFrame(BinaryProtocol.ROOM);
+		room.varint();
+		assertEquals(0, room.varint());
+		assertEquals(2, room.varint());
+		assertEquals(0, room.varint());
+		assertEquals("alice", room.string());
+		assertEquals(1, room.varint());
+		assertEquals("bob", room.string());
+
+		String message;
+		while (!(message = describer.readMessage()).startsWith("The secret word"))
+			;
+		assertEquals("The secret word you must describe is: secret", message);
+		assertEquals(0, describer.readFrame(BinaryProtocol.TURN).varint());
+
+		describer.send(new BinaryProtocol.FrameWriter().begin(BinaryProtocol.MOVE).text("book").end());
+		guesser.readUntil("Player alice hints: book");
+		guesser.readUntil("Next input for player bob-> ");
+		guesser.send("dog");
+		assertEquals(0, describer.readFrame(BinaryProtocol.TURN).varint());
+
+		// The same message twice is sent by reference
+		int defined = describer.table.size();
+		describer.send(new BinaryProtocol.FrameWriter().begin(BinaryProtocol.MOVE).text("secret").end());
+		assertEquals("You may not play the secret word itself!", describer.readMessage());
+		assertEquals(0, describer.readFrame(BinaryProtocol.TURN).varint());
+		describer.send(new BinaryProtocol.FrameWriter().begin(BinaryProtocol.MOVE).text("secret").end());
+		assertEquals("You may not play the secret word itself!", describer.readMessage());
+		assertEquals(0, describer.readFrame(BinaryProtocol.TURN).varint());
+		assertEquals(defined + 1, describer.table.size());
+
+		guesser.close();
+		describer.close();
+		waitForRoomsEnded(1);
+	}
+
+	/**
+	 * A malformed frame disconnects the player.
+	 */
+	@Test
+	public void binaryProtocolError() throws Exception {
+		BinaryClient client = new BinaryClient(port(), "1", "alice");
+		client.readMessage();
+		client.send(new BinaryProtocol.FrameWriter().begin(0x7F).end());
+		try {
+			client.in.readByte();
+			fail("The connection should have been closed");
+		} catch (EOFException e) {
+			// Expected
+		}
+		client.close();
+	}
+}
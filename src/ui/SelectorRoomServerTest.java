@@ -0,0 +1,10 @@
+package ui;
+
+public class SelectorRoomServerTest extends RoomServerTest {
+
+	@Override
+	RoomServer.Transport getTransport() {
+		return RoomServer.Transport.SELECTOR;
+	}
+
+}
@@ -0,0 +1,67 @@
+package ui;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs tasks one at a time, in the order they were submitted, on a shared executor.
+ *
+ * Each {@link Room} has its own SerialExecutor, so a room's game is only ever accessed by one thread at
+ * a time, and each task sees the effects of the previous ones: the game logic needs no locks, and
+ * no thread is dedicated to a room. A busy room gives up its thread after {@link #MAX_BATCH} tasks,
+ * so it can't starve the other rooms.
+ */
+class SerialExecutor implements Executor {
+
+	/**
+	 * The maximal number of tasks run before yielding the thread.
+	 */
+	static final int MAX_BATCH = 64;
+
+	final Executor executor;
+
+	final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+	/**
+	 * Whether a batch of tasks is scheduled or running.
+	 */
+	final AtomicBoolean scheduled = new AtomicBoolean();
+
+	final Runnable drain = new Runnable() {
+		@Override
+		public void run() {
+			try {
+				Runnable task;
+				for (int n = 0; n < MAX_BATCH && (task = tasks.poll()) != null; ++n) {
+					try {
+						task.run();
+					} catch (RuntimeException e) {
+						// Don't let one failed task stop the tasks after it
+						e.printStackTrace();
+					}
+				}
+			} finally {
+				scheduled.set(false);
+				if (!tasks.isEmpty())
+					schedule();
+			}
+		}
+	};
+
+	SerialExecutor(Executor executor) {
+		this.executor = executor;
+	}
+
+	@Override
+	public void execute(Runnable task) {
+		tasks.add(task);
+		schedule();
+	}
+
+	private void schedule() {
+		if (scheduled.compareAndSet(false, true))
+			executor.execute(drain);
+	}
+}
@@ -0,0 +1,66 @@
+package ui;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Server-wide metrics of a {@link RoomServer} (see {@link RoomMetrics} for the metrics of each room).
+ */
+public class ServerMetrics {
+
+	final AtomicLong connectionsAccepted = new AtomicLong();
+	final AtomicInteger connectionsOpen = new AtomicInteger();
+
+	final AtomicLong roomsCreated = new AtomicLong();
+	final AtomicLong roomsStarted = new AtomicLong();
+	final AtomicLong roomsEnded = new AtomicLong();
+
+	final AtomicLong moves = new AtomicLong();
+
+	/**
+	 * The number of connections dropped because their players didn't read their output.
+	 */
+	final AtomicLong slowConsumers = new AtomicLong();
+
+	public long getConnectionsAccepted() {
+		return connectionsAccepted.get();
+	}
+
+	public int getConnectionsOpen() {
+		return connectionsOpen.get();
+	}
+
+	public long getRoomsCreated() {
+		return roomsCreated.get();
+	}
+
+	public long getRoomsStarted() {
+		return roomsStarted.get();
+	}
+
+	public long getRoomsEnded() {
+		return roomsEnded.get();
+	}
+
+	/**
+	 * Return the number of rooms that have been created and haven't ended.
+	 */
+	public long getRoomsOpen() {
+		return roomsCreated.get() - roomsEnded.get();
+	}
+
+	public long getMoves() {
+		return moves.get();
+	}
+
+	public long getSlowConsumers() {
+		return slowConsumers.get();
+	}
+
+	@Override
+	public String toString() {
+		return getConnectionsOpen() + " connections open (" + getConnectionsAccepted() + " accepted), "
+				+ getRoomsOpen() + " rooms open (" + getRoomsStarted() + " started, " + getRoomsEnded() + " ended), "
+				+ getMoves() + " moves, " + getSlowConsumers() + " slow consumers dropped";
+	}
+}
@@ -0,0 +1,168 @@
+package ui;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A player connection over a blocking socket, read by a thread (or virtual thread) of its own
+ * in the same style as {@link TCPRunner#runGame(java.util.Collection)}.
+ *
+ * The socket must have a channel (i.e. be accepted by a {@link java.nio.channels.ServerSocketChannel}):
+ * the connection writes through it, so shared read-only buffers are written without copying.
+ * As in {@link ChannelConnection}, sent buffers are queued, so the rooms' threads never block on a player
+ * that doesn't read: a writer task (on the server's connection threads) writes the queue while it isn't empty,
+ * and at most one writer runs at a time. A player that lets too much output wait is disconnected.
+ */
+class SocketConnection extends PlayerConnection implements Runnable {
+
+	final Socket socket;
+
+	/**
+	 * The socket's channel, for writing (by the writer only).
+	 */
+	final SocketChannel channel;
+
+	/**
+	 * Buffers sent and not yet written.
+	 */
+	final Queue<ByteBuffer> output = new ConcurrentLinkedQueue<ByteBuffer>();
+
+	/**
+	 * Whether a writer is scheduled or running.
+	 */
+	final AtomicBoolean writing = new AtomicBoolean();
+
+	/**
+	 * Set to close the socket once everything sent so far has been written.
+	 */
+	volatile boolean closing;
+
+	final Runnable writer = new Runnable() {
+		@Override
+		public void run() {
+			write();
+		}
+	};
+
+	SocketConnection(RoomServer server, Socket socket) {
+		super(server);
+		this.socket = socket;
+		this.channel = socket.getChannel();
+	}
+
+	/**
+	 * Read until the connection is closed.
+	 */
+	@Override
+	public void run() {
+		try {
+			InputStream in = socket.getInputStream();
+			start();
+			byte[] buffer = new byte[BUFFER_SIZE];
+			int length = 0;
+			int n;
+			while ((n = in.read(buffer, length, buffer.length - length)) >= 0) {
+				length += n;
+				int consumed = receivedBytes(buffer, 0, length);
+
+				// Keep the incomplete line at the start of the buffer
+				length -= consumed;
+				System.arraycopy(buffer, consumed, buffer, 0, length);
+				if (length == buffer.length) {
+					if (length >= MAX_INPUT)
+						break;
+					buffer = Arrays.copyOf(buffer, Math.min(2 * length, MAX_INPUT));
+				}
+			}
+		} catch (IOException e) {
+			// The connection was lost (or closed by the room)
+		} finally {
+			close();
+			disconnected();
+		}
+	}
+
+	/**
+	 * Queue bytes for the writer. If too much is queued already, the connection is dropped, and
+	 * later output is ignored.
+	 */
+	@Override
+	void send(ByteBuffer data) {
+		if (dropped.get())
+			return;
+		if (!queued(data.remaining())) {
+			closeNow();
+			return;
+		}
+		output.add(data);
+		scheduleWriter();
+	}
+
+	/**
+	 * Close the connection once everything sent so far has been written.
+	 */
+	@Override
+	void close() {
+		closing = true;
+		scheduleWriter();
+	}
+
+	private void scheduleWriter() {
+		if (!writing.compareAndSet(false, true))
+			return;
+		try {
+			server.connectionThreads.execute(writer);
+		} catch (RejectedExecutionException e) {
+			// The server has shut down
+			closeNow();
+		}
+	}
+
+	/**
+	 * Write the queued buffers until the queue is empty (closing the socket if it should be closed).
+	 */
+	void write() {
+		while (true) {
+			ByteBuffer data;
+			try {
+				while ((data = output.poll()) != null) {
+					while (data.hasRemaining())
+						written(channel.write(data));
+				}
+			} catch (IOException e) {
+				// The reader will see the socket closed, and report the player disconnected.
+				closeNow();
+				return;
+			}
+			if (closing) {
+				closeNow();
+				return;
+			}
+
+			writing.set(false);
+			// Buffers queued (or a close requested) after the checks above found no writer running
+			if ((output.isEmpty() && !closing) || !writing.compareAndSet(false, true))
+				return;
+		}
+	}
+
+	/**
+	 * Close the socket right away, dropping the output that hasn't been written.
+	 */
+	void closeNow() {
+		output.clear();
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// Ignore; the socket is closed anyway.
+		}
+	}
+}
@@ -283,11 +283,11 @@ public class TCPRunner {
 	
 	/**
 	 * Output status messages to TCPPlayers. 
+	 * The default messages are encoded once for all the players that receive them (see {@link EncodedUpdate}).
 	 * @param status
 	 */
 	void outputTCPStatusMessages(StatusUpdate update) {
-		// Initialize output stream
-		PrintStream out = null;
+		EncodedUpdate encoded = new EncodedUpdate(update);
 		
 		//
 		List<StatusUpdate> abortedUpdates = new LinkedList<StatusUpdate>();
@@ -295,31 +295,27 @@ public class TCPRunner {
 		// Go over the list of active players
 		for (Player player : game.getActivePlayers()) {	
 			if (player instanceof TCPPlayer) {
+				List<String> messages = encoded.getMessages(player);
+				
+				// In case there are no messages for the player 
+				if (messages == null)
+					continue;
+				
+				Socket socket = ((TCPPlayer) player).getPlayerSocket();
 				try {
-					// Create output stream
-					out = new PrintStream(((TCPPlayer) player).getPlayerSocket().getOutputStream(), true);
+					// output the player's message/s
+					socket.getOutputStream().write(encoded.getBytes(messages));
 				} catch (IOException e) {
 					
 					// If an I/O error occurs, close socket
 					try {
-						((TCPPlayer) player).getPlayerSocket().close();
+						socket.close();
 					} catch (IOException e1) {
 
 					}
 					// abort player and: save the status update to a linked list
 					abortedUpdates.add(game.playerAbort(player, System.currentTimeMillis()));
 				}
-				
-				// In case there is a message for the player 
-				if (update.getMessages(player) != null) {
-					
-					// output the player's message/s
-					out.print(update.getMessages(player));
-				} else if (update.getMessages() != null){
-					
-					// otherwise, send the player the default messages
-					out.print(update.getMessages());
-				}
 			}	
 		}
 		
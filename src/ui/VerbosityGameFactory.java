@@ -0,0 +1,70 @@
+package ui;
+
+import engine.SharedDictionary;
+import game.Game;
+import game.VerbosityGame;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Creates the {@link VerbosityGame}s of a {@link RoomServer}'s rooms, all over one {@link SharedDictionary}.
+ *
+ * The factory keeps the dictionary open from its construction until {@link #close()}, so the dictionary is
+ * loaded once, rather than whenever the first game of a quiet period starts, and is written when the factory
+ * is closed (the games' own opens and closes only count references). Each room's secret word is picked at random.
+ */
+public class VerbosityGameFactory implements GameFactory {
+
+	/**
+	 * The taboo threshold of the games, as in the tests of {@link VerbosityGame}.
+	 */
+	public static final int DEFAULT_TABOO_THRESHOLD = 5;
+
+	final SharedDictionary dict;
+
+	final List<String> secretWords;
+
+	final int tabooThreshold;
+
+	final Random random = new Random();
+
+	/**
+	 * A constructor: opens the dictionary.
+	 * @param dictFile the dictionary's file (see {@link SharedDictionary}).
+	 * @param secretWords the secret words the rooms play.
+	 * @param tabooThreshold see {@link VerbosityGame#VerbosityGame(int, String, engine.PersistentDictionary)}.
+	 */
+	public VerbosityGameFactory(File dictFile, List<String> secretWords, int tabooThreshold) throws IOException {
+		if (secretWords.isEmpty())
+			throw new IllegalArgumentException("At least one secret word is needed");
+		this.dict = new SharedDictionary(dictFile);
+		this.secretWords = new ArrayList<String>(secretWords);
+		this.tabooThreshold = tabooThreshold;
+		dict.open();
+	}
+
+	@Override
+	public Game newGame(int roomId) throws IOException {
+		String secretWord;
+		synchronized (random) {
+			secretWord = secretWords.get(random.nextInt(secretWords.size()));
+		}
+		return new VerbosityGame(tabooThreshold, secretWord, dict);
+	}
+
+	@Override
+	public void gameOver(Game game) throws IOException {
+		((VerbosityGame) game).close();
+	}
+
+	/**
+	 * Release the dictionary (it is written once the games that are still playing have ended, too).
+	 */
+	public void close() throws IOException {
+		dict.close();
+	}
+}
@@ -0,0 +1,25 @@
+package ui;
+
+import java.io.IOException;
+
+import org.junit.Assume;
+import org.junit.Before;
+
+public class VirtualThreadRoomServerTest extends RoomServerTest {
+
+	@Override
+	RoomServer.Transport getTransport() {
+		return RoomServer.Transport.VIRTUAL_THREADS;
+	}
+
+	/**
+	 * Skip the tests on JVMs without virtual threads.
+	 */
+	@Before
+	@Override
+	public void setup() throws IOException {
+		Assume.assumeTrue(RoomServer.hasVirtualThreads());
+		super.setup();
+	}
+
+}